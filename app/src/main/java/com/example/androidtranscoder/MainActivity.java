@@ -21,6 +21,7 @@ import androidx.core.view.WindowInsetsCompat;
 
 import com.example.androidtranscoder.MediaTranscoder;
 import com.example.androidtranscoder.format.MediaFormatPresetsFactory;
+import com.example.androidtranscoder.utils.DeviceCodecCapabilities;
 import com.example.androidtranscoder.utils.PermissionUtils;
 
 import java.io.File;
@@ -50,6 +51,8 @@ public class MainActivity extends AppCompatActivity {
             return insets;
         });
         PermissionUtils.requestPermissions(this);
+        // Before MediaTranscoder sizes its job limit from the capabilities.
+        DeviceCodecCapabilities.load(getCacheDir());
 
         findViewById(R.id.select_video_button).setOnClickListener(v ->
                 startActivityForResult(
@@ -136,7 +139,9 @@ public class MainActivity extends AppCompatActivity {
                                 fileDescriptor,
                                 file.getAbsolutePath(),
                                 MediaFormatPresetsFactory
-                                        .createVideo720pStrategy(8000 * 1000, 128 * 1000, 2),
+                                        .createVideo720pStrategy(8000 * 1000, 128 * 1000, 2, -1,
+                                                DeviceCodecCapabilities.getInstance()),
+                                3_000_000L, 10_000_000L,
                                 listener);
                 switchButtonEnabled(true);
             }
@@ -1,33 +1,56 @@
 
 package com.example.androidtranscoder;
 
+import android.media.MediaCodec;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 
+import com.example.androidtranscoder.engine.CodecPool;
+import com.example.androidtranscoder.engine.EglResourceManager;
 import com.example.androidtranscoder.engine.MediaTranscoderEngine;
+import com.example.androidtranscoder.engine.PolyphaseResampler;
+import com.example.androidtranscoder.engine.QueuedMuxer;
+import com.example.androidtranscoder.engine.TranscodeMetrics;
 import com.example.androidtranscoder.format.MediaFormatStrategy;
+import com.example.androidtranscoder.muxer.Muxer;
+import com.example.androidtranscoder.muxer.PlatformMuxer;
+import com.example.androidtranscoder.scheduler.TranscodeScheduler;
 
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class MediaTranscoder {
     private static final String TAG = "MediaTranscoder";
-    private static final int MAXIMUM_THREAD = 1; // TODO
+    private static final int CODECS_PER_JOB = 4;
+    private static final long CODEC_MAX_IDLE_MS = 30000;
     private static volatile MediaTranscoder sMediaTranscoder;
-    private final ThreadPoolExecutor mExecutor;
+    private final TranscodeScheduler mScheduler;
+    private final EglResourceManager mEglResourceManager = new EglResourceManager();
+    private final CodecPool<MediaCodec> mCodecPool;
+    /** Engines of finished jobs, at most one per concurrent job. */
+    private final ArrayDeque<MediaTranscoderEngine> mIdleEngines = new ArrayDeque<>();
+    private volatile boolean mEventDriven;
+    private volatile boolean mParallelTracks = Runtime.getRuntime().availableProcessors() > 1;
+    private volatile boolean mSmartCut;
+    private volatile boolean mMetricsEnabled;
+    private volatile int mRenderPipelineDepth = MediaTranscoderEngine.RECOMMENDED_RENDER_PIPELINE_DEPTH;
+    private volatile int mMaxSegments = 1;
+    private volatile boolean mMappedMp4Input;
+    private volatile long mInterleaveWindowUs = QueuedMuxer.DEFAULT_INTERLEAVE_WINDOW_US;
+    private volatile PolyphaseResampler.Quality mResamplerQuality = PolyphaseResampler.Quality.MEDIUM;
 
     private MediaTranscoder() {
-        mExecutor = new ThreadPoolExecutor(
-                0, MAXIMUM_THREAD, 60, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<>(),
-                r -> new Thread(r, "MediaTranscoder-Worker"));
+        mScheduler = new TranscodeScheduler(TranscodeScheduler.getDefaultMaxConcurrentJobs());
+        // Decoder and encoder of each track; jobs of several renditions reserve more, see transcodeVideoRenditions.
+        mCodecPool = new CodecPool<>(CodecPool.MEDIA_CODEC_FACTORY,
+                CODECS_PER_JOB * mScheduler.getMaxConcurrentJobs(), CODEC_MAX_IDLE_MS);
     }
 
     public static MediaTranscoder getInstance() {
@@ -51,54 +74,417 @@ public class MediaTranscoder {
      * @param listener          Listener instance for callback.
      */
     public Future<Void> transcodeVideo(final FileDescriptor inFileDescriptor, final String outPath, final MediaFormatStrategy outFormatStrategy, final Listener listener) {
+        return transcodeVideo(inFileDescriptor, outPath, outFormatStrategy, listener,
+                TranscodeScheduler.PRIORITY_NORMAL, TranscodeScheduler.Preemption.NONE);
+    }
+
+    /**
+     * Transcodes a range of video file asynchronously.
+     * Audio track will be kept unchanged.
+     *
+     * @param inFileDescriptor  FileDescriptor for input.
+     * @param outPath           File path for output.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param trimStartUs       Start of the range in the input, in micro-seconds.
+     * @param trimEndUs         End of the range, exclusive, or negative for the end of the input.
+     * @param listener          Listener instance for callback.
+     * @see MediaTranscoderEngine#setTrimRange(long, long)
+     */
+    public Future<Void> transcodeVideo(final FileDescriptor inFileDescriptor, final String outPath, final MediaFormatStrategy outFormatStrategy,
+                                       long trimStartUs, long trimEndUs, final Listener listener) {
+        return transcodeVideo(inFileDescriptor, outPath, outFormatStrategy, trimStartUs, trimEndUs, listener,
+                TranscodeScheduler.PRIORITY_NORMAL, TranscodeScheduler.Preemption.NONE);
+    }
+
+    /**
+     * Transcodes video file asynchronously, running up to {@link #getMaxConcurrentJobs()} jobs at once.
+     * Jobs of higher priority are started first; jobs of the same priority in submission order.
+     *
+     * @param inFileDescriptor  FileDescriptor for input.
+     * @param outPath           File path for output.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param listener          Listener instance for callback.
+     * @param priority          Priority of this job, e.g. {@link TranscodeScheduler#PRIORITY_HIGH}.
+     * @param preemption        What to do with a running job of lower priority if every slot is busy.
+     *                          A requeued job restarts from the beginning and its listener is not notified until it finally ends.
+     */
+    public Future<Void> transcodeVideo(final FileDescriptor inFileDescriptor, final String outPath, final MediaFormatStrategy outFormatStrategy, final Listener listener,
+                                       int priority, TranscodeScheduler.Preemption preemption) {
+        return transcodeVideo(inFileDescriptor, outPath, outFormatStrategy, 0, -1, listener, priority, preemption);
+    }
+
+    /**
+     * Transcodes a range of video file asynchronously, running up to {@link #getMaxConcurrentJobs()} jobs at once.
+     *
+     * @param inFileDescriptor  FileDescriptor for input.
+     * @param outPath           File path for output.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param trimStartUs       Start of the range in the input, in micro-seconds.
+     * @param trimEndUs         End of the range, exclusive, or negative for the end of the input.
+     * @param listener          Listener instance for callback.
+     * @param priority          Priority of this job, e.g. {@link TranscodeScheduler#PRIORITY_HIGH}.
+     * @param preemption        What to do with a running job of lower priority if every slot is busy.
+     */
+    public Future<Void> transcodeVideo(final FileDescriptor inFileDescriptor, final String outPath, final MediaFormatStrategy outFormatStrategy,
+                                       long trimStartUs, long trimEndUs, final Listener listener,
+                                       int priority, TranscodeScheduler.Preemption preemption) {
+        // Through the output path rather than a muxer factory, so MP4 input which needs no transcoding can be remuxed.
+        return submit(inFileDescriptor, engine -> engine.transcodeVideo(outPath, outFormatStrategy),
+                trimStartUs, trimEndUs, listener, priority, preemption);
+    }
+
+    /**
+     * Transcodes video file asynchronously into a muxer of the caller's choice,
+     * e.g. {@code () -> new FragmentedMp4Muxer(outPath)} for fragmented MP4 output.
+     *
+     * @param inFileDescriptor  FileDescriptor for input.
+     * @param muxerFactory      Creates the output muxer; called again if the job is requeued.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param listener          Listener instance for callback.
+     * @param priority          Priority of this job, e.g. {@link TranscodeScheduler#PRIORITY_HIGH}.
+     * @param preemption        What to do with a running job of lower priority if every slot is busy.
+     */
+    public Future<Void> transcodeVideo(final FileDescriptor inFileDescriptor, final Muxer.Factory muxerFactory, final MediaFormatStrategy outFormatStrategy, final Listener listener,
+                                       int priority, TranscodeScheduler.Preemption preemption) {
+        return transcodeVideo(inFileDescriptor, muxerFactory, outFormatStrategy, 0, -1, listener, priority, preemption);
+    }
+
+    /**
+     * Transcodes a range of video file asynchronously into a muxer of the caller's choice.
+     *
+     * @param inFileDescriptor  FileDescriptor for input.
+     * @param muxerFactory      Creates the output muxer; called again if the job is requeued.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param trimStartUs       Start of the range in the input, in micro-seconds.
+     * @param trimEndUs         End of the range, exclusive, or negative for the end of the input.
+     * @param listener          Listener instance for callback.
+     * @param priority          Priority of this job, e.g. {@link TranscodeScheduler#PRIORITY_HIGH}.
+     * @param preemption        What to do with a running job of lower priority if every slot is busy.
+     */
+    public Future<Void> transcodeVideo(final FileDescriptor inFileDescriptor, final Muxer.Factory muxerFactory, final MediaFormatStrategy outFormatStrategy,
+                                       long trimStartUs, long trimEndUs, final Listener listener,
+                                       int priority, TranscodeScheduler.Preemption preemption) {
+        return submit(inFileDescriptor, engine -> engine.transcodeVideo(muxerFactory, outFormatStrategy),
+                trimStartUs, trimEndUs, listener, priority, preemption);
+    }
+
+    /**
+     * Transcodes video file asynchronously into several renditions, e.g. the steps of an ABR ladder, decoding the
+     * input once for all of them. The job fails if its codecs, a decoder, an encoder per rendition and the audio
+     * codecs, exceed the codec pool, which holds {@link #getCodecPool()}{@code .getMaxLiveCodecs()}.
+     *
+     * @param inFileDescriptor  FileDescriptor for input.
+     * @param outPaths          File path of each rendition, in the order of the strategy's video formats.
+     * @param outFormatStrategy Strategy which returns a video format per output path from
+     *                          {@link MediaFormatStrategy#createVideoOutputFormats(android.media.MediaFormat)}.
+     * @param listener          Listener instance for callback.
+     * @param priority          Priority of this job, e.g. {@link TranscodeScheduler#PRIORITY_HIGH}.
+     * @param preemption        What to do with a running job of lower priority if every slot is busy.
+     * @see MediaTranscoderEngine#transcodeVideoRenditions(List, MediaFormatStrategy)
+     */
+    public Future<Void> transcodeVideoRenditions(final FileDescriptor inFileDescriptor, final List<String> outPaths,
+                                                 final MediaFormatStrategy outFormatStrategy, final Listener listener,
+                                                 int priority, TranscodeScheduler.Preemption preemption) {
+        final List<Muxer.Factory> muxerFactories = new ArrayList<>();
+        for (final String outPath : outPaths) muxerFactories.add(() -> new PlatformMuxer(outPath));
+        return submit(inFileDescriptor, engine -> engine.transcodeVideoRenditions(muxerFactories, outFormatStrategy),
+                0, -1, listener, priority, preemption);
+    }
+
+    private Future<Void> submit(final FileDescriptor inFileDescriptor, final EngineTask task,
+                                long trimStartUs, long trimEndUs, final Listener listener,
+                                int priority, TranscodeScheduler.Preemption preemption) {
         Looper looper = Looper.myLooper();
         if (looper == null) looper = Looper.getMainLooper();
         final Handler handler = new Handler(looper);
-        final AtomicReference<Future<Void>> futureReference = new AtomicReference<>();
-        final Future<Void> createdFuture = mExecutor.submit(() -> {
-            Exception caughtException = null;
+        final boolean eventDriven = mEventDriven;
+        final boolean parallelTracks = mParallelTracks;
+        final boolean smartCut = mSmartCut;
+        final int renderPipelineDepth = mRenderPipelineDepth;
+        final int maxSegments = mMaxSegments;
+        final boolean mappedMp4Input = mMappedMp4Input;
+        final long interleaveWindowUs = mInterleaveWindowUs;
+        final PolyphaseResampler.Quality resamplerQuality = mResamplerQuality;
+        final TranscodeMetrics metrics = mMetricsEnabled ? new TranscodeMetrics() : null;
+        final ProgressPoster progressPoster = new ProgressPoster(handler, listener);
+        return mScheduler.submit(() -> {
+            final MediaTranscoderEngine engine = obtainEngine();
+            if (metrics != null) handler.post(() -> listener.onTranscodeStarted(metrics));
             try {
-                MediaTranscoderEngine engine = new MediaTranscoderEngine();
-                // TODO: reuse instance
-                engine.setProgressCallback(progress -> handler.post(() ->
-                        listener.onTranscodeProgress(progress)));
+                engine.setEventDriven(eventDriven);
+                engine.setParallelTracks(parallelTracks);
+                engine.setTrimRange(trimStartUs, trimEndUs);
+                engine.setSmartCut(smartCut);
+                engine.setRenderPipelineDepth(renderPipelineDepth);
+                engine.setMaxSegments(maxSegments);
+                engine.setMappedMp4Input(mappedMp4Input);
+                engine.setInterleaveWindowUs(interleaveWindowUs);
+                engine.setResamplerQuality(resamplerQuality);
+                engine.setEglResourceManager(mEglResourceManager);
+                engine.setCodecPool(mCodecPool);
+                engine.setMetrics(metrics);
+                engine.setProgressCallback(progressPoster);
                 engine.setDataSource(inFileDescriptor);
-                // MediaTranscoderEngine transcodeVideo
-                engine.transcodeVideo(outPath, outFormatStrategy);
+                task.run(engine);
             } catch (IOException e) {
                 Log.w(TAG, "Transcode failed: input file (fd: " + inFileDescriptor.toString() + ") not found"
-                        + " or could not open output file ('" + outPath + "') .", e);
-                caughtException = e;
+                        + " or could not open output.", e);
+                throw e;
             } catch (InterruptedException e) {
                 Log.i(TAG, "Cancel transcode video file.", e);
-                caughtException = e;
+                throw e;
             } catch (RuntimeException e) {
                 Log.e(TAG, "Fatal error while transcoding, this might be invalid format or bug in engine or Android.", e);
-                caughtException = e;
+                throw e;
+            } finally {
+                recycleEngine(engine);
             }
-
-            final Exception exception = caughtException;
+            return null;
+        }, priority, preemption, (exception, canceled) -> {
+            final TranscodeMetrics.Snapshot snapshot = metrics != null ? metrics.snapshot() : null;
             handler.post(() -> {
-                if (exception == null) {
+                if (snapshot != null) listener.onTranscodeMetrics(snapshot);
+                if (exception == null && !canceled) {
                     listener.onTranscodeCompleted();
+                } else if (canceled) {
+                    listener.onTranscodeCanceled();
                 } else {
-                    Future<Void> future = futureReference.get();
-                    if (future != null && future.isCancelled()) {
-                        listener.onTranscodeCanceled();
-                    } else {
-                        listener.onTranscodeFailed(exception);
-                    }
+                    listener.onTranscodeFailed(exception);
                 }
             });
-
-            if (exception != null) throw exception;
-            return null;
         });
-        futureReference.set(createdFuture);
-        return createdFuture;
+    }
+
+    private MediaTranscoderEngine obtainEngine() {
+        synchronized (mIdleEngines) {
+            MediaTranscoderEngine engine = mIdleEngines.poll();
+            return engine != null ? engine : new MediaTranscoderEngine();
+        }
+    }
+
+    private void recycleEngine(MediaTranscoderEngine engine) {
+        // Drops the listener and the input of the finished job.
+        engine.setProgressCallback(null);
+        engine.setDataSource(null);
+        synchronized (mIdleEngines) {
+            if (mIdleEngines.size() < mScheduler.getMaxConcurrentJobs()) mIdleEngines.add(engine);
+        }
+    }
+
+    public boolean isEventDriven() {
+        return mEventDriven;
+    }
+
+    /**
+     * Runs codecs asynchronously and wakes jobs on codec callbacks, instead of polling codecs and sleeping while
+     * none made progress. Off by default. Applies to jobs submitted afterwards.
+     *
+     * @see MediaTranscoderEngine#setEventDriven(boolean)
+     */
+    public void setEventDriven(boolean eventDriven) {
+        mEventDriven = eventDriven;
+    }
+
+    public boolean isParallelTracks() {
+        return mParallelTracks;
+    }
+
+    /**
+     * Drives video and audio of a job on threads of their own. On by default on devices with more than one core.
+     * Applies to jobs submitted afterwards.
+     *
+     * @see MediaTranscoderEngine#setParallelTracks(boolean)
+     */
+    public void setParallelTracks(boolean parallelTracks) {
+        mParallelTracks = parallelTracks;
+    }
+
+    public boolean isSmartCut() {
+        return mSmartCut;
+    }
+
+    /**
+     * Trims by copying the GOPs inside the trim range and encoding only the partial GOPs at its ends,
+     * when the output format allows it. Applies to jobs submitted afterwards.
+     *
+     * @see MediaTranscoderEngine#setSmartCut(boolean)
+     */
+    public void setSmartCut(boolean smartCut) {
+        mSmartCut = smartCut;
+    }
+
+    public boolean isMetricsEnabled() {
+        return mMetricsEnabled;
+    }
+
+    /**
+     * Records per-stage latencies, throughput and queue depths of jobs, reported through
+     * {@link Listener#onTranscodeStarted(TranscodeMetrics)} and {@link Listener#onTranscodeMetrics(TranscodeMetrics.Snapshot)}.
+     * Applies to jobs submitted afterwards.
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        mMetricsEnabled = metricsEnabled;
+    }
+
+    public int getRenderPipelineDepth() {
+        return mRenderPipelineDepth;
+    }
+
+    /**
+     * Max video frames in flight between decoder and encoder, rendered on a thread of their own; 0 renders one frame
+     * at a time. Defaults to {@link MediaTranscoderEngine#RECOMMENDED_RENDER_PIPELINE_DEPTH}, so jobs render on a
+     * thread of their own unless set to 0. Applies to jobs submitted afterwards.
+     *
+     * @see MediaTranscoderEngine#setRenderPipelineDepth(int)
+     */
+    public void setRenderPipelineDepth(int depth) {
+        if (depth < 0) throw new IllegalArgumentException("depth must not be negative: " + depth);
+        mRenderPipelineDepth = depth;
+    }
+
+    public int getMaxSegments() {
+        return mMaxSegments;
+    }
+
+    /**
+     * Max segments a long video is split into and transcoded at once, each with codecs of its own; capped by the codec
+     * sessions of the device, which other running jobs share. 1 transcodes in one pass. Applies to jobs submitted
+     * afterwards.
+     *
+     * @see MediaTranscoderEngine#setMaxSegments(int)
+     */
+    public void setMaxSegments(int maxSegments) {
+        if (maxSegments < 1) throw new IllegalArgumentException("maxSegments must be positive: " + maxSegments);
+        mMaxSegments = maxSegments;
+    }
+
+    public boolean isMappedMp4Input() {
+        return mMappedMp4Input;
+    }
+
+    /**
+     * Reads MP4 input in Java from a memory-mapped file instead of through MediaExtractor, falling back to it for
+     * other input. Applies to jobs submitted afterwards.
+     *
+     * @see MediaTranscoderEngine#setMappedMp4Input(boolean)
+     */
+    public void setMappedMp4Input(boolean mappedMp4Input) {
+        mMappedMp4Input = mappedMp4Input;
+    }
+
+    public long getInterleaveWindowUs() {
+        return mInterleaveWindowUs;
+    }
+
+    /**
+     * Max presentation time span the muxer holds a track back to interleave it with the other track; 0 writes
+     * samples in the order they are encoded. Peak bytes held back are reported in
+     * {@link TranscodeMetrics.TrackSnapshot#maxMuxerQueueBytes}. Applies to jobs submitted afterwards.
+     *
+     * @see MediaTranscoderEngine#setInterleaveWindowUs(long)
+     */
+    public void setInterleaveWindowUs(long interleaveWindowUs) {
+        if (interleaveWindowUs < 0) {
+            throw new IllegalArgumentException("interleaveWindowUs must not be negative: " + interleaveWindowUs);
+        }
+        mInterleaveWindowUs = interleaveWindowUs;
+    }
+
+    /**
+     * EGL and GL resources kept between video jobs. Its stats show the setup time saved; release it to free GPU
+     * memory while no job is queued.
+     */
+    public EglResourceManager getEglResourceManager() {
+        return mEglResourceManager;
+    }
+
+    /**
+     * Codecs kept between jobs. Clear it to free codec instances while no job is queued.
+     */
+    public CodecPool<MediaCodec> getCodecPool() {
+        return mCodecPool;
+    }
+
+    public PolyphaseResampler.Quality getResamplerQuality() {
+        return mResamplerQuality;
+    }
+
+    /**
+     * Quality of audio sample rate conversion. Applies to jobs submitted afterwards.
+     *
+     * @see MediaTranscoderEngine#setResamplerQuality(PolyphaseResampler.Quality)
+     */
+    public void setResamplerQuality(PolyphaseResampler.Quality quality) {
+        if (quality == null) throw new NullPointerException("quality");
+        mResamplerQuality = quality;
+    }
+
+    /**
+     * Number of jobs which may run at the same time, derived from codec instance limits of the device.
+     */
+    public int getMaxConcurrentJobs() {
+        return mScheduler.getMaxConcurrentJobs();
+    }
+
+    /**
+     * Cancels every job which has not started yet.
+     *
+     * @return Number of canceled jobs.
+     */
+    public int cancelWaitingJobs() {
+        return mScheduler.cancelWaitingJobs();
+    }
+
+    /**
+     * Coalesces progress into one pending post: while the looper is busy, newer progress replaces the pending value
+     * instead of queueing another message, so a slow UI thread gets the latest progress and no backlog.
+     */
+    private static class ProgressPoster implements MediaTranscoderEngine.ProgressCallback, Runnable {
+        private static final long NO_PENDING_PROGRESS = Double.doubleToRawLongBits(Double.NaN);
+        private final Handler mHandler;
+        private final Listener mListener;
+        private final AtomicLong mPendingProgress = new AtomicLong(NO_PENDING_PROGRESS);
+
+        ProgressPoster(Handler handler, Listener listener) {
+            mHandler = handler;
+            mListener = listener;
+        }
+
+        @Override
+        public void onProgress(double progress) {
+            if (mPendingProgress.getAndSet(Double.doubleToRawLongBits(progress)) == NO_PENDING_PROGRESS) {
+                mHandler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            mListener.onTranscodeProgress(Double.longBitsToDouble(mPendingProgress.getAndSet(NO_PENDING_PROGRESS)));
+        }
+    }
+
+    private interface EngineTask {
+        void run(MediaTranscoderEngine engine) throws IOException, InterruptedException;
     }
 
     public interface Listener {
+        /**
+         * Called when the job starts running, if metrics are enabled, possibly again when a preempted job restarts.
+         *
+         * @param metrics Metrics of the job, to {@link TranscodeMetrics#snapshot() snapshot} while it runs.
+         * @see #setMetricsEnabled(boolean)
+         */
+        default void onTranscodeStarted(TranscodeMetrics metrics) {
+        }
+
+        /**
+         * Called before the completed, canceled or failed callback, if metrics are enabled.
+         *
+         * @param snapshot Metrics of the whole job.
+         */
+        default void onTranscodeMetrics(TranscodeMetrics.Snapshot snapshot) {
+        }
+
         /**
          * Called to notify progress.
          *
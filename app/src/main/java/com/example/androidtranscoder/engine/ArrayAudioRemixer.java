@@ -0,0 +1,137 @@
+package com.example.androidtranscoder.engine;
+
+import java.nio.ShortBuffer;
+
+/**
+ * Remixer which copies samples into reusable arrays in bulk and mixes whole frames in a plain loop,
+ * instead of calling {@link ShortBuffer#get()} and {@link ShortBuffer#put(short)} once per sample.
+ * <p>
+ * Holds scratch arrays, so an instance must not be shared between threads; use one per {@link AudioChannel}.
+ */
+public abstract class ArrayAudioRemixer implements AudioRemixer {
+    private static final int SIGNED_SHORT_LIMIT = 32768;
+    private static final int UNSIGNED_SHORT_MAX = 65535;
+
+    private final int mInputChannelCount;
+    private final int mOutputChannelCount;
+    private short[] mInput = new short[0];
+    private short[] mOutput = new short[0];
+
+    protected ArrayAudioRemixer(int inputChannelCount, int outputChannelCount) {
+        mInputChannelCount = inputChannelCount;
+        mOutputChannelCount = outputChannelCount;
+    }
+
+    public int getInputChannelCount() {
+        return mInputChannelCount;
+    }
+
+    public int getOutputChannelCount() {
+        return mOutputChannelCount;
+    }
+
+    /**
+     * Remixes as many whole frames as fit in both buffers, advancing their positions.
+     */
+    @Override
+    public void remix(final ShortBuffer inSBuff, final ShortBuffer outSBuff) {
+        final int frameCount = Math.min(inSBuff.remaining() / mInputChannelCount, outSBuff.remaining() / mOutputChannelCount);
+        final int inputLength = frameCount * mInputChannelCount;
+        final int outputLength = frameCount * mOutputChannelCount;
+        if (mInput.length < inputLength) mInput = new short[inputLength];
+        if (mOutput.length < outputLength) mOutput = new short[outputLength];
+        inSBuff.get(mInput, 0, inputLength);
+        mix(mInput, mOutput, frameCount);
+        outSBuff.put(mOutput, 0, outputLength);
+    }
+
+    /**
+     * Mixes interleaved input frames into interleaved output frames.
+     */
+    protected abstract void mix(short[] input, short[] output, int frameCount);
+
+    /**
+     * Stereo to mono with Viktor Toth's formula, as {@link AudioRemixer#DOWNMIX}.
+     * The product of two loud samples is shifted unsigned, since it does not fit in a signed int.
+     */
+    public static class Downmix extends ArrayAudioRemixer {
+        public Downmix() {
+            super(2, 1);
+        }
+
+        @Override
+        protected void mix(short[] input, short[] output, int frameCount) {
+            for (int i = 0; i < frameCount; i++) {
+                final int a = input[2 * i] + SIGNED_SHORT_LIMIT;
+                final int b = input[2 * i + 1] + SIGNED_SHORT_LIMIT;
+                int m;
+                if ((a < SIGNED_SHORT_LIMIT) || (b < SIGNED_SHORT_LIMIT)) {
+                    m = (a * b) >>> 15;
+                } else {
+                    m = 2 * (a + b) - ((a * b) >>> 15) - UNSIGNED_SHORT_MAX;
+                }
+                if (m > UNSIGNED_SHORT_MAX) m = UNSIGNED_SHORT_MAX;
+                output[i] = (short) (m - SIGNED_SHORT_LIMIT);
+            }
+        }
+    }
+
+    /**
+     * Same output as {@link Downmix}, with both equations evaluated and one selected by a sign mask,
+     * so the loop body has no data-dependent branch.
+     */
+    public static class BranchFreeDownmix extends ArrayAudioRemixer {
+        public BranchFreeDownmix() {
+            super(2, 1);
+        }
+
+        @Override
+        protected void mix(short[] input, short[] output, int frameCount) {
+            for (int i = 0; i < frameCount; i++) {
+                final int a = input[2 * i] + SIGNED_SHORT_LIMIT;
+                final int b = input[2 * i + 1] + SIGNED_SHORT_LIMIT;
+                final int product = (a * b) >>> 15;
+                final int quiet = product;
+                final int loud = 2 * (a + b) - product - UNSIGNED_SHORT_MAX;
+                // All ones if either sample is below the middle of the range, i.e. its signed value is negative.
+                final int quietMask = (input[2 * i] | input[2 * i + 1]) >> 31;
+                final int m = Math.min((quiet & quietMask) | (loud & ~quietMask), UNSIGNED_SHORT_MAX);
+                output[i] = (short) (m - SIGNED_SHORT_LIMIT);
+            }
+        }
+    }
+
+    /**
+     * Stereo to mono by averaging both channels, which cannot clip.
+     */
+    public static class AverageDownmix extends ArrayAudioRemixer {
+        public AverageDownmix() {
+            super(2, 1);
+        }
+
+        @Override
+        protected void mix(short[] input, short[] output, int frameCount) {
+            for (int i = 0; i < frameCount; i++) {
+                output[i] = (short) ((input[2 * i] + input[2 * i + 1]) >> 1);
+            }
+        }
+    }
+
+    /**
+     * Mono to stereo, as {@link AudioRemixer#UPMIX}.
+     */
+    public static class Upmix extends ArrayAudioRemixer {
+        public Upmix() {
+            super(1, 2);
+        }
+
+        @Override
+        protected void mix(short[] input, short[] output, int frameCount) {
+            for (int i = 0; i < frameCount; i++) {
+                final short sample = input[i];
+                output[2 * i] = sample;
+                output[2 * i + 1] = sample;
+            }
+        }
+    }
+}
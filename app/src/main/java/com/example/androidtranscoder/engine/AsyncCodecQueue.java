@@ -0,0 +1,141 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+
+import java.util.ArrayDeque;
+
+/**
+ * Collects buffer indices delivered by {@link MediaCodec.Callback} and hands them out in order.
+ * Every callback signals the {@link PipelineSignal}, which wakes the pipeline loop.
+ * <p>
+ * Timeouts are ignored: when nothing is queued it returns {@link MediaCodec#INFO_TRY_AGAIN_LATER} immediately,
+ * and the caller is expected to wait on the signal instead.
+ */
+class AsyncCodecQueue extends MediaCodec.Callback implements CodecQueue {
+    private final CodecControl mCodec;
+    private final PipelineSignal mSignal;
+    // guarded by this
+    private final ArrayDeque<Integer> mInputBufferIndices = new ArrayDeque<>();
+    private final ArrayDeque<OutputEvent> mOutputEvents = new ArrayDeque<>();
+    private final ArrayDeque<OutputEvent> mRecycledEvents = new ArrayDeque<>();
+    private MediaCodec.CodecException mError;
+
+    /**
+     * Must be called before {@link MediaCodec#configure}.
+     */
+    AsyncCodecQueue(MediaCodec codec, Handler handler, PipelineSignal signal) {
+        this(CodecControl.of(codec), signal);
+        codec.setCallback(this, handler);
+    }
+
+    /**
+     * Without registering the callbacks; they are called by hand, e.g. with a fake codec.
+     */
+    AsyncCodecQueue(CodecControl codec, PipelineSignal signal) {
+        mCodec = codec;
+        mSignal = signal;
+    }
+
+    @Override
+    public synchronized int dequeueInputBuffer(long timeoutUs) {
+        throwIfError();
+        Integer index = mInputBufferIndices.poll();
+        return index == null ? MediaCodec.INFO_TRY_AGAIN_LATER : index;
+    }
+
+    @Override
+    public synchronized int dequeueOutputBuffer(MediaCodec.BufferInfo bufferInfo, long timeoutUs) {
+        throwIfError();
+        OutputEvent event = mOutputEvents.poll();
+        if (event == null) return MediaCodec.INFO_TRY_AGAIN_LATER;
+        int index = event.mIndex;
+        if (index >= 0) {
+            bufferInfo.offset = event.mOffset;
+            bufferInfo.size = event.mSize;
+            bufferInfo.presentationTimeUs = event.mPresentationTimeUs;
+            bufferInfo.flags = event.mFlags;
+        }
+        mRecycledEvents.add(event);
+        return index;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, long renderTimestampNs) {
+        mCodec.releaseOutputBuffer(index, renderTimestampNs);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    @Override
+    public void onInputBufferAvailable(MediaCodec codec, int index) {
+        synchronized (this) {
+            mInputBufferIndices.add(index);
+        }
+        mSignal.signal();
+    }
+
+    @Override
+    public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+        synchronized (this) {
+            OutputEvent event = obtainEvent();
+            event.mIndex = index;
+            event.mOffset = info.offset;
+            event.mSize = info.size;
+            event.mPresentationTimeUs = info.presentationTimeUs;
+            event.mFlags = info.flags;
+            mOutputEvents.add(event);
+        }
+        mSignal.signal();
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+        synchronized (this) {
+            // Queued in order with output buffers, so the format is seen before the buffers which follow it.
+            OutputEvent event = obtainEvent();
+            event.mIndex = MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+            mOutputEvents.add(event);
+        }
+        mSignal.signal();
+    }
+
+    @Override
+    public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+        synchronized (this) {
+            mError = e;
+        }
+        mSignal.signal();
+    }
+
+    private OutputEvent obtainEvent() {
+        OutputEvent event = mRecycledEvents.poll();
+        return event != null ? event : new OutputEvent();
+    }
+
+    private void throwIfError() {
+        if (mError != null) throw mError;
+    }
+
+    private static class OutputEvent {
+        private int mIndex;
+        private int mOffset;
+        private int mSize;
+        private long mPresentationTimeUs;
+        private int mFlags;
+    }
+}
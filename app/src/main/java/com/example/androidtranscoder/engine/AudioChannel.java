@@ -6,7 +6,6 @@ import android.media.MediaFormat;
 import com.example.androidtranscoder.compat.MediaCodecBufferCompatWrapper;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.ShortBuffer;
 import java.util.ArrayDeque;
 import java.util.Queue;
@@ -15,48 +14,68 @@ import java.util.Queue;
  * Channel of raw audio from decoder to encoder.
  * Performs the necessary conversion between different input & output audio formats.
  *
- * We currently support upmixing from mono to stereo & downmixing from stereo to mono.
- * Sample rate conversion is not supported yet.
+ * We currently support upmixing from mono to stereo & downmixing from stereo, 5.1, 7.1 and other common layouts
+ * to stereo or mono.
+ * Sample rate conversion is done after remixing by a {@link PolyphaseResampler}.
+ * Encoder input is timed by a {@link SampleClock} counting output frames from the first decoded buffer.
+ * <p>
+ * Decoded buffers are converted into a {@link ShortRingBuffer} and released to the decoder right away, so the
+ * decoder keeps running while the encoder is full. A decoded buffer is only held when the ring buffer has no room.
  */
 class AudioChannel {
 
     private static class AudioBuffer {
         int bufferIndex;
-        long presentationTimeUs;
         ShortBuffer data;
     }
 
     public static final int BUFFER_INDEX_END_OF_STREAM = -1;
 
     private static final int BYTES_PER_SHORT = 2;
-    private static final long MICROSECS_PER_SEC = 1000000;
+    /** Capacity of the ring buffer, in converted decoder buffers. */
+    private static final int RING_BUFFER_DECODER_BUFFER_COUNT = 4;
 
     private final Queue<AudioBuffer> mEmptyBuffers = new ArrayDeque<>();
     private final Queue<AudioBuffer> mFilledBuffers = new ArrayDeque<>();
 
     private final MediaCodec mDecoder;
+    private final CodecQueue mDecoderQueue;
     private final MediaCodec mEncoder;
+    private final CodecQueue mEncoderQueue;
     private final MediaFormat mEncodeFormat;
 
+    private final PolyphaseResampler.Quality mResamplerQuality;
+    private final SampleClock mPtsClock;
+
     private int mInputSampleRate;
+    private int mOutputSampleRate;
     private int mInputChannelCount;
     private int mOutputChannelCount;
 
     private AudioRemixer mRemixer;
+    private PolyphaseResampler mResampler;
+    private ShortBuffer mRemixedBuffer;
+    private ShortBuffer mResampledBuffer;
+    private boolean mResamplerDrained;
+
+    private ShortRingBuffer mRingBuffer;
 
     private final MediaCodecBufferCompatWrapper mDecoderBuffers;
     private final MediaCodecBufferCompatWrapper mEncoderBuffers;
 
-    private final AudioBuffer mOverflowBuffer = new AudioBuffer();
-
     private MediaFormat mActualDecodedFormat;
 
 
-    public AudioChannel(final MediaCodec decoder,
-                        final MediaCodec encoder, final MediaFormat encodeFormat) {
+    public AudioChannel(final MediaCodec decoder, final CodecQueue decoderQueue,
+                        final MediaCodec encoder, final CodecQueue encoderQueue,
+                        final MediaFormat encodeFormat, final PolyphaseResampler.Quality resamplerQuality) {
         mDecoder = decoder;
+        mDecoderQueue = decoderQueue;
         mEncoder = encoder;
+        mEncoderQueue = encoderQueue;
         mEncodeFormat = encodeFormat;
+        mResamplerQuality = resamplerQuality;
+        mPtsClock = new SampleClock(encodeFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
 
         mDecoderBuffers = new MediaCodecBufferCompatWrapper(mDecoder);
         mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder);
@@ -66,33 +85,40 @@ class AudioChannel {
         mActualDecodedFormat = decodedFormat;
 
         mInputSampleRate = mActualDecodedFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
-        if (mInputSampleRate != mEncodeFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE)) {
-            throw new UnsupportedOperationException("Audio sample rate conversion not supported yet.");
-        }
+        mOutputSampleRate = mEncodeFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
 
         mInputChannelCount = mActualDecodedFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
         mOutputChannelCount = mEncodeFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
 
-        if (mInputChannelCount != 1 && mInputChannelCount != 2) {
-            throw new UnsupportedOperationException("Input channel count (" + mInputChannelCount + ") not supported.");
-        }
-
         if (mOutputChannelCount != 1 && mOutputChannelCount != 2) {
             throw new UnsupportedOperationException("Output channel count (" + mOutputChannelCount + ") not supported.");
         }
 
-        if (mInputChannelCount > mOutputChannelCount) {
-            mRemixer = AudioRemixer.DOWNMIX;
-        } else if (mInputChannelCount < mOutputChannelCount) {
-            mRemixer = AudioRemixer.UPMIX;
-        } else {
+        if (mInputChannelCount == mOutputChannelCount) {
             mRemixer = AudioRemixer.PASSTHROUGH;
+        } else if (mInputChannelCount == 2) {
+            mRemixer = new ArrayAudioRemixer.BranchFreeDownmix();
+        } else if (mInputChannelCount == 1) {
+            mRemixer = new ArrayAudioRemixer.Upmix();
+        } else {
+            // Multichannel input, e.g. 5.1 or 7.1; throws for layouts without standard coefficients.
+            mRemixer = MatrixAudioRemixer.create(mInputChannelCount, mOutputChannelCount);
         }
 
-        mOverflowBuffer.presentationTimeUs = 0;
+        if (mInputSampleRate != mOutputSampleRate) {
+            mResampler = new PolyphaseResampler(mInputSampleRate, mOutputSampleRate, mOutputChannelCount, mResamplerQuality);
+        } else {
+            mResampler = null;
+        }
+        mResamplerDrained = false;
     }
 
-    public void drainDecoderBufferAndQueue(final int bufferIndex, final long presentationTimeUs) {
+    /**
+     * @param offset Offset of the decoded data in the decoder output buffer, in bytes.
+     * @param size   Size of the decoded data, in bytes.
+     */
+    public void drainDecoderBufferAndQueue(final int bufferIndex, final int offset, final int size,
+                                           final long presentationTimeUs) {
         if (mActualDecodedFormat == null) {
             throw new RuntimeException("Buffer received before format!");
         }
@@ -107,125 +133,137 @@ class AudioChannel {
         }
 
         buffer.bufferIndex = bufferIndex;
-        buffer.presentationTimeUs = presentationTimeUs;
-        buffer.data = data == null ? null : data.asShortBuffer();
-
-        if (mOverflowBuffer.data == null) {
-            mOverflowBuffer.data = ByteBuffer
-                    .allocateDirect(data.capacity())
-                    .order(ByteOrder.nativeOrder())
-                    .asShortBuffer();
-            mOverflowBuffer.data.clear().flip();
+        if (data != null) {
+            data.clear();
+            data.limit(offset + size);
+            data.position(offset);
+            buffer.data = data.asShortBuffer();
+            if (!mPtsClock.isStarted()) {
+                mPtsClock.start(presentationTimeUs);
+            }
+        } else {
+            buffer.data = null;
         }
 
         mFilledBuffers.add(buffer);
+        copyFilledBuffers();
     }
 
     public boolean feedEncoder(long timeoutUs) {
-        final boolean hasOverflow = mOverflowBuffer.data != null && mOverflowBuffer.data.hasRemaining();
-        if (mFilledBuffers.isEmpty() && !hasOverflow) {
-            // No audio data - Bail out
+        final boolean copied = copyFilledBuffers();
+        if (mRingBuffer == null || mRingBuffer.isEmpty()) {
+            final AudioBuffer inBuffer = mFilledBuffers.peek();
+            if (inBuffer == null || inBuffer.bufferIndex != BUFFER_INDEX_END_OF_STREAM) {
+                // No audio data, or decoded buffers wait for room in the ring buffer - Bail out
+                return copied;
+            }
+            if (mResampler != null && !mResamplerDrained && mResampledBuffer != null) {
+                // Frames still held by the filter go before end of stream.
+                mResamplerDrained = true;
+                mResampledBuffer.clear();
+                mResampler.drain(mResampledBuffer);
+                mResampledBuffer.flip();
+                mRingBuffer.write(mResampledBuffer);
+                return true;
+            }
+            final int encoderInBuffIndex = mEncoderQueue.dequeueInputBuffer(timeoutUs);
+            if (encoderInBuffIndex < 0) {
+                return false;
+            }
+            mFilledBuffers.poll();
+            mEncoderQueue.queueInputBuffer(encoderInBuffIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
             return false;
         }
 
-        final int encoderInBuffIndex = mEncoder.dequeueInputBuffer(timeoutUs);
+        final int encoderInBuffIndex = mEncoderQueue.dequeueInputBuffer(timeoutUs);
         if (encoderInBuffIndex < 0) {
             // Encoder is full - Bail out
             return false;
         }
 
-        // Drain overflow first
         final ShortBuffer outBuffer = mEncoderBuffers.getInputBuffer(encoderInBuffIndex).asShortBuffer();
-        if (hasOverflow) {
-            final long presentationTimeUs = drainOverflow(outBuffer);
-            mEncoder.queueInputBuffer(encoderInBuffIndex,
-                    0, outBuffer.position() * BYTES_PER_SHORT,
-                    presentationTimeUs, 0);
-            return true;
-        }
-
-        final AudioBuffer inBuffer = mFilledBuffers.poll();
-        if (inBuffer.bufferIndex == BUFFER_INDEX_END_OF_STREAM) {
-            mEncoder.queueInputBuffer(encoderInBuffIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-            return false;
-        }
-
-        final long presentationTimeUs = remixAndMaybeFillOverflow(inBuffer, outBuffer);
-        mEncoder.queueInputBuffer(encoderInBuffIndex,
-                0, outBuffer.position() * BYTES_PER_SHORT,
-                presentationTimeUs, 0);
-        if (inBuffer != null) {
-            mDecoder.releaseOutputBuffer(inBuffer.bufferIndex, false);
-            mEmptyBuffers.add(inBuffer);
-        }
-
+        outBuffer.clear();
+        // Whole frames only, so every encoder buffer starts at the first channel.
+        mRingBuffer.read(outBuffer, outBuffer.remaining() - outBuffer.remaining() % mOutputChannelCount);
+        queueEncoderInputBuffer(encoderInBuffIndex, outBuffer);
         return true;
     }
 
-    private static long sampleCountToDurationUs(final int sampleCount,
-                                                final int sampleRate,
-                                                final int channelCount) {
-        return (sampleCount / (sampleRate * MICROSECS_PER_SEC)) / channelCount;
+    /**
+     * Queues the output frames in outBuff, timed by the frames queued before them.
+     */
+    private void queueEncoderInputBuffer(final int encoderInBuffIndex, final ShortBuffer outBuff) {
+        final long presentationTimeUs = mPtsClock.getTimeUs();
+        mPtsClock.advance(outBuff.position() / mOutputChannelCount);
+        mEncoderQueue.queueInputBuffer(encoderInBuffIndex,
+                0, outBuff.position() * BYTES_PER_SHORT,
+                presentationTimeUs, 0);
     }
 
-    private long drainOverflow(final ShortBuffer outBuff) {
-        final ShortBuffer overflowBuff = mOverflowBuffer.data;
-        final int overflowLimit = overflowBuff.limit();
-        final int overflowSize = overflowBuff.remaining();
-
-        final long beginPresentationTimeUs = mOverflowBuffer.presentationTimeUs +
-                sampleCountToDurationUs(overflowBuff.position(), mInputSampleRate, mOutputChannelCount);
-
-        outBuff.clear();
-        // Limit overflowBuff to outBuff's capacity
-        overflowBuff.limit(outBuff.capacity());
-        // Load overflowBuff onto outBuff
-        outBuff.put(overflowBuff);
-
-        if (overflowSize >= outBuff.capacity()) {
-            // Overflow fully consumed - Reset
-            overflowBuff.clear().limit(0);
-        } else {
-            // Only partially consumed - Keep position & restore previous limit
-            overflowBuff.limit(overflowLimit);
+    /**
+     * Converts decoded buffers into the ring buffer while they fit, and releases them to the decoder.
+     *
+     * @return Whether any buffer was converted.
+     */
+    private boolean copyFilledBuffers() {
+        boolean copied = false;
+        AudioBuffer buffer;
+        while ((buffer = mFilledBuffers.peek()) != null && buffer.bufferIndex != BUFFER_INDEX_END_OF_STREAM) {
+            final int maxSampleCount = getMaxOutputSampleCount(buffer.data.remaining() / mInputChannelCount);
+            if (mRingBuffer == null || mRingBuffer.capacity() < maxSampleCount) {
+                // Larger decoder buffers than before; reallocate once the encoder has taken what is left.
+                if (mRingBuffer != null && !mRingBuffer.isEmpty()) break;
+                mRingBuffer = new ShortRingBuffer(maxSampleCount * RING_BUFFER_DECODER_BUFFER_COUNT);
+            }
+            if (mRingBuffer.free() < maxSampleCount) {
+                // Ring buffer full - keep the decoder buffer until the encoder catches up
+                break;
+            }
+
+            convert(buffer.data);
+            mFilledBuffers.poll();
+            mDecoderQueue.releaseOutputBuffer(buffer.bufferIndex, false);
+            buffer.data = null;
+            mEmptyBuffers.add(buffer);
+            copied = true;
         }
-
-        return beginPresentationTimeUs;
+        return copied;
     }
 
-    private long remixAndMaybeFillOverflow(final AudioBuffer input,
-                                           final ShortBuffer outBuff) {
-        final ShortBuffer inBuff = input.data;
-        final ShortBuffer overflowBuff = mOverflowBuffer.data;
-
-        outBuff.clear();
-
-        // Reset position to 0, and set limit to capacity (Since MediaCodec doesn't do that for us)
-        inBuff.clear();
-
-        if (inBuff.remaining() > outBuff.remaining()) {
-            // Overflow
-            // Limit inBuff to outBuff's capacity
-            inBuff.limit(outBuff.capacity());
-            mRemixer.remix(inBuff, outBuff);
-
-            // Reset limit to its own capacity & Keep position
-            inBuff.limit(inBuff.capacity());
+    private int getMaxOutputSampleCount(final int inputFrameCount) {
+        final int frameCount = mResampler == null ? inputFrameCount : mResampler.getMaxOutputFrames(inputFrameCount);
+        return frameCount * mOutputChannelCount;
+    }
 
-            // Remix the rest onto overflowBuffer
-            // NOTE: We should only reach this point when overflow buffer is empty
-            final long consumedDurationUs =
-                    sampleCountToDurationUs(inBuff.position(), mInputSampleRate, mInputChannelCount);
-            mRemixer.remix(inBuff, overflowBuff);
+    /**
+     * Remixes and resamples decoded samples into the ring buffer.
+     */
+    private void convert(final ShortBuffer inBuff) {
+        if (mRemixer == AudioRemixer.PASSTHROUGH && mResampler == null) {
+            mRingBuffer.write(inBuff);
+            return;
+        }
 
-            // Seal off overflowBuff & mark limit
-            overflowBuff.flip();
-            mOverflowBuffer.presentationTimeUs = input.presentationTimeUs + consumedDurationUs;
-        } else {
-            // No overflow
-            mRemixer.remix(inBuff, outBuff);
+        final int frameCount = inBuff.remaining() / mInputChannelCount;
+        final int remixedSampleCount = frameCount * mOutputChannelCount;
+        if (mRemixedBuffer == null || mRemixedBuffer.capacity() < remixedSampleCount) {
+            mRemixedBuffer = ShortBuffer.allocate(remixedSampleCount);
+        }
+        mRemixedBuffer.clear();
+        mRemixer.remix(inBuff, mRemixedBuffer);
+        mRemixedBuffer.flip();
+        if (mResampler == null) {
+            mRingBuffer.write(mRemixedBuffer);
+            return;
         }
 
-        return input.presentationTimeUs;
+        final int resampledSampleCount = getMaxOutputSampleCount(frameCount);
+        if (mResampledBuffer == null || mResampledBuffer.capacity() < resampledSampleCount) {
+            mResampledBuffer = ShortBuffer.allocate(resampledSampleCount);
+        }
+        mResampledBuffer.clear();
+        mResampler.resample(mRemixedBuffer, mResampledBuffer);
+        mResampledBuffer.flip();
+        mRingBuffer.write(mResampledBuffer);
     }
 }
@@ -32,10 +32,11 @@ public interface AudioRemixer {
                     m = a * b / SIGNED_SHORT_LIMIT;
                 } else {
                     // Viktor's second equation when one or both sources are loud
-                    m = 2 * (a + b) - (a * b) / SIGNED_SHORT_LIMIT - UNSIGNED_SHORT_MAX;
+                    // a * b exceeds Integer.MAX_VALUE here, so divide it as unsigned.
+                    m = 2 * (a + b) - ((a * b) >>> 15) - UNSIGNED_SHORT_MAX;
                 }
                 // Convert output back to signed short
-                if (m == UNSIGNED_SHORT_MAX + 1) m = UNSIGNED_SHORT_MAX;
+                if (m > UNSIGNED_SHORT_MAX) m = UNSIGNED_SHORT_MAX;
                 outSBuff.put((short) (m - SIGNED_SHORT_LIMIT));
             }
         }
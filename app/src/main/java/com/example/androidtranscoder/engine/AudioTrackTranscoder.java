@@ -8,8 +8,6 @@ import android.media.MediaFormat;
 
 import com.example.androidtranscoder.compat.MediaCodecBufferCompatWrapper;
 
-import java.io.IOException;
-
 public class AudioTrackTranscoder implements com.example.androidtranscoder.engine.TrackTranscoder {
 
     private static final QueuedMuxer.SampleType SAMPLE_TYPE = QueuedMuxer.SampleType.AUDIO;
@@ -17,18 +15,21 @@ public class AudioTrackTranscoder implements com.example.androidtranscoder.engin
     private static final int DRAIN_STATE_NONE = 0;
     private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
     private static final int DRAIN_STATE_CONSUMED = 2;
+    private static final int BYTES_PER_SHORT = 2;
 
-    private final MediaExtractor mExtractor;
-    private final QueuedMuxer mMuxer;
-    private long mWrittenPresentationTimeUs;
+    private final SampleSource mSampleSource;
+    private final SampleSink mMuxer;
+    private final CodecEventDispatcher mEventDispatcher;
+    private volatile long mWrittenPresentationTimeUs;
 
-    private final int mTrackIndex;
     private final MediaFormat mInputFormat;
     private final MediaFormat mOutputFormat;
 
     private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
     private MediaCodec mDecoder;
     private MediaCodec mEncoder;
+    private CodecQueue mDecoderQueue;
+    private CodecQueue mEncoderQueue;
     private MediaFormat mActualOutputFormat;
 
     private MediaCodecBufferCompatWrapper mDecoderBuffers;
@@ -40,43 +41,81 @@ public class AudioTrackTranscoder implements com.example.androidtranscoder.engin
     private boolean mDecoderStarted;
     private boolean mEncoderStarted;
 
+    private final long mTrimStartUs;
+    private final long mTrimEndUs;
+    private int mDecodedSampleRate;
+    private int mDecodedChannelCount;
+
     private AudioChannel mAudioChannel;
+    private CodecPool<MediaCodec> mCodecPool;
+    private TranscodeMetrics mMetrics;
+    private PolyphaseResampler.Quality mResamplerQuality = PolyphaseResampler.Quality.MEDIUM;
 
     public AudioTrackTranscoder(MediaExtractor extractor, int trackIndex,
-                                MediaFormat outputFormat, QueuedMuxer muxer) {
-        mExtractor = extractor;
-        mTrackIndex = trackIndex;
+                                MediaFormat outputFormat, SampleSink muxer) {
+        this(new ExtractorSampleSource(extractor, trackIndex), extractor.getTrackFormat(trackIndex),
+                outputFormat, muxer, new CodecEventDispatcher(false), 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param trimStartUs Decoded audio presented before this time is dropped, also from the start of the buffer which
+     *                    straddles it. Output timestamps are relative to it.
+     * @param trimEndUs   Decoded audio presented at or after this time is dropped, also from the end of the buffer
+     *                    which straddles it.
+     */
+    public AudioTrackTranscoder(SampleSource sampleSource, MediaFormat inputFormat, MediaFormat outputFormat,
+                                SampleSink muxer, CodecEventDispatcher eventDispatcher,
+                                long trimStartUs, long trimEndUs) {
+        mSampleSource = sampleSource;
+        mInputFormat = inputFormat;
         mOutputFormat = outputFormat;
         mMuxer = muxer;
+        mEventDispatcher = eventDispatcher;
+        mTrimStartUs = trimStartUs;
+        mTrimEndUs = trimEndUs;
+    }
+
+    /**
+     * Quality of sample rate conversion, used when the output sample rate differs from the decoded one.
+     * Must be called before {@link #setup()}.
+     */
+    public void setResamplerQuality(PolyphaseResampler.Quality quality) {
+        mResamplerQuality = quality;
+    }
+
+    /**
+     * Takes codecs from the pool instead of creating them, and returns them on release. Must be called before
+     * {@link #setup()}.
+     */
+    public void setCodecPool(CodecPool<MediaCodec> codecPool) {
+        mCodecPool = codecPool;
+    }
 
-        mInputFormat = mExtractor.getTrackFormat(mTrackIndex);
+    /**
+     * Records stage latencies and written samples into metrics. Must be called before {@link #setup()}.
+     */
+    public void setMetrics(TranscodeMetrics metrics) {
+        mMetrics = metrics;
     }
 
     @Override
     public void setup() {
-        mExtractor.selectTrack(mTrackIndex);
-        try {
-            mEncoder = MediaCodec.createEncoderByType(mOutputFormat.getString(MediaFormat.KEY_MIME));
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
-        }
+        mEncoder = CodecPool.obtain(mCodecPool, mOutputFormat, true);
+        mEncoderQueue = mEventDispatcher.createQueue(mEncoder);
         mEncoder.configure(mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mEncoder.start();
         mEncoderStarted = true;
         mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder);
 
-        final MediaFormat inputFormat = mExtractor.getTrackFormat(mTrackIndex);
-        try {
-            mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
-        }
+        final MediaFormat inputFormat = mInputFormat;
+        mDecoder = CodecPool.obtain(mCodecPool, inputFormat, false);
+        mDecoderQueue = mEventDispatcher.createQueue(mDecoder);
         mDecoder.configure(inputFormat, null, null, 0);
         mDecoder.start();
         mDecoderStarted = true;
         mDecoderBuffers = new MediaCodecBufferCompatWrapper(mDecoder);
 
-        mAudioChannel = new AudioChannel(mDecoder, mEncoder, mOutputFormat);
+        mAudioChannel = new AudioChannel(mDecoder, mDecoderQueue, mEncoder, mEncoderQueue, mOutputFormat, mResamplerQuality);
     }
 
     @Override
@@ -96,61 +135,103 @@ public class AudioTrackTranscoder implements com.example.androidtranscoder.engin
             // NOTE: not repeating to keep from deadlock when encoder is full.
         } while (status == DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY);
 
-        while (mAudioChannel.feedEncoder(0)) busy = true;
+        while (feedEncoder()) busy = true;
         while (drainExtractor(0) != DRAIN_STATE_NONE) busy = true;
 
         return busy;
     }
 
+    private boolean feedEncoder() {
+        final long startNanos = mMetrics != null ? System.nanoTime() : 0;
+        if (!mAudioChannel.feedEncoder(0)) return false;
+        recordLatency(TranscodeMetrics.Stage.FEED_ENCODER, startNanos);
+        return true;
+    }
+
     private int drainExtractor(long timeoutUs) {
         if (mIsExtractorEOS) return DRAIN_STATE_NONE;
-        int trackIndex = mExtractor.getSampleTrackIndex();
-        if (trackIndex >= 0 && trackIndex != mTrackIndex) {
+        final long startNanos = mMetrics != null ? System.nanoTime() : 0;
+        final boolean isEndOfStream = mSampleSource.isEndOfStream();
+        if (!isEndOfStream && !mSampleSource.isSampleAvailable()) {
             return DRAIN_STATE_NONE;
         }
 
-        final int result = mDecoder.dequeueInputBuffer(timeoutUs);
+        final int result = mDecoderQueue.dequeueInputBuffer(timeoutUs);
         if (result < 0) return DRAIN_STATE_NONE;
-        if (trackIndex < 0) {
+        if (isEndOfStream) {
             mIsExtractorEOS = true;
-            mDecoder.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mDecoderQueue.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
             return DRAIN_STATE_NONE;
         }
 
-        final int sampleSize = mExtractor.readSampleData(mDecoderBuffers.getInputBuffer(result), 0);
-        final boolean isKeyFrame = (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
-        mDecoder.queueInputBuffer(result, 0, sampleSize, mExtractor.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
-        mExtractor.advance();
+        final int sampleSize = mSampleSource.readSampleData(mDecoderBuffers.getInputBuffer(result), 0);
+        final boolean isKeyFrame = (mSampleSource.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        mDecoderQueue.queueInputBuffer(result, 0, sampleSize, mSampleSource.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        mSampleSource.advance();
+        recordLatency(TranscodeMetrics.Stage.DRAIN_EXTRACTOR, startNanos);
         return DRAIN_STATE_CONSUMED;
     }
 
     private int drainDecoder(long timeoutUs) {
         if (mIsDecoderEOS) return DRAIN_STATE_NONE;
+        final long startNanos = mMetrics != null ? System.nanoTime() : 0;
 
-        int result = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        int result = mDecoderQueue.dequeueOutputBuffer(mBufferInfo, timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
             case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                mAudioChannel.setActualDecodedFormat(mDecoder.getOutputFormat());
+                MediaFormat decodedFormat = mDecoder.getOutputFormat();
+                mDecodedSampleRate = decodedFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                mDecodedChannelCount = decodedFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                mAudioChannel.setActualDecodedFormat(decodedFormat);
             case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
 
         if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
             mIsDecoderEOS = true;
-            mAudioChannel.drainDecoderBufferAndQueue(AudioChannel.BUFFER_INDEX_END_OF_STREAM, 0);
-        } else if (mBufferInfo.size > 0) {
-            mAudioChannel.drainDecoderBufferAndQueue(result, mBufferInfo.presentationTimeUs);
+            mAudioChannel.drainDecoderBufferAndQueue(AudioChannel.BUFFER_INDEX_END_OF_STREAM, 0, 0, 0);
+        } else {
+            // Keeps the frames of the buffer within the trim range.
+            final int start = getBytesBefore(mTrimStartUs, mBufferInfo.presentationTimeUs, mBufferInfo.size,
+                    mDecodedSampleRate, mDecodedChannelCount);
+            final int end = getBytesBefore(mTrimEndUs, mBufferInfo.presentationTimeUs, mBufferInfo.size,
+                    mDecodedSampleRate, mDecodedChannelCount);
+            if (start < end) {
+                long presentationTimeUs = mBufferInfo.presentationTimeUs;
+                if (start > 0) {
+                    presentationTimeUs += start / (mDecodedChannelCount * BYTES_PER_SHORT) * 1_000_000L
+                            / mDecodedSampleRate;
+                }
+                mAudioChannel.drainDecoderBufferAndQueue(result, mBufferInfo.offset + start, end - start,
+                        Math.max(presentationTimeUs, mTrimStartUs) - mTrimStartUs);
+            } else {
+                mDecoderQueue.releaseOutputBuffer(result, false);
+            }
         }
 
+        recordLatency(TranscodeMetrics.Stage.DRAIN_DECODER, startNanos);
         return DRAIN_STATE_CONSUMED;
     }
 
+    /**
+     * @return Size of the 16-bit PCM frames at the start of a decoded buffer which are presented before timeUs, at
+     * most size. A frame partly before timeUs counts as before it.
+     */
+    static int getBytesBefore(long timeUs, long presentationTimeUs, int size, int sampleRate, int channelCount) {
+        if (timeUs <= presentationTimeUs) return 0;
+        final int frameSize = channelCount * BYTES_PER_SHORT;
+        // In double, as timeUs may be Long.MAX_VALUE.
+        double frames = Math.ceil((timeUs - presentationTimeUs) * (double) sampleRate / 1_000_000);
+        return (int) Math.min(size / frameSize, frames) * frameSize;
+    }
+
     private int drainEncoder(long timeoutUs) {
         if (mIsEncoderEOS) return DRAIN_STATE_NONE;
+        final long startNanos = mMetrics != null ? System.nanoTime() : 0;
 
-        int result = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        int result = mEncoderQueue.dequeueOutputBuffer(mBufferInfo, timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
@@ -176,15 +257,20 @@ public class AudioTrackTranscoder implements com.example.androidtranscoder.engin
         }
         if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
             // SPS or PPS, which should be passed by MediaFormat.
-            mEncoder.releaseOutputBuffer(result, false);
+            mEncoderQueue.releaseOutputBuffer(result, false);
             return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
-        mMuxer.writeSampleData(SAMPLE_TYPE, mEncoderBuffers.getOutputBuffer(result), mBufferInfo);
+        TranscodeMetrics.writeSampleData(mMetrics, mMuxer, SAMPLE_TYPE, mEncoderBuffers.getOutputBuffer(result), mBufferInfo);
         mWrittenPresentationTimeUs = mBufferInfo.presentationTimeUs;
-        mEncoder.releaseOutputBuffer(result, false);
+        mEncoderQueue.releaseOutputBuffer(result, false);
+        recordLatency(TranscodeMetrics.Stage.DRAIN_ENCODER, startNanos);
         return DRAIN_STATE_CONSUMED;
     }
 
+    private void recordLatency(TranscodeMetrics.Stage stage, long startNanos) {
+        if (mMetrics != null) mMetrics.recordLatency(SAMPLE_TYPE, stage, System.nanoTime() - startNanos);
+    }
+
     @Override
     public long getWrittenPresentationTimeUs() {
         return mWrittenPresentationTimeUs;
@@ -199,12 +285,12 @@ public class AudioTrackTranscoder implements com.example.androidtranscoder.engin
     public void release() {
         if (mDecoder != null) {
             if (mDecoderStarted) mDecoder.stop();
-            mDecoder.release();
+            CodecPool.recycle(mCodecPool, mDecoder);
             mDecoder = null;
         }
         if (mEncoder != null) {
             if (mEncoderStarted) mEncoder.stop();
-            mEncoder.release();
+            CodecPool.recycle(mCodecPool, mEncoder);
             mEncoder = null;
         }
     }
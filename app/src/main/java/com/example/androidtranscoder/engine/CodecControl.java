@@ -0,0 +1,45 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+
+/**
+ * Calls which hand buffers back to a codec, as on {@link MediaCodec}. Implemented for a codec by
+ * {@link #of(MediaCodec)}, and by fakes standing in for codecs in JVM tests.
+ */
+interface CodecControl {
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    void releaseOutputBuffer(int index, long renderTimestampNs);
+
+    /**
+     * Ends the input of an encoder fed from its input surface.
+     */
+    void signalEndOfInputStream();
+
+    static CodecControl of(final MediaCodec codec) {
+        return new CodecControl() {
+            @Override
+            public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+                codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+            }
+
+            @Override
+            public void releaseOutputBuffer(int index, boolean render) {
+                codec.releaseOutputBuffer(index, render);
+            }
+
+            @Override
+            public void releaseOutputBuffer(int index, long renderTimestampNs) {
+                codec.releaseOutputBuffer(index, renderTimestampNs);
+            }
+
+            @Override
+            public void signalEndOfInputStream() {
+                codec.signalEndOfInputStream();
+            }
+        };
+    }
+}
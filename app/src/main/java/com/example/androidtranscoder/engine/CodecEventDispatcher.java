@@ -0,0 +1,66 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * Creates the {@link CodecQueue} of every codec in a pipeline.
+ * <p>
+ * In event-driven mode codecs run asynchronously, with callbacks delivered on a dedicated thread,
+ * and {@link #awaitEvent(long)} returns as soon as any codec has an input or output buffer available.
+ * Otherwise codecs are polled and {@link #awaitEvent(long)} simply sleeps.
+ */
+class CodecEventDispatcher {
+    private final boolean mEventDriven;
+    private final PipelineSignal mSignal = new PipelineSignal();
+    private HandlerThread mCallbackThread;
+    private Handler mCallbackHandler;
+
+    CodecEventDispatcher(boolean eventDriven) {
+        mEventDriven = eventDriven;
+        if (mEventDriven) {
+            mCallbackThread = new HandlerThread("MediaTranscoder-Codec");
+            mCallbackThread.start();
+            mCallbackHandler = new Handler(mCallbackThread.getLooper());
+        }
+    }
+
+    public boolean isEventDriven() {
+        return mEventDriven;
+    }
+
+    /**
+     * Must be called before {@link MediaCodec#configure}, as it may switch the codec to asynchronous mode.
+     */
+    public CodecQueue createQueue(MediaCodec codec) {
+        if (!mEventDriven) return new SyncCodecQueue(codec);
+        return new AsyncCodecQueue(codec, mCallbackHandler, mSignal);
+    }
+
+    /**
+     * Waits until a codec has made progress possible, or given timeout elapsed.
+     */
+    public void awaitEvent(long timeoutMs) throws InterruptedException {
+        if (mEventDriven) {
+            mSignal.await(timeoutMs);
+        } else {
+            Thread.sleep(timeoutMs);
+        }
+    }
+
+    /**
+     * Wakes {@link #awaitEvent(long)} for events which do not come from a codec.
+     */
+    public void signal() {
+        mSignal.signal();
+    }
+
+    public void release() {
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+            mCallbackHandler = null;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.example.androidtranscoder.utils.DeviceCodecCapabilities;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps codecs of finished jobs to configure them again, instead of creating a codec per job.
+ * <p>
+ * Codecs are pooled by MIME type and direction, and a codec last configured the same way is preferred.
+ * A returned codec is reset to the uninitialized state, so the next user configures it as a new one.
+ * The number of live codecs, in use or idle, is capped: when the cap is reached, the codec idle for the longest time
+ * is released, or acquire waits for a codec to be returned. Codecs idle for longer than the idle timeout are released.
+ * <p>
+ * A job which takes several codecs reserves them first with {@link #reserve(int)}. Otherwise jobs which each hold part
+ * of their codecs at the cap would wait for each other forever.
+ * <p>
+ * NOTE: This class is thread safe.
+ *
+ * @param <C> Codec type; {@link MediaCodec} with {@link #MEDIA_CODEC_FACTORY}, or a stand-in in tests.
+ */
+public class CodecPool<C> {
+    private static final String TAG = "CodecPool";
+
+    /**
+     * Creates, resets and releases codecs for the pool.
+     */
+    public interface CodecFactory<C> {
+        C create(String mime, boolean encoder) throws IOException;
+
+        /**
+         * Returns the codec to the uninitialized state, from any state.
+         */
+        void reset(C codec);
+
+        void release(C codec);
+    }
+
+    /**
+     * Creates the best codec for the type according to {@link DeviceCodecCapabilities}, which prefers hardware
+     * codecs, instead of whichever the platform picks by type.
+     */
+    public static final CodecFactory<MediaCodec> MEDIA_CODEC_FACTORY = new CodecFactory<MediaCodec>() {
+        @Override
+        public MediaCodec create(String mime, boolean encoder) throws IOException {
+            final DeviceCodecCapabilities.Codec codec =
+                    DeviceCodecCapabilities.getInstance().getBestCodec(mime, encoder);
+            if (codec != null) {
+                try {
+                    return MediaCodec.createByCodecName(codec.name);
+                } catch (IOException | IllegalArgumentException e) {
+                    Log.w(TAG, "Could not create " + codec.name + ", falling back to the default codec.", e);
+                }
+            }
+            return encoder ? MediaCodec.createEncoderByType(mime) : MediaCodec.createDecoderByType(mime);
+        }
+
+        @Override
+        public void reset(MediaCodec codec) {
+            codec.reset();
+            // The next user may run the codec in synchronous mode.
+            codec.setCallback(null);
+        }
+
+        @Override
+        public void release(MediaCodec codec) {
+            codec.release();
+        }
+    };
+
+    private static class Entry<C> {
+        final C mCodec;
+        final String mMime;
+        final boolean mEncoder;
+        String mConfiguration;
+        long mIdleSinceNanos;
+
+        Entry(C codec, String mime, boolean encoder) {
+            mCodec = codec;
+            mMime = mime;
+            mEncoder = encoder;
+        }
+    }
+
+    private final CodecFactory<C> mFactory;
+    private final int mMaxLiveCodecs;
+    private final long mMaxIdleNanos;
+    private final LongSupplier mNanoClock;
+    private final Object mLock = new Object();
+    /** Oldest first. */
+    private final ArrayDeque<Entry<C>> mIdleEntries = new ArrayDeque<>();
+    private final Map<C, Entry<C>> mEntriesInUse = new IdentityHashMap<>();
+    private int mCreating;
+    private int mReserved;
+
+    private int mCreatedCount;
+    private int mReusedCount;
+    private int mEvictedCount;
+
+    /**
+     * @param maxLiveCodecs Cap on codecs in use and idle together.
+     * @param maxIdleMs     Idle codecs are released after this time.
+     */
+    public CodecPool(CodecFactory<C> factory, int maxLiveCodecs, long maxIdleMs) {
+        this(factory, maxLiveCodecs, maxIdleMs, System::nanoTime);
+    }
+
+    CodecPool(CodecFactory<C> factory, int maxLiveCodecs, long maxIdleMs, LongSupplier nanoClock) {
+        if (maxLiveCodecs <= 0) throw new IllegalArgumentException("maxLiveCodecs must be positive: " + maxLiveCodecs);
+        mFactory = factory;
+        mMaxLiveCodecs = maxLiveCodecs;
+        mMaxIdleNanos = maxIdleMs * 1000000;
+        mNanoClock = nanoClock;
+    }
+
+    /**
+     * Sets aside count codecs of the cap for one job, waiting while reservations of other jobs leave fewer. Reserve
+     * every codec a job takes before it takes the first: as reservations never exceed the cap, a job which takes no
+     * more codecs than it reserved finds them free or idle, and never waits in
+     * {@link #acquire(String, boolean, String)} while holding codecs. Close the reservation after recycling the codecs.
+     *
+     * @throws IllegalArgumentException if count exceeds the cap, as the job could never get its codecs.
+     */
+    public Reservation reserve(int count) throws InterruptedException {
+        if (count < 0 || count > mMaxLiveCodecs) {
+            throw new IllegalArgumentException("Cannot reserve " + count + " codecs, the pool holds at most "
+                    + mMaxLiveCodecs + ".");
+        }
+        synchronized (mLock) {
+            while (mReserved + count > mMaxLiveCodecs) mLock.wait();
+            mReserved += count;
+        }
+        return new Reservation(this, count);
+    }
+
+    /**
+     * Takes an idle codec of the MIME type and direction, or creates one. Waits while the cap is reached and every
+     * codec is in use. Return the codec with {@link #recycle(Object)}.
+     *
+     * @param configuration Describes how the codec is going to be configured, e.g. from
+     *                      {@link #configurationOf(MediaFormat)}; an idle codec configured the same way is preferred.
+     * @return Codec in the uninitialized state.
+     */
+    public C acquire(String mime, boolean encoder, String configuration) throws IOException, InterruptedException {
+        final List<Entry<C>> evicted = new ArrayList<>();
+        Entry<C> entry;
+        try {
+            synchronized (mLock) {
+                while (true) {
+                    evictExpiredLocked(evicted);
+                    entry = takeIdleLocked(mime, encoder, configuration);
+                    if (entry != null) {
+                        mReusedCount++;
+                        break;
+                    }
+                    if (getLiveCountLocked() < mMaxLiveCodecs) {
+                        // Reserve the slot, and create the codec outside of the lock.
+                        mCreating++;
+                        break;
+                    }
+                    Entry<C> oldest = mIdleEntries.poll();
+                    if (oldest != null) {
+                        mEvictedCount++;
+                        evicted.add(oldest);
+                    } else {
+                        mLock.wait();
+                    }
+                }
+                if (entry != null) {
+                    entry.mConfiguration = configuration;
+                    mEntriesInUse.put(entry.mCodec, entry);
+                    return entry.mCodec;
+                }
+            }
+        } finally {
+            releaseAll(evicted);
+        }
+
+        C codec = null;
+        try {
+            codec = mFactory.create(mime, encoder);
+        } finally {
+            synchronized (mLock) {
+                mCreating--;
+                if (codec != null) {
+                    mCreatedCount++;
+                    entry = new Entry<>(codec, mime, encoder);
+                    entry.mConfiguration = configuration;
+                    mEntriesInUse.put(codec, entry);
+                } else {
+                    mLock.notifyAll();
+                }
+            }
+        }
+        return codec;
+    }
+
+    /**
+     * Returns a codec taken from {@link #acquire(String, boolean, String)}, in any state. It is released instead
+     * of pooled if it cannot be reset.
+     */
+    public void recycle(C codec) {
+        final Entry<C> entry;
+        synchronized (mLock) {
+            entry = mEntriesInUse.remove(codec);
+        }
+        if (entry == null) throw new IllegalArgumentException("Codec is not from this pool: " + codec);
+        boolean reset = false;
+        try {
+            mFactory.reset(codec);
+            reset = true;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Could not reset " + entry.mMime + " codec, releasing it.", e);
+        }
+        final List<Entry<C>> evicted = new ArrayList<>();
+        if (!reset) evicted.add(entry);
+        synchronized (mLock) {
+            if (reset) {
+                entry.mIdleSinceNanos = mNanoClock.getAsLong();
+                mIdleEntries.add(entry);
+            }
+            evictExpiredLocked(evicted);
+            mLock.notifyAll();
+        }
+        releaseAll(evicted);
+    }
+
+    /**
+     * Releases codecs idle for longer than the idle timeout. Also done on every acquire and recycle.
+     */
+    public void evictIdle() {
+        final List<Entry<C>> evicted = new ArrayList<>();
+        synchronized (mLock) {
+            evictExpiredLocked(evicted);
+        }
+        releaseAll(evicted);
+    }
+
+    /**
+     * Releases all idle codecs, e.g. when the app goes to the background.
+     */
+    public void clear() {
+        final List<Entry<C>> evicted;
+        synchronized (mLock) {
+            evicted = new ArrayList<>(mIdleEntries);
+            mEvictedCount += mIdleEntries.size();
+            mIdleEntries.clear();
+            mLock.notifyAll();
+        }
+        releaseAll(evicted);
+    }
+
+    public int getMaxLiveCodecs() {
+        return mMaxLiveCodecs;
+    }
+
+    /**
+     * @return Codecs set aside by open reservations.
+     */
+    public int getReservedCount() {
+        synchronized (mLock) {
+            return mReserved;
+        }
+    }
+
+    public int getIdleCount() {
+        synchronized (mLock) {
+            return mIdleEntries.size();
+        }
+    }
+
+    public int getLiveCount() {
+        synchronized (mLock) {
+            return getLiveCountLocked();
+        }
+    }
+
+    public int getCreatedCount() {
+        synchronized (mLock) {
+            return mCreatedCount;
+        }
+    }
+
+    public int getReusedCount() {
+        synchronized (mLock) {
+            return mReusedCount;
+        }
+    }
+
+    public int getEvictedCount() {
+        synchronized (mLock) {
+            return mEvictedCount;
+        }
+    }
+
+    /**
+     * @return Key of what makes configuring a codec with this format differ: video size, or audio rate and channels.
+     */
+    public static String configurationOf(MediaFormat format) {
+        if (format.containsKey(MediaFormat.KEY_WIDTH) && format.containsKey(MediaFormat.KEY_HEIGHT)) {
+            return format.getInteger(MediaFormat.KEY_WIDTH) + "x" + format.getInteger(MediaFormat.KEY_HEIGHT);
+        }
+        if (format.containsKey(MediaFormat.KEY_SAMPLE_RATE) && format.containsKey(MediaFormat.KEY_CHANNEL_COUNT)) {
+            return format.getInteger(MediaFormat.KEY_SAMPLE_RATE) + "Hz/" + format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        }
+        return "";
+    }
+
+    /**
+     * Takes a codec for the format from the pool, or creates one if the pool is null.
+     */
+    static MediaCodec obtain(CodecPool<MediaCodec> pool, MediaFormat format, boolean encoder) {
+        final String mime = format.getString(MediaFormat.KEY_MIME);
+        try {
+            if (pool != null) return pool.acquire(mime, encoder, configurationOf(format));
+            return MEDIA_CODEC_FACTORY.create(mime, encoder);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a " + mime + " codec.", e);
+        }
+    }
+
+    /**
+     * Returns a codec from {@link #obtain(CodecPool, MediaFormat, boolean)} to the pool, or releases it if the pool
+     * is null.
+     */
+    static void recycle(CodecPool<MediaCodec> pool, MediaCodec codec) {
+        if (pool != null) {
+            pool.recycle(codec);
+        } else {
+            codec.release();
+        }
+    }
+
+    /**
+     * Codecs set aside by {@link #reserve(int)}, until closed.
+     */
+    public static final class Reservation implements AutoCloseable {
+        private final CodecPool<?> mPool;
+        private final int mCount;
+        private boolean mClosed;
+
+        private Reservation(CodecPool<?> pool, int count) {
+            mPool = pool;
+            mCount = count;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * Gives the codecs back to the cap, for other jobs to reserve. Does nothing if already closed.
+         */
+        @Override
+        public void close() {
+            synchronized (mPool.mLock) {
+                if (mClosed) return;
+                mClosed = true;
+                mPool.mReserved -= mCount;
+                mPool.mLock.notifyAll();
+            }
+        }
+    }
+
+    private int getLiveCountLocked() {
+        return mIdleEntries.size() + mEntriesInUse.size() + mCreating;
+    }
+
+    private Entry<C> takeIdleLocked(String mime, boolean encoder, String configuration) {
+        Entry<C> match = null;
+        // Newest first, so the codecs which keep getting used stay warm and the others expire.
+        Iterator<Entry<C>> iterator = mIdleEntries.descendingIterator();
+        while (iterator.hasNext()) {
+            Entry<C> entry = iterator.next();
+            if (entry.mEncoder != encoder || !entry.mMime.equals(mime)) continue;
+            if (match == null || entry.mConfiguration.equals(configuration)) {
+                match = entry;
+                if (entry.mConfiguration.equals(configuration)) break;
+            }
+        }
+        if (match != null) mIdleEntries.remove(match);
+        return match;
+    }
+
+    private void evictExpiredLocked(List<Entry<C>> evicted) {
+        final long now = mNanoClock.getAsLong();
+        Entry<C> entry;
+        while ((entry = mIdleEntries.peek()) != null && now - entry.mIdleSinceNanos > mMaxIdleNanos) {
+            mIdleEntries.poll();
+            mEvictedCount++;
+            evicted.add(entry);
+        }
+    }
+
+    private void releaseAll(List<Entry<C>> entries) {
+        for (Entry<C> entry : entries) {
+            try {
+                mFactory.release(entry.mCodec);
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not release " + entry.mMime + " codec.", e);
+            }
+        }
+        if (!entries.isEmpty()) {
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+    }
+}
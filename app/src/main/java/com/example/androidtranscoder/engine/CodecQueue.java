@@ -0,0 +1,24 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+
+/**
+ * Source of available input and output buffer indices of a {@link MediaCodec}, and the way back to it.
+ * Return values follow {@link MediaCodec#dequeueInputBuffer(long)} and {@link MediaCodec#dequeueOutputBuffer(MediaCodec.BufferInfo, long)},
+ * so track transcoders work the same whether the codec runs in synchronous or asynchronous mode.
+ * Buffers are queued and released through the queue too, never on the codec directly.
+ */
+interface CodecQueue extends CodecControl {
+
+    /**
+     * @return Index of an input buffer, or {@link MediaCodec#INFO_TRY_AGAIN_LATER} if none is available.
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    /**
+     * @return Index of an output buffer with its info written to bufferInfo,
+     * {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED}, {@link MediaCodec#INFO_OUTPUT_BUFFERS_CHANGED},
+     * or {@link MediaCodec#INFO_TRY_AGAIN_LATER} if none is available.
+     */
+    int dequeueOutputBuffer(MediaCodec.BufferInfo bufferInfo, long timeoutUs);
+}
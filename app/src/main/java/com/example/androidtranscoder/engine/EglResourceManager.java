@@ -0,0 +1,258 @@
+package com.example.androidtranscoder.engine;
+
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps EGL and GL resources of video jobs alive between them, so a queue of short clips does not pay for
+ * eglInitialize, context creation and shader compilation on every job.
+ * <p>
+ * The display is initialized once. Each running video job holds a {@link Worker}: an EGL context with its compiled
+ * shader programs and a pool of textures. A context can be current on one thread only, and program uniforms are
+ * shared between contexts of a share group, so workers are not shared by concurrent jobs; a job returns its worker
+ * on release and the next job takes it over.
+ * <p>
+ * NOTE: This class is thread safe.
+ */
+public class EglResourceManager {
+    private static final String TAG = "EglResourceManager";
+    private static final int EGL_RECORDABLE_ANDROID = 0x3142;
+
+    private EGLDisplay mEGLDisplay = EGL14.EGL_NO_DISPLAY;
+    private EGLConfig mEGLConfig;
+    private final ArrayDeque<Worker> mIdleWorkers = new ArrayDeque<>();
+    private int mWorkersInUse;
+
+    private int mContextsCreated;
+    private int mContextsReused;
+    private long mContextCreateNanos;
+    private int mProgramsCompiled;
+    private int mProgramsReused;
+    private long mProgramCompileNanos;
+    private int mTexturesCreated;
+    private int mTexturesReused;
+
+    /**
+     * Takes an idle worker, or creates one. Return it with {@link Worker#recycle()}.
+     */
+    public synchronized Worker acquire() {
+        Worker worker = mIdleWorkers.poll();
+        if (worker != null) {
+            mContextsReused++;
+        } else {
+            final long startNanos = System.nanoTime();
+            if (mEGLDisplay == EGL14.EGL_NO_DISPLAY) eglSetup();
+            worker = new Worker(this, createContext());
+            mContextCreateNanos += System.nanoTime() - startNanos;
+            mContextsCreated++;
+        }
+        mWorkersInUse++;
+        return worker;
+    }
+
+    /**
+     * Destroys idle workers, and terminates EGL when no worker is in use. Workers in use stay valid, and the manager
+     * can be used again afterwards.
+     */
+    public synchronized void release() {
+        for (Worker worker : mIdleWorkers) {
+            EGL14.eglDestroyContext(mEGLDisplay, worker.mEGLContext);
+        }
+        mIdleWorkers.clear();
+        if (mWorkersInUse == 0 && mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
+            EGL14.eglReleaseThread();
+            EGL14.eglTerminate(mEGLDisplay);
+            mEGLDisplay = EGL14.EGL_NO_DISPLAY;
+            mEGLConfig = null;
+        }
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(this);
+    }
+
+    private synchronized void recycle(Worker worker) {
+        mWorkersInUse--;
+        mIdleWorkers.add(worker);
+    }
+
+    private synchronized void onProgram(boolean compiled, long nanos) {
+        if (compiled) {
+            mProgramsCompiled++;
+            mProgramCompileNanos += nanos;
+        } else {
+            mProgramsReused++;
+        }
+    }
+
+    private synchronized void onTexture(boolean created) {
+        if (created) {
+            mTexturesCreated++;
+        } else {
+            mTexturesReused++;
+        }
+    }
+
+    /**
+     * Same configuration as a standalone {@link InputSurface}: GLES 2.0 and recordable.
+     */
+    private void eglSetup() {
+        mEGLDisplay = EGL14.eglGetDisplay(EGL14.EGL_DEFAULT_DISPLAY);
+        if (mEGLDisplay == EGL14.EGL_NO_DISPLAY) {
+            throw new RuntimeException("unable to get EGL14 display");
+        }
+        int[] version = new int[2];
+        if (!EGL14.eglInitialize(mEGLDisplay, version, 0, version, 1)) {
+            mEGLDisplay = EGL14.EGL_NO_DISPLAY;
+            throw new RuntimeException("unable to initialize EGL14");
+        }
+        int[] attribList = {
+                EGL14.EGL_RED_SIZE, 8,
+                EGL14.EGL_GREEN_SIZE, 8,
+                EGL14.EGL_BLUE_SIZE, 8,
+                EGL14.EGL_RENDERABLE_TYPE, EGL14.EGL_OPENGL_ES2_BIT,
+                EGL_RECORDABLE_ANDROID, 1,
+                EGL14.EGL_NONE
+        };
+        EGLConfig[] configs = new EGLConfig[1];
+        int[] numConfigs = new int[1];
+        if (!EGL14.eglChooseConfig(mEGLDisplay, attribList, 0, configs, 0, configs.length,
+                numConfigs, 0)) {
+            throw new RuntimeException("unable to find RGB888+recordable ES2 EGL config");
+        }
+        mEGLConfig = configs[0];
+        Log.d(TAG, "EGL initialized, version " + version[0] + "." + version[1]);
+    }
+
+    private EGLContext createContext() {
+        int[] attribList = {
+                EGL14.EGL_CONTEXT_CLIENT_VERSION, 2,
+                EGL14.EGL_NONE
+        };
+        EGLContext context = EGL14.eglCreateContext(mEGLDisplay, mEGLConfig, EGL14.EGL_NO_CONTEXT, attribList, 0);
+        int error = EGL14.eglGetError();
+        if (error != EGL14.EGL_SUCCESS || context == null || context == EGL14.EGL_NO_CONTEXT) {
+            throw new RuntimeException("eglCreateContext: EGL error: 0x" + Integer.toHexString(error));
+        }
+        return context;
+    }
+
+    /**
+     * EGL context of one video job at a time, with GL objects which outlive the job.
+     * GL methods must be called while the context is current, i.e. after {@link InputSurface#makeCurrent()}.
+     */
+    public static class Worker {
+        private final EglResourceManager mManager;
+        private final EGLContext mEGLContext;
+        private final Map<String, Integer> mPrograms = new HashMap<>();
+        private final ArrayDeque<Integer> mTextures = new ArrayDeque<>();
+
+        private Worker(EglResourceManager manager, EGLContext context) {
+            mManager = manager;
+            mEGLContext = context;
+        }
+
+        public EGLDisplay getDisplay() {
+            return mManager.mEGLDisplay;
+        }
+
+        public EGLConfig getConfig() {
+            return mManager.mEGLConfig;
+        }
+
+        public EGLContext getContext() {
+            return mEGLContext;
+        }
+
+        /**
+         * @return Linked program of both shaders, compiled on first use in this context.
+         */
+        public int getProgram(String vertexShader, String fragmentShader) {
+            final String key = vertexShader + '\0' + fragmentShader;
+            Integer program = mPrograms.get(key);
+            if (program != null) {
+                mManager.onProgram(false, 0);
+                return program;
+            }
+            final long startNanos = System.nanoTime();
+            program = TextureRender.createProgram(vertexShader, fragmentShader);
+            if (program == 0) {
+                throw new RuntimeException("failed creating program");
+            }
+            mManager.onProgram(true, System.nanoTime() - startNanos);
+            mPrograms.put(key, program);
+            return program;
+        }
+
+        /**
+         * @return An external texture from the pool, or a new one.
+         */
+        public int obtainExternalTexture() {
+            Integer texture = mTextures.poll();
+            mManager.onTexture(texture == null);
+            return texture != null ? texture : TextureRender.createExternalTexture();
+        }
+
+        public void recycleExternalTexture(int texture) {
+            mTextures.add(texture);
+        }
+
+        /**
+         * Creates a renderer with the cached program and a pooled texture.
+         */
+        TextureRender createTextureRender() {
+            TextureRender textureRender = new TextureRender();
+            textureRender.surfaceCreated(getProgram(TextureRender.VERTEX_SHADER, TextureRender.FRAGMENT_SHADER),
+                    obtainExternalTexture());
+            return textureRender;
+        }
+
+        /**
+         * Hands this worker to the next job. The context must not be current on any thread.
+         */
+        public void recycle() {
+            mManager.recycle(this);
+        }
+    }
+
+    /**
+     * Counters since the manager was created, and the setup time they saved.
+     */
+    public static class Stats {
+        public final int contextsCreated;
+        public final int contextsReused;
+        public final int programsCompiled;
+        public final int programsReused;
+        public final int texturesCreated;
+        public final int texturesReused;
+        /** Reuses times the average cost of creating, in nanoseconds. */
+        public final long estimatedSavedNanos;
+
+        private Stats(EglResourceManager manager) {
+            contextsCreated = manager.mContextsCreated;
+            contextsReused = manager.mContextsReused;
+            programsCompiled = manager.mProgramsCompiled;
+            programsReused = manager.mProgramsReused;
+            texturesCreated = manager.mTexturesCreated;
+            texturesReused = manager.mTexturesReused;
+            long saved = 0;
+            if (contextsCreated > 0) saved += manager.mContextCreateNanos / contextsCreated * contextsReused;
+            if (programsCompiled > 0) saved += manager.mProgramCompileNanos / programsCompiled * programsReused;
+            estimatedSavedNanos = saved;
+        }
+
+        @Override
+        public String toString() {
+            return "contexts " + contextsCreated + " created / " + contextsReused + " reused, programs "
+                    + programsCompiled + " compiled / " + programsReused + " reused, textures " + texturesCreated
+                    + " created / " + texturesReused + " reused, saved ~" + estimatedSavedNanos / 1000000 + " ms";
+        }
+    }
+}
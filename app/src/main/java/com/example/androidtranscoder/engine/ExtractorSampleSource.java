@@ -0,0 +1,51 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaExtractor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads one track directly from a {@link MediaExtractor} shared by all tracks.
+ * A sample is only available while the extractor is positioned on this track,
+ * so tracks have to be stepped alternately on the same thread.
+ */
+public class ExtractorSampleSource implements SampleSource {
+    private final MediaExtractor mExtractor;
+    private final int mTrackIndex;
+
+    public ExtractorSampleSource(MediaExtractor extractor, int trackIndex) {
+        mExtractor = extractor;
+        mTrackIndex = trackIndex;
+        mExtractor.selectTrack(mTrackIndex);
+    }
+
+    @Override
+    public boolean isSampleAvailable() {
+        return mExtractor.getSampleTrackIndex() == mTrackIndex;
+    }
+
+    @Override
+    public boolean isEndOfStream() {
+        return mExtractor.getSampleTrackIndex() < 0;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mExtractor.getSampleFlags();
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        return mExtractor.readSampleData(buffer, offset);
+    }
+
+    @Override
+    public void advance() {
+        mExtractor.advance();
+    }
+}
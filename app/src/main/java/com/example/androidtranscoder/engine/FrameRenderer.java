@@ -0,0 +1,291 @@
+package com.example.androidtranscoder.engine;
+
+import android.graphics.SurfaceTexture;
+import android.opengl.EGL14;
+import android.opengl.EGL15;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSync;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders decoded frames into the encoder's input surface on its own thread, so decoding, GL and encoding overlap
+ * instead of taking turns on the track's thread.
+ * <p>
+ * The decoder releases up to depth frames to the SurfaceTexture ahead of the renderer, which latches, draws and
+ * swaps them in order. After each swap an EGL fence is inserted, and the renderer waits on the fence of the frame
+ * depth frames back before going on, which bounds the GL work queued ahead of the GPU.
+ * Waits, draws, swaps and fence waits are recorded as stages of the video track, to tune depth per device.
+ * <p>
+ * NOTE: The decoder's thread calls {@link #canAcceptFrame()}, {@link #onFrameReleased()} and
+ * {@link #getFramesInFlight()}; GL is only used on the renderer's thread.
+ */
+class FrameRenderer implements Runnable, SurfaceTexture.OnFrameAvailableListener {
+    private static final String TAG = "FrameRenderer";
+    private static final long FRAME_TIMEOUT_MS = 10000;
+    private static final long[] FENCE_ATTRIBUTES = {EGL14.EGL_NONE};
+
+    private final Surface mEncoderInputSurface;
+    private final EglResourceManager.Worker mEglWorker;
+    private final int mDepth;
+    private final long mTrimStartNs;
+    private final CodecEventDispatcher mEventDispatcher;
+    private final TranscodeMetrics mMetrics;
+    private final Thread mThread;
+    private final Object mLock = new Object();
+    private final ArrayDeque<EGLSync> mFences = new ArrayDeque<>();
+    private InputSurface mInputSurface;
+    private OutputSurface mOutputSurface;
+    private EGLDisplay mEGLDisplay;
+    private boolean mFencesSupported;
+    // Guarded by mLock.
+    private Surface mDecoderOutputSurface;
+    private boolean mReady;
+    private boolean mStopRequested;
+    private int mFramesInFlight;
+    private int mFramesAvailable;
+    private volatile RuntimeException mError;
+
+    /**
+     * @param encoderInputSurface From {@link android.media.MediaCodec#createInputSurface()}, released with the renderer.
+     * @param eglWorker           Context and GL objects to render with, or null to create them.
+     * @param depth               Max frames released by the decoder and not yet swapped to the encoder.
+     * @param trimStartUs         Subtracted from frame timestamps.
+     * @param eventDispatcher     Signaled when a frame was rendered, so the decoder can release another.
+     * @param metrics             Records render stages, or null.
+     */
+    FrameRenderer(Surface encoderInputSurface, EglResourceManager.Worker eglWorker, int depth, long trimStartUs,
+                  CodecEventDispatcher eventDispatcher, TranscodeMetrics metrics) {
+        if (depth < 1) throw new IllegalArgumentException("depth must be positive: " + depth);
+        mEncoderInputSurface = encoderInputSurface;
+        mEglWorker = eglWorker;
+        mDepth = depth;
+        mTrimStartNs = trimStartUs * 1000;
+        mEventDispatcher = eventDispatcher;
+        mMetrics = metrics;
+        mThread = new Thread(this, "MediaTranscoder-Render");
+    }
+
+    /**
+     * Starts the thread and waits until it set up GL.
+     *
+     * @return Surface for the decoder to render into.
+     */
+    Surface start() {
+        mThread.start();
+        synchronized (mLock) {
+            while (!mReady) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while setting up the frame renderer.", e);
+                }
+            }
+            checkError();
+            return mDecoderOutputSurface;
+        }
+    }
+
+    /**
+     * Stops the thread and releases GL, dropping frames not rendered yet.
+     */
+    void release() {
+        synchronized (mLock) {
+            mStopRequested = true;
+            mLock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mThread.join();
+                break;
+            } catch (InterruptedException e) {
+                // GL must be released before the codecs, so keep waiting.
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * @return true if the decoder may release another frame to render.
+     */
+    boolean canAcceptFrame() {
+        synchronized (mLock) {
+            return mFramesInFlight < mDepth;
+        }
+    }
+
+    /**
+     * Counts a frame the decoder is about to release with render set.
+     */
+    void onFrameReleased() {
+        synchronized (mLock) {
+            mFramesInFlight++;
+        }
+    }
+
+    /**
+     * @return Frames released by the decoder and not yet swapped to the encoder.
+     */
+    int getFramesInFlight() {
+        synchronized (mLock) {
+            return mFramesInFlight;
+        }
+    }
+
+    /**
+     * Rethrows the exception which stopped the renderer, if any.
+     */
+    void checkError() {
+        RuntimeException error = mError;
+        if (error != null) throw new RuntimeException("Frame rendering failed.", error);
+    }
+
+    @Override
+    public void onFrameAvailable(SurfaceTexture surfaceTexture) {
+        synchronized (mLock) {
+            mFramesAvailable++;
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            setup();
+            renderFrames();
+        } catch (RuntimeException e) {
+            mError = e;
+        } finally {
+            releaseGl();
+            synchronized (mLock) {
+                // Wakes start() if setup failed.
+                mReady = true;
+                mLock.notifyAll();
+            }
+            mEventDispatcher.signal();
+        }
+    }
+
+    private void setup() {
+        mInputSurface = mEglWorker != null
+                ? new InputSurface(mEncoderInputSurface, mEglWorker) : new InputSurface(mEncoderInputSurface);
+        mInputSurface.makeCurrent();
+        mEGLDisplay = EGL14.eglGetCurrentDisplay();
+        String version = EGL14.eglQueryString(mEGLDisplay, EGL14.EGL_VERSION);
+        // EGL 1.5 has fences in core, older versions only through extensions.
+        mFencesSupported = version != null && version.compareTo("1.5") >= 0;
+        if (!mFencesSupported) Log.d(TAG, "EGL " + version + " has no fences, GL work is bounded by the encoder.");
+        mOutputSurface = mEglWorker != null ? new OutputSurface(mEglWorker) : new OutputSurface();
+        mOutputSurface.setOnFrameAvailableListener(this);
+        synchronized (mLock) {
+            mDecoderOutputSurface = mOutputSurface.getSurface();
+            mReady = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private void renderFrames() {
+        while (true) {
+            final long waitStartNanos = awaitFrame();
+            if (waitStartNanos < 0) return;
+            mOutputSurface.latchImage();
+            final long drawStartNanos = recordLatency(TranscodeMetrics.Stage.AWAIT_NEW_IMAGE, waitStartNanos);
+            mOutputSurface.drawImage();
+            final long swapStartNanos = recordLatency(TranscodeMetrics.Stage.DRAW_IMAGE, drawStartNanos);
+            mInputSurface.setPresentationTime(mOutputSurface.getTimestamp() - mTrimStartNs);
+            mInputSurface.swapBuffers();
+            final long fenceStartNanos = recordLatency(TranscodeMetrics.Stage.SWAP_BUFFERS, swapStartNanos);
+            if (insertFence() && mFences.size() > mDepth) {
+                awaitFence(mFences.poll());
+                recordLatency(TranscodeMetrics.Stage.AWAIT_GPU_FENCE, fenceStartNanos);
+            }
+            final int framesInFlight;
+            synchronized (mLock) {
+                framesInFlight = mFramesInFlight--;
+            }
+            if (mMetrics != null) mMetrics.recordFramesInFlight(framesInFlight);
+            mEventDispatcher.signal();
+        }
+    }
+
+    /**
+     * Waits until a frame is available, and takes it.
+     *
+     * @return When the wait for the frame started, not counting time nothing was in flight, or -1 if stopped.
+     */
+    private long awaitFrame() {
+        synchronized (mLock) {
+            long waitStartNanos = 0;
+            try {
+                while (mFramesAvailable == 0 && !mStopRequested) {
+                    if (mFramesInFlight == 0) {
+                        // Nothing to wait for until the decoder releases a frame.
+                        waitStartNanos = 0;
+                        mLock.wait();
+                        continue;
+                    }
+                    final long nowNanos = System.nanoTime();
+                    if (waitStartNanos == 0) waitStartNanos = nowNanos;
+                    final long remainingMs = FRAME_TIMEOUT_MS - TimeUnit.NANOSECONDS.toMillis(nowNanos - waitStartNanos);
+                    if (remainingMs <= 0) throw new RuntimeException("Surface frame wait timed out");
+                    mLock.wait(remainingMs);
+                }
+            } catch (InterruptedException e) {
+                return -1;
+            }
+            if (mStopRequested) return -1;
+            mFramesAvailable--;
+            return waitStartNanos != 0 ? waitStartNanos : System.nanoTime();
+        }
+    }
+
+    private boolean insertFence() {
+        if (!mFencesSupported) return false;
+        EGLSync fence = EGL15.eglCreateSync(mEGLDisplay, EGL15.EGL_SYNC_FENCE, FENCE_ATTRIBUTES, 0);
+        if (fence == null || fence.equals(EGL15.EGL_NO_SYNC)) {
+            Log.w(TAG, "eglCreateSync failed: EGL error: 0x" + Integer.toHexString(EGL14.eglGetError())
+                    + ", GL work is bounded by the encoder.");
+            mFencesSupported = false;
+            return false;
+        }
+        mFences.add(fence);
+        return true;
+    }
+
+    private void awaitFence(EGLSync fence) {
+        int result = EGL15.eglClientWaitSync(mEGLDisplay, fence, EGL15.EGL_SYNC_FLUSH_COMMANDS_BIT,
+                TimeUnit.MILLISECONDS.toNanos(FRAME_TIMEOUT_MS));
+        EGL15.eglDestroySync(mEGLDisplay, fence);
+        if (result == EGL15.EGL_TIMEOUT_EXPIRED) throw new RuntimeException("GPU fence wait timed out");
+    }
+
+    private void releaseGl() {
+        while (!mFences.isEmpty()) EGL15.eglDestroySync(mEGLDisplay, mFences.poll());
+        if (mOutputSurface != null) {
+            mOutputSurface.release();
+            mOutputSurface = null;
+        }
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
+        } else {
+            mEncoderInputSurface.release();
+        }
+    }
+
+    /**
+     * @return Current time, to time the next stage from.
+     */
+    private long recordLatency(TranscodeMetrics.Stage stage, long startNanos) {
+        if (mMetrics == null) return 0;
+        final long nowNanos = System.nanoTime();
+        mMetrics.recordLatency(QueuedMuxer.SampleType.VIDEO, stage, nowNanos - startNanos);
+        return nowNanos;
+    }
+}
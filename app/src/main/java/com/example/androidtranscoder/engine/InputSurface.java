@@ -22,6 +22,7 @@ public class InputSurface {
     private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
     private EGLSurface mEGLSurface = EGL14.EGL_NO_SURFACE;
     private Surface mSurface;
+    private final boolean mOwnsContext;
     /**
      * Creates an InputSurface from a Surface.
      */
@@ -30,8 +31,23 @@ public class InputSurface {
             throw new NullPointerException();
         }
         mSurface = surface;
+        mOwnsContext = true;
         eglSetup();
     }
+    /**
+     * Creates an InputSurface from a Surface, with the EGL context of a worker instead of a new one.
+     * {@link #release()} leaves the context and display alive.
+     */
+    public InputSurface(Surface surface, EglResourceManager.Worker worker) {
+        if (surface == null) {
+            throw new NullPointerException();
+        }
+        mSurface = surface;
+        mOwnsContext = false;
+        mEGLDisplay = worker.getDisplay();
+        mEGLContext = worker.getContext();
+        createWindowSurface(worker.getConfig());
+    }
     /**
      * Prepares EGL.  We want a GLES 2.0 context and a surface that supports recording.
      */
@@ -72,11 +88,16 @@ public class InputSurface {
         if (mEGLContext == null) {
             throw new RuntimeException("null context");
         }
-        // Create a window surface, and attach it to the Surface we received.
+        createWindowSurface(configs[0]);
+    }
+    /**
+     * Creates a window surface, and attaches it to the Surface we received.
+     */
+    private void createWindowSurface(EGLConfig config) {
         int[] surfaceAttribs = {
                 EGL14.EGL_NONE
         };
-        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, configs[0], mSurface,
+        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, config, mSurface,
                 surfaceAttribs, 0);
         checkEglError("eglCreateWindowSurface");
         if (mEGLSurface == null) {
@@ -88,7 +109,11 @@ public class InputSurface {
      * Surface that was passed to our constructor.
      */
     public void release() {
-        if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
+        if (!mOwnsContext) {
+            // Unbind the worker's context from this thread, so the next job can make it current on its own.
+            if (mEGLContext.equals(EGL14.eglGetCurrentContext())) makeUnCurrent();
+            EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
+        } else if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
             EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
             EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
             EGL14.eglReleaseThread();
@@ -0,0 +1,127 @@
+package com.example.androidtranscoder.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values with buckets of bounded relative width, laid out like HdrHistogram:
+ * values below 2^SUB_BUCKET_BITS get a bucket each, larger values share buckets 1/2^(SUB_BUCKET_BITS - 1) as wide
+ * as their magnitude, so percentiles are within about 3% of the recorded values at any scale.
+ * <p>
+ * All buckets are allocated up front and recording takes no lock, so it can stay enabled on hot paths.
+ * NOTE: Values must be recorded from one thread at a time; any thread may read.
+ */
+public class LongHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+
+    private final long mHighestTrackableValue;
+    private final AtomicLongArray mCounts;
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotalValue = new AtomicLong();
+    private final AtomicLong mMaxValue = new AtomicLong();
+
+    /**
+     * @param highestTrackableValue Larger values are counted in the highest bucket; the max is still exact.
+     */
+    public LongHistogram(long highestTrackableValue) {
+        if (highestTrackableValue < 1) {
+            throw new IllegalArgumentException("highestTrackableValue must be positive: " + highestTrackableValue);
+        }
+        mHighestTrackableValue = highestTrackableValue;
+        mCounts = new AtomicLongArray(getBucketIndex(highestTrackableValue) + 1);
+    }
+
+    public void record(long value) {
+        if (value < 0) throw new IllegalArgumentException("value must not be negative: " + value);
+        final int index = getBucketIndex(Math.min(value, mHighestTrackableValue));
+        // Single writer, so plain increments published with lazySet are enough.
+        mCounts.lazySet(index, mCounts.get(index) + 1);
+        mTotalCount.lazySet(mTotalCount.get() + 1);
+        mTotalValue.lazySet(mTotalValue.get() + value);
+        if (value > mMaxValue.get()) mMaxValue.lazySet(value);
+    }
+
+    public void reset() {
+        for (int i = 0; i < mCounts.length(); i++) mCounts.lazySet(i, 0);
+        mTotalCount.set(0);
+        mTotalValue.set(0);
+        mMaxValue.set(0);
+    }
+
+    public long getTotalCount() {
+        return mTotalCount.get();
+    }
+
+    public long getMaxValue() {
+        return mMaxValue.get();
+    }
+
+    public double getMean() {
+        final long count = mTotalCount.get();
+        return count == 0 ? 0 : (double) mTotalValue.get() / count;
+    }
+
+    /**
+     * @param percentile In [0, 100].
+     * @return Highest value of the bucket holding the percentile, or 0 if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < mCounts.length(); i++) total += mCounts.get(i);
+        if (total == 0) return 0;
+        final long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long cumulative = 0;
+        for (int i = 0; i < mCounts.length(); i++) {
+            cumulative += mCounts.get(i);
+            if (cumulative >= target) return Math.min(getHighestValueOfBucket(i), mMaxValue.get());
+        }
+        return mMaxValue.get();
+    }
+
+    public Summary getSummary() {
+        return new Summary(this);
+    }
+
+    static int getBucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) return (int) value;
+        // value >>> shift falls in [SUB_BUCKET_HALF_COUNT, SUB_BUCKET_COUNT).
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * SUB_BUCKET_HALF_COUNT + (int) (value >>> shift);
+    }
+
+    static long getHighestValueOfBucket(int index) {
+        if (index < SUB_BUCKET_COUNT) return index;
+        final int shift = index / SUB_BUCKET_HALF_COUNT - 1;
+        final long subBucket = index - (long) shift * SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Count, mean, common percentiles and max at one point in time.
+     */
+    public static class Summary {
+        public final long count;
+        public final double mean;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        private Summary(LongHistogram histogram) {
+            count = histogram.getTotalCount();
+            mean = histogram.getMean();
+            p50 = histogram.getValueAtPercentile(50);
+            p90 = histogram.getValueAtPercentile(90);
+            p99 = histogram.getValueAtPercentile(99);
+            max = histogram.getMaxValue();
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " mean=" + Math.round(mean) + " p50=" + p50 + " p90=" + p90 + " p99=" + p99
+                    + " max=" + max;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.androidtranscoder.engine;
+
+/**
+ * Remixes any channel count by a matrix of coefficients, e.g. 5.1 or 7.1 down to stereo or mono.
+ * Coefficients are converted to fixed point with 24 fraction bits once, so mixing a buffer allocates nothing.
+ * <p>
+ * Input channels are in the order of Android's channel masks, which decoders follow:
+ * front left, front right, front center, LFE, back left, back right, side left, side right.
+ */
+public class MatrixAudioRemixer extends ArrayAudioRemixer {
+    private static final int FRACTION_BITS = 24;
+    private static final float MINUS_3_DB = 0.7071068f;
+
+    private final int[] mCoefficients;
+
+    /**
+     * @param coefficients Row per output channel, with a coefficient per input channel.
+     */
+    public MatrixAudioRemixer(float[][] coefficients) {
+        super(coefficients[0].length, coefficients.length);
+        int inputChannelCount = coefficients[0].length;
+        mCoefficients = new int[coefficients.length * inputChannelCount];
+        for (int out = 0; out < coefficients.length; out++) {
+            if (coefficients[out].length != inputChannelCount) {
+                throw new IllegalArgumentException("Every row needs " + inputChannelCount + " coefficients.");
+            }
+            for (int in = 0; in < inputChannelCount; in++) {
+                mCoefficients[out * inputChannelCount + in] = Math.round(coefficients[out][in] * (1 << FRACTION_BITS));
+            }
+        }
+    }
+
+    /**
+     * Creates a remixer with standard downmix coefficients (ITU-R BS.775): center and surround channels are mixed
+     * into both sides at -3 dB and LFE is dropped. Each row is normalized to a sum of 1, so the mix cannot clip.
+     *
+     * @throws UnsupportedOperationException for an input layout without standard coefficients, or more than 2 output channels.
+     */
+    public static MatrixAudioRemixer create(int inputChannelCount, int outputChannelCount) {
+        float[][] stereo = createStereoDownmix(inputChannelCount);
+        float[][] coefficients;
+        if (outputChannelCount == 2) {
+            coefficients = stereo;
+        } else if (outputChannelCount == 1) {
+            coefficients = new float[1][inputChannelCount];
+            for (int in = 0; in < inputChannelCount; in++) {
+                coefficients[0][in] = stereo[0][in] + stereo[1][in];
+            }
+        } else {
+            throw new UnsupportedOperationException("Output channel count (" + outputChannelCount + ") not supported.");
+        }
+        for (float[] row : coefficients) {
+            float sum = 0;
+            for (float coefficient : row) sum += coefficient;
+            for (int in = 0; in < row.length; in++) row[in] /= sum;
+        }
+        return new MatrixAudioRemixer(coefficients);
+    }
+
+    private static float[][] createStereoDownmix(int inputChannelCount) {
+        final float c = MINUS_3_DB;
+        switch (inputChannelCount) {
+            case 1:
+                return new float[][]{{1}, {1}};
+            case 2:
+                return new float[][]{{1, 0}, {0, 1}};
+            case 3: // L R C
+                return new float[][]{{1, 0, c}, {0, 1, c}};
+            case 4: // L R BL BR
+                return new float[][]{{1, 0, c, 0}, {0, 1, 0, c}};
+            case 5: // L R C BL BR
+                return new float[][]{{1, 0, c, c, 0}, {0, 1, c, 0, c}};
+            case 6: // 5.1: L R C LFE BL BR
+                return new float[][]{{1, 0, c, 0, c, 0}, {0, 1, c, 0, 0, c}};
+            case 8: // 7.1: L R C LFE BL BR SL SR
+                return new float[][]{{1, 0, c, 0, c, 0, c, 0}, {0, 1, c, 0, 0, c, 0, c}};
+            default:
+                throw new UnsupportedOperationException("Input channel count (" + inputChannelCount + ") not supported.");
+        }
+    }
+
+    @Override
+    protected void mix(short[] input, short[] output, int frameCount) {
+        final int[] coefficients = mCoefficients;
+        final int inputChannelCount = getInputChannelCount();
+        final int outputChannelCount = getOutputChannelCount();
+        final int rounding = 1 << (FRACTION_BITS - 1);
+        for (int frame = 0; frame < frameCount; frame++) {
+            final int inOffset = frame * inputChannelCount;
+            for (int out = 0; out < outputChannelCount; out++) {
+                final int row = out * inputChannelCount;
+                long sum = rounding;
+                for (int in = 0; in < inputChannelCount; in++) {
+                    sum += (long) input[inOffset + in] * coefficients[row + in];
+                }
+                final long sample = sum >> FRACTION_BITS;
+                output[frame * outputChannelCount + out] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+            }
+        }
+    }
+}
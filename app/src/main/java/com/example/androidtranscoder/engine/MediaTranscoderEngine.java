@@ -1,20 +1,34 @@
 
 package com.example.androidtranscoder.engine;
 
+import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMetadataRetriever;
-import android.media.MediaMuxer;
 import android.os.Build;
 import android.util.Log;
 
 import com.example.androidtranscoder.exception.InvalidOutputFormatException;
+import com.example.androidtranscoder.exception.UnsupportedContainerException;
 import com.example.androidtranscoder.format.MediaFormatStrategy;
+import com.example.androidtranscoder.mp4.Mp4Movie;
+import com.example.androidtranscoder.mp4.Mp4Parser;
+import com.example.androidtranscoder.mp4.Mp4Track;
+import com.example.androidtranscoder.muxer.Mp4Remuxer;
+import com.example.androidtranscoder.muxer.Muxer;
+import com.example.androidtranscoder.muxer.PlatformMuxer;
+import com.example.androidtranscoder.utils.DeviceCodecCapabilities;
 import com.example.androidtranscoder.utils.ISO6709LocationParser;
 import com.example.androidtranscoder.utils.MediaExtractorUtils;
 
 import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Internal engine, do not use this directly.
@@ -22,19 +36,56 @@ import java.io.IOException;
 public class MediaTranscoderEngine {
     private static final String TAG = "MediaTranscoderEngine";
     private static final double PROGRESS_UNKNOWN = -1.0;
+    /**
+     * Frames in flight between decoder and encoder which keep both busy on most devices, see setRenderPipelineDepth.
+     * MediaTranscoder applies it to its jobs; an engine renders one frame at a time unless set.
+     */
+    public static final int RECOMMENDED_RENDER_PIPELINE_DEPTH = 2;
     private static final long SLEEP_TO_WAIT_TRACK_TRANSCODERS = 10;
-    private static final long PROGRESS_INTERVAL_STEPS = 10;
+    // Upper bound of a wait in event-driven mode, in case progress depends on something other than a codec callback.
+    private static final long MAX_WAIT_FOR_CODEC_EVENT = 100;
+    // Progress is reported at most this often, and only when it moved by at least PROGRESS_MIN_DELTA.
+    private static final long PROGRESS_INTERVAL_MS = 100;
+    private static final long PROGRESS_INTERVAL_NANOS = PROGRESS_INTERVAL_MS * 1_000_000;
+    private static final double PROGRESS_MIN_DELTA = 0.001;
     private FileDescriptor mInputFileDescriptor;
     private TrackTranscoder mVideoTrackTranscoder;
     private TrackTranscoder mAudioTrackTranscoder;
     private MediaExtractor mExtractor;
-    private MediaMuxer mMuxer;
+    private Mp4Input mMp4Input;
+    private SampleDemuxer mDemuxer;
+    /** One muxer per output, several when transcoding renditions. */
+    private final List<Muxer> mMuxers = new ArrayList<>();
+    private final List<QueuedMuxer> mQueuedMuxers = new ArrayList<>();
+    private CodecEventDispatcher mVideoEventDispatcher;
+    private CodecEventDispatcher mAudioEventDispatcher;
+    private boolean mEventDriven;
+    private boolean mParallelTracks;
     private volatile double mProgress;
     private ProgressCallback mProgressCallback;
+    private double mReportedProgress;
+    private long mLastProgressReportNanos;
+    private double mVideoProgressWeight;
     private long mDurationUs;
+    private long mTrimStartUs;
+    private long mTrimEndUs = -1;
+    private boolean mSmartCut;
+    private int mRenderPipelineDepth;
+    private int mMaxSegments = 1;
+    private boolean mDrainAllTracks;
+    private boolean mMappedMp4Input;
+    private long mInterleaveWindowUs = QueuedMuxer.DEFAULT_INTERLEAVE_WINDOW_US;
+    private PolyphaseResampler.Quality mResamplerQuality = PolyphaseResampler.Quality.MEDIUM;
+    private EglResourceManager mEglResourceManager;
+    private CodecPool<MediaCodec> mCodecPool;
+    private CodecPool.Reservation mCodecReservation;
+    private TranscodeMetrics mMetrics;
+    private SampleRingBuffer mVideoRingBuffer;
+    private SampleRingBuffer mAudioRingBuffer;
 
     /**
      * Do not use this constructor unless you know what you are doing.
+     * An engine runs one job at a time, and can run further jobs after it returned.
      */
     public MediaTranscoderEngine() {
     }
@@ -51,6 +102,176 @@ public class MediaTranscoderEngine {
         mProgressCallback = progressCallback;
     }
 
+    public boolean isEventDriven() {
+        return mEventDriven;
+    }
+
+    /**
+     * Runs codecs asynchronously and wakes the pipeline when any codec has a buffer available,
+     * instead of sleeping a fixed interval whenever no track made progress.
+     * Must be set before {@link #transcodeVideo(String, MediaFormatStrategy)}.
+     */
+    public void setEventDriven(boolean eventDriven) {
+        mEventDriven = eventDriven;
+    }
+
+    public boolean isParallelTracks() {
+        return mParallelTracks;
+    }
+
+    /**
+     * Drives video and audio tracks on their own threads, so a slow step of one track does not stall the other.
+     * Must be set before {@link #transcodeVideo(String, MediaFormatStrategy)}.
+     */
+    public void setParallelTracks(boolean parallelTracks) {
+        mParallelTracks = parallelTracks;
+    }
+
+    public long getTrimStartUs() {
+        return mTrimStartUs;
+    }
+
+    public long getTrimEndUs() {
+        return mTrimEndUs;
+    }
+
+    /**
+     * Limits the output to a range of the input; output timestamps start at 0.
+     * Each track is decoded from the sync sample before startUs, found by a seek instead of reading every sample before it.
+     * If video is passed through, it cannot start between sync samples, so the range then starts at that sync sample.
+     * Must be set before {@link #transcodeVideo(String, MediaFormatStrategy)}.
+     *
+     * @param startUs Start of the range in the input, in micro-seconds.
+     * @param endUs   End of the range, exclusive, or negative for the end of the input.
+     */
+    public void setTrimRange(long startUs, long endUs) {
+        if (startUs < 0) throw new IllegalArgumentException("Trim start must not be negative: " + startUs);
+        if (endUs >= 0 && endUs <= startUs) {
+            throw new IllegalArgumentException("Trim end " + endUs + " must be after trim start " + startUs);
+        }
+        mTrimStartUs = startUs;
+        mTrimEndUs = endUs;
+    }
+
+    public boolean isSmartCut() {
+        return mSmartCut;
+    }
+
+    /**
+     * When trimming, copies the GOPs inside the trim range as they are and encodes only the partial GOPs at its ends.
+     * Copied GOPs keep the bitrate and parameter sets of the input, so this only applies when the output format is
+     * AVC of the input size; otherwise every frame is encoded.
+     * Must be set before {@link #transcodeVideo(String, MediaFormatStrategy)}.
+     */
+    public void setSmartCut(boolean smartCut) {
+        mSmartCut = smartCut;
+    }
+
+    public int getRenderPipelineDepth() {
+        return mRenderPipelineDepth;
+    }
+
+    /**
+     * Renders video frames with GL on a thread of their own, with up to depth frames in flight between decoder and
+     * encoder. 0, the default of the engine, renders one frame at a time on the thread of the video track;
+     * {@link #RECOMMENDED_RENDER_PIPELINE_DEPTH} is what MediaTranscoder uses. Tune it with the render
+     * stages and frames in flight of {@link TranscodeMetrics}. Must be set before
+     * {@link #transcodeVideo(String, MediaFormatStrategy)}.
+     */
+    public void setRenderPipelineDepth(int depth) {
+        if (depth < 0) throw new IllegalArgumentException("depth must not be negative: " + depth);
+        mRenderPipelineDepth = depth;
+    }
+
+    public int getMaxSegments() {
+        return mMaxSegments;
+    }
+
+    /**
+     * Splits video which needs encoding into up to maxSegments segments at sync samples and transcodes them at once,
+     * each with its own codecs, then joins them into the output. Fewer segments are used if the device cannot run
+     * that many codec sessions of the input and output size, or if segments would be shorter than 10 seconds.
+     * 1, the default, transcodes in one pass. Does not apply to renditions, nor to trims done by smart cut.
+     * Metrics are not recorded for segments. Must be set before {@link #transcodeVideo(String, MediaFormatStrategy)}.
+     */
+    public void setMaxSegments(int maxSegments) {
+        if (maxSegments < 1) throw new IllegalArgumentException("maxSegments must be positive: " + maxSegments);
+        mMaxSegments = maxSegments;
+    }
+
+    public boolean isMappedMp4Input() {
+        return mMappedMp4Input;
+    }
+
+    /**
+     * Reads MP4 input with {@link Mp4Parser} from a memory-mapped file, instead of through MediaExtractor and
+     * MediaMetadataRetriever, so samples cost no JNI calls and the input is opened once. Input which is not MP4, or
+     * has codecs other than AVC, HEVC and MPEG-4 audio, is still read with MediaExtractor. Edit lists are ignored.
+     * Must be set before {@link #transcodeVideo(String, MediaFormatStrategy)}.
+     */
+    public void setMappedMp4Input(boolean mappedMp4Input) {
+        mMappedMp4Input = mappedMp4Input;
+    }
+
+    public long getInterleaveWindowUs() {
+        return mInterleaveWindowUs;
+    }
+
+    /**
+     * Max presentation time span the muxer holds a track back to interleave it with the other track; 0 writes
+     * samples in the order they are encoded. Must be set before {@link #transcodeVideo(String, MediaFormatStrategy)}.
+     *
+     * @see QueuedMuxer#setInterleaveWindowUs(long)
+     */
+    public void setInterleaveWindowUs(long interleaveWindowUs) {
+        if (interleaveWindowUs < 0) {
+            throw new IllegalArgumentException("interleaveWindowUs must not be negative: " + interleaveWindowUs);
+        }
+        mInterleaveWindowUs = interleaveWindowUs;
+    }
+
+    public PolyphaseResampler.Quality getResamplerQuality() {
+        return mResamplerQuality;
+    }
+
+    /**
+     * Quality of audio sample rate conversion, when the strategy sets another sample rate than the input's.
+     * Higher quality costs more CPU. Must be set before {@link #transcodeVideo(String, MediaFormatStrategy)}.
+     */
+    public void setResamplerQuality(PolyphaseResampler.Quality quality) {
+        if (quality == null) throw new NullPointerException("quality");
+        mResamplerQuality = quality;
+    }
+
+    /**
+     * Shares EGL and GL resources with other engines, e.g. of later jobs. Without it, each job creates its own.
+     * Must be set before {@link #transcodeVideo(String, MediaFormatStrategy)}.
+     */
+    public void setEglResourceManager(EglResourceManager eglResourceManager) {
+        mEglResourceManager = eglResourceManager;
+    }
+
+    /**
+     * Takes codecs from the pool instead of creating them for each job. Without it, codecs are created and released
+     * per job. Must be set before {@link #transcodeVideo(String, MediaFormatStrategy)}.
+     */
+    public void setCodecPool(CodecPool<MediaCodec> codecPool) {
+        mCodecPool = codecPool;
+    }
+
+    public TranscodeMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Records stage latencies, throughput and queue depths of the next job into metrics, which can be read while the
+     * job runs. Null, the default, records nothing. Must be set before
+     * {@link #transcodeVideo(String, MediaFormatStrategy)}.
+     */
+    public void setMetrics(TranscodeMetrics metrics) {
+        mMetrics = metrics;
+    }
+
     /**
      * NOTE: This method is thread safe.
      */
@@ -61,6 +282,7 @@ public class MediaTranscoderEngine {
     /**
      * Run video transcoding. Blocks current thread.
      * Audio data will not be transcoded; original stream will be wrote to output file.
+     * If formatStrategy keeps both tracks unchanged and the input is MP4, samples are copied without decoding.
      *
      * @param outputPath     File path to output transcoded video file.
      * @param formatStrategy Output format strategy.
@@ -72,19 +294,169 @@ public class MediaTranscoderEngine {
         if (outputPath == null) {
             throw new NullPointerException("Output path cannot be null.");
         }
+        transcodeVideo(Collections.singletonList(() -> new PlatformMuxer(outputPath)), outputPath, formatStrategy);
+    }
+
+    /**
+     * Run video transcoding into a muxer of the caller's choice, e.g. {@link com.example.androidtranscoder.muxer.FragmentedMp4Muxer}.
+     * Blocks current thread.
+     *
+     * @param muxerFactory   Creates the output muxer. The engine releases it when done.
+     * @param formatStrategy Output format strategy.
+     * @throws IOException                  when input or output file could not be opened.
+     * @throws InvalidOutputFormatException when output format is not supported.
+     * @throws InterruptedException         when cancel to transcode.
+     */
+    public void transcodeVideo(Muxer.Factory muxerFactory, MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
+        transcodeVideo(Collections.singletonList(muxerFactory), null, formatStrategy);
+    }
+
+    /**
+     * Run video transcoding into several renditions, e.g. the steps of an ABR ladder, decoding the input once.
+     * Video is encoded once per rendition in the formats of {@link MediaFormatStrategy#createVideoOutputFormats(MediaFormat)};
+     * audio is transcoded once and written to every output. Smart cut and direct rendering do not apply.
+     * The job takes a decoder, an encoder per rendition and the audio codecs from the codec pool at once, see
+     * {@link CodecPool#reserve(int)}. Blocks current thread.
+     *
+     * @param muxerFactories Creates the muxer of each rendition, in the order of the strategy's video formats.
+     *                       The engine releases them when done.
+     * @param formatStrategy Output format strategy, which must return a video format for each muxer.
+     * @throws IOException                  when input or output file could not be opened.
+     * @throws InvalidOutputFormatException when output format is not supported, or the renditions need more codecs
+     *                                      than the codec pool holds.
+     * @throws InterruptedException         when cancel to transcode.
+     */
+    public void transcodeVideoRenditions(List<Muxer.Factory> muxerFactories, MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
+        if (muxerFactories.isEmpty()) throw new IllegalArgumentException("No output to transcode into.");
+        transcodeVideo(muxerFactories, null, formatStrategy);
+    }
+
+    /**
+     * @param remuxOutputPath Output path for the remux fast path when no track needs transcoding, or null to always
+     *                        go through muxerFactories.
+     */
+    private void transcodeVideo(List<Muxer.Factory> muxerFactories, String remuxOutputPath, MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
         if (mInputFileDescriptor == null) {
             throw new IllegalStateException("Data source is not set.");
         }
+        // State of the previous job, if this engine is reused.
+        mProgress = 0;
+        mDurationUs = 0;
+        mReportedProgress = 0;
+        mLastProgressReportNanos = System.nanoTime();
+        mVideoProgressWeight = 0.5;
+        if (mMetrics != null) mMetrics.start();
         try {
-            // NOTE: use single extractor to keep from running out audio track fast.
-            mExtractor = new MediaExtractor();
-            mExtractor.setDataSource(mInputFileDescriptor);
-            mMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if (mMappedMp4Input) mMp4Input = Mp4Input.open(mInputFileDescriptor);
+            final MediaExtractorUtils.TrackResult trackResult;
+            if (mMp4Input != null) {
+                trackResult = mMp4Input.getTrackResult();
+            } else {
+                // NOTE: use single extractor to keep from running out audio track fast.
+                mExtractor = new MediaExtractor();
+                mExtractor.setDataSource(mInputFileDescriptor);
+                trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(mExtractor);
+            }
+            final boolean multiRendition = muxerFactories.size() > 1;
+            List<MediaFormat> videoOutputFormats;
+            if (multiRendition) {
+                videoOutputFormats = formatStrategy.createVideoOutputFormats(trackResult.mVideoTrackFormat);
+                if (videoOutputFormats.size() != muxerFactories.size() || videoOutputFormats.contains(null)) {
+                    throw new InvalidOutputFormatException("Need a video format for each of " + muxerFactories.size()
+                            + " renditions, got " + videoOutputFormats);
+                }
+            } else {
+                videoOutputFormats = Collections.singletonList(
+                        formatStrategy.createVideoOutputFormat(trackResult.mVideoTrackFormat));
+            }
+            MediaFormat videoOutputFormat = videoOutputFormats.get(0);
+            MediaFormat audioOutputFormat = formatStrategy.createAudioOutputFormat(trackResult.mAudioTrackFormat);
+            if (videoOutputFormat == null && audioOutputFormat == null && remuxOutputPath != null
+                    && remux(remuxOutputPath)) {
+                return;
+            }
+            final int codecCount = countCodecs(videoOutputFormats, audioOutputFormat);
+            if (mCodecPool != null && codecCount > mCodecPool.getMaxLiveCodecs()) {
+                throw new InvalidOutputFormatException(videoOutputFormats.size() + " renditions need " + codecCount
+                        + " codecs, more than the codec pool holds: " + mCodecPool.getMaxLiveCodecs());
+            }
+            final boolean trimming = mTrimStartUs > 0 || mTrimEndUs >= 0;
+            long[] segmentBoundaries = null;
+            if (mMaxSegments > 1 && !multiRendition && videoOutputFormat != null && !(mSmartCut && trimming)) {
+                segmentBoundaries = findSegmentBoundaries(trackResult, videoOutputFormat, codecCount);
+            }
+            for (Muxer.Factory muxerFactory : muxerFactories) mMuxers.add(muxerFactory.create());
+            if (segmentBoundaries != null) {
+                // Segments read the input through extractors of their own.
+                if (mExtractor != null) {
+                    mExtractor.release();
+                    mExtractor = null;
+                }
+                setupMetadata();
+                new SegmentedTranscoder(this, mInputFileDescriptor, segmentBoundaries, mTrimEndUs < 0, formatStrategy)
+                        .transcode(mMuxers.get(0), this::reportProgress);
+                return;
+            }
+            mVideoEventDispatcher = new CodecEventDispatcher(mEventDriven);
+            // Each worker thread waits on its own dispatcher, so events of one track do not wake the other.
+            mAudioEventDispatcher = mParallelTracks ? new CodecEventDispatcher(mEventDriven) : mVideoEventDispatcher;
             setupMetadata();
-            setupTrackTranscoders(formatStrategy);
-            runPipelines();
-            mMuxer.stop();
+            long trimStartUs = mTrimStartUs;
+            if (videoOutputFormat == null && trimStartUs > 0) {
+                trimStartUs = findPreviousSyncSampleTime(trackResult.mVideoTrackIndex, trimStartUs);
+            }
+            long trimEndUs = mTrimEndUs < 0 ? Long.MAX_VALUE : mTrimEndUs;
+            if (mDurationUs > 0) mDurationUs = Math.min(mDurationUs, trimEndUs) - trimStartUs;
+            long[] streamCopyRange = null;
+            if (mSmartCut && !multiRendition && videoOutputFormat != null
+                    && (trimStartUs > 0 || trimEndUs != Long.MAX_VALUE)) {
+                streamCopyRange = findStreamCopyRange(trackResult, videoOutputFormat, trimStartUs, trimEndUs);
+            }
+            boolean directRendering = !multiRendition && videoOutputFormat != null
+                    && formatStrategy.canRenderDirectly(trackResult.mVideoTrackFormat, videoOutputFormat);
+            if (mCodecPool != null) {
+                // All codecs of the job at once, so it never waits for a codec while holding others.
+                mCodecReservation = mCodecPool.reserve(codecCount);
+            }
+            setupTrackTranscoders(trackResult, videoOutputFormats, audioOutputFormat, directRendering,
+                    trimStartUs, trimEndUs);
+            mVideoProgressWeight = getVideoProgressWeight(trackResult, videoOutputFormats, audioOutputFormat);
+            if (streamCopyRange != null) {
+                ((VideoTrackTranscoder) mVideoTrackTranscoder).setStreamCopyRange(streamCopyRange[0], streamCopyRange[1]);
+            }
+            if (!mParallelTracks) {
+                // In parallel mode, each TrackWorker sets up its transcoder on its own thread.
+                mVideoTrackTranscoder.setup();
+                mAudioTrackTranscoder.setup();
+            }
+            if (mDemuxer != null) {
+                if (trimStartUs > 0) mExtractor.seekTo(trimStartUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                mDemuxer.start();
+            }
+            if (mParallelTracks) {
+                runPipelinesInParallel();
+            } else {
+                runPipelines();
+            }
+            for (QueuedMuxer queuedMuxer : mQueuedMuxers) {
+                queuedMuxer.flush();
+                if (mMetrics != null) {
+                    for (QueuedMuxer.SampleType sampleType : QueuedMuxer.SampleType.values()) {
+                        mMetrics.recordMaxMuxerQueueBytes(sampleType, queuedMuxer.getMaxBufferedBytes(sampleType));
+                    }
+                }
+            }
+            if (mEglResourceManager != null) Log.d(TAG, "GL resources: " + mEglResourceManager.getStats());
+            for (Muxer muxer : mMuxers) muxer.stop();
+            if (mMetrics != null) {
+                mMetrics.stop();
+                Log.d(TAG, "Metrics: " + mMetrics.snapshot());
+            }
         } finally {
+            if (mMetrics != null) mMetrics.stop();
+            mVideoRingBuffer = null;
+            mAudioRingBuffer = null;
+            mMp4Input = null;
             try {
                 if (mVideoTrackTranscoder != null) {
                     mVideoTrackTranscoder.release();
@@ -94,109 +466,452 @@ public class MediaTranscoderEngine {
                     mAudioTrackTranscoder.release();
                     mAudioTrackTranscoder = null;
                 }
+                if (mCodecReservation != null) {
+                    mCodecReservation.close();
+                    mCodecReservation = null;
+                }
+                if (mDemuxer != null) {
+                    mDemuxer.release();
+                    mDemuxer = null;
+                }
                 if (mExtractor != null) {
                     mExtractor.release();
                     mExtractor = null;
                 }
+                if (mVideoEventDispatcher != null) {
+                    mVideoEventDispatcher.release();
+                    mVideoEventDispatcher = null;
+                }
+                if (mAudioEventDispatcher != null) {
+                    mAudioEventDispatcher.release();
+                    mAudioEventDispatcher = null;
+                }
             } catch (RuntimeException e) {
                 // Too fatal to make alive the app, because it may leak native resources.
                 //noinspection ThrowFromFinallyBlock
                 throw new Error("Could not shutdown extractor, codecs and muxer pipeline.", e);
             }
             try {
-                if (mMuxer != null) {
-                    mMuxer.release();
-                    mMuxer = null;
-                }
+                for (QueuedMuxer queuedMuxer : mQueuedMuxers) queuedMuxer.release();
             } catch (RuntimeException e) {
                 Log.e(TAG, "Failed to release muxer.", e);
             }
+            for (Muxer muxer : mMuxers) {
+                try {
+                    muxer.release();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to release muxer.", e);
+                }
+            }
+            mQueuedMuxers.clear();
+            mMuxers.clear();
         }
     }
 
     private void setupMetadata() throws IOException {
         // cái này chỉ set orientation và location
-        MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-        mediaMetadataRetriever.setDataSource(mInputFileDescriptor);
+        final String rotationString;
+        final String locationString;
+        final String durationString;
+        if (mMp4Input != null) {
+            // Read with the sample tables, so the input is not opened again.
+            rotationString = String.valueOf(mMp4Input.getRotation());
+            locationString = mMp4Input.getLocation();
+            durationString = String.valueOf(mMp4Input.getDurationUs() / 1000);
+        } else {
+            MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+            mediaMetadataRetriever.setDataSource(mInputFileDescriptor);
+            rotationString = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
+            locationString = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                    ? mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_LOCATION) : null;
+            durationString = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+        }
 
-        String rotationString = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION);
         try {
-            mMuxer.setOrientationHint(Integer.parseInt(rotationString));
+            int rotation = Integer.parseInt(rotationString);
+            for (Muxer muxer : mMuxers) muxer.setOrientationHint(rotation);
         } catch (NumberFormatException e) {
             // skip
         }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            String locationString = mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_LOCATION);
-            if (locationString != null) {
-                float[] location = new ISO6709LocationParser().parse(locationString);
-                if (location != null) {
-                    mMuxer.setLocation(location[0], location[1]);
-                } else {
-                    Log.d(TAG, "Failed to parse the location metadata: " + locationString);
-                }
+        if (locationString != null) {
+            float[] location = new ISO6709LocationParser().parse(locationString);
+            if (location != null) {
+                for (Muxer muxer : mMuxers) muxer.setLocation(location[0], location[1]);
+            } else {
+                Log.d(TAG, "Failed to parse the location metadata: " + locationString);
             }
         }
 
         try {
-            mDurationUs = Long.parseLong(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)) * 1000;
+            mDurationUs = Long.parseLong(durationString) * 1000;
         } catch (NumberFormatException e) {
             mDurationUs = -1;
         }
         Log.d(TAG, "Duration (us): " + mDurationUs);
     }
 
-    private void setupTrackTranscoders(MediaFormatStrategy formatStrategy) {
-        MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(mExtractor);
-        MediaFormat videoOutputFormat = formatStrategy.createVideoOutputFormat(trackResult.mVideoTrackFormat);
-        MediaFormat audioOutputFormat = formatStrategy.createAudioOutputFormat(trackResult.mAudioTrackFormat);
-        if (videoOutputFormat == null && audioOutputFormat == null) {
-            throw new InvalidOutputFormatException("MediaFormatStrategy returned pass-through for both video and audio. No transcoding is necessary.");
+    /**
+     * Copies the input into outputPath without decoding, see {@link Mp4Remuxer}.
+     *
+     * @return false if the input is not an MP4 file the remuxer can read; nothing has been written then.
+     */
+    private boolean remux(String outputPath) throws IOException, InterruptedException {
+        // Not closed: closing would close the caller's file descriptor.
+        FileChannel input = new FileInputStream(mInputFileDescriptor).getChannel();
+        Mp4Movie movie;
+        try {
+            movie = Mp4Parser.parse(input);
+        } catch (UnsupportedContainerException | IndexOutOfBoundsException e) {
+            Log.d(TAG, "Cannot remux input, falling back to pass-through pipeline: " + e.getMessage());
+            return false;
+        }
+        List<Mp4Track> tracks = new ArrayList<>();
+        Mp4Track videoTrack = movie.getFirstTrack(Mp4Track.HANDLER_VIDEO);
+        Mp4Track audioTrack = movie.getFirstTrack(Mp4Track.HANDLER_AUDIO);
+        if (videoTrack != null) tracks.add(videoTrack);
+        if (audioTrack != null) tracks.add(audioTrack);
+        if (tracks.isEmpty()) return false;
+
+        Log.d(TAG, "No track needs transcoding, remuxing.");
+        Mp4Remuxer remuxer = new Mp4Remuxer(input, movie, tracks);
+        remuxer.setProgressCallback(this::reportProgress);
+        try (FileChannel output = new FileOutputStream(outputPath).getChannel()) {
+            remuxer.remux(output, mTrimStartUs, mTrimEndUs);
+        }
+        return true;
+    }
+
+    /**
+     * @return Presentation time of the last sync sample of the track at or before timeUs, or timeUs if there is none.
+     */
+    private long findPreviousSyncSampleTime(int trackIndex, long timeUs) {
+        if (mMp4Input != null) {
+            long syncSampleTimeUs = mMp4Input.findSyncSampleTime(trackIndex, timeUs, true);
+            return syncSampleTimeUs < 0 ? timeUs : Math.min(syncSampleTimeUs, timeUs);
+        }
+        mExtractor.selectTrack(trackIndex);
+        mExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        long syncSampleTimeUs = mExtractor.getSampleTime();
+        mExtractor.unselectTrack(trackIndex);
+        return syncSampleTimeUs < 0 ? timeUs : Math.min(syncSampleTimeUs, timeUs);
+    }
+
+    /**
+     * @return Presentation times of the first and last sync sample of the video inside the trim range, between which GOPs
+     * can be copied, or null if smart cut does not apply.
+     */
+    private long[] findStreamCopyRange(MediaExtractorUtils.TrackResult trackResult, MediaFormat videoOutputFormat,
+                                       long trimStartUs, long trimEndUs) {
+        if (!VideoTrackTranscoder.canStreamCopy(trackResult.mVideoTrackFormat, videoOutputFormat)) {
+            Log.d(TAG, "Smart cut needs AVC output of the input size, encoding every frame.");
+            return null;
+        }
+        long copyStartUs;
+        long copyEndUs = Long.MAX_VALUE;
+        if (mMp4Input != null) {
+            copyStartUs = mMp4Input.findSyncSampleTime(trackResult.mVideoTrackIndex, trimStartUs, false);
+            if (trimEndUs != Long.MAX_VALUE) {
+                copyEndUs = mMp4Input.findSyncSampleTime(trackResult.mVideoTrackIndex, trimEndUs, true);
+            }
+        } else {
+            mExtractor.selectTrack(trackResult.mVideoTrackIndex);
+            mExtractor.seekTo(trimStartUs, MediaExtractor.SEEK_TO_NEXT_SYNC);
+            copyStartUs = mExtractor.getSampleTime();
+            if (trimEndUs != Long.MAX_VALUE) {
+                mExtractor.seekTo(trimEndUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                copyEndUs = mExtractor.getSampleTime();
+            }
+            mExtractor.unselectTrack(trackResult.mVideoTrackIndex);
+        }
+        if (copyStartUs < 0 || copyEndUs <= copyStartUs || copyEndUs > trimEndUs) {
+            Log.d(TAG, "No whole GOP in trim range, encoding every frame.");
+            return null;
+        }
+        Log.d(TAG, "Smart cut: copying video from " + copyStartUs + " us to " + copyEndUs + " us.");
+        return new long[]{copyStartUs, copyEndUs};
+    }
+
+    /**
+     * @param codecCount Codecs each segment takes.
+     * @return Start of each segment followed by the end of the last, or null if the range is not worth splitting.
+     */
+    private long[] findSegmentBoundaries(MediaExtractorUtils.TrackResult trackResult, MediaFormat videoOutputFormat,
+                                         int codecCount) {
+        MediaFormat inputFormat = trackResult.mVideoTrackFormat;
+        long endUs = mTrimEndUs;
+        if (endUs < 0) {
+            if (!inputFormat.containsKey(MediaFormat.KEY_DURATION)) return null;
+            endUs = inputFormat.getLong(MediaFormat.KEY_DURATION);
+        }
+        // Each segment runs a decoder of the input size and an encoder of the output size.
+        final int frameRate = videoOutputFormat.getInteger(MediaFormat.KEY_FRAME_RATE, 30);
+        final DeviceCodecCapabilities capabilities = DeviceCodecCapabilities.getInstance();
+        final int decoders = capabilities.getMaxConcurrentSessions(trackResult.mVideoTrackMime, false,
+                inputFormat.getInteger(MediaFormat.KEY_WIDTH), inputFormat.getInteger(MediaFormat.KEY_HEIGHT), frameRate);
+        final int encoders = capabilities.getMaxConcurrentSessions(videoOutputFormat.getString(MediaFormat.KEY_MIME), true,
+                videoOutputFormat.getInteger(MediaFormat.KEY_WIDTH), videoOutputFormat.getInteger(MediaFormat.KEY_HEIGHT), frameRate);
+        int maxSegments = Math.min(mMaxSegments, Math.min(decoders, encoders));
+        // Each segment reserves its codecs from the pool, so segments beyond what other jobs leave free would only wait.
+        int pooledSegments = -1;
+        if (mCodecPool != null) {
+            pooledSegments = (mCodecPool.getMaxLiveCodecs() - mCodecPool.getReservedCount()) / codecCount;
+            maxSegments = Math.min(maxSegments, pooledSegments);
+        }
+        Log.d(TAG, "Max segments: " + maxSegments + " (requested: " + mMaxSegments + ", decoders: " + decoders
+                + ", encoders: " + encoders + ", codec pool: " + pooledSegments + ")");
+        if (maxSegments < 2) return null;
+        long[] boundaries = SegmentedTranscoder.planSegmentBoundaries(mTrimStartUs, endUs, maxSegments,
+                SegmentedTranscoder.MIN_SEGMENT_DURATION_US,
+                timeUs -> findPreviousSyncSampleTime(trackResult.mVideoTrackIndex, timeUs));
+        return boundaries.length > 2 ? boundaries : null;
+    }
+
+    /**
+     * @return Engine for one segment of a segmented job, with the settings of this engine.
+     */
+    MediaTranscoderEngine createSegmentEngine(long startUs, long endUs) {
+        MediaTranscoderEngine engine = new MediaTranscoderEngine();
+        engine.setEventDriven(mEventDriven);
+        engine.setParallelTracks(mParallelTracks);
+        engine.setTrimRange(startUs, endUs);
+        engine.setRenderPipelineDepth(mRenderPipelineDepth);
+        engine.setResamplerQuality(mResamplerQuality);
+        engine.setEglResourceManager(mEglResourceManager);
+        engine.setCodecPool(mCodecPool);
+        engine.setMappedMp4Input(mMappedMp4Input);
+        engine.setInterleaveWindowUs(mInterleaveWindowUs);
+        engine.mDrainAllTracks = true;
+        return engine;
+    }
+
+    /**
+     * @return Codecs the track transcoders take: a decoder and an encoder per transcoded track, and for several
+     * renditions one video decoder and an encoder per rendition.
+     */
+    private static int countCodecs(List<MediaFormat> videoOutputFormats, MediaFormat audioOutputFormat) {
+        final int videoCodecs = videoOutputFormats.get(0) != null ? 1 + videoOutputFormats.size() : 0;
+        return videoCodecs + (audioOutputFormat != null ? 2 : 0);
+    }
+
+    /**
+     * @param videoOutputFormats One format per muxer; a single null for video passthrough.
+     */
+    private void setupTrackTranscoders(MediaExtractorUtils.TrackResult trackResult, List<MediaFormat> videoOutputFormats, MediaFormat audioOutputFormat,
+                                       boolean directRendering, long trimStartUs, long trimEndUs) {
+        for (int i = 0; i < mMuxers.size(); i++) {
+            final int rendition = i;
+            QueuedMuxer queuedMuxer = new QueuedMuxer(mMuxers.get(i), () -> {
+                MediaFormatValidator.validateVideoOutputFormat(getDeterminedVideoFormat(rendition));
+                MediaFormatValidator.validateAudioOutputFormat(mAudioTrackTranscoder.getDeterminedFormat());
+            });
+            queuedMuxer.setInterleaveWindowUs(mInterleaveWindowUs);
+            mQueuedMuxers.add(queuedMuxer);
+        }
+        QueuedMuxer queuedMuxer = mQueuedMuxers.get(0);
+        // Audio is transcoded once for all renditions.
+        SampleSink audioSink = mQueuedMuxers.size() == 1 ? queuedMuxer : new SampleSinkGroup(mQueuedMuxers);
+        MediaFormat videoOutputFormat = videoOutputFormats.get(0);
+
+        final SampleSource videoSampleSource;
+        final SampleSource audioSampleSource;
+        if (mMp4Input != null) {
+            // Each track reads the mapped file at its own position, so there is nothing to read ahead.
+            videoSampleSource = mMp4Input.createSampleSource(trackResult.mVideoTrackIndex, trimStartUs, trimEndUs);
+            audioSampleSource = mMp4Input.createSampleSource(trackResult.mAudioTrackIndex, trimStartUs, trimEndUs);
+        } else {
+            // Samples are read ahead on the demuxer thread, so no track waits for the extractor to pass samples of another.
+            mDemuxer = new SampleDemuxer(mExtractor, trimEndUs);
+            videoSampleSource = mDemuxer.addTrack(trackResult.mVideoTrackIndex,
+                    SampleDemuxer.VIDEO_QUEUE_CAPACITY, mVideoEventDispatcher::signal);
+            audioSampleSource = mDemuxer.addTrack(trackResult.mAudioTrackIndex,
+                    SampleDemuxer.AUDIO_QUEUE_CAPACITY, mAudioEventDispatcher::signal);
+            mVideoRingBuffer = mDemuxer.getRingBuffer(trackResult.mVideoTrackIndex);
+            mAudioRingBuffer = mDemuxer.getRingBuffer(trackResult.mAudioTrackIndex);
         }
-        QueuedMuxer queuedMuxer = new QueuedMuxer(mMuxer, () -> {
-            MediaFormatValidator.validateVideoOutputFormat(mVideoTrackTranscoder.getDeterminedFormat());
-            MediaFormatValidator.validateAudioOutputFormat(mAudioTrackTranscoder.getDeterminedFormat());
-        });
 
-        if (videoOutputFormat == null) {
-            mVideoTrackTranscoder = new PassThroughTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, queuedMuxer, QueuedMuxer.SampleType.VIDEO);
+        if (videoOutputFormats.size() > 1) {
+            MultiVideoTrackTranscoder multiVideoTrackTranscoder = new MultiVideoTrackTranscoder(videoSampleSource, trackResult.mVideoTrackFormat, videoOutputFormats, mQueuedMuxers, mVideoEventDispatcher,
+                    trimStartUs, trimEndUs);
+            multiVideoTrackTranscoder.setEglResourceManager(mEglResourceManager);
+            multiVideoTrackTranscoder.setCodecPool(mCodecPool);
+            multiVideoTrackTranscoder.setMetrics(mMetrics);
+            mVideoTrackTranscoder = multiVideoTrackTranscoder;
+        } else if (videoOutputFormat == null) {
+            PassThroughTrackTranscoder passThroughTrackTranscoder = new PassThroughTrackTranscoder(videoSampleSource, trackResult.mVideoTrackFormat, queuedMuxer, QueuedMuxer.SampleType.VIDEO,
+                    trimStartUs, trimEndUs);
+            passThroughTrackTranscoder.setMetrics(mMetrics);
+            mVideoTrackTranscoder = passThroughTrackTranscoder;
         } else {
-            mVideoTrackTranscoder = new VideoTrackTranscoder(mExtractor, trackResult.mVideoTrackIndex, videoOutputFormat, queuedMuxer);
+            VideoTrackTranscoder videoTrackTranscoder = new VideoTrackTranscoder(videoSampleSource, trackResult.mVideoTrackFormat, videoOutputFormat, queuedMuxer, mVideoEventDispatcher,
+                    trimStartUs, trimEndUs);
+            videoTrackTranscoder.setDirectRendering(directRendering);
+            videoTrackTranscoder.setRenderPipelineDepth(mRenderPipelineDepth);
+            videoTrackTranscoder.setEglResourceManager(mEglResourceManager);
+            videoTrackTranscoder.setCodecPool(mCodecPool);
+            videoTrackTranscoder.setMetrics(mMetrics);
+            mVideoTrackTranscoder = videoTrackTranscoder;
         }
-        mVideoTrackTranscoder.setup();
         if (audioOutputFormat == null) {
-            mAudioTrackTranscoder = new PassThroughTrackTranscoder(mExtractor, trackResult.mAudioTrackIndex, queuedMuxer, QueuedMuxer.SampleType.AUDIO);
+            PassThroughTrackTranscoder passThroughTrackTranscoder = new PassThroughTrackTranscoder(audioSampleSource, trackResult.mAudioTrackFormat, audioSink, QueuedMuxer.SampleType.AUDIO,
+                    trimStartUs, trimEndUs);
+            passThroughTrackTranscoder.setMetrics(mMetrics);
+            mAudioTrackTranscoder = passThroughTrackTranscoder;
         } else {
-            mAudioTrackTranscoder = new AudioTrackTranscoder(mExtractor, trackResult.mAudioTrackIndex, audioOutputFormat, queuedMuxer);
+            AudioTrackTranscoder audioTrackTranscoder = new AudioTrackTranscoder(audioSampleSource, trackResult.mAudioTrackFormat, audioOutputFormat, audioSink, mAudioEventDispatcher,
+                    trimStartUs, trimEndUs);
+            audioTrackTranscoder.setResamplerQuality(mResamplerQuality);
+            audioTrackTranscoder.setCodecPool(mCodecPool);
+            audioTrackTranscoder.setMetrics(mMetrics);
+            mAudioTrackTranscoder = audioTrackTranscoder;
         }
-        mAudioTrackTranscoder.setup();
     }
 
 
-    private void runPipelines() throws InterruptedException {
-        long loopCount = 0;
-        if (mDurationUs <= 0) {
-            double progress = PROGRESS_UNKNOWN;
-            mProgress = progress;
-            if (mProgressCallback != null) mProgressCallback.onProgress(progress); // unknown
+    private MediaFormat getDeterminedVideoFormat(int rendition) {
+        if (mVideoTrackTranscoder instanceof MultiVideoTrackTranscoder) {
+            return ((MultiVideoTrackTranscoder) mVideoTrackTranscoder).getDeterminedFormat(rendition);
         }
-        while (!(mVideoTrackTranscoder.isFinished() || mAudioTrackTranscoder.isFinished())) {
+        return mVideoTrackTranscoder.getDeterminedFormat();
+    }
+
+    private void runPipelines() throws InterruptedException {
+        long nextProgressNanos = System.nanoTime() + PROGRESS_INTERVAL_NANOS;
+        if (mDurationUs <= 0) reportProgress(PROGRESS_UNKNOWN);
+        while (!isPipelineDone(mVideoTrackTranscoder.isFinished(), mAudioTrackTranscoder.isFinished())) {
+            // Busy loops never reach sleep(), so check for cancel or preemption explicitly.
+            if (Thread.interrupted()) throw new InterruptedException();
             boolean stepped = mVideoTrackTranscoder.stepPipeline()
                     || mAudioTrackTranscoder.stepPipeline();
-            loopCount++;
-            if (mDurationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0) {
-                double videoProgress = mVideoTrackTranscoder.isFinished() ? 1.0 : Math.min(1.0, (double) mVideoTrackTranscoder.getWrittenPresentationTimeUs() / mDurationUs);
-                double audioProgress = mAudioTrackTranscoder.isFinished() ? 1.0 : Math.min(1.0, (double) mAudioTrackTranscoder.getWrittenPresentationTimeUs() / mDurationUs);
-                double progress = (videoProgress + audioProgress) / 2.0;
-                mProgress = progress;
-                if (mProgressCallback != null) mProgressCallback.onProgress(progress);
+            // By time rather than by steps, so slow steps do not make progress sparse and fast ones do not flood it.
+            final long nowNanos = System.nanoTime();
+            if (nowNanos - nextProgressNanos >= 0) {
+                nextProgressNanos = nowNanos + PROGRESS_INTERVAL_NANOS;
+                if (mDurationUs > 0) updateProgress(mVideoTrackTranscoder.isFinished(), mAudioTrackTranscoder.isFinished());
+                recordQueueDepths();
             }
             if (!stepped) {
-                Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
+                final long waitStartNanos = mMetrics != null ? System.nanoTime() : 0;
+                mVideoEventDispatcher.awaitEvent(getIdleWaitMs());
+                if (mMetrics != null) mMetrics.recordIdleWait(System.nanoTime() - waitStartNanos);
             }
         }
     }
 
+    private void runPipelinesInParallel() throws InterruptedException {
+        if (mDurationUs <= 0) reportProgress(PROGRESS_UNKNOWN);
+        PipelineSignal doneSignal = new PipelineSignal();
+        TrackWorker videoWorker = new TrackWorker("MediaTranscoder-Video", mVideoTrackTranscoder,
+                mVideoEventDispatcher, getIdleWaitMs(), doneSignal, mMetrics);
+        TrackWorker audioWorker = new TrackWorker("MediaTranscoder-Audio", mAudioTrackTranscoder,
+                mAudioEventDispatcher, getIdleWaitMs(), doneSignal, mMetrics);
+        videoWorker.start();
+        audioWorker.start();
+        try {
+            // Same end condition as runPipelines(), but a failed worker ends the job at once.
+            while (!isPipelineDone(videoWorker.isDone(), audioWorker.isDone())
+                    && videoWorker.getError() == null && audioWorker.getError() == null) {
+                doneSignal.await(PROGRESS_INTERVAL_MS);
+                if (mDurationUs > 0) updateProgress(videoWorker.isFinished(), audioWorker.isFinished());
+                recordQueueDepths();
+            }
+        } finally {
+            videoWorker.stop();
+            audioWorker.stop();
+            videoWorker.join();
+            audioWorker.join();
+        }
+        if (videoWorker.getError() != null) throw videoWorker.getError();
+        if (audioWorker.getError() != null) throw audioWorker.getError();
+        if (!isPipelineDone(videoWorker.isFinished(), audioWorker.isFinished())) {
+            throw new IllegalStateException("Track workers exited before finishing.");
+        }
+    }
+
+    /**
+     * Jobs stop when either track has finished, as the baseline did; segments run both tracks to the segment end,
+     * or audio would be cut short at every boundary.
+     */
+    private boolean isPipelineDone(boolean videoDone, boolean audioDone) {
+        return mDrainAllTracks ? videoDone && audioDone : videoDone || audioDone;
+    }
+
+    private void recordQueueDepths() {
+        if (mMetrics == null) return;
+        // Mapped MP4 input has no read-ahead queues.
+        mMetrics.recordQueueDepths(QueuedMuxer.SampleType.VIDEO,
+                mVideoRingBuffer != null ? mVideoRingBuffer.getQueuedSampleCount() : 0,
+                getBufferedBytes(QueuedMuxer.SampleType.VIDEO));
+        mMetrics.recordQueueDepths(QueuedMuxer.SampleType.AUDIO,
+                mAudioRingBuffer != null ? mAudioRingBuffer.getQueuedSampleCount() : 0,
+                getBufferedBytes(QueuedMuxer.SampleType.AUDIO));
+    }
+
+    /**
+     * @return Bytes held back for interleaving on the track, over all outputs.
+     */
+    private long getBufferedBytes(QueuedMuxer.SampleType sampleType) {
+        long bytes = 0;
+        for (QueuedMuxer queuedMuxer : mQueuedMuxers) bytes += queuedMuxer.getBufferedBytes(sampleType);
+        return bytes;
+    }
+
+    private long getIdleWaitMs() {
+        return mEventDriven ? MAX_WAIT_FOR_CODEC_EVENT : SLEEP_TO_WAIT_TRACK_TRANSCODERS;
+    }
+
+    private void updateProgress(boolean videoFinished, boolean audioFinished) {
+        double videoProgress = videoFinished ? 1.0 : Math.min(1.0, (double) mVideoTrackTranscoder.getWrittenPresentationTimeUs() / mDurationUs);
+        double audioProgress = audioFinished ? 1.0 : Math.min(1.0, (double) mAudioTrackTranscoder.getWrittenPresentationTimeUs() / mDurationUs);
+        reportProgress(videoProgress * mVideoProgressWeight + audioProgress * (1.0 - mVideoProgressWeight));
+    }
+
+    /**
+     * Updates {@link #getProgress()}, and notifies the callback if the interval has passed and the progress moved
+     * enough to be visible. Unknown and complete progress are always notified.
+     */
+    private void reportProgress(double progress) {
+        mProgress = progress;
+        if (mProgressCallback == null || progress == mReportedProgress) return;
+        final long nowNanos = System.nanoTime();
+        if (progress >= 0 && progress < 1.0 && (nowNanos - mLastProgressReportNanos < PROGRESS_INTERVAL_NANOS
+                || Math.abs(progress - mReportedProgress) < PROGRESS_MIN_DELTA)) {
+            return;
+        }
+        mReportedProgress = progress;
+        mLastProgressReportNanos = nowNanos;
+        mProgressCallback.onProgress(progress);
+    }
+
+    /**
+     * Share of the video track in overall progress. Tracks are weighted by bitrate, so progress follows the bytes
+     * left to write instead of jumping when the cheap track finishes. Output bitrate is preferred, as it is what
+     * the encoder produces; pass-through tracks only have the input one. With renditions, both tracks are written
+     * to every output.
+     *
+     * @return Weight in [0, 1], 0.5 if a bitrate is unknown.
+     */
+    private static double getVideoProgressWeight(MediaExtractorUtils.TrackResult trackResult,
+                                                 List<MediaFormat> videoOutputFormats, MediaFormat audioOutputFormat) {
+        long videoBitrate = 0;
+        for (MediaFormat videoOutputFormat : videoOutputFormats) {
+            long bitrate = getBitrate(videoOutputFormat, trackResult.mVideoTrackFormat);
+            if (bitrate <= 0) return 0.5;
+            videoBitrate += bitrate;
+        }
+        long audioBitrate = getBitrate(audioOutputFormat, trackResult.mAudioTrackFormat) * videoOutputFormats.size();
+        if (audioBitrate <= 0) return 0.5;
+        return (double) videoBitrate / (videoBitrate + audioBitrate);
+    }
+
+    private static long getBitrate(MediaFormat outputFormat, MediaFormat inputFormat) {
+        if (outputFormat != null && outputFormat.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            return outputFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        }
+        if (inputFormat.containsKey(MediaFormat.KEY_BIT_RATE)) return inputFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        return -1;
+    }
+
     public interface ProgressCallback {
         /**
          * Called to notify progress. Same thread which initiated transcode is used.
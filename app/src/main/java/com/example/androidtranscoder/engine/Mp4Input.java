@@ -0,0 +1,151 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.example.androidtranscoder.exception.UnsupportedContainerException;
+import com.example.androidtranscoder.format.FormatExtraConstants;
+import com.example.androidtranscoder.mp4.MappedSampleData;
+import com.example.androidtranscoder.mp4.Mp4Movie;
+import com.example.androidtranscoder.mp4.Mp4Parser;
+import com.example.androidtranscoder.mp4.Mp4SampleDescription;
+import com.example.androidtranscoder.mp4.Mp4Track;
+import com.example.androidtranscoder.utils.MediaExtractorUtils;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * MP4 input read in Java instead of through {@link android.media.MediaExtractor} and
+ * {@link android.media.MediaMetadataRetriever}: track formats and metadata from {@link Mp4Parser}, and samples
+ * through an {@link Mp4SampleSource} per track over one memory-mapping of the file.
+ * Track index 0 is the first video track and 1 the first audio track.
+ */
+class Mp4Input {
+    private static final String TAG = "Mp4Input";
+    private final Mp4Movie mMovie;
+    private final Mp4Track[] mTracks;
+    private final int[] mNalUnitLengthSizes;
+    private final MappedSampleData mSampleData;
+    private final MediaExtractorUtils.TrackResult mTrackResult;
+
+    private Mp4Input(Mp4Movie movie, Mp4Track[] tracks, int[] nalUnitLengthSizes, MappedSampleData sampleData,
+                     MediaFormat[] formats) {
+        mMovie = movie;
+        mTracks = tracks;
+        mNalUnitLengthSizes = nalUnitLengthSizes;
+        mSampleData = sampleData;
+        mTrackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(Arrays.asList(formats));
+    }
+
+    /**
+     * @return null if the input is not a non-fragmented MP4 file with video and audio of codecs
+     * {@link Mp4SampleDescription} describes; read it with MediaExtractor then.
+     */
+    static Mp4Input open(FileDescriptor fileDescriptor) throws IOException {
+        // Not closed: closing would close the caller's file descriptor.
+        FileChannel channel = new FileInputStream(fileDescriptor).getChannel();
+        final Mp4Movie movie;
+        try {
+            movie = Mp4Parser.parse(channel);
+        } catch (UnsupportedContainerException | IndexOutOfBoundsException e) {
+            Log.d(TAG, "Cannot read input as MP4, falling back to MediaExtractor: " + e.getMessage());
+            return null;
+        }
+        Mp4Track[] tracks = {movie.getFirstTrack(Mp4Track.HANDLER_VIDEO), movie.getFirstTrack(Mp4Track.HANDLER_AUDIO)};
+        MediaFormat[] formats = new MediaFormat[tracks.length];
+        int[] nalUnitLengthSizes = new int[tracks.length];
+        for (int i = 0; i < tracks.length; i++) {
+            Mp4SampleDescription description = tracks[i] != null ? parseDescription(tracks[i]) : null;
+            if (description == null) {
+                Log.d(TAG, "No video and audio track of a known codec, falling back to MediaExtractor.");
+                return null;
+            }
+            formats[i] = createFormat(tracks[i], description);
+            nalUnitLengthSizes[i] = description.getNalUnitLengthSize();
+        }
+        int maxSampleSize = Math.max(tracks[0].getMaxSampleSize(), tracks[1].getMaxSampleSize());
+        return new Mp4Input(movie, tracks, nalUnitLengthSizes, new MappedSampleData(channel, maxSampleSize), formats);
+    }
+
+    /**
+     * @return Description of the track, or null for unknown codecs.
+     */
+    private static Mp4SampleDescription parseDescription(Mp4Track track) {
+        try {
+            return Mp4SampleDescription.parse(track);
+        } catch (IndexOutOfBoundsException e) {
+            Log.d(TAG, "Invalid sample description of track " + track.getTrackId(), e);
+            return null;
+        }
+    }
+
+    /**
+     * @return Format with the keys MediaExtractor sets which the engine and codecs use.
+     */
+    private static MediaFormat createFormat(Mp4Track track, Mp4SampleDescription description) {
+        final MediaFormat format;
+        if (track.getHandlerType().equals(Mp4Track.HANDLER_VIDEO)) {
+            format = MediaFormat.createVideoFormat(description.getMime(), description.getWidth(), description.getHeight());
+            if (track.getRotation() != 0) {
+                format.setInteger(FormatExtraConstants.KEY_ROTATION_DEGREES, track.getRotation());
+            }
+        } else {
+            format = MediaFormat.createAudioFormat(description.getMime(), description.getSampleRate(),
+                    description.getChannelCount());
+        }
+        for (int i = 0; i < description.getCodecSpecificDataCount(); i++) {
+            format.setByteBuffer("csd-" + i, description.getCodecSpecificData(i));
+        }
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE,
+                Mp4SampleSource.getMaxAnnexBSize(track.getMaxSampleSize(), description.getNalUnitLengthSize()));
+        final int last = track.getSampleCount() - 1;
+        if (last >= 0) {
+            long durationUs = track.ticksToUs(track.getDecodeTime(last) + track.getSampleDuration(last));
+            format.setLong(MediaFormat.KEY_DURATION, durationUs);
+            long bytes = 0;
+            for (int i = 0; i <= last; i++) bytes += track.getSampleSize(i);
+            if (durationUs > 0) format.setInteger(MediaFormat.KEY_BIT_RATE, (int) (bytes * 8 * 1_000_000 / durationUs));
+        }
+        return format;
+    }
+
+    MediaExtractorUtils.TrackResult getTrackResult() {
+        return mTrackResult;
+    }
+
+    /**
+     * @param endUs End of the range, or {@link Long#MAX_VALUE} to read to the end of the track.
+     */
+    SampleSource createSampleSource(int trackIndex, long startUs, long endUs) {
+        return new Mp4SampleSource(mSampleData, mTracks[trackIndex], mNalUnitLengthSizes[trackIndex], startUs, endUs);
+    }
+
+    /**
+     * @param previous true for the last sync sample presented at or before timeUs, false for the first at or after it.
+     * @return Presentation time of the sync sample, or -1 if there is none.
+     */
+    long findSyncSampleTime(int trackIndex, long timeUs, boolean previous) {
+        Mp4Track track = mTracks[trackIndex];
+        int index = track.findSyncSample(track.usToTicks(timeUs), previous);
+        return index < 0 ? -1 : track.ticksToUs(track.getPresentationTime(index));
+    }
+
+    int getRotation() {
+        return mTracks[0].getRotation();
+    }
+
+    /**
+     * @return ISO 6709 location, or null.
+     */
+    String getLocation() {
+        return mMovie.getLocation();
+    }
+
+    long getDurationUs() {
+        return mMovie.getDurationUs();
+    }
+}
@@ -0,0 +1,138 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaExtractor;
+
+import com.example.androidtranscoder.mp4.MappedSampleData;
+import com.example.androidtranscoder.mp4.Mp4Track;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads one track of an MP4 file from its sample table and {@link MappedSampleData}, without JNI calls per sample.
+ * Each track keeps its own position in the mapped file, so tracks need no demuxer thread and can be read from
+ * different threads.
+ * <p>
+ * Like with {@link SampleDemuxer}, the track starts at the sync sample at or before the start time, and ends at its
+ * first sync sample presented at or after the end time.
+ * <p>
+ * NAL units of AVC and HEVC are stored after length prefixes, but MediaExtractor returns them after start codes, in
+ * Annex B form, which decoders, MediaMuxer and smart cuts expect; {@link #readSampleData(ByteBuffer, int)} rewrites
+ * them while it copies each sample.
+ */
+public class Mp4SampleSource implements SampleSource {
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    private final MappedSampleData mData;
+    private final Mp4Track mTrack;
+    private final int mNalUnitLengthSize;
+    private final int mEndIndex;
+    private int mIndex;
+
+    /**
+     * @param nalUnitLengthSize Size of the length prefix of each NAL unit, from
+     *                          {@link com.example.androidtranscoder.mp4.Mp4SampleDescription#getNalUnitLengthSize()},
+     *                          or 0 to return samples as stored.
+     * @param startUs           Start of the range in micro-seconds.
+     * @param endUs             End of the range, or {@link Long#MAX_VALUE} to read to the end of the track.
+     */
+    public Mp4SampleSource(MappedSampleData data, Mp4Track track, int nalUnitLengthSize, long startUs, long endUs) {
+        mData = data;
+        mTrack = track;
+        mNalUnitLengthSize = nalUnitLengthSize;
+        final int count = track.getSampleCount();
+        if (startUs > 0) mIndex = Math.max(0, track.findSyncSample(track.usToTicks(startUs), true));
+        int endIndex = mIndex;
+        while (endIndex < count && !(track.isSyncSample(endIndex)
+                && track.ticksToUs(track.getPresentationTime(endIndex)) >= endUs)) {
+            endIndex++;
+        }
+        mEndIndex = endIndex;
+    }
+
+    @Override
+    public boolean isSampleAvailable() {
+        return mIndex < mEndIndex;
+    }
+
+    @Override
+    public boolean isEndOfStream() {
+        return mIndex >= mEndIndex;
+    }
+
+    @Override
+    public long getSampleTime() {
+        checkHasSample();
+        return mTrack.ticksToUs(mTrack.getPresentationTime(mIndex));
+    }
+
+    @Override
+    public int getSampleFlags() {
+        checkHasSample();
+        return mTrack.isSyncSample(mIndex) ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+    }
+
+    /**
+     * @return The current sample as stored in the file, as a read-only slice of the mapped file, without copying it;
+     * NAL units keep their length prefixes.
+     */
+    public ByteBuffer getSampleData() {
+        checkHasSample();
+        return mData.getSample(mTrack.getSampleOffset(mIndex), mTrack.getSampleSize(mIndex));
+    }
+
+    /**
+     * Copies the current sample like {@link MediaExtractor#readSampleData(ByteBuffer, int)}, with start codes in place
+     * of NAL unit length prefixes. The sample grows if the prefixes are shorter than 4 bytes; see
+     * {@link #getMaxAnnexBSize(int, int)}.
+     */
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        ByteBuffer data = getSampleData();
+        buffer.clear();
+        buffer.position(offset);
+        if (mNalUnitLengthSize > 0) {
+            putAnnexB(data, mNalUnitLengthSize, buffer);
+        } else {
+            buffer.put(data);
+        }
+        int size = buffer.position() - offset;
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        return size;
+    }
+
+    /**
+     * Copies the NAL units of data into out, each after a start code instead of its length prefix.
+     */
+    static void putAnnexB(ByteBuffer data, int nalUnitLengthSize, ByteBuffer out) {
+        final int limit = data.limit();
+        while (data.remaining() >= nalUnitLengthSize) {
+            int length = 0;
+            for (int i = 0; i < nalUnitLengthSize; i++) length = (length << 8) | (data.get() & 0xff);
+            if (length < 0 || length > data.remaining()) {
+                throw new IllegalStateException("NAL unit of " + (length & 0xffffffffL) + " bytes exceeds its sample.");
+            }
+            out.put(START_CODE);
+            data.limit(data.position() + length);
+            out.put(data);
+            data.limit(limit);
+        }
+    }
+
+    /**
+     * @return Largest size of a sample of maxSampleSize bytes after {@link #readSampleData(ByteBuffer, int)}: every
+     * NAL unit takes at least one byte after its prefix, and each prefix shorter than a start code adds the difference.
+     */
+    static int getMaxAnnexBSize(int maxSampleSize, int nalUnitLengthSize) {
+        if (nalUnitLengthSize <= 0 || nalUnitLengthSize >= START_CODE.length) return maxSampleSize;
+        return maxSampleSize + maxSampleSize / (nalUnitLengthSize + 1) * (START_CODE.length - nalUnitLengthSize);
+    }
+
+    @Override
+    public void advance() {
+        if (mIndex < mEndIndex) mIndex++;
+    }
+
+    private void checkHasSample() {
+        if (mIndex >= mEndIndex) throw new IllegalStateException("No sample available.");
+    }
+}
@@ -0,0 +1,355 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+
+import com.example.androidtranscoder.compat.MediaCodecBufferCompatWrapper;
+import com.example.androidtranscoder.format.FormatExtraConstants;
+
+import java.util.List;
+
+/**
+ * Encodes one video track into several renditions, e.g. the 1080p, 720p and 480p steps of an ABR ladder, with a
+ * single decoder: each decoded frame is latched into one external texture and drawn once into the input surface of
+ * each rendition's encoder. Demuxing and decoding are paid once instead of once per rendition.
+ * <p>
+ * All input surfaces share one EGL context, so the texture can be drawn into any of them. Frames are rendered on the
+ * track's thread one at a time; smart cut and direct rendering are single-output features of
+ * {@link VideoTrackTranscoder}.
+ */
+public class MultiVideoTrackTranscoder implements TrackTranscoder {
+    private static final int DRAIN_STATE_NONE = 0;
+    private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
+    private static final int DRAIN_STATE_CONSUMED = 2;
+
+    private final SampleSource mSampleSource;
+    private final MediaFormat mInputFormat;
+    private final MediaFormat[] mOutputFormats;
+    private final SampleSink[] mMuxers;
+    private final CodecEventDispatcher mEventDispatcher;
+    private final long mTrimStartUs;
+    private final long mTrimEndUs;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+    private MediaCodec mDecoder;
+    private CodecQueue mDecoderQueue;
+    private MediaCodecBufferCompatWrapper mDecoderBuffers;
+    private OutputSurface mDecoderOutputSurfaceWrapper;
+    private final MediaCodec[] mEncoders;
+    private final CodecQueue[] mEncoderQueues;
+    private final MediaCodecBufferCompatWrapper[] mEncoderBuffers;
+    private final InputSurface[] mEncoderInputSurfaceWrappers;
+    private final MediaFormat[] mActualOutputFormats;
+    private final boolean[] mIsEncoderEOS;
+    private final long[] mWrittenPresentationTimesUs;
+    private EglResourceManager mEglResourceManager;
+    /** Created for the job when no manager was set, as the renditions need one context. */
+    private EglResourceManager mOwnEglResourceManager;
+    private EglResourceManager.Worker mEglWorker;
+    private CodecPool<MediaCodec> mCodecPool;
+    private TranscodeMetrics mMetrics;
+    private boolean mIsExtractorEOS;
+    private boolean mIsDecoderEOS;
+    private boolean mIsFinished;
+    private boolean mDecoderStarted;
+    private int mEncodersStarted;
+    private volatile long mWrittenPresentationTimeUs;
+
+    /**
+     * @param outputFormats Format of each rendition.
+     * @param muxers        Sink of each rendition, in the order of outputFormats.
+     * @param trimStartUs   Frames presented before this time are decoded as pre-roll but not encoded.
+     *                      Output timestamps are relative to it.
+     * @param trimEndUs     Frames presented at or after this time are not encoded.
+     */
+    public MultiVideoTrackTranscoder(SampleSource sampleSource, MediaFormat inputFormat, List<MediaFormat> outputFormats,
+                                     List<? extends SampleSink> muxers, CodecEventDispatcher eventDispatcher,
+                                     long trimStartUs, long trimEndUs) {
+        if (outputFormats.isEmpty() || outputFormats.size() != muxers.size()) {
+            throw new IllegalArgumentException("Need one muxer per output format: " + outputFormats.size()
+                    + " formats, " + muxers.size() + " muxers.");
+        }
+        final int renditions = outputFormats.size();
+        mSampleSource = sampleSource;
+        mInputFormat = inputFormat;
+        mOutputFormats = outputFormats.toArray(new MediaFormat[renditions]);
+        mMuxers = muxers.toArray(new SampleSink[renditions]);
+        mEventDispatcher = eventDispatcher;
+        mTrimStartUs = trimStartUs;
+        mTrimEndUs = trimEndUs;
+        mEncoders = new MediaCodec[renditions];
+        mEncoderQueues = new CodecQueue[renditions];
+        mEncoderBuffers = new MediaCodecBufferCompatWrapper[renditions];
+        mEncoderInputSurfaceWrappers = new InputSurface[renditions];
+        mActualOutputFormats = new MediaFormat[renditions];
+        mIsEncoderEOS = new boolean[renditions];
+        mWrittenPresentationTimesUs = new long[renditions];
+    }
+
+    /**
+     * Takes the EGL context, shader program and texture from the manager instead of creating them, and returns
+     * them on release. Must be called before {@link #setup()}.
+     */
+    public void setEglResourceManager(EglResourceManager eglResourceManager) {
+        mEglResourceManager = eglResourceManager;
+    }
+
+    /**
+     * Takes codecs from the pool instead of creating them, and returns them on release: an encoder per rendition and
+     * a decoder, which the caller reserves beforehand, see {@link CodecPool#reserve(int)}. Must be called before
+     * {@link #setup()}.
+     */
+    public void setCodecPool(CodecPool<MediaCodec> codecPool) {
+        mCodecPool = codecPool;
+    }
+
+    /**
+     * Records stage latencies and written samples of all renditions into metrics. Must be called before
+     * {@link #setup()}.
+     */
+    public void setMetrics(TranscodeMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    public int getRenditionCount() {
+        return mEncoders.length;
+    }
+
+    @Override
+    public void setup() {
+        EglResourceManager eglResourceManager = mEglResourceManager;
+        if (eglResourceManager == null) {
+            mOwnEglResourceManager = new EglResourceManager();
+            eglResourceManager = mOwnEglResourceManager;
+        }
+        mEglWorker = eglResourceManager.acquire();
+        for (int i = 0; i < mEncoders.length; i++) {
+            mEncoders[i] = CodecPool.obtain(mCodecPool, mOutputFormats[i], true);
+            mEncoderQueues[i] = mEventDispatcher.createQueue(mEncoders[i]);
+            mEncoders[i].configure(mOutputFormats[i], null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mEncoderInputSurfaceWrappers[i] = new InputSurface(mEncoders[i].createInputSurface(), mEglWorker);
+            mEncoders[i].start();
+            mEncodersStarted++;
+            mEncoderBuffers[i] = new MediaCodecBufferCompatWrapper(mEncoders[i]);
+        }
+        mEncoderInputSurfaceWrappers[0].makeCurrent();
+
+        MediaFormat inputFormat = mInputFormat;
+        if (inputFormat.containsKey(FormatExtraConstants.KEY_ROTATION_DEGREES)) {
+            // Same as VideoTrackTranscoder: encode frames unrotated, the muxer keeps the orientation hint.
+            inputFormat.setInteger(FormatExtraConstants.KEY_ROTATION_DEGREES, 0);
+        }
+        mDecoderOutputSurfaceWrapper = new OutputSurface(mEglWorker);
+        mDecoder = CodecPool.obtain(mCodecPool, inputFormat, false);
+        mDecoderQueue = mEventDispatcher.createQueue(mDecoder);
+        mDecoder.configure(inputFormat, mDecoderOutputSurfaceWrapper.getSurface(), null, 0);
+        mDecoder.start();
+        mDecoderStarted = true;
+        mDecoderBuffers = new MediaCodecBufferCompatWrapper(mDecoder);
+    }
+
+    /**
+     * @return Output format of the first rendition, see {@link #getDeterminedFormat(int)}.
+     */
+    @Override
+    public MediaFormat getDeterminedFormat() {
+        return mActualOutputFormats[0];
+    }
+
+    public MediaFormat getDeterminedFormat(int rendition) {
+        return mActualOutputFormats[rendition];
+    }
+
+    @Override
+    public boolean stepPipeline() {
+        if (mIsFinished) return false;
+        boolean busy = false;
+
+        int status;
+        for (int i = 0; i < mEncoders.length; i++) {
+            while (drainEncoder(i) != DRAIN_STATE_NONE) busy = true;
+        }
+        do {
+            status = drainDecoder(0);
+            if (status != DRAIN_STATE_NONE) busy = true;
+            // NOTE: not repeating to keep from deadlock when encoders are full.
+        } while (status == DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY);
+        while (drainExtractor(0) != DRAIN_STATE_NONE) busy = true;
+        return busy;
+    }
+
+    /**
+     * @return Presentation time of the last sample written by the rendition furthest behind.
+     */
+    @Override
+    public long getWrittenPresentationTimeUs() {
+        return mWrittenPresentationTimeUs;
+    }
+
+    @Override
+    public boolean isFinished() {
+        return mIsFinished;
+    }
+
+    @Override
+    public void release() {
+        if (mDecoderOutputSurfaceWrapper != null) {
+            mDecoderOutputSurfaceWrapper.release();
+            mDecoderOutputSurfaceWrapper = null;
+        }
+        for (int i = 0; i < mEncoderInputSurfaceWrappers.length; i++) {
+            if (mEncoderInputSurfaceWrappers[i] != null) {
+                mEncoderInputSurfaceWrappers[i].release();
+                mEncoderInputSurfaceWrappers[i] = null;
+            }
+        }
+        if (mEglWorker != null) {
+            mEglWorker.recycle();
+            mEglWorker = null;
+        }
+        if (mOwnEglResourceManager != null) {
+            mOwnEglResourceManager.release();
+            mOwnEglResourceManager = null;
+        }
+        if (mDecoder != null) {
+            if (mDecoderStarted) mDecoder.stop();
+            CodecPool.recycle(mCodecPool, mDecoder);
+            mDecoder = null;
+            mDecoderStarted = false;
+        }
+        for (int i = 0; i < mEncoders.length; i++) {
+            if (mEncoders[i] != null) {
+                if (i < mEncodersStarted) mEncoders[i].stop();
+                CodecPool.recycle(mCodecPool, mEncoders[i]);
+                mEncoders[i] = null;
+            }
+        }
+        mEncodersStarted = 0;
+    }
+
+    private int drainExtractor(long timeoutUs) {
+        if (mIsExtractorEOS) return DRAIN_STATE_NONE;
+        final long startNanos = mMetrics != null ? System.nanoTime() : 0;
+        boolean isEndOfStream = mSampleSource.isEndOfStream();
+        if (!isEndOfStream && !mSampleSource.isSampleAvailable()) {
+            return DRAIN_STATE_NONE;
+        }
+        int result = mDecoderQueue.dequeueInputBuffer(timeoutUs);
+        if (result < 0) return DRAIN_STATE_NONE;
+        if (isEndOfStream) {
+            mIsExtractorEOS = true;
+            mDecoderQueue.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            return DRAIN_STATE_NONE;
+        }
+        int sampleSize = mSampleSource.readSampleData(mDecoderBuffers.getInputBuffer(result), 0);
+        boolean isKeyFrame = (mSampleSource.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        mDecoderQueue.queueInputBuffer(result, 0, sampleSize, mSampleSource.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        mSampleSource.advance();
+        recordLatency(TranscodeMetrics.Stage.DRAIN_EXTRACTOR, startNanos);
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    private int drainDecoder(long timeoutUs) {
+        if (mIsDecoderEOS) return DRAIN_STATE_NONE;
+        final long startNanos = mMetrics != null ? System.nanoTime() : 0;
+        int result = mDecoderQueue.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        switch (result) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return DRAIN_STATE_NONE;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            for (CodecQueue encoderQueue : mEncoderQueues) encoderQueue.signalEndOfInputStream();
+            mIsDecoderEOS = true;
+            mBufferInfo.size = 0;
+        }
+        boolean doRender = mBufferInfo.size > 0
+                && mBufferInfo.presentationTimeUs >= mTrimStartUs && mBufferInfo.presentationTimeUs < mTrimEndUs;
+        // NOTE: swapBuffers() will block if buffer (of an encoder) is full.
+        mDecoderQueue.releaseOutputBuffer(result, doRender);
+        if (doRender) {
+            final long awaitStartNanos = mMetrics != null ? System.nanoTime() : 0;
+            mDecoderOutputSurfaceWrapper.awaitNewImage();
+            long drawStartNanos = recordLatency(TranscodeMetrics.Stage.AWAIT_NEW_IMAGE, awaitStartNanos);
+            final long presentationTimeNs = (mBufferInfo.presentationTimeUs - mTrimStartUs) * 1000;
+            for (InputSurface inputSurface : mEncoderInputSurfaceWrappers) {
+                inputSurface.makeCurrent();
+                // The viewport is not reset when another surface of the context is made current.
+                GLES20.glViewport(0, 0, inputSurface.getWidth(), inputSurface.getHeight());
+                mDecoderOutputSurfaceWrapper.drawImage();
+                final long swapStartNanos = recordLatency(TranscodeMetrics.Stage.DRAW_IMAGE, drawStartNanos);
+                inputSurface.setPresentationTime(presentationTimeNs);
+                inputSurface.swapBuffers();
+                drawStartNanos = recordLatency(TranscodeMetrics.Stage.SWAP_BUFFERS, swapStartNanos);
+            }
+        }
+        recordLatency(TranscodeMetrics.Stage.DRAIN_DECODER, startNanos);
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    private int drainEncoder(int rendition) {
+        if (mIsEncoderEOS[rendition]) return DRAIN_STATE_NONE;
+        final long startNanos = mMetrics != null ? System.nanoTime() : 0;
+        final MediaCodec encoder = mEncoders[rendition];
+        int result = mEncoderQueues[rendition].dequeueOutputBuffer(mBufferInfo, 0);
+        switch (result) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return DRAIN_STATE_NONE;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                if (mActualOutputFormats[rendition] != null) {
+                    throw new RuntimeException("Video output format of rendition " + rendition + " changed twice.");
+                }
+                mActualOutputFormats[rendition] = encoder.getOutputFormat();
+                mMuxers[rendition].setOutputFormat(QueuedMuxer.SampleType.VIDEO, mActualOutputFormats[rendition]);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                mEncoderBuffers[rendition] = new MediaCodecBufferCompatWrapper(encoder);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        if (mActualOutputFormats[rendition] == null) {
+            throw new RuntimeException("Could not determine actual output format of rendition " + rendition + ".");
+        }
+
+        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            mIsEncoderEOS[rendition] = true;
+            mBufferInfo.set(0, 0, 0, mBufferInfo.flags);
+        }
+        if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            // SPS or PPS, which should be passed by MediaFormat.
+            mEncoderQueues[rendition].releaseOutputBuffer(result, false);
+            return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+        }
+        TranscodeMetrics.writeSampleData(mMetrics, mMuxers[rendition], QueuedMuxer.SampleType.VIDEO,
+                mEncoderBuffers[rendition].getOutputBuffer(result), mBufferInfo);
+        mEncoderQueues[rendition].releaseOutputBuffer(result, false);
+        onSampleWritten(rendition, mBufferInfo.presentationTimeUs);
+        recordLatency(TranscodeMetrics.Stage.DRAIN_ENCODER, startNanos);
+        return DRAIN_STATE_CONSUMED;
+    }
+
+    private void onSampleWritten(int rendition, long presentationTimeUs) {
+        mWrittenPresentationTimesUs[rendition] = presentationTimeUs;
+        long minPresentationTimeUs = Long.MAX_VALUE;
+        boolean finished = true;
+        for (int i = 0; i < mEncoders.length; i++) {
+            if (mIsEncoderEOS[i]) continue;
+            finished = false;
+            minPresentationTimeUs = Math.min(minPresentationTimeUs, mWrittenPresentationTimesUs[i]);
+        }
+        mIsFinished = finished;
+        if (!finished) mWrittenPresentationTimeUs = minPresentationTimeUs;
+    }
+
+    /**
+     * @return Current time, to time the next stage from.
+     */
+    private long recordLatency(TranscodeMetrics.Stage stage, long startNanos) {
+        if (mMetrics == null) return 0;
+        final long nowNanos = System.nanoTime();
+        mMetrics.recordLatency(QueuedMuxer.SampleType.VIDEO, stage, nowNanos - startNanos);
+        return nowNanos;
+    }
+}
@@ -34,6 +34,7 @@ public class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
     private Object mFrameSyncObject = new Object();     // guards mFrameAvailable
     private boolean mFrameAvailable;
     private TextureRender mTextureRender;
+    private EglResourceManager.Worker mWorker;
     /**
      * Creates an OutputSurface backed by a pbuffer with the specifed dimensions.  The new
      * EGL context and surface will be made current.  Creates a Surface that can be passed
@@ -54,13 +55,29 @@ public class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
     public OutputSurface() {
         setup();
     }
+    /**
+     * Creates an OutputSurface using the current EGL context, which must be the worker's, with its cached
+     * shader program and a texture from its pool.  The texture goes back to the pool on {@link #release()}.
+     */
+    public OutputSurface(EglResourceManager.Worker worker) {
+        mWorker = worker;
+        setup(worker.createTextureRender());
+    }
     /**
      * Creates instances of TextureRender and SurfaceTexture, and a Surface associated
      * with the SurfaceTexture.
      */
     private void setup() {
-        mTextureRender = new TextureRender();
-        mTextureRender.surfaceCreated();
+        TextureRender textureRender = new TextureRender();
+        textureRender.surfaceCreated();
+        setup(textureRender);
+    }
+    /**
+     * Creates a SurfaceTexture for the texture of the given TextureRender, and a Surface associated
+     * with the SurfaceTexture.
+     */
+    private void setup(TextureRender textureRender) {
+        mTextureRender = textureRender;
         // Even if we don't access the SurfaceTexture after the constructor returns, we
         // still need to keep a reference to it.  The Surface doesn't retain a reference
         // at the Java level, so if we don't either then the object can get GCed, which
@@ -148,6 +165,12 @@ public class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
         // this causes a bunch of warnings that appear harmless but might confuse someone:
         //  W BufferQueue: [unnamed-3997-2] cancelBuffer: BufferQueue has been abandoned!
         //mSurfaceTexture.release();
+        if (mWorker != null) {
+            // The texture is attached to a new SurfaceTexture by the next job, so detach this one now.
+            mSurfaceTexture.release();
+            mWorker.recycleExternalTexture(mTextureRender.getTextureId());
+            mWorker = null;
+        }
         mEGLDisplay = EGL14.EGL_NO_DISPLAY;
         mEGLContext = EGL14.EGL_NO_CONTEXT;
         mEGLSurface = EGL14.EGL_NO_SURFACE;
@@ -200,7 +223,7 @@ public class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
             mFrameAvailable = false;
         }
         // Latch the data.
-        mTextureRender.checkGlError("before updateTexImage");
+        TextureRender.checkGlError("before updateTexImage");
         mSurfaceTexture.updateTexImage();
     }
     /**
@@ -226,10 +249,30 @@ public class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
             mFrameAvailable = false;
         }
         // Latch the data.
-        mTextureRender.checkGlError("before updateTexImage");
+        TextureRender.checkGlError("before updateTexImage");
         mSurfaceTexture.updateTexImage();
         return true;
     }
+    /**
+     * Replaces the listener {@link #awaitNewImage()} relies on, e.g. to count frames queued ahead of the renderer.
+     * Use {@link #latchImage()} afterwards.
+     */
+    public void setOnFrameAvailableListener(SurfaceTexture.OnFrameAvailableListener listener) {
+        mSurfaceTexture.setOnFrameAvailableListener(listener);
+    }
+    /**
+     * Latches the next buffer into the texture, once the listener was told it is available.
+     */
+    public void latchImage() {
+        TextureRender.checkGlError("before updateTexImage");
+        mSurfaceTexture.updateTexImage();
+    }
+    /**
+     * Returns the timestamp of the latched image, in nanoseconds.
+     */
+    public long getTimestamp() {
+        return mSurfaceTexture.getTimestamp();
+    }
     /**
      * Draws the data from SurfaceTexture onto the current EGL surface.
      */
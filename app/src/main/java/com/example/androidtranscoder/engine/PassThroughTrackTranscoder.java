@@ -9,29 +9,51 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 public class PassThroughTrackTranscoder implements TrackTranscoder {
-    private final MediaExtractor mExtractor;
-    private final int mTrackIndex;
-    private final QueuedMuxer mMuxer;
+    private final SampleSource mSampleSource;
+    private final SampleSink mMuxer;
     private final QueuedMuxer.SampleType mSampleType;
     private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
     private int mBufferSize;
     private ByteBuffer mBuffer;
     private boolean mIsEOS;
     private MediaFormat mActualOutputFormat;
-    private long mWrittenPresentationTimeUs;
+    private volatile long mWrittenPresentationTimeUs;
+    private final long mTrimStartUs;
+    private final long mTrimEndUs;
+    private TranscodeMetrics mMetrics;
 
-    public PassThroughTrackTranscoder(MediaExtractor extractor, int trackIndex, QueuedMuxer muxer, QueuedMuxer.SampleType sampleType) {
-        mExtractor = extractor;
-        mTrackIndex = trackIndex;
+    public PassThroughTrackTranscoder(MediaExtractor extractor, int trackIndex, SampleSink muxer, QueuedMuxer.SampleType sampleType) {
+        this(new ExtractorSampleSource(extractor, trackIndex), extractor.getTrackFormat(trackIndex), muxer, sampleType, 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * Samples cannot be cut between sync samples without decoding, so the source should start at a sync sample
+     * presented at or before trimStartUs.
+     *
+     * @param trimStartUs Samples presented before this time are skipped. Output timestamps are relative to it.
+     * @param trimEndUs   The track ends at the first sample, in decode order, presented at or after this time.
+     */
+    public PassThroughTrackTranscoder(SampleSource sampleSource, MediaFormat inputFormat, SampleSink muxer, QueuedMuxer.SampleType sampleType,
+                                      long trimStartUs, long trimEndUs) {
+        mSampleSource = sampleSource;
         mMuxer = muxer;
         mSampleType = sampleType;
+        mTrimStartUs = trimStartUs;
+        mTrimEndUs = trimEndUs;
 
-        mActualOutputFormat = mExtractor.getTrackFormat(mTrackIndex);
+        mActualOutputFormat = inputFormat;
         mMuxer.setOutputFormat(mSampleType, mActualOutputFormat);
         mBufferSize = mActualOutputFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE);
         mBuffer = ByteBuffer.allocateDirect(mBufferSize).order(ByteOrder.nativeOrder());
     }
 
+    /**
+     * Records written samples into metrics. Must be called before {@link #setup()}.
+     */
+    public void setMetrics(TranscodeMetrics metrics) {
+        mMetrics = metrics;
+    }
+
     @Override
     public void setup() {
     }
@@ -45,29 +67,43 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
     @Override
     public boolean stepPipeline() {
         if (mIsEOS) return false;
-        int trackIndex = mExtractor.getSampleTrackIndex();
-        if (trackIndex < 0) {
-            mBuffer.clear();
-            mBufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-            mMuxer.writeSampleData(mSampleType, mBuffer, mBufferInfo);
-            mIsEOS = true;
+        if (mSampleSource.isEndOfStream()) {
+            writeEndOfStream();
+            return true;
+        }
+        if (!mSampleSource.isSampleAvailable()) return false;
+
+        long sampleTime = mSampleSource.getSampleTime();
+        if (sampleTime >= mTrimEndUs) {
+            // Later samples in decode order may reference this one, so none of them can be kept.
+            writeEndOfStream();
+            return true;
+        }
+        if (sampleTime < mTrimStartUs) {
+            mSampleSource.advance();
             return true;
         }
-        if (trackIndex != mTrackIndex) return false;
 
         mBuffer.clear();
-        int sampleSize = mExtractor.readSampleData(mBuffer, 0);
+        int sampleSize = mSampleSource.readSampleData(mBuffer, 0);
         assert sampleSize <= mBufferSize;
-        boolean isKeyFrame = (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        boolean isKeyFrame = (mSampleSource.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
         int flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0;
-        mBufferInfo.set(0, sampleSize, mExtractor.getSampleTime(), flags);
-        mMuxer.writeSampleData(mSampleType, mBuffer, mBufferInfo);
+        mBufferInfo.set(0, sampleSize, sampleTime - mTrimStartUs, flags);
+        TranscodeMetrics.writeSampleData(mMetrics, mMuxer, mSampleType, mBuffer, mBufferInfo);
         mWrittenPresentationTimeUs = mBufferInfo.presentationTimeUs;
 
-        mExtractor.advance();
+        mSampleSource.advance();
         return true;
     }
 
+    private void writeEndOfStream() {
+        mBuffer.clear();
+        mBufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        TranscodeMetrics.writeSampleData(mMetrics, mMuxer, mSampleType, mBuffer, mBufferInfo);
+        mIsEOS = true;
+    }
+
     @Override
     public long getWrittenPresentationTimeUs() {
         return mWrittenPresentationTimeUs;
@@ -0,0 +1,30 @@
+package com.example.androidtranscoder.engine;
+
+/**
+ * Wakes a waiting pipeline loop. A signal raised while nobody waits is kept until the next {@link #await(long)},
+ * so an event arriving between a pipeline step and the wait is never lost.
+ */
+class PipelineSignal {
+    private boolean mSignaled;
+
+    public synchronized void signal() {
+        mSignaled = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until signaled, then clears the signal.
+     *
+     * @return true if signaled, false if timed out.
+     */
+    public synchronized boolean await(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!mSignaled) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        mSignaled = false;
+        return true;
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.androidtranscoder.engine;
+
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Streaming sample rate converter for interleaved 16-bit PCM, with a windowed-sinc filter precomputed as a table of
+ * phases. Input of one call which cannot be filtered yet is kept for the next one, so buffers can be of any size.
+ * <p>
+ * The filter is symmetric and the first output frame is aligned with the first input frame, so the output keeps the
+ * timestamps of the input. The read position advances by the exact ratio of both rates, so it does not drift.
+ * Not thread safe.
+ */
+public class PolyphaseResampler {
+
+    /**
+     * Trade-off between quality and CPU cost; cost is roughly proportional to the number of taps.
+     */
+    public enum Quality {
+        /** 8 taps; aliasing is audible on bright material, for speech or previews. */
+        LOW(8, 64, 5.0, 0.85),
+        /** 16 taps. */
+        MEDIUM(16, 256, 7.0, 0.9),
+        /** 32 taps, for music. */
+        HIGH(32, 1024, 9.0, 0.95);
+
+        final int mTaps;
+        final int mPhases;
+        final double mKaiserBeta;
+        final double mRolloff;
+
+        Quality(int taps, int phases, double kaiserBeta, double rolloff) {
+            mTaps = taps;
+            mPhases = phases;
+            mKaiserBeta = kaiserBeta;
+            mRolloff = rolloff;
+        }
+    }
+
+    private final int mInputSampleRate;
+    private final int mOutputSampleRate;
+    private final int mChannelCount;
+    private final int mTaps;
+    private final int mHalfTaps;
+    private final int mPhases;
+    /** Coefficients of phase p at [p * mTaps, (p + 1) * mTaps). */
+    private final float[] mFilter;
+    private final int mStepFrames;
+    private final int mStepRemainder;
+    /** Maps the remainder of the read position, in [0, output rate), to a phase in 32.32 fixed point. */
+    private final long mPhaseScale;
+
+    /** Interleaved input frames not yet consumed, starting with history for the filter. */
+    private short[] mHistory;
+    private int mHistoryFrames;
+    /** Read position: frame index in mHistory plus mRemainder / output rate. */
+    private int mIndex;
+    private int mRemainder;
+    private short[] mOutput = new short[0];
+
+    public PolyphaseResampler(int inputSampleRate, int outputSampleRate, int channelCount, Quality quality) {
+        if (inputSampleRate <= 0 || outputSampleRate <= 0 || channelCount <= 0) {
+            throw new IllegalArgumentException("Invalid rates or channel count: " + inputSampleRate + " -> "
+                    + outputSampleRate + ", " + channelCount + " channels");
+        }
+        mInputSampleRate = inputSampleRate;
+        mOutputSampleRate = outputSampleRate;
+        mChannelCount = channelCount;
+        // When decimating, cut off below the output Nyquist frequency and widen the filter to keep its stopband.
+        double ratio = Math.min(1.0, (double) outputSampleRate / inputSampleRate);
+        mHalfTaps = (int) Math.ceil(quality.mTaps / 2 / ratio);
+        mTaps = 2 * mHalfTaps;
+        mPhases = quality.mPhases;
+        mFilter = createFilter(mTaps, mPhases, ratio * quality.mRolloff, quality.mKaiserBeta);
+        mStepFrames = inputSampleRate / outputSampleRate;
+        mStepRemainder = inputSampleRate % outputSampleRate;
+        mPhaseScale = ((long) mPhases << 32) / outputSampleRate;
+        mHistory = new short[4096 * channelCount];
+        reset();
+    }
+
+    public int getInputSampleRate() {
+        return mInputSampleRate;
+    }
+
+    public int getOutputSampleRate() {
+        return mOutputSampleRate;
+    }
+
+    /**
+     * @return Upper bound of output frames of one call with the given input frames, including input kept from
+     * previous calls, which is less than the filter length.
+     */
+    public int getMaxOutputFrames(int inputFrames) {
+        return (int) (((long) inputFrames + mTaps) * mOutputSampleRate / mInputSampleRate) + 1;
+    }
+
+    /**
+     * Discards all kept input, e.g. after a seek.
+     */
+    public void reset() {
+        // Zero history before the first frame, so the first output frame is centered on it.
+        mHistoryFrames = mHalfTaps - 1;
+        Arrays.fill(mHistory, 0, mHistoryFrames * mChannelCount, (short) 0);
+        mIndex = mHalfTaps - 1;
+        mRemainder = 0;
+    }
+
+    /**
+     * Pads the input with silence, so the output covers the last input frame. Call once at the end of stream.
+     */
+    public void drain(final ShortBuffer outSBuff) {
+        resample(ShortBuffer.wrap(new short[mHalfTaps * mChannelCount]), outSBuff);
+    }
+
+    /**
+     * Consumes all remaining input and writes as many output frames as are available and fit.
+     * Frames which do not fit are written by the next call.
+     */
+    public void resample(final ShortBuffer inSBuff, final ShortBuffer outSBuff) {
+        final int channelCount = mChannelCount;
+        final int inputFrames = inSBuff.remaining() / channelCount;
+        final int required = (mHistoryFrames + inputFrames) * channelCount;
+        if (mHistory.length < required) {
+            short[] history = new short[Math.max(required, mHistory.length * 2)];
+            System.arraycopy(mHistory, 0, history, 0, mHistoryFrames * channelCount);
+            mHistory = history;
+        }
+        inSBuff.get(mHistory, mHistoryFrames * channelCount, inputFrames * channelCount);
+        mHistoryFrames += inputFrames;
+
+        final short[] history = mHistory;
+        final float[] filter = mFilter;
+        final int taps = mTaps;
+        int index = mIndex;
+        int remainder = mRemainder;
+        final int maxOutputFrames = Math.min(outSBuff.remaining() / channelCount, getMaxOutputFrames(inputFrames));
+        if (mOutput.length < maxOutputFrames * channelCount) mOutput = new short[maxOutputFrames * channelCount];
+        final short[] output = mOutput;
+        int outputLength = 0;
+        int outputFrames = maxOutputFrames;
+        // The last tap of the frame at index reads frame index + mHalfTaps.
+        while (outputFrames > 0 && index + mHalfTaps < mHistoryFrames) {
+            final int phase = (int) ((remainder * mPhaseScale) >>> 32);
+            final int filterOffset = phase * taps;
+            final int firstSample = (index - mHalfTaps + 1) * channelCount;
+            for (int channel = 0; channel < channelCount; channel++) {
+                float sum = 0;
+                int sample = firstSample + channel;
+                for (int tap = 0; tap < taps; tap++) {
+                    sum += history[sample] * filter[filterOffset + tap];
+                    sample += channelCount;
+                }
+                output[outputLength++] = clamp(sum);
+            }
+            outputFrames--;
+            index += mStepFrames;
+            remainder += mStepRemainder;
+            if (remainder >= mOutputSampleRate) {
+                remainder -= mOutputSampleRate;
+                index++;
+            }
+        }
+        outSBuff.put(output, 0, outputLength);
+
+        // Keep only the frames still needed by the filter.
+        final int discard = Math.min(index - mHalfTaps + 1, mHistoryFrames);
+        if (discard > 0) {
+            System.arraycopy(history, discard * channelCount, history, 0, (mHistoryFrames - discard) * channelCount);
+            mHistoryFrames -= discard;
+            index -= discard;
+        }
+        mIndex = index;
+        mRemainder = remainder;
+    }
+
+    private static short clamp(float sample) {
+        int rounded = Math.round(sample);
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, rounded));
+    }
+
+    /**
+     * @param cutoff Cutoff frequency relative to the input Nyquist frequency.
+     */
+    private static float[] createFilter(int taps, int phases, double cutoff, double kaiserBeta) {
+        final int halfTaps = taps / 2;
+        final double besselOfBeta = besselI0(kaiserBeta);
+        float[] filter = new float[taps * phases];
+        for (int phase = 0; phase < phases; phase++) {
+            double fraction = (double) phase / phases;
+            double[] coefficients = new double[taps];
+            double sum = 0;
+            for (int tap = 0; tap < taps; tap++) {
+                // Distance of the tap from the read position, in input frames.
+                double x = tap - halfTaps + 1 - fraction;
+                double sinc = x == 0 ? 1 : Math.sin(Math.PI * cutoff * x) / (Math.PI * cutoff * x);
+                double w = x / halfTaps;
+                double window = Math.abs(w) >= 1 ? 0 : besselI0(kaiserBeta * Math.sqrt(1 - w * w)) / besselOfBeta;
+                coefficients[tap] = sinc * window;
+                sum += coefficients[tap];
+            }
+            // Unity gain at DC for every phase.
+            for (int tap = 0; tap < taps; tap++) {
+                filter[phase * taps + tap] = (float) (coefficients[tap] / sum);
+            }
+        }
+        return filter;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) break;
+        }
+        return sum;
+    }
+}
@@ -18,37 +18,66 @@ package com.example.androidtranscoder.engine;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import android.util.Log;
 
+import com.example.androidtranscoder.muxer.Muxer;
+
+import java.io.File;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * This class queues until all output track formats are determined.
+ * Methods are synchronized, as tracks may write from their own threads.
+ * Queued samples are kept in a {@link SampleArena}, which spills to a temporary file beyond a memory limit.
+ * <p>
+ * Once started, writes are interleaved: each track has a {@link SampleQueue}, and the sample with the earliest
+ * presentation time among the queue heads is written first. A track is written without waiting for the other
+ * only after its queue spans more than the interleave window, which bounds memory when one track runs ahead.
  */
-public class QueuedMuxer {
+public class QueuedMuxer implements SampleSink {
     private static final String TAG = "QueuedMuxer";
-    private static final int BUFFER_SIZE = 64 * 1024; // I have no idea whether this value is appropriate or not...
-    private final MediaMuxer mMuxer;
+    public static final long DEFAULT_INTERLEAVE_WINDOW_US = 500_000;
+    private final Muxer mMuxer;
     private final Listener mListener;
     private MediaFormat mVideoFormat;
     private MediaFormat mAudioFormat;
     private int mVideoTrackIndex;
     private int mAudioTrackIndex;
-    private ByteBuffer mByteBuffer;
-    private final List<SampleInfo> mSampleInfoList;
+    private final SampleArena mPendingSamples;
     private boolean mStarted;
+    private long mInterleaveWindowUs = DEFAULT_INTERLEAVE_WINDOW_US;
+    private final SampleQueue mVideoQueue = new SampleQueue();
+    private final SampleQueue mAudioQueue = new SampleQueue();
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    public QueuedMuxer(Muxer muxer, Listener listener) {
+        this(muxer, listener, SampleArena.DEFAULT_MEMORY_LIMIT, new File(System.getProperty("java.io.tmpdir")));
+    }
 
-    public QueuedMuxer(MediaMuxer muxer, Listener listener) {
+    /**
+     * @param memoryLimit    Max bytes of queued samples to keep in memory.
+     * @param spillDirectory Directory for samples beyond memoryLimit.
+     */
+    public QueuedMuxer(Muxer muxer, Listener listener, long memoryLimit, File spillDirectory) {
         mMuxer = muxer;
         mListener = listener;
-        mSampleInfoList = new ArrayList<>();
+        mPendingSamples = new SampleArena(memoryLimit, spillDirectory);
+    }
+
+    /**
+     * @param interleaveWindowUs Max presentation time span a track may be held back to wait for the other track.
+     *                           0 writes samples in the order they arrive.
+     */
+    public synchronized void setInterleaveWindowUs(long interleaveWindowUs) {
+        if (interleaveWindowUs < 0) {
+            throw new IllegalArgumentException("interleaveWindowUs must not be negative: " + interleaveWindowUs);
+        }
+        mInterleaveWindowUs = interleaveWindowUs;
+        if (mStarted) drainQueues(interleaveWindowUs == 0);
     }
 
-    public void setOutputFormat(SampleType sampleType, MediaFormat format) {
+    @Override
+    public synchronized void setOutputFormat(SampleType sampleType, MediaFormat format) {
         switch (sampleType) {
             case VIDEO:
                 mVideoFormat = format;
@@ -73,35 +102,111 @@ public class QueuedMuxer {
         mMuxer.start();
         mStarted = true;
 
-        if (mByteBuffer == null) {
-            mByteBuffer = ByteBuffer.allocate(0);
-        }
-        mByteBuffer.flip();
-        Log.v(TAG, "Output format determined, writing " + mSampleInfoList.size() +
-                " samples / " + mByteBuffer.limit() + " bytes to muxer.");
-        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-        int offset = 0;
-        for (SampleInfo sampleInfo : mSampleInfoList) {
-            sampleInfo.writeToBufferInfo(bufferInfo, offset);
-            mMuxer.writeSampleData(getTrackIndexForSampleType(sampleInfo.mSampleType), mByteBuffer, bufferInfo);
-            offset += sampleInfo.mSize;
+        int sampleCount = mPendingSamples.getSampleCount();
+        Log.v(TAG, "Output format determined, writing " + sampleCount + " samples / " + mPendingSamples.getSampleBytes() +
+                " bytes (" + mPendingSamples.getSpilledBytes() + " bytes spilled) to muxer.");
+        SampleType[] sampleTypes = SampleType.values();
+        for (int i = 0; i < sampleCount; i++) {
+            ByteBuffer buffer = mPendingSamples.getBuffer(i);
+            int offset = mPendingSamples.getOffset(i);
+            buffer.limit(offset + mPendingSamples.getSize(i));
+            buffer.position(offset);
+            writeStarted(sampleTypes[mPendingSamples.getTrack(i)], buffer,
+                    mPendingSamples.getPresentationTimeUs(i), mPendingSamples.getFlags(i));
         }
-        mSampleInfoList.clear();
-        mByteBuffer = null;
+        mPendingSamples.release();
     }
 
-    public void writeSampleData(SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
-        if (mStarted) {
+    @Override
+    public synchronized void writeSampleData(SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (mStarted && mInterleaveWindowUs == 0) {
             mMuxer.writeSampleData(getTrackIndexForSampleType(sampleType), byteBuf, bufferInfo);
             return;
         }
         byteBuf.limit(bufferInfo.offset + bufferInfo.size);
         byteBuf.position(bufferInfo.offset);
-        if (mByteBuffer == null) {
-            mByteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+        if (mStarted) {
+            writeStarted(sampleType, byteBuf, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        } else {
+            mPendingSamples.add(sampleType.ordinal(), byteBuf, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        }
+    }
+
+    /**
+     * Writes all samples held back for interleaving. Call before stopping the muxer.
+     */
+    public synchronized void flush() {
+        if (mStarted) drainQueues(true);
+    }
+
+    /**
+     * Frees samples still queued, e.g. when transcoding failed before all formats were determined.
+     */
+    public synchronized void release() {
+        mPendingSamples.release();
+    }
+
+    /**
+     * @return Bytes held back for interleaving on the given track now.
+     */
+    public synchronized long getBufferedBytes(SampleType sampleType) {
+        return getQueueForSampleType(sampleType).getBufferedBytes();
+    }
+
+    /**
+     * @return Peak bytes held back for interleaving on the given track.
+     */
+    public synchronized long getMaxBufferedBytes(SampleType sampleType) {
+        return getQueueForSampleType(sampleType).getMaxBufferedBytes();
+    }
+
+    private void writeStarted(SampleType sampleType, ByteBuffer data, long presentationTimeUs, int flags) {
+        if (mInterleaveWindowUs == 0) {
+            mBufferInfo.set(data.position(), data.remaining(), presentationTimeUs, flags);
+            mMuxer.writeSampleData(getTrackIndexForSampleType(sampleType), data, mBufferInfo);
+            return;
+        }
+        getQueueForSampleType(sampleType).add(data, presentationTimeUs, flags);
+        drainQueues(false);
+    }
+
+    private void drainQueues(boolean all) {
+        while (true) {
+            SampleQueue queue;
+            SampleType sampleType;
+            if (!mVideoQueue.isEmpty() && !mAudioQueue.isEmpty()) {
+                boolean videoFirst = mVideoQueue.getHeadPresentationTimeUs() <= mAudioQueue.getHeadPresentationTimeUs();
+                queue = videoFirst ? mVideoQueue : mAudioQueue;
+                sampleType = videoFirst ? SampleType.VIDEO : SampleType.AUDIO;
+            } else if (!mVideoQueue.isEmpty() && (all || mVideoQueue.getBufferedDurationUs() > mInterleaveWindowUs)) {
+                queue = mVideoQueue;
+                sampleType = SampleType.VIDEO;
+            } else if (!mAudioQueue.isEmpty() && (all || mAudioQueue.getBufferedDurationUs() > mInterleaveWindowUs)) {
+                queue = mAudioQueue;
+                sampleType = SampleType.AUDIO;
+            } else {
+                return;
+            }
+            ByteBuffer buffer = queue.getBuffer();
+            int offset = queue.getHeadOffset();
+            int size = queue.getHeadSize();
+            buffer.limit(offset + size);
+            buffer.position(offset);
+            mBufferInfo.set(offset, size, queue.getHeadPresentationTimeUs(), queue.getHeadFlags());
+            mMuxer.writeSampleData(getTrackIndexForSampleType(sampleType), buffer, mBufferInfo);
+            queue.removeHead();
+        }
+    }
+
+    private SampleQueue getQueueForSampleType(SampleType sampleType) {
+        switch (sampleType) {
+            case VIDEO:
+                return mVideoQueue;
+            case AUDIO:
+                return mAudioQueue;
+            default:
+                throw new AssertionError();
         }
-        mByteBuffer.put(byteBuf);
-        mSampleInfoList.add(new SampleInfo(sampleType, bufferInfo.size, bufferInfo));
     }
 
     private int getTrackIndexForSampleType(SampleType sampleType) {
@@ -117,24 +222,6 @@ public class QueuedMuxer {
 
     public enum SampleType {VIDEO, AUDIO}
 
-    private static class SampleInfo {
-        private final SampleType mSampleType;
-        private final int mSize;
-        private final long mPresentationTimeUs;
-        private final int mFlags;
-
-        private SampleInfo(SampleType sampleType, int size, MediaCodec.BufferInfo bufferInfo) {
-            mSampleType = sampleType;
-            mSize = size;
-            mPresentationTimeUs = bufferInfo.presentationTimeUs;
-            mFlags = bufferInfo.flags;
-        }
-
-        private void writeToBufferInfo(MediaCodec.BufferInfo bufferInfo, int offset) {
-            bufferInfo.set(offset, mSize, mPresentationTimeUs, mFlags);
-        }
-    }
-
     public interface Listener {
         void onDetermineOutputFormat();
     }
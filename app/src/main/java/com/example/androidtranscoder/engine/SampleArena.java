@@ -0,0 +1,199 @@
+package com.example.androidtranscoder.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Append-only store of encoded samples, used by {@link QueuedMuxer} until the muxer can be started.
+ * <p>
+ * Sample data is packed into off-heap chunks which are allocated on demand and recycled through a shared pool.
+ * A sample never spans chunks; samples larger than a chunk get a chunk of their own.
+ * Once the memory limit is reached, further chunks are memory-mapped from a temporary file instead,
+ * so a long wait for the other track's format costs disk space rather than heap or native memory.
+ * Sample metadata is kept in parallel primitive arrays.
+ */
+class SampleArena {
+    public static final int CHUNK_SIZE = 256 * 1024;
+    public static final long DEFAULT_MEMORY_LIMIT = 16L * 1024 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 32;
+    private static final int INITIAL_SAMPLE_CAPACITY = 64;
+    // guarded by itself
+    private static final ArrayDeque<ByteBuffer> sChunkPool = new ArrayDeque<>();
+
+    private final long mMemoryLimit;
+    private final File mSpillDirectory;
+    private final ArrayList<ByteBuffer> mChunks = new ArrayList<>();
+    private int mMemoryChunkCount;
+    private long mMemoryUsed;
+    private ByteBuffer mCurrentChunk;
+    private RandomAccessFile mSpillFile;
+    private long mSpillSize;
+
+    private int mSampleCount;
+    private int[] mTracks = new int[INITIAL_SAMPLE_CAPACITY];
+    private int[] mChunkIndices = new int[INITIAL_SAMPLE_CAPACITY];
+    private int[] mOffsets = new int[INITIAL_SAMPLE_CAPACITY];
+    private int[] mSizes = new int[INITIAL_SAMPLE_CAPACITY];
+    private long[] mPresentationTimesUs = new long[INITIAL_SAMPLE_CAPACITY];
+    private int[] mFlags = new int[INITIAL_SAMPLE_CAPACITY];
+
+    /**
+     * @param memoryLimit    Max bytes of off-heap chunks; beyond that chunks are mapped from a file.
+     * @param spillDirectory Directory for the temporary spill file.
+     */
+    SampleArena(long memoryLimit, File spillDirectory) {
+        mMemoryLimit = memoryLimit;
+        mSpillDirectory = spillDirectory;
+    }
+
+    /**
+     * Appends remaining bytes of data as a sample.
+     *
+     * @param track Caller-defined track number, returned by {@link #getTrack(int)}.
+     */
+    public void add(int track, ByteBuffer data, long presentationTimeUs, int flags) {
+        int size = data.remaining();
+        ByteBuffer chunk = obtainChunkFor(size);
+        int offset = chunk.position();
+        chunk.put(data);
+
+        if (mSampleCount == mTracks.length) growMetadata();
+        int i = mSampleCount++;
+        mTracks[i] = track;
+        mChunkIndices[i] = mChunks.size() - 1;
+        mOffsets[i] = offset;
+        mSizes[i] = size;
+        mPresentationTimesUs[i] = presentationTimeUs;
+        mFlags[i] = flags;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return Total bytes of sample data stored, in memory and on disk.
+     */
+    public long getSampleBytes() {
+        long bytes = 0;
+        for (int i = 0; i < mSampleCount; i++) bytes += mSizes[i];
+        return bytes;
+    }
+
+    public long getSpilledBytes() {
+        return mSpillSize;
+    }
+
+    public int getTrack(int index) {
+        return mTracks[index];
+    }
+
+    /**
+     * @return Buffer holding the sample at {@link #getOffset(int)}. Position and limit are undefined.
+     */
+    public ByteBuffer getBuffer(int index) {
+        return mChunks.get(mChunkIndices[index]);
+    }
+
+    public int getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    public int getSize(int index) {
+        return mSizes[index];
+    }
+
+    public long getPresentationTimeUs(int index) {
+        return mPresentationTimesUs[index];
+    }
+
+    public int getFlags(int index) {
+        return mFlags[index];
+    }
+
+    /**
+     * Drops all samples, returns chunks to the pool and deletes the spill file.
+     */
+    public void release() {
+        synchronized (sChunkPool) {
+            for (int i = 0; i < mMemoryChunkCount; i++) {
+                ByteBuffer chunk = mChunks.get(i);
+                if (chunk.capacity() == CHUNK_SIZE && sChunkPool.size() < MAX_POOLED_CHUNKS) {
+                    chunk.clear();
+                    sChunkPool.add(chunk);
+                }
+            }
+        }
+        mChunks.clear();
+        mMemoryChunkCount = 0;
+        mMemoryUsed = 0;
+        mCurrentChunk = null;
+        mSampleCount = 0;
+        if (mSpillFile != null) {
+            try {
+                mSpillFile.close();
+            } catch (IOException e) {
+                // ignore, file is already unlinked
+            }
+            mSpillFile = null;
+            mSpillSize = 0;
+        }
+    }
+
+    private ByteBuffer obtainChunkFor(int size) {
+        if (mCurrentChunk != null && mCurrentChunk.remaining() >= size) return mCurrentChunk;
+        int chunkSize = Math.max(CHUNK_SIZE, size);
+        ByteBuffer chunk;
+        if (mSpillFile == null && mMemoryUsed + chunkSize <= mMemoryLimit) {
+            chunk = chunkSize == CHUNK_SIZE ? obtainPooledChunk() : ByteBuffer.allocateDirect(chunkSize);
+            mMemoryUsed += chunkSize;
+            mMemoryChunkCount++;
+        } else {
+            chunk = mapSpillChunk(chunkSize);
+        }
+        mChunks.add(chunk);
+        mCurrentChunk = chunk;
+        return chunk;
+    }
+
+    private static ByteBuffer obtainPooledChunk() {
+        synchronized (sChunkPool) {
+            ByteBuffer chunk = sChunkPool.poll();
+            if (chunk != null) return chunk;
+        }
+        return ByteBuffer.allocateDirect(CHUNK_SIZE);
+    }
+
+    private ByteBuffer mapSpillChunk(int chunkSize) {
+        try {
+            if (mSpillFile == null) {
+                File file = File.createTempFile("QueuedMuxer", ".spill", mSpillDirectory);
+                mSpillFile = new RandomAccessFile(file, "rw");
+                // Unlink right away; the open file and its mappings stay valid until closed.
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+            ByteBuffer chunk = mSpillFile.getChannel().map(FileChannel.MapMode.READ_WRITE, mSpillSize, chunkSize);
+            mSpillSize += chunkSize;
+            return chunk;
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not spill pending samples to " + mSpillDirectory, e);
+        }
+    }
+
+    private void growMetadata() {
+        int capacity = mTracks.length * 2;
+        mTracks = Arrays.copyOf(mTracks, capacity);
+        mChunkIndices = Arrays.copyOf(mChunkIndices, capacity);
+        mOffsets = Arrays.copyOf(mOffsets, capacity);
+        mSizes = Arrays.copyOf(mSizes, capacity);
+        mPresentationTimesUs = Arrays.copyOf(mPresentationTimesUs, capacity);
+        mFlags = Arrays.copyOf(mFlags, capacity);
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.androidtranscoder.engine;
+
+/**
+ * Presentation time of audio derived from the number of frames since a start time, exact to the microsecond.
+ * <p>
+ * Time is kept as whole microseconds plus a remainder in units of 1 / sample rate, so rounding never accumulates,
+ * even over hours. The step for a frame count is computed once and reused while buffers keep the same size,
+ * so advancing takes no division.
+ */
+class SampleClock {
+    private static final long MICROSECS_PER_SEC = 1000000;
+
+    private final int mSampleRate;
+    private boolean mStarted;
+    private long mTimeUs;
+    /** Fraction of a microsecond, in [0, sample rate). */
+    private int mRemainder;
+
+    private int mStepFrameCount = -1;
+    private long mStepUs;
+    private int mStepRemainder;
+
+    public SampleClock(int sampleRate) {
+        if (sampleRate <= 0) throw new IllegalArgumentException("Invalid sample rate: " + sampleRate);
+        mSampleRate = sampleRate;
+    }
+
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    public void start(long startTimeUs) {
+        mStarted = true;
+        mTimeUs = startTimeUs;
+        mRemainder = 0;
+    }
+
+    /**
+     * @return Presentation time of the next frame, rounded down.
+     */
+    public long getTimeUs() {
+        return mTimeUs;
+    }
+
+    public void advance(int frameCount) {
+        if (frameCount != mStepFrameCount) {
+            final long durationTimesRate = frameCount * MICROSECS_PER_SEC;
+            mStepUs = durationTimesRate / mSampleRate;
+            mStepRemainder = (int) (durationTimesRate - mStepUs * mSampleRate);
+            mStepFrameCount = frameCount;
+        }
+        mTimeUs += mStepUs;
+        mRemainder += mStepRemainder;
+        if (mRemainder >= mSampleRate) {
+            mRemainder -= mSampleRate;
+            mTimeUs++;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaExtractor;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a {@link MediaExtractor} once, on a dedicated thread, ahead of the decoders.
+ * <p>
+ * Samples are routed in file order into a {@link SampleRingBuffer} per track, so a track transcoder
+ * never has to wait for the extractor to move past samples of another track.
+ * When the ring of the next sample is full the demuxer blocks, which bounds read-ahead for all tracks.
+ * <p>
+ * A track ends at its first sync sample presented at or after the end time. Samples before it in decode order are
+ * still queued, since frames presented before the end may depend on them.
+ */
+class SampleDemuxer implements Runnable {
+    private static final String TAG = "SampleDemuxer";
+    public static final int VIDEO_QUEUE_CAPACITY = 16;
+    public static final int AUDIO_QUEUE_CAPACITY = 64;
+    private final MediaExtractor mExtractor;
+    private final long mEndTimeUs;
+    private final SparseArray<SampleRingBuffer> mRingBuffers = new SparseArray<>();
+    private final SparseArray<SampleRingBuffer> mActiveRingBuffers = new SparseArray<>();
+    private Thread mThread;
+
+    SampleDemuxer(MediaExtractor extractor) {
+        this(extractor, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param endTimeUs Presentation time at which tracks end, or {@link Long#MAX_VALUE} to read to the end of the input.
+     */
+    SampleDemuxer(MediaExtractor extractor, long endTimeUs) {
+        mExtractor = extractor;
+        mEndTimeUs = endTimeUs;
+    }
+
+    /**
+     * Selects the track and returns its sample source. Must be called before {@link #start()}.
+     *
+     * @param capacity Number of samples which may be read ahead for this track.
+     * @param listener Called on the demuxer thread when samples are queued for this track or the stream ends. Can be null.
+     */
+    public SampleSource addTrack(int trackIndex, int capacity, Runnable listener) {
+        if (mThread != null) throw new IllegalStateException("Demuxer already started.");
+        mExtractor.selectTrack(trackIndex);
+        SampleRingBuffer ringBuffer = new SampleRingBuffer(capacity, listener);
+        mRingBuffers.put(trackIndex, ringBuffer);
+        mActiveRingBuffers.put(trackIndex, ringBuffer);
+        return ringBuffer;
+    }
+
+    /**
+     * Starts reading from the current position of the extractor, so seek it before.
+     */
+    public void start() {
+        mThread = new Thread(this, "MediaTranscoder-Demuxer");
+        mThread.start();
+    }
+
+    /**
+     * Stops the demuxer thread and waits for it, so the extractor can be released afterwards.
+     */
+    public void release() {
+        if (mThread == null) return;
+        mThread.interrupt();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        mThread = null;
+        for (int i = 0; i < mRingBuffers.size(); i++) {
+            SampleRingBuffer ringBuffer = mRingBuffers.valueAt(i);
+            Log.d(TAG, "Track #" + mRingBuffers.keyAt(i)
+                    + ": consumer waited " + TimeUnit.NANOSECONDS.toMillis(ringBuffer.getConsumerWaitNs()) + " ms"
+                    + " in " + ringBuffer.getConsumerWaitCount() + " waits"
+                    + ", demuxer blocked " + TimeUnit.NANOSECONDS.toMillis(ringBuffer.getProducerBlockedNs()) + " ms");
+        }
+    }
+
+    /**
+     * @return Ring buffer of given track, for wait statistics.
+     */
+    public SampleRingBuffer getRingBuffer(int trackIndex) {
+        return mRingBuffers.get(trackIndex);
+    }
+
+    @Override
+    public void run() {
+        RuntimeException error = null;
+        try {
+            while (!Thread.currentThread().isInterrupted() && mActiveRingBuffers.size() > 0) {
+                int trackIndex = mExtractor.getSampleTrackIndex();
+                if (trackIndex < 0) break;
+                SampleRingBuffer ringBuffer = mActiveRingBuffers.get(trackIndex);
+                if (ringBuffer == null) {
+                    mExtractor.advance();
+                    continue;
+                }
+                long sampleTime = mExtractor.getSampleTime();
+                int flags = mExtractor.getSampleFlags();
+                if (sampleTime >= mEndTimeUs && (flags & MediaExtractor.SAMPLE_FLAG_SYNC) != 0) {
+                    ringBuffer.endOfStream(null);
+                    mActiveRingBuffers.remove(trackIndex);
+                    mExtractor.unselectTrack(trackIndex);
+                    continue;
+                }
+                ByteBuffer slot = ringBuffer.acquireSlot((int) mExtractor.getSampleSize());
+                int size = mExtractor.readSampleData(slot, 0);
+                ringBuffer.publish(size, sampleTime, flags);
+                mExtractor.advance();
+            }
+        } catch (InterruptedException e) {
+            // Released before end of stream.
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to read sample.", e);
+            error = e;
+        } finally {
+            for (int i = 0; i < mActiveRingBuffers.size(); i++) {
+                mActiveRingBuffers.valueAt(i).endOfStream(error);
+            }
+            mActiveRingBuffers.clear();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.androidtranscoder.engine;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FIFO of encoded samples of one track, used by {@link QueuedMuxer} to interleave tracks.
+ * <p>
+ * Sample data is kept contiguous in a circular direct buffer which is doubled when a sample does not fit,
+ * and metadata in circular primitive arrays, so steady-state queueing does not allocate.
+ */
+class SampleQueue {
+    private static final int INITIAL_CAPACITY_BYTES = 256 * 1024;
+    private static final int INITIAL_CAPACITY_SAMPLES = 32;
+
+    private ByteBuffer mData = ByteBuffer.allocateDirect(INITIAL_CAPACITY_BYTES);
+    private int mWritePosition;
+    private int[] mOffsets = new int[INITIAL_CAPACITY_SAMPLES];
+    private int[] mSizes = new int[INITIAL_CAPACITY_SAMPLES];
+    private long[] mPresentationTimesUs = new long[INITIAL_CAPACITY_SAMPLES];
+    private int[] mFlags = new int[INITIAL_CAPACITY_SAMPLES];
+    private int mHead;
+    private int mCount;
+    private long mBufferedBytes;
+    private long mMaxBufferedBytes;
+
+    /**
+     * Copies remaining bytes of data to the tail of the queue.
+     */
+    public void add(ByteBuffer data, long presentationTimeUs, int flags) {
+        int size = data.remaining();
+        int offset = allocate(size);
+        if (mCount == mOffsets.length) growMetadata();
+        int index = (mHead + mCount) % mOffsets.length;
+        mData.limit(offset + size);
+        mData.position(offset);
+        mData.put(data);
+        mOffsets[index] = offset;
+        mSizes[index] = size;
+        mPresentationTimesUs[index] = presentationTimeUs;
+        mFlags[index] = flags;
+        mCount++;
+        mWritePosition = offset + size;
+        mBufferedBytes += size;
+        if (mBufferedBytes > mMaxBufferedBytes) mMaxBufferedBytes = mBufferedBytes;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * @return Difference of presentation time between the newest and the oldest sample.
+     */
+    public long getBufferedDurationUs() {
+        if (mCount == 0) return 0;
+        int tail = (mHead + mCount - 1) % mOffsets.length;
+        return mPresentationTimesUs[tail] - mPresentationTimesUs[mHead];
+    }
+
+    public long getBufferedBytes() {
+        return mBufferedBytes;
+    }
+
+    public long getMaxBufferedBytes() {
+        return mMaxBufferedBytes;
+    }
+
+    /**
+     * @return Buffer holding the oldest sample at {@link #getHeadOffset()}. Position and limit are undefined.
+     */
+    public ByteBuffer getBuffer() {
+        return mData;
+    }
+
+    public int getHeadOffset() {
+        return mOffsets[mHead];
+    }
+
+    public int getHeadSize() {
+        return mSizes[mHead];
+    }
+
+    public long getHeadPresentationTimeUs() {
+        return mPresentationTimesUs[mHead];
+    }
+
+    public int getHeadFlags() {
+        return mFlags[mHead];
+    }
+
+    public void removeHead() {
+        if (mCount == 0) throw new IllegalStateException("Queue is empty.");
+        mBufferedBytes -= mSizes[mHead];
+        mHead = (mHead + 1) % mOffsets.length;
+        mCount--;
+        if (mCount == 0) {
+            mHead = 0;
+            mWritePosition = 0;
+        }
+    }
+
+    private int allocate(int size) {
+        int capacity = mData.capacity();
+        if (mCount == 0) {
+            if (size <= capacity) return 0;
+        } else {
+            int readPosition = mOffsets[mHead];
+            if (mWritePosition >= readPosition) {
+                if (capacity - mWritePosition >= size) return mWritePosition;
+                // Wrap around, keeping the write position strictly behind the read position.
+                if (size < readPosition) return 0;
+            } else if (readPosition - mWritePosition > size) {
+                return mWritePosition;
+            }
+        }
+        growData(size);
+        return mWritePosition;
+    }
+
+    private void growData(int size) {
+        int capacity = mData.capacity();
+        ByteBuffer data = ByteBuffer.allocateDirect(Math.max(capacity * 2, capacity + size));
+        int length = mOffsets.length;
+        for (int i = 0; i < mCount; i++) {
+            int index = (mHead + i) % length;
+            mData.limit(mOffsets[index] + mSizes[index]);
+            mData.position(mOffsets[index]);
+            mOffsets[index] = data.position();
+            data.put(mData);
+        }
+        mWritePosition = data.position();
+        mData = data;
+    }
+
+    private void growMetadata() {
+        int length = mOffsets.length;
+        int[] offsets = new int[length * 2];
+        int[] sizes = new int[length * 2];
+        long[] presentationTimesUs = new long[length * 2];
+        int[] flags = new int[length * 2];
+        for (int i = 0; i < mCount; i++) {
+            int index = (mHead + i) % length;
+            offsets[i] = mOffsets[index];
+            sizes[i] = mSizes[index];
+            presentationTimesUs[i] = mPresentationTimesUs[index];
+            flags[i] = mFlags[index];
+        }
+        mOffsets = offsets;
+        mSizes = sizes;
+        mPresentationTimesUs = presentationTimesUs;
+        mFlags = flags;
+        mHead = 0;
+    }
+}
@@ -0,0 +1,191 @@
+package com.example.androidtranscoder.engine;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bounded ring of compressed samples for one track, filled by {@link SampleDemuxer} and consumed by a track transcoder.
+ * <p>
+ * Slot buffers are allocated on first use and reused afterwards, growing only when a sample does not fit,
+ * and sample metadata is kept in primitive arrays, so steady-state demuxing does not allocate.
+ * The producer blocks while the ring is full; the consumer never blocks, it just sees no sample available.
+ * Time spent waiting on either side is accumulated for diagnostics.
+ */
+class SampleRingBuffer implements SampleSource {
+    private static final int MIN_SLOT_SIZE = 4 * 1024;
+    private final int mCapacity;
+    private final Runnable mListener;
+    // guarded by this
+    private final ByteBuffer[] mSlots;
+    private final int[] mSizes;
+    private final long[] mPresentationTimesUs;
+    private final int[] mFlags;
+    private int mHead;
+    private int mCount;
+    private boolean mEndOfStream;
+    private RuntimeException mError;
+    private long mStarvedSinceNs = -1;
+    private long mConsumerWaitNs;
+    private int mConsumerWaitCount;
+    private long mProducerBlockedNs;
+
+    /**
+     * @param capacity Number of samples the ring can hold.
+     * @param listener Called on the producer thread after a sample is queued or the stream ends. Can be null.
+     */
+    SampleRingBuffer(int capacity, Runnable listener) {
+        mCapacity = capacity;
+        mListener = listener;
+        mSlots = new ByteBuffer[capacity];
+        mSizes = new int[capacity];
+        mPresentationTimesUs = new long[capacity];
+        mFlags = new int[capacity];
+    }
+
+    /**
+     * Waits for a free slot and returns its buffer, cleared and large enough for sampleSize bytes.
+     * The buffer belongs to the producer until {@link #publish(int, long, int)}.
+     */
+    ByteBuffer acquireSlot(int sampleSize) throws InterruptedException {
+        synchronized (this) {
+            if (mCount == mCapacity) {
+                long startNs = System.nanoTime();
+                while (mCount == mCapacity) wait();
+                mProducerBlockedNs += System.nanoTime() - startNs;
+            }
+            int tail = (mHead + mCount) % mCapacity;
+            ByteBuffer slot = mSlots[tail];
+            if (slot == null || slot.capacity() < sampleSize) {
+                int slotSize = Math.max(MIN_SLOT_SIZE, Integer.highestOneBit(Math.max(sampleSize - 1, 1)) << 1);
+                slot = ByteBuffer.allocateDirect(slotSize).order(ByteOrder.nativeOrder());
+                mSlots[tail] = slot;
+            }
+            slot.clear();
+            return slot;
+        }
+    }
+
+    /**
+     * Queues the sample written into the buffer returned by the last {@link #acquireSlot(int)}.
+     */
+    void publish(int size, long presentationTimeUs, int flags) {
+        synchronized (this) {
+            int tail = (mHead + mCount) % mCapacity;
+            mSizes[tail] = size;
+            mPresentationTimesUs[tail] = presentationTimeUs;
+            mFlags[tail] = flags;
+            mCount++;
+        }
+        if (mListener != null) mListener.run();
+    }
+
+    /**
+     * Marks that no more samples will be queued.
+     *
+     * @param error Cause if demuxing failed, or null on normal end of stream.
+     */
+    void endOfStream(RuntimeException error) {
+        synchronized (this) {
+            mEndOfStream = true;
+            mError = error;
+        }
+        if (mListener != null) mListener.run();
+    }
+
+    @Override
+    public synchronized boolean isSampleAvailable() {
+        throwIfError();
+        if (mCount > 0) {
+            if (mStarvedSinceNs >= 0) {
+                mConsumerWaitNs += System.nanoTime() - mStarvedSinceNs;
+                mConsumerWaitCount++;
+                mStarvedSinceNs = -1;
+            }
+            return true;
+        }
+        if (!mEndOfStream && mStarvedSinceNs < 0) mStarvedSinceNs = System.nanoTime();
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isEndOfStream() {
+        throwIfError();
+        return mCount == 0 && mEndOfStream;
+    }
+
+    @Override
+    public synchronized long getSampleTime() {
+        checkHasSample();
+        return mPresentationTimesUs[mHead];
+    }
+
+    @Override
+    public synchronized int getSampleFlags() {
+        checkHasSample();
+        return mFlags[mHead];
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        final ByteBuffer data;
+        final int size;
+        synchronized (this) {
+            checkHasSample();
+            // The head slot is not touched by the producer until advance(), so it can be copied outside the lock.
+            data = mSlots[mHead].duplicate();
+            size = mSizes[mHead];
+        }
+        data.position(0).limit(size);
+        buffer.clear();
+        buffer.position(offset);
+        buffer.put(data);
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        return size;
+    }
+
+    @Override
+    public synchronized void advance() {
+        checkHasSample();
+        mHead = (mHead + 1) % mCapacity;
+        mCount--;
+        notifyAll();
+    }
+
+    /**
+     * @return Number of samples queued and not consumed yet.
+     */
+    public synchronized int getQueuedSampleCount() {
+        return mCount;
+    }
+
+    /**
+     * @return Total time the consumer found the ring empty before a sample arrived, in nanoseconds.
+     */
+    public synchronized long getConsumerWaitNs() {
+        return mConsumerWaitNs;
+    }
+
+    /**
+     * @return Number of times the consumer found the ring empty and later got a sample.
+     */
+    public synchronized int getConsumerWaitCount() {
+        return mConsumerWaitCount;
+    }
+
+    /**
+     * @return Total time the producer was blocked on a full ring, in nanoseconds.
+     */
+    public synchronized long getProducerBlockedNs() {
+        return mProducerBlockedNs;
+    }
+
+    private void checkHasSample() {
+        throwIfError();
+        if (mCount == 0) throw new IllegalStateException("No sample available.");
+    }
+
+    private void throwIfError() {
+        if (mError != null) throw new IllegalStateException("Demuxer failed.", mError);
+    }
+}
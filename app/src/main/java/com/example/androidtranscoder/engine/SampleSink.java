@@ -0,0 +1,20 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Output of track transcoders: the format of each track once it is known, then its samples.
+ * Mirrors the part of {@link QueuedMuxer} used by track transcoders.
+ */
+public interface SampleSink {
+
+    void setOutputFormat(QueuedMuxer.SampleType sampleType, MediaFormat format);
+
+    /**
+     * Writes the bufferInfo.size bytes of byteBuf at bufferInfo.offset. The position and limit of byteBuf may change.
+     */
+    void writeSampleData(QueuedMuxer.SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+}
@@ -0,0 +1,35 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a track to several sinks, e.g. the audio track to the muxer of each rendition, so it is transcoded once.
+ */
+public class SampleSinkGroup implements SampleSink {
+    private final List<SampleSink> mSinks;
+
+    public SampleSinkGroup(List<? extends SampleSink> sinks) {
+        mSinks = new ArrayList<>(sinks);
+    }
+
+    @Override
+    public void setOutputFormat(QueuedMuxer.SampleType sampleType, MediaFormat format) {
+        for (SampleSink sink : mSinks) sink.setOutputFormat(sampleType, format);
+    }
+
+    @Override
+    public void writeSampleData(QueuedMuxer.SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        final int position = byteBuf.position();
+        final int limit = byteBuf.limit();
+        for (SampleSink sink : mSinks) {
+            // Each sink may move position and limit.
+            byteBuf.limit(limit).position(position);
+            sink.writeSampleData(sampleType, byteBuf, bufferInfo);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaExtractor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compressed samples of a single track, read in decoding order.
+ * Mirrors the subset of {@link MediaExtractor} used by track transcoders, but only sees its own track.
+ */
+public interface SampleSource {
+
+    /**
+     * @return true if the current sample can be read now; false if it is not ready yet or the track has ended.
+     */
+    boolean isSampleAvailable();
+
+    /**
+     * @return true if every sample of this track has been consumed.
+     */
+    boolean isEndOfStream();
+
+    /**
+     * @return Presentation time of the current sample in micro-seconds.
+     */
+    long getSampleTime();
+
+    /**
+     * @return Flags of the current sample, combination of {@link MediaExtractor#SAMPLE_FLAG_SYNC} and others.
+     */
+    int getSampleFlags();
+
+    /**
+     * Copies the current sample into given buffer at offset.
+     *
+     * @return Size of the sample in bytes.
+     */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    /**
+     * Moves to the next sample of this track.
+     */
+    void advance();
+}
@@ -0,0 +1,366 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.example.androidtranscoder.format.MediaFormatStrategy;
+import com.example.androidtranscoder.muxer.Muxer;
+import com.example.androidtranscoder.muxer.PlatformMuxer;
+import com.example.androidtranscoder.utils.MediaExtractorUtils;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Transcodes a range of the input in segments split at video sync samples, several segments at once, then
+ * concatenates them into one output with continuous timestamps.
+ * <p>
+ * Each segment runs on its own thread through an engine of its own, with its own extractor seeked to the segment's
+ * start, into a temporary MP4 file. Segments cost a decoder and an encoder each, so the engine caps their number by the
+ * codec sessions the device runs at once and by the codecs the pool has left; each segment reserves its own codecs.
+ * Every segment's encoder starts over, so each segment's sync frames carry the parameter sets, and audio gets a few
+ * milliseconds of encoder priming at each segment start.
+ */
+class SegmentedTranscoder {
+    private static final String TAG = "SegmentedTranscoder";
+    /** Segments shorter than this are not worth the setup of their codecs. */
+    static final long MIN_SEGMENT_DURATION_US = 10_000_000;
+    private static final long PROGRESS_INTERVAL_MS = 100;
+    // Concatenation only copies samples, so it gets a small share of the progress.
+    private static final double CONCAT_PROGRESS_SHARE = 0.05;
+    private static final int DEFAULT_SAMPLE_BUFFER_SIZE = 1024 * 1024;
+
+    private final MediaTranscoderEngine mParent;
+    private final FileDescriptor mInputFileDescriptor;
+    private final long[] mBoundariesUs;
+    private final boolean mOpenEnded;
+    private final MediaFormatStrategy mFormatStrategy;
+
+    /**
+     * @param parent        Engine whose settings the engine of each segment copies.
+     * @param boundariesUs  Start of each segment, followed by the end of the last one, in micro-seconds of the input.
+     * @param openEnded     true if the last segment runs to the end of the input rather than to the last boundary.
+     */
+    SegmentedTranscoder(MediaTranscoderEngine parent, FileDescriptor inputFileDescriptor, long[] boundariesUs,
+                        boolean openEnded, MediaFormatStrategy formatStrategy) {
+        mParent = parent;
+        mInputFileDescriptor = inputFileDescriptor;
+        mBoundariesUs = boundariesUs;
+        mOpenEnded = openEnded;
+        mFormatStrategy = formatStrategy;
+    }
+
+    /**
+     * Splits [startUs, endUs) into up to maxSegments segments of about equal length, moving each boundary back to a
+     * sync sample and dropping boundaries which would leave a segment shorter than minSegmentUs.
+     *
+     * @param previousSyncTime Maps a time to the time of the last sync sample at or before it.
+     * @return Start of each segment, followed by endUs.
+     */
+    static long[] planSegmentBoundaries(long startUs, long endUs, int maxSegments, long minSegmentUs,
+                                        LongUnaryOperator previousSyncTime) {
+        final long durationUs = endUs - startUs;
+        final int segments = (int) Math.max(1, Math.min(maxSegments, durationUs / minSegmentUs));
+        long[] boundaries = new long[segments + 1];
+        int count = 0;
+        boundaries[count++] = startUs;
+        for (int i = 1; i < segments; i++) {
+            long boundaryUs = previousSyncTime.applyAsLong(startUs + durationUs * i / segments);
+            if (boundaryUs - boundaries[count - 1] >= minSegmentUs && endUs - boundaryUs >= minSegmentUs) {
+                boundaries[count++] = boundaryUs;
+            }
+        }
+        boundaries[count++] = endUs;
+        return Arrays.copyOf(boundaries, count);
+    }
+
+    /**
+     * Transcodes every segment, then writes them into the muxer and stops it. Blocks current thread.
+     *
+     * @param muxer            Output muxer, with metadata set and no track added yet.
+     * @param progressCallback Called on this thread with the progress of the whole range.
+     */
+    void transcode(Muxer muxer, MediaTranscoderEngine.ProgressCallback progressCallback) throws IOException, InterruptedException {
+        final int segmentCount = mBoundariesUs.length - 1;
+        File[] segmentFiles = new File[segmentCount];
+        try {
+            for (int i = 0; i < segmentCount; i++) segmentFiles[i] = File.createTempFile("segment", ".mp4");
+            transcodeSegments(segmentFiles, progressCallback);
+            concatenate(segmentFiles, muxer, progressCallback);
+        } finally {
+            for (File segmentFile : segmentFiles) {
+                if (segmentFile != null && !segmentFile.delete()) Log.w(TAG, "Could not delete " + segmentFile);
+            }
+        }
+    }
+
+    private void transcodeSegments(File[] segmentFiles, MediaTranscoderEngine.ProgressCallback progressCallback) throws IOException, InterruptedException {
+        final MediaFormatStrategy formatStrategy = prependParameterSets(mFormatStrategy);
+        final PipelineSignal doneSignal = new PipelineSignal();
+        final SegmentWorker[] workers = new SegmentWorker[segmentFiles.length];
+        for (int i = 0; i < workers.length; i++) {
+            long endUs = mOpenEnded && i == workers.length - 1 ? -1 : mBoundariesUs[i + 1];
+            MediaTranscoderEngine engine = mParent.createSegmentEngine(mBoundariesUs[i], endUs);
+            workers[i] = new SegmentWorker("MediaTranscoder-Segment-" + i, engine, mInputFileDescriptor,
+                    segmentFiles[i], formatStrategy, doneSignal);
+        }
+        Log.d(TAG, "Transcoding " + workers.length + " segments: " + Arrays.toString(mBoundariesUs));
+        for (SegmentWorker worker : workers) worker.start();
+        try {
+            while (!isAllDone(workers) && getError(workers) == null) {
+                doneSignal.await(PROGRESS_INTERVAL_MS);
+                double progress = 0;
+                for (int i = 0; i < workers.length; i++) {
+                    double segmentProgress = workers[i].isFinished() ? 1.0 : Math.max(0, workers[i].getProgress());
+                    progress += segmentProgress * (mBoundariesUs[i + 1] - mBoundariesUs[i]);
+                }
+                final long durationUs = mBoundariesUs[workers.length] - mBoundariesUs[0];
+                progressCallback.onProgress(progress / durationUs * (1.0 - CONCAT_PROGRESS_SHARE));
+            }
+        } finally {
+            // Stops the other segments if one failed or this thread was interrupted.
+            for (SegmentWorker worker : workers) {
+                if (!worker.isDone()) worker.interrupt();
+            }
+            for (SegmentWorker worker : workers) worker.join();
+        }
+        Exception error = getError(workers);
+        if (error instanceof IOException) throw (IOException) error;
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        if (error != null) throw new IllegalStateException("Segment transcode failed.", error);
+        for (SegmentWorker worker : workers) {
+            if (!worker.isFinished()) throw new IllegalStateException("Segment workers exited before finishing.");
+        }
+    }
+
+    private static boolean isAllDone(SegmentWorker[] workers) {
+        for (SegmentWorker worker : workers) {
+            if (!worker.isDone()) return false;
+        }
+        return true;
+    }
+
+    private static Exception getError(SegmentWorker[] workers) {
+        for (SegmentWorker worker : workers) {
+            if (worker.getError() != null) return worker.getError();
+        }
+        return null;
+    }
+
+    /**
+     * Copies the samples of each segment file into the muxer, shifted by the segment's start in the range.
+     */
+    private void concatenate(File[] segmentFiles, Muxer muxer, MediaTranscoderEngine.ProgressCallback progressCallback) throws IOException, InterruptedException {
+        final long durationUs = mBoundariesUs[segmentFiles.length] - mBoundariesUs[0];
+        MediaFormat firstVideoFormat = null;
+        int videoTrackIndex = -1;
+        int audioTrackIndex = -1;
+        Timeline timeline = new Timeline(mBoundariesUs);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(DEFAULT_SAMPLE_BUFFER_SIZE);
+        MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+        for (int i = 0; i < segmentFiles.length; i++) {
+            timeline.startSegment(i);
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(segmentFiles[i].getPath());
+                MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(extractor);
+                if (firstVideoFormat == null) {
+                    firstVideoFormat = trackResult.mVideoTrackFormat;
+                    videoTrackIndex = muxer.addTrack(trackResult.mVideoTrackFormat);
+                    audioTrackIndex = muxer.addTrack(trackResult.mAudioTrackFormat);
+                    muxer.start();
+                } else if (!hasSameParameterSets(firstVideoFormat, trackResult.mVideoTrackFormat)) {
+                    Log.w(TAG, "Parameter sets of segment " + i + " differ, relying on the ones at its sync frames.");
+                }
+                extractor.selectTrack(trackResult.mVideoTrackIndex);
+                extractor.selectTrack(trackResult.mAudioTrackIndex);
+                int trackIndex;
+                while ((trackIndex = extractor.getSampleTrackIndex()) >= 0) {
+                    if (Thread.interrupted()) throw new InterruptedException();
+                    final long sampleSize = extractor.getSampleSize();
+                    if (sampleSize > buffer.capacity()) buffer = ByteBuffer.allocateDirect((int) sampleSize);
+                    buffer.clear();
+                    final int size = extractor.readSampleData(buffer, 0);
+                    final long timeUs = timeline.toOutputTimeUs(extractor.getSampleTime());
+                    final boolean isKeyFrame = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                    bufferInfo.set(0, size, timeUs, isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+                    if (trackIndex == trackResult.mVideoTrackIndex) {
+                        muxer.writeSampleData(videoTrackIndex, buffer, bufferInfo);
+                    } else if (timeline.acceptAudio(timeUs)) {
+                        muxer.writeSampleData(audioTrackIndex, buffer, bufferInfo);
+                    }
+                    extractor.advance();
+                }
+            } finally {
+                extractor.release();
+            }
+            final long doneUs = mBoundariesUs[i + 1] - mBoundariesUs[0];
+            progressCallback.onProgress(1.0 - CONCAT_PROGRESS_SHARE + CONCAT_PROGRESS_SHARE * doneUs / durationUs);
+        }
+        muxer.stop();
+    }
+
+    /**
+     * Places the samples of each segment file on the timeline of the output, in segment order.
+     */
+    static class Timeline {
+        private final long[] mBoundariesUs;
+        private long mOffsetUs;
+        private long mLastAudioTimeUs = -1;
+
+        Timeline(long[] boundariesUs) {
+            mBoundariesUs = boundariesUs;
+        }
+
+        void startSegment(int segment) {
+            mOffsetUs = mBoundariesUs[segment] - mBoundariesUs[0];
+        }
+
+        /**
+         * @param segmentTimeUs Sample time in the segment file, which starts at 0 at the segment's start.
+         */
+        long toOutputTimeUs(long segmentTimeUs) {
+            return segmentTimeUs + mOffsetUs;
+        }
+
+        /**
+         * Audio of a segment runs to its end, so its last frame may reach past the next segment's start, and a
+         * segment's first frames may start before it. Audio at or before the last written frame is dropped, which keeps
+         * audio timestamps increasing.
+         *
+         * @return true if the audio sample at the output time is to be written.
+         */
+        boolean acceptAudio(long outputTimeUs) {
+            if (outputTimeUs <= mLastAudioTimeUs) return false;
+            mLastAudioTimeUs = outputTimeUs;
+            return true;
+        }
+    }
+
+    private static boolean hasSameParameterSets(MediaFormat format, MediaFormat other) {
+        return Objects.equals(format.getByteBuffer("csd-0"), other.getByteBuffer("csd-0"))
+                && Objects.equals(format.getByteBuffer("csd-1"), other.getByteBuffer("csd-1"));
+    }
+
+    /**
+     * Segments are encoded by separate encoders, whose parameter sets may differ while the output has the first
+     * segment's only; in-band ones keep every segment decodable.
+     */
+    private static MediaFormatStrategy prependParameterSets(final MediaFormatStrategy strategy) {
+        return new MediaFormatStrategy() {
+            @Override
+            public MediaFormat createVideoOutputFormat(MediaFormat inputFormat) {
+                MediaFormat format = strategy.createVideoOutputFormat(inputFormat);
+                if (format != null) format.setInteger(MediaFormat.KEY_PREPEND_HEADER_TO_SYNC_FRAMES, 1);
+                return format;
+            }
+
+            @Override
+            public MediaFormat createAudioOutputFormat(MediaFormat inputFormat) {
+                return strategy.createAudioOutputFormat(inputFormat);
+            }
+
+            @Override
+            public boolean canRenderDirectly(MediaFormat inputFormat, MediaFormat outputFormat) {
+                return strategy.canRenderDirectly(inputFormat, outputFormat);
+            }
+        };
+    }
+
+    /**
+     * Transcodes one segment on its own thread.
+     */
+    private static class SegmentWorker implements Runnable {
+        private final MediaTranscoderEngine mEngine;
+        private final FileDescriptor mInputFileDescriptor;
+        private final File mOutputFile;
+        private final MediaFormatStrategy mFormatStrategy;
+        private final PipelineSignal mDoneSignal;
+        private final Thread mThread;
+        private volatile boolean mFinished;
+        private volatile boolean mDone;
+        private volatile Exception mError;
+
+        SegmentWorker(String name, MediaTranscoderEngine engine, FileDescriptor inputFileDescriptor, File outputFile,
+                      MediaFormatStrategy formatStrategy, PipelineSignal doneSignal) {
+            mEngine = engine;
+            mInputFileDescriptor = inputFileDescriptor;
+            mOutputFile = outputFile;
+            mFormatStrategy = formatStrategy;
+            mDoneSignal = doneSignal;
+            mThread = new Thread(this, name);
+        }
+
+        void start() {
+            mThread.start();
+        }
+
+        void interrupt() {
+            mThread.interrupt();
+        }
+
+        void join() throws InterruptedException {
+            mThread.join();
+        }
+
+        /**
+         * @return true if the segment file has been written.
+         */
+        boolean isFinished() {
+            return mFinished;
+        }
+
+        /**
+         * @return true if the worker thread exited, for any reason.
+         */
+        boolean isDone() {
+            return mDone;
+        }
+
+        double getProgress() {
+            return mEngine.getProgress();
+        }
+
+        /**
+         * @return Exception which stopped the segment, or null. Interruption by {@link #interrupt()} is not one.
+         */
+        Exception getError() {
+            return mError;
+        }
+
+        @Override
+        public void run() {
+            try (ParcelFileDescriptor input = reopen(mInputFileDescriptor)) {
+                mEngine.setDataSource(input.getFileDescriptor());
+                mEngine.transcodeVideo(() -> new PlatformMuxer(mOutputFile.getPath()), mFormatStrategy);
+                mFinished = true;
+            } catch (InterruptedException e) {
+                Log.d(TAG, mThread.getName() + " interrupted.");
+            } catch (IOException | RuntimeException e) {
+                mError = e;
+            } finally {
+                mDone = true;
+                mDoneSignal.signal();
+            }
+        }
+
+        /**
+         * Opens the input file again, so the extractor of each segment reads at a file offset of its own; duplicates
+         * of one descriptor would share it.
+         */
+        private static ParcelFileDescriptor reopen(FileDescriptor fileDescriptor) throws IOException {
+            try (ParcelFileDescriptor duplicate = ParcelFileDescriptor.dup(fileDescriptor)) {
+                return ParcelFileDescriptor.open(new File("/proc/self/fd/" + duplicate.getFd()),
+                        ParcelFileDescriptor.MODE_READ_ONLY);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.androidtranscoder.engine;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Fixed-size FIFO of 16-bit samples in a direct buffer, allocated once.
+ * Reads and writes copy in bulk, in up to two parts where the data wraps around. Not thread safe.
+ */
+class ShortRingBuffer {
+    private static final int BYTES_PER_SHORT = 2;
+
+    private final ShortBuffer mBuffer;
+    private final int mCapacity;
+    private int mReadPosition;
+    private int mSize;
+
+    public ShortRingBuffer(int capacity) {
+        mCapacity = capacity;
+        mBuffer = ByteBuffer.allocateDirect(capacity * BYTES_PER_SHORT).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return Number of samples which can be read.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return Number of samples which can be written.
+     */
+    public int free() {
+        return mCapacity - mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        mReadPosition = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Writes all remaining samples of src.
+     *
+     * @throws BufferOverflowException if they do not fit, without writing any.
+     */
+    public void write(ShortBuffer src) {
+        final int count = src.remaining();
+        if (count > free()) throw new BufferOverflowException();
+        int writePosition = mReadPosition + mSize;
+        if (writePosition >= mCapacity) writePosition -= mCapacity;
+        final int first = Math.min(count, mCapacity - writePosition);
+        final int srcLimit = src.limit();
+        src.limit(src.position() + first);
+        mBuffer.limit(writePosition + first).position(writePosition);
+        mBuffer.put(src);
+        src.limit(srcLimit);
+        if (count > first) {
+            mBuffer.limit(count - first).position(0);
+            mBuffer.put(src);
+        }
+        mSize += count;
+    }
+
+    /**
+     * Reads up to maxCount samples into dst, limited by its remaining space.
+     *
+     * @return Number of samples read.
+     */
+    public int read(ShortBuffer dst, int maxCount) {
+        final int count = Math.min(Math.min(maxCount, dst.remaining()), mSize);
+        final int first = Math.min(count, mCapacity - mReadPosition);
+        mBuffer.limit(mReadPosition + first).position(mReadPosition);
+        dst.put(mBuffer);
+        if (count > first) {
+            mBuffer.limit(count - first).position(0);
+            dst.put(mBuffer);
+        }
+        mReadPosition += count;
+        if (mReadPosition >= mCapacity) mReadPosition -= mCapacity;
+        mSize -= count;
+        return count;
+    }
+}
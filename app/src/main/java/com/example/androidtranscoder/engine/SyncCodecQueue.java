@@ -0,0 +1,44 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+
+/**
+ * Polls a codec running in synchronous mode.
+ */
+class SyncCodecQueue implements CodecQueue {
+    private final MediaCodec mCodec;
+
+    SyncCodecQueue(MediaCodec codec) {
+        mCodec = codec;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo bufferInfo, long timeoutUs) {
+        return mCodec.dequeueOutputBuffer(bufferInfo, timeoutUs);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, long renderTimestampNs) {
+        mCodec.releaseOutputBuffer(index, renderTimestampNs);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+}
@@ -27,7 +27,7 @@ public class TextureRender {
             1.0f,  1.0f, 0, 1.f, 1.f,
     };
     private FloatBuffer mTriangleVertices;
-    private static final String VERTEX_SHADER =
+    static final String VERTEX_SHADER =
             "uniform mat4 uMVPMatrix;\n" +
                     "uniform mat4 uSTMatrix;\n" +
                     "attribute vec4 aPosition;\n" +
@@ -37,7 +37,7 @@ public class TextureRender {
                     "  gl_Position = uMVPMatrix * aPosition;\n" +
                     "  vTextureCoord = (uSTMatrix * aTextureCoord).xy;\n" +
                     "}\n";
-    private static final String FRAGMENT_SHADER =
+    static final String FRAGMENT_SHADER =
             "#extension GL_OES_EGL_image_external : require\n" +
                     "precision mediump float;\n" +      // highp here doesn't seem to matter
                     "varying vec2 vTextureCoord;\n" +
@@ -95,10 +95,18 @@ public class TextureRender {
      * Initializes GL state.  Call this after the EGL surface has been created and made current.
      */
     public void surfaceCreated() {
-        mProgram = createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
-        if (mProgram == 0) {
+        int program = createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
+        if (program == 0) {
             throw new RuntimeException("failed creating program");
         }
+        surfaceCreated(program, createExternalTexture());
+    }
+    /**
+     * Initializes GL state with a program of {@link #VERTEX_SHADER} and {@link #FRAGMENT_SHADER} and an external
+     * texture which already exist, e.g. kept by {@link EglResourceManager.Worker}.
+     */
+    void surfaceCreated(int program, int textureId) {
+        mProgram = program;
         maPositionHandle = GLES20.glGetAttribLocation(mProgram, "aPosition");
         checkGlError("glGetAttribLocation aPosition");
         if (maPositionHandle == -1) {
@@ -119,10 +127,13 @@ public class TextureRender {
         if (muSTMatrixHandle == -1) {
             throw new RuntimeException("Could not get attrib location for uSTMatrix");
         }
+        mTextureID = textureId;
+    }
+    static int createExternalTexture() {
         int[] textures = new int[1];
         GLES20.glGenTextures(1, textures, 0);
-        mTextureID = textures[0];
-        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, mTextureID);
+        int textureId = textures[0];
+        GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, textureId);
         checkGlError("glBindTexture mTextureID");
         GLES20.glTexParameterf(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_MIN_FILTER,
                 GLES20.GL_LINEAR);
@@ -133,6 +144,7 @@ public class TextureRender {
         GLES20.glTexParameteri(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, GLES20.GL_TEXTURE_WRAP_T,
                 GLES20.GL_CLAMP_TO_EDGE);
         checkGlError("glTexParameter");
+        return textureId;
     }
     /**
      * Replaces the fragment shader.
@@ -140,7 +152,7 @@ public class TextureRender {
     public void changeFragmentShader(String fragmentShader) {
         throw new UnsupportedOperationException("Not implemented");
     }
-    private int loadShader(int shaderType, String source) {
+    private static int loadShader(int shaderType, String source) {
         int shader = GLES20.glCreateShader(shaderType);
         checkGlError("glCreateShader type=" + shaderType);
         GLES20.glShaderSource(shader, source);
@@ -156,7 +168,7 @@ public class TextureRender {
         return shader;
     }
 
-    private int createProgram(String vertexSource, String fragmentSource) {
+    static int createProgram(String vertexSource, String fragmentSource) {
         int vertexShader = loadShader(GLES20.GL_VERTEX_SHADER, vertexSource);
         if (vertexShader == 0) {
             return 0;
@@ -186,7 +198,7 @@ public class TextureRender {
         return program;
     }
 
-    public void checkGlError(String op) {
+    public static void checkGlError(String op) {
         int error;
         while ((error = GLES20.glGetError()) != GLES20.GL_NO_ERROR) {
             Log.e(TAG, op + ": glError " + error);
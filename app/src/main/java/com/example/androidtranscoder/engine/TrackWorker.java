@@ -0,0 +1,100 @@
+package com.example.androidtranscoder.engine;
+
+import android.util.Log;
+
+/**
+ * Drives one {@link TrackTranscoder} on its own thread, from setup to release.
+ * The transcoder is set up on the worker thread, so thread-bound resources such as EGL contexts stay on it.
+ */
+class TrackWorker implements Runnable {
+    private static final String TAG = "TrackWorker";
+    private final TrackTranscoder mTranscoder;
+    private final CodecEventDispatcher mEventDispatcher;
+    private final long mIdleWaitMs;
+    private final PipelineSignal mDoneSignal;
+    private final TranscodeMetrics mMetrics;
+    private final Thread mThread;
+    private volatile boolean mStopRequested;
+    private volatile boolean mFinished;
+    private volatile boolean mDone;
+    private volatile RuntimeException mError;
+
+    /**
+     * @param idleWaitMs Max wait on the dispatcher when the transcoder did not make progress.
+     * @param doneSignal Signaled when the worker exits.
+     * @param metrics    Records idle waits, or null.
+     */
+    TrackWorker(String name, TrackTranscoder transcoder, CodecEventDispatcher eventDispatcher,
+                long idleWaitMs, PipelineSignal doneSignal, TranscodeMetrics metrics) {
+        mTranscoder = transcoder;
+        mEventDispatcher = eventDispatcher;
+        mIdleWaitMs = idleWaitMs;
+        mDoneSignal = doneSignal;
+        mMetrics = metrics;
+        mThread = new Thread(this, name);
+    }
+
+    public void start() {
+        mThread.start();
+    }
+
+    /**
+     * Asks the worker to exit after the current step.
+     */
+    public void stop() {
+        mStopRequested = true;
+        mEventDispatcher.signal();
+    }
+
+    public void join() throws InterruptedException {
+        mThread.join();
+    }
+
+    /**
+     * @return true if the transcoder has written all of its samples.
+     */
+    public boolean isFinished() {
+        return mFinished;
+    }
+
+    /**
+     * @return true if the worker thread exited, for any reason.
+     */
+    public boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * @return Exception which stopped the worker, or null.
+     */
+    public RuntimeException getError() {
+        return mError;
+    }
+
+    @Override
+    public void run() {
+        try {
+            mTranscoder.setup();
+            while (!mStopRequested && !mTranscoder.isFinished()) {
+                if (!mTranscoder.stepPipeline()) {
+                    final long waitStartNanos = mMetrics != null ? System.nanoTime() : 0;
+                    mEventDispatcher.awaitEvent(mIdleWaitMs);
+                    if (mMetrics != null) mMetrics.recordIdleWait(System.nanoTime() - waitStartNanos);
+                }
+            }
+            mFinished = mTranscoder.isFinished();
+        } catch (InterruptedException e) {
+            Log.d(TAG, mThread.getName() + " interrupted.");
+        } catch (RuntimeException e) {
+            mError = e;
+        } finally {
+            try {
+                mTranscoder.release();
+            } catch (RuntimeException e) {
+                if (mError == null) mError = e;
+            }
+            mDone = true;
+            mDoneSignal.signal();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where the time of a transcode goes: latency of each pipeline stage per track, samples and bytes written,
+ * depths of the demuxer and interleaving queues, and how often the pipeline went idle.
+ * <p>
+ * Stage latencies are only recorded for calls which moved data, so polling a codec with nothing to offer does not
+ * skew them. Drain stages include the stages they call, e.g. DRAIN_ENCODER includes MUXER_WRITE, except that
+ * with pipelined rendering the render stages run on their own thread and are not part of DRAIN_DECODER.
+ * Histograms and counters are allocated up front and recorded without locks, each by a single thread.
+ * <p>
+ * NOTE: {@link #snapshot()} is thread safe and can be called while the transcode runs.
+ */
+public class TranscodeMetrics {
+    public enum Stage {
+        DRAIN_EXTRACTOR,
+        DRAIN_DECODER,
+        /** Video only: waiting for the decoded frame to reach the texture. */
+        AWAIT_NEW_IMAGE,
+        /** Video only: rendering the frame into the encoder surface. */
+        DRAW_IMAGE,
+        /** Video only: queueing the rendered frame to the encoder. */
+        SWAP_BUFFERS,
+        /** Video only, pipelined rendering: waiting for the GPU to finish a frame rendered earlier. */
+        AWAIT_GPU_FENCE,
+        /** Audio only: converting decoded audio into encoder input. */
+        FEED_ENCODER,
+        DRAIN_ENCODER,
+        MUXER_WRITE
+    }
+
+    private static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+    private static final long MAX_QUEUED_SAMPLES = 1024;
+    private static final long MAX_QUEUED_BYTES = 1L << 32;
+    private static final int TRACK_COUNT = QueuedMuxer.SampleType.values().length;
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LongHistogram[][] mLatencies = new LongHistogram[TRACK_COUNT][STAGES.length];
+    private final LongHistogram[] mSourceQueueDepths = new LongHistogram[TRACK_COUNT];
+    private final LongHistogram[] mMuxerQueueBytes = new LongHistogram[TRACK_COUNT];
+    private final LongHistogram mFramesInFlight = new LongHistogram(MAX_QUEUED_SAMPLES);
+    private final AtomicLongArray mSamplesWritten = new AtomicLongArray(TRACK_COUNT);
+    private final AtomicLongArray mBytesWritten = new AtomicLongArray(TRACK_COUNT);
+    private final AtomicLongArray mMaxMuxerQueueBytes = new AtomicLongArray(TRACK_COUNT);
+    private final AtomicLong mIdleWaits = new AtomicLong();
+    private final AtomicLong mIdleWaitNanos = new AtomicLong();
+    private volatile long mStartNanos;
+    private volatile long mStopNanos;
+
+    public TranscodeMetrics() {
+        for (int track = 0; track < TRACK_COUNT; track++) {
+            for (int stage = 0; stage < STAGES.length; stage++) {
+                mLatencies[track][stage] = new LongHistogram(MAX_LATENCY_NANOS);
+            }
+            mSourceQueueDepths[track] = new LongHistogram(MAX_QUEUED_SAMPLES);
+            mMuxerQueueBytes[track] = new LongHistogram(MAX_QUEUED_BYTES);
+        }
+    }
+
+    /**
+     * Clears what a previous run recorded, e.g. before a preempted job restarts, and starts the clock.
+     */
+    void start() {
+        for (int track = 0; track < TRACK_COUNT; track++) {
+            for (LongHistogram histogram : mLatencies[track]) histogram.reset();
+            mSourceQueueDepths[track].reset();
+            mMuxerQueueBytes[track].reset();
+            mSamplesWritten.set(track, 0);
+            mBytesWritten.set(track, 0);
+            mMaxMuxerQueueBytes.set(track, 0);
+        }
+        mFramesInFlight.reset();
+        mIdleWaits.set(0);
+        mIdleWaitNanos.set(0);
+        mStopNanos = 0;
+        mStartNanos = System.nanoTime();
+    }
+
+    void stop() {
+        mStopNanos = System.nanoTime();
+    }
+
+    void recordLatency(QueuedMuxer.SampleType track, Stage stage, long nanos) {
+        mLatencies[track.ordinal()][stage.ordinal()].record(nanos);
+    }
+
+    void recordQueueDepths(QueuedMuxer.SampleType track, int sourceSamples, long muxerBytes) {
+        mSourceQueueDepths[track.ordinal()].record(sourceSamples);
+        mMuxerQueueBytes[track.ordinal()].record(muxerBytes);
+    }
+
+    /**
+     * Records the peak bytes a muxer held back on the track, exact rather than sampled like
+     * {@link #recordQueueDepths}. The largest of several outputs is kept.
+     */
+    void recordMaxMuxerQueueBytes(QueuedMuxer.SampleType track, long bytes) {
+        final int index = track.ordinal();
+        long max;
+        do {
+            max = mMaxMuxerQueueBytes.get(index);
+        } while (bytes > max && !mMaxMuxerQueueBytes.compareAndSet(index, max, bytes));
+    }
+
+    void recordFramesInFlight(int frames) {
+        mFramesInFlight.record(frames);
+    }
+
+    void recordIdleWait(long nanos) {
+        mIdleWaits.incrementAndGet();
+        mIdleWaitNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Writes a sample to the muxer, recording its latency and size if metrics is not null.
+     */
+    static void writeSampleData(TranscodeMetrics metrics, SampleSink muxer, QueuedMuxer.SampleType track,
+                                ByteBuffer data, MediaCodec.BufferInfo bufferInfo) {
+        if (metrics == null) {
+            muxer.writeSampleData(track, data, bufferInfo);
+            return;
+        }
+        final int size = bufferInfo.size;
+        final long startNanos = System.nanoTime();
+        muxer.writeSampleData(track, data, bufferInfo);
+        metrics.recordLatency(track, Stage.MUXER_WRITE, System.nanoTime() - startNanos);
+        if (size > 0) {
+            final int index = track.ordinal();
+            // Single writer per track.
+            metrics.mSamplesWritten.lazySet(index, metrics.mSamplesWritten.get(index) + 1);
+            metrics.mBytesWritten.lazySet(index, metrics.mBytesWritten.get(index) + size);
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    /**
+     * Metrics of one track.
+     */
+    public static class TrackSnapshot {
+        public final long samplesWritten;
+        public final long bytesWritten;
+        /** Frames per second for video. */
+        public final double samplesPerSecond;
+        /** Samples read ahead by the demuxer, waiting for the track. */
+        public final LongHistogram.Summary sourceQueueDepth;
+        /** Bytes held back by the muxer to interleave the tracks. */
+        public final LongHistogram.Summary muxerQueueBytes;
+        /** Peak bytes held back by the muxer to interleave the tracks, recorded once the tracks are done. */
+        public final long maxMuxerQueueBytes;
+        private final LongHistogram.Summary[] mLatencies = new LongHistogram.Summary[STAGES.length];
+
+        private TrackSnapshot(TranscodeMetrics metrics, int track, long elapsedNanos) {
+            samplesWritten = metrics.mSamplesWritten.get(track);
+            bytesWritten = metrics.mBytesWritten.get(track);
+            samplesPerSecond = elapsedNanos > 0 ? samplesWritten * 1e9 / elapsedNanos : 0;
+            sourceQueueDepth = metrics.mSourceQueueDepths[track].getSummary();
+            muxerQueueBytes = metrics.mMuxerQueueBytes[track].getSummary();
+            maxMuxerQueueBytes = metrics.mMaxMuxerQueueBytes.get(track);
+            for (int stage = 0; stage < STAGES.length; stage++) {
+                mLatencies[stage] = metrics.mLatencies[track][stage].getSummary();
+            }
+        }
+
+        /**
+         * @return Latency of the stage in nanoseconds.
+         */
+        public LongHistogram.Summary getLatency(Stage stage) {
+            return mLatencies[stage.ordinal()];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder()
+                    .append(samplesWritten).append(" samples, ").append(bytesWritten).append(" bytes, ")
+                    .append(String.format("%.1f", samplesPerSecond)).append("/s")
+                    .append("; source queue ").append(sourceQueueDepth)
+                    .append("; muxer queue bytes ").append(muxerQueueBytes)
+                    .append(", max ").append(maxMuxerQueueBytes);
+            for (Stage stage : STAGES) {
+                LongHistogram.Summary latency = mLatencies[stage.ordinal()];
+                if (latency.count > 0) builder.append("; ").append(stage).append(" ns ").append(latency);
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * Metrics at one point in time, of a finished or running transcode.
+     */
+    public static class Snapshot {
+        public final long elapsedNanos;
+        public final long idleWaits;
+        public final long idleWaitNanos;
+        public final TrackSnapshot video;
+        public final TrackSnapshot audio;
+        /** Pipelined rendering only: frames between the decoder and the encoder when a frame was rendered. */
+        public final LongHistogram.Summary framesInFlight;
+
+        private Snapshot(TranscodeMetrics metrics) {
+            final long startNanos = metrics.mStartNanos;
+            final long stopNanos = metrics.mStopNanos;
+            if (startNanos == 0) {
+                elapsedNanos = 0;
+            } else {
+                elapsedNanos = (stopNanos != 0 ? stopNanos : System.nanoTime()) - startNanos;
+            }
+            idleWaits = metrics.mIdleWaits.get();
+            idleWaitNanos = metrics.mIdleWaitNanos.get();
+            video = new TrackSnapshot(metrics, QueuedMuxer.SampleType.VIDEO.ordinal(), elapsedNanos);
+            audio = new TrackSnapshot(metrics, QueuedMuxer.SampleType.AUDIO.ordinal(), elapsedNanos);
+            framesInFlight = metrics.mFramesInFlight.getSummary();
+        }
+
+        public TrackSnapshot getTrack(QueuedMuxer.SampleType track) {
+            return track == QueuedMuxer.SampleType.VIDEO ? video : audio;
+        }
+
+        @Override
+        public String toString() {
+            return "elapsed " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms, idle waits " + idleWaits
+                    + " (" + TimeUnit.NANOSECONDS.toMillis(idleWaitNanos) + " ms)"
+                    + (framesInFlight.count > 0 ? ", frames in flight " + framesInFlight : "")
+                    + "\nvideo: " + video + "\naudio: " + audio;
+        }
+    }
+}
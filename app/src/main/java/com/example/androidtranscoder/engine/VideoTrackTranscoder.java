@@ -5,11 +5,13 @@ import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.util.Log;
+import android.view.Surface;
 
+import com.example.androidtranscoder.compat.MediaCodecBufferCompatWrapper;
 import com.example.androidtranscoder.format.FormatExtraConstants;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 // Refer: https://android.googlesource.com/platform/cts/+/lollipop-release/tests/tests/media/src/android/media/cts/ExtractDecodeEditEncodeMuxTest.java
 public class VideoTrackTranscoder implements TrackTranscoder {
@@ -17,55 +19,217 @@ public class VideoTrackTranscoder implements TrackTranscoder {
     private static final int DRAIN_STATE_NONE = 0;
     private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
     private static final int DRAIN_STATE_CONSUMED = 2;
+    // Segments of a smart cut, see setStreamCopyRange(). Without it the whole range is one SEGMENT_ENCODE.
+    private static final int SEGMENT_ENCODE_HEAD = 0;
+    private static final int SEGMENT_COPY = 1;
+    private static final int SEGMENT_ENCODE = 2;
 
-    private final MediaExtractor mExtractor;
-    private final int mTrackIndex;
+    private final SampleSource mSampleSource;
+    private final MediaFormat mInputFormat;
     private final MediaFormat mOutputFormat;
-    private final QueuedMuxer mMuxer;
+    private final SampleSink mMuxer;
+    private final CodecEventDispatcher mEventDispatcher;
     private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
     private MediaCodec mDecoder;
     private MediaCodec mEncoder;
-    private ByteBuffer[] mDecoderInputBuffers;
-    private ByteBuffer[] mEncoderOutputBuffers;
+    private CodecQueue mDecoderQueue;
+    private CodecQueue mEncoderQueue;
+    private MediaCodecBufferCompatWrapper mDecoderBuffers;
+    private MediaCodecBufferCompatWrapper mEncoderBuffers;
     private MediaFormat mActualOutputFormat;
     private OutputSurface mDecoderOutputSurfaceWrapper;
     private InputSurface mEncoderInputSurfaceWrapper;
+    /** Encoder input surface the decoder renders into when rendering directly. */
+    private Surface mEncoderInputSurface;
+    private boolean mDirectRendering;
+    private int mRenderPipelineDepth;
+    private FrameRenderer mFrameRenderer;
+    /** With pipelined rendering, the decoder reached the end while frames were still being rendered. */
+    private boolean mEndOfInputPending;
+    private EglResourceManager mEglResourceManager;
+    private EglResourceManager.Worker mEglWorker;
+    private CodecPool<MediaCodec> mCodecPool;
+    private TranscodeMetrics mMetrics;
     private boolean mIsExtractorEOS;
     private boolean mIsDecoderEOS;
     private boolean mIsEncoderEOS;
+    private boolean mIsFinished;
     private boolean mDecoderStarted;
     private boolean mEncoderStarted;
-    private long mWrittenPresentationTimeUs;
+    private volatile long mWrittenPresentationTimeUs;
     private long mDuration;
-    private final float mTrimVideo = 0.5f;
-
-    private final long mStartTimeUs = 3_000_000L;
-    private final long mEndTimeUs = 10_000_000L;
+    private final long mTrimStartUs;
+    private final long mTrimEndUs;
+    private boolean mStreamCopy;
+    private long mCopyStartUs;
+    private long mCopyEndUs;
+    private int mSegment = SEGMENT_ENCODE;
+    private long mRenderStartUs;
+    private long mRenderEndUs;
+    private ByteBuffer mInputParameterSets;
+    /** Parameter sets of the encoder, written in-band before each encoded sync frame if they differ from the input. */
+    private ByteBuffer mEncoderParameterSets;
+    private boolean mInsertInputParameterSets;
+    private ByteBuffer mCopyBuffer;
 
     public VideoTrackTranscoder(MediaExtractor extractor, int trackIndex,
-                                MediaFormat outputFormat, QueuedMuxer muxer) {
-        mExtractor = extractor;
-        mTrackIndex = trackIndex;
+                                MediaFormat outputFormat, SampleSink muxer) {
+        this(new ExtractorSampleSource(extractor, trackIndex), extractor.getTrackFormat(trackIndex),
+                outputFormat, muxer, new CodecEventDispatcher(false), 0, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param trimStartUs Frames presented before this time are decoded as pre-roll but not encoded.
+     *                    Output timestamps are relative to it.
+     * @param trimEndUs   Frames presented at or after this time are not encoded.
+     */
+    public VideoTrackTranscoder(SampleSource sampleSource, MediaFormat inputFormat, MediaFormat outputFormat,
+                                SampleSink muxer, CodecEventDispatcher eventDispatcher,
+                                long trimStartUs, long trimEndUs) {
+        mSampleSource = sampleSource;
+        mInputFormat = inputFormat;
         mOutputFormat = outputFormat;
         mMuxer = muxer;
+        mEventDispatcher = eventDispatcher;
+        mTrimStartUs = trimStartUs;
+        mTrimEndUs = trimEndUs;
+        mRenderStartUs = trimStartUs;
+        mRenderEndUs = trimEndUs;
+    }
+
+    /**
+     * @return true if samples of the input can be muxed along with samples encoded to outputFormat,
+     * i.e. both are AVC of the same size and the input has its parameter sets in csd-0 and csd-1.
+     */
+    public static boolean canStreamCopy(MediaFormat inputFormat, MediaFormat outputFormat) {
+        String mime = inputFormat.getString(MediaFormat.KEY_MIME);
+        return FormatExtraConstants.MIMETYPE_VIDEO_AVC.equals(mime)
+                && mime.equals(outputFormat.getString(MediaFormat.KEY_MIME))
+                && inputFormat.getInteger(MediaFormat.KEY_WIDTH) == outputFormat.getInteger(MediaFormat.KEY_WIDTH)
+                && inputFormat.getInteger(MediaFormat.KEY_HEIGHT) == outputFormat.getInteger(MediaFormat.KEY_HEIGHT)
+                && inputFormat.containsKey("csd-0") && inputFormat.containsKey("csd-1");
+    }
+
+    /**
+     * Enables smart cut: whole GOPs from copyStartUs up to copyEndUs are copied as they are, and only the partial GOPs
+     * before and after them are decoded and encoded. Must be called before {@link #setup()}.
+     * The input must pass {@link #canStreamCopy(MediaFormat, MediaFormat)}.
+     *
+     * @param copyStartUs Presentation time of the first sync sample at or after the trim start.
+     * @param copyEndUs   Presentation time of the last sync sample at or before the trim end,
+     *                    or {@link Long#MAX_VALUE} to copy up to the end of the input.
+     */
+    public void setStreamCopyRange(long copyStartUs, long copyEndUs) {
+        mStreamCopy = true;
+        mCopyStartUs = copyStartUs;
+        mCopyEndUs = copyEndUs;
+        mSegment = SEGMENT_ENCODE_HEAD;
+        mRenderEndUs = copyStartUs;
+    }
+
+    /**
+     * Configures the decoder with the encoder's input surface, skipping the SurfaceTexture, draw and swap of each
+     * frame. Only for formats which pass
+     * {@link com.example.androidtranscoder.format.MediaFormatStrategy#canRenderDirectly(MediaFormat, MediaFormat)};
+     * falls back to rendering with GL if the codecs fail to set up that way. Must be called before {@link #setup()}.
+     */
+    public void setDirectRendering(boolean directRendering) {
+        mDirectRendering = directRendering;
+    }
+
+    public boolean isDirectRendering() {
+        return mDirectRendering;
+    }
+
+    /**
+     * Renders frames with GL on a thread of their own, with up to depth frames released by the decoder and not yet
+     * sent to the encoder, instead of releasing, drawing and swapping one frame at a time on the track's thread.
+     * 0, the default, renders on the track's thread. Ignored with direct rendering.
+     * Must be called before {@link #setup()}.
+     */
+    public void setRenderPipelineDepth(int depth) {
+        if (depth < 0) throw new IllegalArgumentException("depth must not be negative: " + depth);
+        mRenderPipelineDepth = depth;
+    }
+
+    public int getRenderPipelineDepth() {
+        return mRenderPipelineDepth;
+    }
+
+    /**
+     * Takes EGL contexts, shader programs and textures from the manager instead of creating them, and returns
+     * them on release. Must be called before {@link #setup()}.
+     */
+    public void setEglResourceManager(EglResourceManager eglResourceManager) {
+        mEglResourceManager = eglResourceManager;
+    }
+
+    /**
+     * Takes codecs from the pool instead of creating them, and returns them on release. Must be called before
+     * {@link #setup()}.
+     */
+    public void setCodecPool(CodecPool<MediaCodec> codecPool) {
+        mCodecPool = codecPool;
+    }
+
+    /**
+     * Records stage latencies and written samples into metrics. Must be called before {@link #setup()}.
+     */
+    public void setMetrics(TranscodeMetrics metrics) {
+        mMetrics = metrics;
     }
 
     @Override
     public void setup() {
-        mExtractor.selectTrack(mTrackIndex);
-        try {
-            mEncoder = MediaCodec.createEncoderByType(mOutputFormat.getString(MediaFormat.KEY_MIME));
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+        if (mStreamCopy) {
+            // Copied samples reference the parameter sets of the input, so the track is muxed with the input format.
+            // Codecs are created once the head turns out to have frames before the first copied sync sample.
+            mInputParameterSets = concatParameterSets(mInputFormat);
+            mActualOutputFormat = mInputFormat;
+            mMuxer.setOutputFormat(QueuedMuxer.SampleType.VIDEO, mActualOutputFormat);
+            return;
         }
+        setupCodecs();
+    }
+
+    private void setupCodecs() {
+        if (mDirectRendering) {
+            try {
+                setupCodecs(true);
+                return;
+            } catch (RuntimeException e) {
+                // E.g. the decoder cannot render into this encoder's surface.
+                Log.w(TAG, "Could not render directly into the encoder, rendering with GL.", e);
+                releaseCodecs();
+                mDirectRendering = false;
+            }
+        }
+        setupCodecs(false);
+    }
+
+    private void setupCodecs(boolean directRendering) {
+        mEncoder = CodecPool.obtain(mCodecPool, mOutputFormat, true);
+        mEncoderQueue = mEventDispatcher.createQueue(mEncoder);
         mEncoder.configure(mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        mEncoderInputSurfaceWrapper = new InputSurface(mEncoder.createInputSurface());
-        mEncoderInputSurfaceWrapper.makeCurrent();
+        if (directRendering) {
+            mEncoderInputSurface = mEncoder.createInputSurface();
+        } else if (mRenderPipelineDepth > 0) {
+            // The renderer makes the context current on its own thread.
+            if (mEglResourceManager != null) mEglWorker = mEglResourceManager.acquire();
+            mFrameRenderer = new FrameRenderer(mEncoder.createInputSurface(), mEglWorker, mRenderPipelineDepth,
+                    mTrimStartUs, mEventDispatcher, mMetrics);
+        } else if (mEglResourceManager != null) {
+            mEglWorker = mEglResourceManager.acquire();
+            mEncoderInputSurfaceWrapper = new InputSurface(mEncoder.createInputSurface(), mEglWorker);
+        } else {
+            mEncoderInputSurfaceWrapper = new InputSurface(mEncoder.createInputSurface());
+        }
+        if (mEncoderInputSurfaceWrapper != null) mEncoderInputSurfaceWrapper.makeCurrent();
         mEncoder.start();
         mEncoderStarted = true;
-        mEncoderOutputBuffers = mEncoder.getOutputBuffers();
+        mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder);
 
-        MediaFormat inputFormat = mExtractor.getTrackFormat(mTrackIndex);
+        MediaFormat inputFormat = mInputFormat;
         mDuration = inputFormat.getLong(MediaFormat.KEY_DURATION);
         if (inputFormat.containsKey(FormatExtraConstants.KEY_ROTATION_DEGREES)) {
             // Decoded video is rotated automatically in Android 5.0 lollipop.
@@ -73,16 +237,22 @@ public class VideoTrackTranscoder implements TrackTranscoder {
             // refer: https://android.googlesource.com/platform/frameworks/av/+blame/lollipop-release/media/libstagefright/Utils.cpp
             inputFormat.setInteger(FormatExtraConstants.KEY_ROTATION_DEGREES, 0);
         }
-        mDecoderOutputSurfaceWrapper = new OutputSurface();
-        try {
-            mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+        Surface decoderOutputSurface = mEncoderInputSurface;
+        if (mFrameRenderer != null) {
+            decoderOutputSurface = mFrameRenderer.start();
+            // Since Android 11 the surface drops a frame released before the previous one is latched, and the renderer
+            // would wait for it forever; the renderer needs every released frame.
+            inputFormat.setInteger(MediaFormat.KEY_ALLOW_FRAME_DROP, 0);
+        } else if (!directRendering) {
+            mDecoderOutputSurfaceWrapper = mEglWorker != null ? new OutputSurface(mEglWorker) : new OutputSurface();
+            decoderOutputSurface = mDecoderOutputSurfaceWrapper.getSurface();
         }
-        mDecoder.configure(inputFormat, mDecoderOutputSurfaceWrapper.getSurface(), null, 0);
+        mDecoder = CodecPool.obtain(mCodecPool, inputFormat, false);
+        mDecoderQueue = mEventDispatcher.createQueue(mDecoder);
+        mDecoder.configure(inputFormat, decoderOutputSurface, null, 0);
         mDecoder.start();
         mDecoderStarted = true;
-        mDecoderInputBuffers = mDecoder.getInputBuffers();
+        mDecoderBuffers = new MediaCodecBufferCompatWrapper(mDecoder);
     }
 
     @Override
@@ -92,6 +262,18 @@ public class VideoTrackTranscoder implements TrackTranscoder {
 
     @Override
     public boolean stepPipeline() {
+        if (mIsFinished) return false;
+        if (mSegment == SEGMENT_COPY) return stepCopy();
+        if (mSegment == SEGMENT_ENCODE_HEAD && mEncoder == null) {
+            if (!mSampleSource.isEndOfStream() && !mSampleSource.isSampleAvailable()) return false;
+            if (mSampleSource.isEndOfStream() || isCopyStart()) {
+                // The trim start is on a sync sample, nothing to encode before it.
+                mSegment = SEGMENT_COPY;
+                return true;
+            }
+            setupCodecs();
+        }
+        if (mFrameRenderer != null) mFrameRenderer.checkError();
         boolean busy = false;
 
         int status;
@@ -103,9 +285,96 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         } while (status == DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY);
         while (drainExtractor(0) != DRAIN_STATE_NONE) busy = true;
 
+        if (mIsEncoderEOS && mSegment == SEGMENT_ENCODE_HEAD) {
+            releaseCodecs();
+            mIsExtractorEOS = false;
+            mIsDecoderEOS = false;
+            mIsEncoderEOS = false;
+            mInsertInputParameterSets = mEncoderParameterSets != null;
+            mSegment = SEGMENT_COPY;
+            return true;
+        }
         return busy;
     }
 
+    private boolean isCopyStart() {
+        return (mSampleSource.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                && mSampleSource.getSampleTime() >= mCopyStartUs;
+    }
+
+    private boolean stepCopy() {
+        if (mSampleSource.isEndOfStream()) {
+            mCopyBuffer = ensureCopyBuffer(0);
+            mBufferInfo.set(0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            TranscodeMetrics.writeSampleData(mMetrics, mMuxer, QueuedMuxer.SampleType.VIDEO, mCopyBuffer, mBufferInfo);
+            mIsFinished = true;
+            return true;
+        }
+        if (!mSampleSource.isSampleAvailable()) return false;
+
+        long sampleTime = mSampleSource.getSampleTime();
+        boolean isKeyFrame = (mSampleSource.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        if (isKeyFrame && sampleTime >= mCopyEndUs) {
+            // The rest of the range is a partial GOP, which is encoded from this sync sample.
+            mSegment = SEGMENT_ENCODE;
+            mRenderStartUs = mCopyEndUs;
+            mRenderEndUs = mTrimEndUs;
+            setupCodecs();
+            return true;
+        }
+        if (sampleTime < mCopyStartUs) {
+            // Leading frames of an open GOP reference the GOP before it, which has been encoded instead.
+            mSampleSource.advance();
+            return true;
+        }
+        int prefixSize = mInsertInputParameterSets ? mInputParameterSets.remaining() : 0;
+        mCopyBuffer = ensureCopyBuffer(prefixSize + mInputFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+        mCopyBuffer.clear();
+        if (prefixSize > 0) {
+            // Restore the parameter sets of the input after encoded frames which carried the encoder's in-band.
+            mCopyBuffer.put(mInputParameterSets.duplicate());
+            mInsertInputParameterSets = false;
+        }
+        int sampleSize = mSampleSource.readSampleData(mCopyBuffer, prefixSize);
+        mBufferInfo.set(0, prefixSize + sampleSize, sampleTime - mTrimStartUs, isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        TranscodeMetrics.writeSampleData(mMetrics, mMuxer, QueuedMuxer.SampleType.VIDEO, mCopyBuffer, mBufferInfo);
+        mWrittenPresentationTimeUs = mBufferInfo.presentationTimeUs;
+        mSampleSource.advance();
+        return true;
+    }
+
+    private ByteBuffer ensureCopyBuffer(int capacity) {
+        if (mCopyBuffer != null && mCopyBuffer.capacity() >= capacity) return mCopyBuffer;
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Checks the parameter sets of a new encoder against the input, whose parameter sets are in the sample entry.
+     */
+    private void onEncoderFormatChanged(MediaFormat encoderFormat) {
+        if (encoderFormat.getInteger(MediaFormat.KEY_WIDTH) != mInputFormat.getInteger(MediaFormat.KEY_WIDTH)
+                || encoderFormat.getInteger(MediaFormat.KEY_HEIGHT) != mInputFormat.getInteger(MediaFormat.KEY_HEIGHT)) {
+            throw new IllegalStateException("Encoder output size differs from the copied samples: " + encoderFormat);
+        }
+        ByteBuffer parameterSets = concatParameterSets(encoderFormat);
+        if (parameterSets.equals(mInputParameterSets)) {
+            mEncoderParameterSets = null;
+        } else {
+            // Decoders switch parameter sets at any IDR frame, so both kinds of segments can share the track.
+            Log.d(TAG, "Encoder parameter sets differ from the input, writing them in-band.");
+            mEncoderParameterSets = parameterSets;
+        }
+    }
+
+    private static ByteBuffer concatParameterSets(MediaFormat format) {
+        ByteBuffer sps = format.getByteBuffer("csd-0");
+        ByteBuffer pps = format.getByteBuffer("csd-1");
+        if (sps == null || pps == null) throw new IllegalStateException("Missing AVC parameter sets: " + format);
+        ByteBuffer parameterSets = ByteBuffer.allocate(sps.remaining() + pps.remaining());
+        parameterSets.put(sps.duplicate()).put(pps.duplicate()).flip();
+        return parameterSets;
+    }
+
     @Override
     public long getWrittenPresentationTimeUs() {
         return mWrittenPresentationTimeUs;
@@ -113,12 +382,21 @@ public class VideoTrackTranscoder implements TrackTranscoder {
 
     @Override
     public boolean isFinished() {
-        return mIsEncoderEOS;
+        return mIsFinished;
     }
 
     // TODO: CloseGuard
     @Override
     public void release() {
+        releaseCodecs();
+    }
+
+    private void releaseCodecs() {
+        if (mFrameRenderer != null) {
+            mFrameRenderer.release();
+            mFrameRenderer = null;
+            mEndOfInputPending = false;
+        }
         if (mDecoderOutputSurfaceWrapper != null) {
             mDecoderOutputSurfaceWrapper.release();
             mDecoderOutputSurfaceWrapper = null;
@@ -127,60 +405,68 @@ public class VideoTrackTranscoder implements TrackTranscoder {
             mEncoderInputSurfaceWrapper.release();
             mEncoderInputSurfaceWrapper = null;
         }
+        if (mEglWorker != null) {
+            mEglWorker.recycle();
+            mEglWorker = null;
+        }
         if (mDecoder != null) {
             if (mDecoderStarted) mDecoder.stop();
-            mDecoder.release();
+            CodecPool.recycle(mCodecPool, mDecoder);
             mDecoder = null;
+            mDecoderStarted = false;
         }
         if (mEncoder != null) {
             if (mEncoderStarted) mEncoder.stop();
-            mEncoder.release();
+            CodecPool.recycle(mCodecPool, mEncoder);
             mEncoder = null;
+            mEncoderStarted = false;
+        }
+        if (mEncoderInputSurface != null) {
+            mEncoderInputSurface.release();
+            mEncoderInputSurface = null;
         }
     }
 
     private int drainExtractor(long timeoutUs) {
         if (mIsExtractorEOS) return DRAIN_STATE_NONE;
-
-        int trackIndex = mExtractor.getSampleTrackIndex();
-        if (trackIndex < 0) {
-            mIsExtractorEOS = true;
-            return DRAIN_STATE_NONE;
-        }
-        if (trackIndex != mTrackIndex) {
+        final long startNanos = mMetrics != null ? System.nanoTime() : 0;
+        boolean isEndOfStream = mSampleSource.isEndOfStream();
+        if (!isEndOfStream && !mSampleSource.isSampleAvailable()) {
             return DRAIN_STATE_NONE;
         }
-        while (true) {
-            long sampleTime = mExtractor.getSampleTime();
-            if (sampleTime < 0) {
-                mIsExtractorEOS = true;
-                return DRAIN_STATE_NONE;
-            }
-            if (sampleTime >= mStartTimeUs) {
-                break;
-            }
-            mExtractor.advance();
+
+        if (!isEndOfStream && mSegment == SEGMENT_ENCODE_HEAD && isCopyStart()) {
+            // The rest is copied; drain the head.
+            isEndOfStream = true;
         }
 
-        int result = mDecoder.dequeueInputBuffer(timeoutUs);
+        int result = mDecoderQueue.dequeueInputBuffer(timeoutUs);
         if (result < 0) return DRAIN_STATE_NONE;
-
-        long sampleTime = mExtractor.getSampleTime();
-        if (sampleTime > mEndTimeUs) {
+        if (isEndOfStream) {
             mIsExtractorEOS = true;
-            mDecoder.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mDecoderQueue.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
             return DRAIN_STATE_NONE;
         }
-        int sampleSize = mExtractor.readSampleData(mDecoderInputBuffers[result], 0);
-        boolean isKeyFrame = (mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
-        mDecoder.queueInputBuffer(result, 0, sampleSize, sampleTime, isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
-        mExtractor.advance();
+        int sampleSize = mSampleSource.readSampleData(mDecoderBuffers.getInputBuffer(result), 0);
+        boolean isKeyFrame = (mSampleSource.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+        mDecoderQueue.queueInputBuffer(result, 0, sampleSize, mSampleSource.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+        mSampleSource.advance();
+        recordLatency(TranscodeMetrics.Stage.DRAIN_EXTRACTOR, startNanos);
         return DRAIN_STATE_CONSUMED;
     }
 
     private int drainDecoder(long timeoutUs) {
-        if (mIsDecoderEOS) return DRAIN_STATE_NONE;
-        int result = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        if (mIsDecoderEOS) {
+            if (!mEndOfInputPending || mFrameRenderer.getFramesInFlight() > 0) return DRAIN_STATE_NONE;
+            // Frames in flight must reach the encoder before the end of stream.
+            mEncoderQueue.signalEndOfInputStream();
+            mEndOfInputPending = false;
+            return DRAIN_STATE_CONSUMED;
+        }
+        // The renderer signals the event dispatcher when it has room again.
+        if (mFrameRenderer != null && !mFrameRenderer.canAcceptFrame()) return DRAIN_STATE_NONE;
+        final long startNanos = mMetrics != null ? System.nanoTime() : 0;
+        int result = mDecoderQueue.dequeueOutputBuffer(mBufferInfo, timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
@@ -189,37 +475,70 @@ public class VideoTrackTranscoder implements TrackTranscoder {
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
         if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-            mEncoder.signalEndOfInputStream();
+            if (mFrameRenderer != null) {
+                mEndOfInputPending = true;
+            } else {
+                mEncoderQueue.signalEndOfInputStream();
+            }
             mIsDecoderEOS = true;
             mBufferInfo.size = 0;
         }
-        boolean doRender = (mBufferInfo.size > 0);
+        // Pre-roll frames from the sync sample before the segment, and frames after it, are dropped here.
+        boolean doRender = mBufferInfo.size > 0
+                && mBufferInfo.presentationTimeUs >= mRenderStartUs && mBufferInfo.presentationTimeUs < mRenderEndUs;
+        if (mDirectRendering) {
+            // The frame goes to the encoder as it is, with its timestamp set on the surface.
+            if (doRender) {
+                mDecoderQueue.releaseOutputBuffer(result, (mBufferInfo.presentationTimeUs - mTrimStartUs) * 1000);
+            } else {
+                mDecoderQueue.releaseOutputBuffer(result, false);
+            }
+            recordLatency(TranscodeMetrics.Stage.DRAIN_DECODER, startNanos);
+            return DRAIN_STATE_CONSUMED;
+        }
+        if (mFrameRenderer != null) {
+            // Counted before the release, as the frame may reach the renderer before this returns.
+            if (doRender) mFrameRenderer.onFrameReleased();
+            mDecoderQueue.releaseOutputBuffer(result, doRender);
+            recordLatency(TranscodeMetrics.Stage.DRAIN_DECODER, startNanos);
+            return DRAIN_STATE_CONSUMED;
+        }
         // NOTE: doRender will block if buffer (of encoder) is full.
         // Refer: http://bigflake.com/mediacodec/CameraToMpegTest.java.txt
-        mDecoder.releaseOutputBuffer(result, doRender);
+        mDecoderQueue.releaseOutputBuffer(result, doRender);
         if (doRender) {
+            final long awaitStartNanos = mMetrics != null ? System.nanoTime() : 0;
             mDecoderOutputSurfaceWrapper.awaitNewImage();
+            final long drawStartNanos = recordLatency(TranscodeMetrics.Stage.AWAIT_NEW_IMAGE, awaitStartNanos);
             mDecoderOutputSurfaceWrapper.drawImage();
-            mEncoderInputSurfaceWrapper.setPresentationTime(mBufferInfo.presentationTimeUs * 1000);
+            final long swapStartNanos = recordLatency(TranscodeMetrics.Stage.DRAW_IMAGE, drawStartNanos);
+            mEncoderInputSurfaceWrapper.setPresentationTime((mBufferInfo.presentationTimeUs - mTrimStartUs) * 1000);
             mEncoderInputSurfaceWrapper.swapBuffers();
+            recordLatency(TranscodeMetrics.Stage.SWAP_BUFFERS, swapStartNanos);
         }
+        recordLatency(TranscodeMetrics.Stage.DRAIN_DECODER, startNanos);
         return DRAIN_STATE_CONSUMED;
     }
 
     private int drainEncoder(long timeoutUs) {
         if (mIsEncoderEOS) return DRAIN_STATE_NONE;
-        int result = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+        final long startNanos = mMetrics != null ? System.nanoTime() : 0;
+        int result = mEncoderQueue.dequeueOutputBuffer(mBufferInfo, timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
                 return DRAIN_STATE_NONE;
             case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                if (mStreamCopy) {
+                    onEncoderFormatChanged(mEncoder.getOutputFormat());
+                    return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+                }
                 if (mActualOutputFormat != null)
                     throw new RuntimeException("Video output format changed twice.");
                 mActualOutputFormat = mEncoder.getOutputFormat();
                 mMuxer.setOutputFormat(QueuedMuxer.SampleType.VIDEO, mActualOutputFormat);
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
             case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                mEncoderOutputBuffers = mEncoder.getOutputBuffers();
+                mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder);
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
         if (mActualOutputFormat == null) {
@@ -229,17 +548,46 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
             mIsEncoderEOS = true;
             mBufferInfo.set(0, 0, 0, mBufferInfo.flags);
+            if (mSegment == SEGMENT_ENCODE_HEAD) {
+                // The copied segment follows; the track does not end here.
+                mEncoderQueue.releaseOutputBuffer(result, false);
+                return DRAIN_STATE_NONE;
+            }
+            mIsFinished = true;
         }
         if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
             // SPS or PPS, which should be passed by MediaFormat.
-            mEncoder.releaseOutputBuffer(result, false);
+            mEncoderQueue.releaseOutputBuffer(result, false);
             return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
-        mMuxer.writeSampleData(QueuedMuxer.SampleType.VIDEO, mEncoderOutputBuffers[result], mBufferInfo);
+        ByteBuffer encodedData = mEncoderBuffers.getOutputBuffer(result);
+        if (mEncoderParameterSets != null && (mBufferInfo.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0) {
+            int prefixSize = mEncoderParameterSets.remaining();
+            mCopyBuffer = ensureCopyBuffer(prefixSize + mBufferInfo.size);
+            mCopyBuffer.clear();
+            mCopyBuffer.put(mEncoderParameterSets.duplicate());
+            ByteBuffer frame = encodedData.duplicate();
+            frame.limit(mBufferInfo.offset + mBufferInfo.size).position(mBufferInfo.offset);
+            mCopyBuffer.put(frame);
+            mBufferInfo.set(0, prefixSize + mBufferInfo.size, mBufferInfo.presentationTimeUs, mBufferInfo.flags);
+            encodedData = mCopyBuffer;
+        }
+        TranscodeMetrics.writeSampleData(mMetrics, mMuxer, QueuedMuxer.SampleType.VIDEO, encodedData, mBufferInfo);
         mWrittenPresentationTimeUs = mBufferInfo.presentationTimeUs;
-        mEncoder.releaseOutputBuffer(result, false);
+        mEncoderQueue.releaseOutputBuffer(result, false);
+        recordLatency(TranscodeMetrics.Stage.DRAIN_ENCODER, startNanos);
         return DRAIN_STATE_CONSUMED;
     }
+
+    /**
+     * @return Current time, to time the next stage from.
+     */
+    private long recordLatency(TranscodeMetrics.Stage stage, long startNanos) {
+        if (mMetrics == null) return 0;
+        final long nowNanos = System.nanoTime();
+        mMetrics.recordLatency(QueuedMuxer.SampleType.VIDEO, stage, nowNanos - startNanos);
+        return nowNanos;
+    }
 }
 
 
@@ -0,0 +1,7 @@
+package com.example.androidtranscoder.exception;
+
+public class UnsupportedContainerException extends RuntimeException {
+    public UnsupportedContainerException(String detailMessage) {
+        super(detailMessage);
+    }
+}
@@ -5,22 +5,45 @@ import android.media.MediaFormat;
 import android.util.Log;
 
 import com.example.androidtranscoder.exception.OutputFormatUnavailableException;
+import com.example.androidtranscoder.utils.DeviceCodecCapabilities;
 
 class Media720pStrategy implements MediaFormatStrategy {
     public static final int AUDIO_BITRATE_AS_IS = -1;
     public static final int AUDIO_CHANNELS_AS_IS = -1;
+    public static final int AUDIO_SAMPLE_RATE_AS_IS = -1;
     private static final String TAG = "720pFormatStrategy";
     private static final int LONGER_LENGTH = 1280;
     private static final int SHORTER_LENGTH = 720;
     private static final int DEFAULT_VIDEO_BITRATE = 8000 * 1000; // From Nexus 4 Camera in 720p, default bitrate is 8Mbps
+    private static final int FRAME_RATE = 30;
+    /** Below this, the encoder is considered too slow for 720p and the output is scaled down. */
+    private static final int MIN_FRAME_RATE = 24;
+    private static final float REDUCED_SCALE = 0.5f;
     private final int mVideoBitrate;
     private final int mAudioBitrate;
     private final int mAudioChannels;
+    private final int mAudioSampleRate;
+    private final DeviceCodecCapabilities mCodecCapabilities;
 
     public Media720pStrategy(int videoBitrate, int audioBitrate, int audioChannels) {
+        this(videoBitrate, audioBitrate, audioChannels, AUDIO_SAMPLE_RATE_AS_IS);
+    }
+
+    public Media720pStrategy(int videoBitrate, int audioBitrate, int audioChannels, int audioSampleRate) {
+        this(videoBitrate, audioBitrate, audioChannels, audioSampleRate, null);
+    }
+
+    /**
+     * @param codecCapabilities Used to lower resolution and frame rate to what the encoder keeps up with,
+     *                          or null to always encode 720p30.
+     */
+    public Media720pStrategy(int videoBitrate, int audioBitrate, int audioChannels, int audioSampleRate,
+                             DeviceCodecCapabilities codecCapabilities) {
         mVideoBitrate = videoBitrate;
         mAudioBitrate = audioBitrate;
         mAudioChannels = audioChannels;
+        mAudioSampleRate = audioSampleRate;
+        mCodecCapabilities = codecCapabilities;
     }
 
     @Override
@@ -48,27 +71,46 @@ class Media720pStrategy implements MediaFormatStrategy {
 //            Log.d(TAG, "This video is less or equal to 720p, pass-through. (" + width + "x" + height + ")");
 //            return null;
 //        }
+        int frameRate = FRAME_RATE;
+        if (mCodecCapabilities != null) {
+            int maxFrameRate = getMaxEncoderFrameRate(outWidth, outHeight);
+            if (maxFrameRate != DeviceCodecCapabilities.FRAME_RATE_UNKNOWN && maxFrameRate < MIN_FRAME_RATE) {
+                int reducedMaxFrameRate = getMaxEncoderFrameRate(
+                        (int) (outWidth * REDUCED_SCALE), (int) (outHeight * REDUCED_SCALE));
+                if (reducedMaxFrameRate == DeviceCodecCapabilities.FRAME_RATE_UNKNOWN
+                        || reducedMaxFrameRate > maxFrameRate) {
+                    Log.d(TAG, "Encoder reaches " + maxFrameRate + "fps in 720p, scaling down.");
+                    scale = REDUCED_SCALE;
+                    maxFrameRate = reducedMaxFrameRate;
+                }
+            }
+            if (maxFrameRate > 0) frameRate = Math.min(frameRate, maxFrameRate);
+        }
         MediaFormat format = MediaFormat.createVideoFormat(
                 FormatExtraConstants.MIMETYPE_VIDEO_AVC,
                 (int) (outWidth * scale),
                 (int) (outHeight* scale));
         // From Nexus 4 Camera in 720p
         format.setInteger(MediaFormat.KEY_BIT_RATE, (int) (mVideoBitrate * scale));
-        format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
         format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 3);
         format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         return format;
     }
 
+    private int getMaxEncoderFrameRate(int width, int height) {
+        return mCodecCapabilities.getMaxFrameRate(FormatExtraConstants.MIMETYPE_VIDEO_AVC, true, width, height);
+    }
+
     @Override
     public MediaFormat createAudioOutputFormat(MediaFormat inputFormat) {
         if (mAudioBitrate == AUDIO_BITRATE_AS_IS || mAudioChannels == AUDIO_CHANNELS_AS_IS) return null;
 
-        // Use original sample rate, as resampling is not supported yet.
-        int inputSampleRate = inputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int sampleRate = mAudioSampleRate == AUDIO_SAMPLE_RATE_AS_IS
+                ? inputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE) : mAudioSampleRate;
         final MediaFormat format = MediaFormat.createAudioFormat(
                 FormatExtraConstants.MIMETYPE_AUDIO_AAC,
-                inputSampleRate,
+                sampleRate,
                 mAudioChannels);
         format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
         format.setInteger(MediaFormat.KEY_BIT_RATE, mAudioBitrate);
@@ -1,6 +1,8 @@
 
 package com.example.androidtranscoder.format;
 
+import com.example.androidtranscoder.utils.DeviceCodecCapabilities;
+
 public class MediaFormatPresetsFactory {
     /**
      * Preset based on Nexus 4 camera recording with 720p quality.
@@ -16,4 +18,39 @@ public class MediaFormatPresetsFactory {
         return new Media720pStrategy(bitrate, audioBitrate, audioChannels);
     }
 
+    /**
+     * Same as {@link #createVideo720pStrategy(int, int, int)}, with audio resampled to the given rate,
+     * e.g. 44100 or 48000 to normalize inputs recorded at other rates.
+     *
+     * @param audioSampleRate Output audio sample rate, or -1 to keep the input sample rate.
+     */
+    public static MediaFormatStrategy createVideo720pStrategy(int bitrate, int audioBitrate, int audioChannels,
+                                                              int audioSampleRate) {
+        return new Media720pStrategy(bitrate, audioBitrate, audioChannels, audioSampleRate);
+    }
+
+    /**
+     * Same as {@link #createVideo720pStrategy(int, int, int, int)}, with resolution and frame rate lowered when the
+     * best AVC encoder of the device does not keep up with 720p30, e.g. on devices with a software encoder only.
+     */
+    public static MediaFormatStrategy createVideo720pStrategy(int bitrate, int audioBitrate, int audioChannels,
+                                                              int audioSampleRate,
+                                                              DeviceCodecCapabilities codecCapabilities) {
+        return new Media720pStrategy(bitrate, audioBitrate, audioChannels, audioSampleRate, codecCapabilities);
+    }
+
+    /**
+     * AVC renditions of an ABR ladder, keeping the aspect ratio of the input, for
+     * {@link com.example.androidtranscoder.MediaTranscoder#transcodeVideoRenditions}.
+     *
+     * @param shorterLengths Length of the shorter side of each rendition, e.g. {1080, 720, 480}.
+     * @param bitrates       Video bitrate of each rendition.
+     * @param audioBitrate   Bitrate for audio encoding, or -1 to keep audio as is.
+     * @param audioChannels  Output audio channels, or -1 to keep audio as is.
+     */
+    public static MediaFormatStrategy createVideoLadderStrategy(int[] shorterLengths, int[] bitrates,
+                                                                int audioBitrate, int audioChannels) {
+        return new MediaLadderStrategy(shorterLengths, bitrates, audioBitrate, audioChannels);
+    }
+
 }
@@ -5,6 +5,9 @@ import android.media.MediaFormat;
 
 import com.example.androidtranscoder.exception.OutputFormatUnavailableException;
 
+import java.util.Collections;
+import java.util.List;
+
 public interface MediaFormatStrategy {
 
     /**
@@ -16,6 +19,19 @@ public interface MediaFormatStrategy {
      */
     MediaFormat createVideoOutputFormat(MediaFormat inputFormat);
 
+    /**
+     * Returns the video format of each rendition, for transcoding into several outputs with one decoder.
+     *
+     * @param inputFormat MediaFormat from MediaExtractor, contains csd-0/csd-1.
+     * @return One format per output, in the order of the outputs. Defaults to the single
+     * {@link #createVideoOutputFormat(MediaFormat)}, or an empty list for passthrough.
+     * @throws OutputFormatUnavailableException if input could not be transcoded because of restrictions.
+     */
+    default List<MediaFormat> createVideoOutputFormats(MediaFormat inputFormat) {
+        MediaFormat format = createVideoOutputFormat(inputFormat);
+        return format != null ? Collections.singletonList(format) : Collections.<MediaFormat>emptyList();
+    }
+
     /**
      * Caution: this method should return null currently.
      *
@@ -24,4 +40,17 @@ public interface MediaFormatStrategy {
      */
     MediaFormat createAudioOutputFormat(MediaFormat inputFormat);
 
+    /**
+     * Returns whether decoded frames can go into the encoder without GL, i.e. the video output format neither
+     * scales nor filters them. The engine renders with GL when this returns false, or if the codecs cannot render
+     * directly on the device.
+     *
+     * @param inputFormat  MediaFormat from MediaExtractor.
+     * @param outputFormat Format returned by {@link #createVideoOutputFormat(MediaFormat)}, not null.
+     */
+    default boolean canRenderDirectly(MediaFormat inputFormat, MediaFormat outputFormat) {
+        return inputFormat.getInteger(MediaFormat.KEY_WIDTH) == outputFormat.getInteger(MediaFormat.KEY_WIDTH)
+                && inputFormat.getInteger(MediaFormat.KEY_HEIGHT) == outputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+    }
+
 }
@@ -0,0 +1,80 @@
+package com.example.androidtranscoder.format;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AVC renditions of an ABR ladder, e.g. 1080p, 720p and 480p, each scaled to keep the aspect ratio of the input.
+ * The first rendition is the one of a single-output transcode.
+ */
+class MediaLadderStrategy implements MediaFormatStrategy {
+    private static final int FRAME_RATE = 30;
+    private final int[] mShorterLengths;
+    private final int[] mVideoBitrates;
+    private final int mAudioBitrate;
+    private final int mAudioChannels;
+
+    /**
+     * @param shorterLengths Length of the shorter side of each rendition, e.g. 1080, 720 and 480.
+     * @param videoBitrates  Video bitrate of each rendition.
+     */
+    public MediaLadderStrategy(int[] shorterLengths, int[] videoBitrates, int audioBitrate, int audioChannels) {
+        if (shorterLengths.length == 0 || shorterLengths.length != videoBitrates.length) {
+            throw new IllegalArgumentException("Need a bitrate for each of " + shorterLengths.length + " renditions.");
+        }
+        mShorterLengths = shorterLengths.clone();
+        mVideoBitrates = videoBitrates.clone();
+        mAudioBitrate = audioBitrate;
+        mAudioChannels = audioChannels;
+    }
+
+    @Override
+    public MediaFormat createVideoOutputFormat(MediaFormat inputFormat) {
+        return createVideoOutputFormat(inputFormat, 0);
+    }
+
+    @Override
+    public List<MediaFormat> createVideoOutputFormats(MediaFormat inputFormat) {
+        List<MediaFormat> formats = new ArrayList<>(mShorterLengths.length);
+        for (int i = 0; i < mShorterLengths.length; i++) formats.add(createVideoOutputFormat(inputFormat, i));
+        return formats;
+    }
+
+    private MediaFormat createVideoOutputFormat(MediaFormat inputFormat, int rendition) {
+        int[] size = getScaledSize(inputFormat.getInteger(MediaFormat.KEY_WIDTH),
+                inputFormat.getInteger(MediaFormat.KEY_HEIGHT), mShorterLengths[rendition]);
+        MediaFormat format = MediaFormat.createVideoFormat(FormatExtraConstants.MIMETYPE_VIDEO_AVC, size[0], size[1]);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mVideoBitrates[rendition]);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 3);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        return format;
+    }
+
+    @Override
+    public MediaFormat createAudioOutputFormat(MediaFormat inputFormat) {
+        if (mAudioBitrate == Media720pStrategy.AUDIO_BITRATE_AS_IS
+                || mAudioChannels == Media720pStrategy.AUDIO_CHANNELS_AS_IS) {
+            return null;
+        }
+        final MediaFormat format = MediaFormat.createAudioFormat(FormatExtraConstants.MIMETYPE_AUDIO_AAC,
+                inputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE), mAudioChannels);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, mAudioBitrate);
+        return format;
+    }
+
+    /**
+     * @return Width and height with the shorter side at shorterLength and the aspect ratio of the input,
+     * the longer side rounded to an even length as encoders require.
+     */
+    static int[] getScaledSize(int width, int height, int shorterLength) {
+        int shorter = Math.min(width, height);
+        int longer = Math.max(width, height);
+        int scaledLonger = Math.round((float) longer * shorterLength / shorter / 2) * 2;
+        return width >= height ? new int[]{scaledLonger, shorterLength} : new int[]{shorterLength, scaledLonger};
+    }
+}
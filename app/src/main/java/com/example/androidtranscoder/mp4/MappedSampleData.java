@@ -0,0 +1,60 @@
+package com.example.androidtranscoder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sample data of an MP4 file, memory-mapped so a sample is a slice of the mapping instead of a read.
+ * <p>
+ * A mapping holds at most 2 GB, so larger files are mapped in windows, each overlapping the next by the largest
+ * sample; every sample then lies within one window. Slices are read-only and safe to take from several threads.
+ */
+public class MappedSampleData {
+    static final long DEFAULT_WINDOW_SIZE = 1L << 30;
+    private final long mFileSize;
+    private final long mWindowSize;
+    private final ByteBuffer[] mWindows;
+
+    /**
+     * @param maxSampleSize Size of the largest sample of any track to read, see {@link Mp4Track#getMaxSampleSize()}.
+     */
+    public MappedSampleData(FileChannel channel, int maxSampleSize) throws IOException {
+        this(channel, maxSampleSize, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedSampleData(FileChannel channel, int maxSampleSize, long windowSize) throws IOException {
+        if (windowSize + maxSampleSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Sample size " + maxSampleSize + " too large to map.");
+        }
+        mFileSize = channel.size();
+        mWindowSize = windowSize;
+        int windowCount = (int) Math.max(1, (mFileSize + windowSize - 1) / windowSize);
+        mWindows = new ByteBuffer[windowCount];
+        for (int i = 0; i < windowCount; i++) {
+            long start = i * windowSize;
+            long size = Math.min(windowSize + maxSampleSize, mFileSize - start);
+            mWindows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+        }
+    }
+
+    /**
+     * @param offset Absolute file offset, see {@link Mp4Track#getSampleOffset(int)}.
+     * @return Read-only slice of the mapping, positioned at the sample.
+     */
+    public ByteBuffer getSample(long offset, int size) {
+        if (offset < 0 || size < 0 || offset + size > mFileSize) {
+            throw new IllegalArgumentException("Sample at " + offset + " of " + size + " bytes is outside of the file.");
+        }
+        ByteBuffer window = mWindows[(int) (offset / mWindowSize)];
+        int position = (int) (offset % mWindowSize);
+        if (position + size > window.capacity()) {
+            throw new IllegalArgumentException("Sample at " + offset + " is larger than the max sample size.");
+        }
+        // Absolute positions only, so the shared window is never modified.
+        ByteBuffer sample = window.duplicate();
+        sample.limit(position + size);
+        sample.position(position);
+        return sample.slice();
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.androidtranscoder.mp4;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Movie header and tracks of a non-fragmented MP4 file, as read by {@link Mp4Parser}.
+ */
+public class Mp4Movie {
+    final int mTimescale;
+    final ByteBuffer mMovieHeaderBox;
+    final List<ByteBuffer> mUserDataBoxes;
+    final List<Mp4Track> mTracks;
+
+    Mp4Movie(int timescale, ByteBuffer movieHeaderBox, List<ByteBuffer> userDataBoxes, List<Mp4Track> tracks) {
+        mTimescale = timescale;
+        mMovieHeaderBox = movieHeaderBox;
+        mUserDataBoxes = userDataBoxes;
+        mTracks = tracks;
+    }
+
+    public int getTimescale() {
+        return mTimescale;
+    }
+
+    /**
+     * @return Duration from mvhd in micro-seconds.
+     */
+    public long getDurationUs() {
+        long duration = mMovieHeaderBox.get(8) == 1 ? mMovieHeaderBox.getLong(32)
+                : mMovieHeaderBox.getInt(24) & 0xffffffffL;
+        return duration * 1_000_000 / mTimescale;
+    }
+
+    /**
+     * @return Location in ISO 6709 form from the \u00a9xyz box of udta, as written by cameras and MediaMuxer,
+     * or null.
+     */
+    public String getLocation() {
+        for (ByteBuffer box : mUserDataBoxes) {
+            if (!Mp4Parser.fourCc(box, 4).equals("udta")) continue;
+            ByteBuffer xyz = Mp4Parser.find(box, Mp4Parser.HEADER_SIZE, "\u00a9xyz");
+            if (xyz == null || xyz.limit() < 12) continue;
+            int length = Math.min(xyz.getShort(8) & 0xffff, xyz.limit() - 12);
+            byte[] location = new byte[length];
+            for (int i = 0; i < length; i++) location[i] = xyz.get(12 + i);
+            return new String(location, StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
+    /**
+     * @return Raw mvhd box, including its header.
+     */
+    public ByteBuffer getMovieHeaderBox() {
+        return mMovieHeaderBox.duplicate();
+    }
+
+    /**
+     * @return Raw udta and meta boxes of moov, e.g. location.
+     */
+    public List<ByteBuffer> getUserDataBoxes() {
+        return Collections.unmodifiableList(mUserDataBoxes);
+    }
+
+    public List<Mp4Track> getTracks() {
+        return Collections.unmodifiableList(mTracks);
+    }
+
+    /**
+     * @return First track with the given handler type, or null.
+     */
+    public Mp4Track getFirstTrack(String handlerType) {
+        for (Mp4Track track : mTracks) {
+            if (track.mHandlerType.equals(handlerType)) return track;
+        }
+        return null;
+    }
+}
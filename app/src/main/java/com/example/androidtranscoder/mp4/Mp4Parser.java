@@ -0,0 +1,250 @@
+package com.example.androidtranscoder.mp4;
+
+import com.example.androidtranscoder.exception.UnsupportedContainerException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the moov box of an MP4 file and flattens the sample tables of its tracks.
+ * Only moov is loaded into memory; media data is left on disk.
+ */
+public class Mp4Parser {
+    static final int HEADER_SIZE = 8;
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    private Mp4Parser() {
+    }
+
+    /**
+     * @throws UnsupportedContainerException when the file is not a non-fragmented MP4 file.
+     */
+    public static Mp4Movie parse(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        while (position + HEADER_SIZE <= fileSize) {
+            header.clear();
+            header.limit(HEADER_SIZE);
+            readFully(channel, header, position);
+            long size = header.getInt(0) & 0xffffffffL;
+            String type = fourCc(header, 4);
+            int headerSize = HEADER_SIZE;
+            if (size == 1) {
+                header.limit(16);
+                readFully(channel, header, position + HEADER_SIZE);
+                size = header.getLong(HEADER_SIZE);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize) throw new UnsupportedContainerException("Invalid size of box " + type + ": " + size);
+            if (type.equals("moov")) {
+                if (size > MAX_MOOV_SIZE) throw new UnsupportedContainerException("moov too large: " + size);
+                ByteBuffer moov = ByteBuffer.allocate((int) size);
+                readFully(channel, moov, position);
+                moov.flip();
+                return parseMovie(moov);
+            }
+            position += size;
+        }
+        throw new UnsupportedContainerException("No moov box.");
+    }
+
+    private static Mp4Movie parseMovie(ByteBuffer moov) {
+        ByteBuffer mvhd = null;
+        List<ByteBuffer> userData = new ArrayList<>();
+        List<Mp4Track> tracks = new ArrayList<>();
+        for (ByteBuffer box : children(moov, HEADER_SIZE)) {
+            String type = fourCc(box, 4);
+            switch (type) {
+                case "mvhd":
+                    mvhd = box;
+                    break;
+                case "trak":
+                    Mp4Track track = parseTrack(box);
+                    if (track != null) tracks.add(track);
+                    break;
+                case "udta":
+                case "meta":
+                    userData.add(box);
+                    break;
+                case "mvex":
+                    throw new UnsupportedContainerException("Fragmented MP4 is not supported.");
+                default:
+                    break;
+            }
+        }
+        if (mvhd == null) throw new UnsupportedContainerException("No mvhd box.");
+        int timescale = mvhd.getInt(mvhd.get(8) == 1 ? 28 : 20);
+        return new Mp4Movie(timescale, mvhd, userData, tracks);
+    }
+
+    /**
+     * @return null if the track has no sample table, e.g. a reference-only track.
+     */
+    private static Mp4Track parseTrack(ByteBuffer trak) {
+        ByteBuffer tkhd = find(trak, HEADER_SIZE, "tkhd");
+        ByteBuffer mdia = find(trak, HEADER_SIZE, "mdia");
+        if (tkhd == null || mdia == null) return null;
+        ByteBuffer mdhd = find(mdia, HEADER_SIZE, "mdhd");
+        ByteBuffer hdlr = find(mdia, HEADER_SIZE, "hdlr");
+        ByteBuffer minf = find(mdia, HEADER_SIZE, "minf");
+        if (mdhd == null || hdlr == null || minf == null) return null;
+        ByteBuffer stbl = find(minf, HEADER_SIZE, "stbl");
+        ByteBuffer dinf = find(minf, HEADER_SIZE, "dinf");
+        if (stbl == null || dinf == null) return null;
+        ByteBuffer mediaInformationHeader = null;
+        for (ByteBuffer box : children(minf, HEADER_SIZE)) {
+            String type = fourCc(box, 4);
+            if (type.endsWith("mhd")) mediaInformationHeader = box;
+        }
+
+        int trackId = tkhd.getInt(tkhd.get(8) == 1 ? 28 : 20);
+        int timescale = mdhd.getInt(mdhd.get(8) == 1 ? 28 : 20);
+        String handlerType = fourCc(hdlr, 16);
+
+        ByteBuffer stsd = find(stbl, HEADER_SIZE, "stsd");
+        ByteBuffer stts = find(stbl, HEADER_SIZE, "stts");
+        ByteBuffer stsc = find(stbl, HEADER_SIZE, "stsc");
+        ByteBuffer stsz = find(stbl, HEADER_SIZE, "stsz");
+        ByteBuffer stco = find(stbl, HEADER_SIZE, "stco");
+        ByteBuffer co64 = find(stbl, HEADER_SIZE, "co64");
+        ByteBuffer ctts = find(stbl, HEADER_SIZE, "ctts");
+        ByteBuffer stss = find(stbl, HEADER_SIZE, "stss");
+        if (stsd == null || stts == null || stsc == null || (stco == null && co64 == null)) {
+            throw new UnsupportedContainerException("Incomplete sample table in track " + trackId);
+        }
+        if (stsz == null) {
+            throw new UnsupportedContainerException("Sample size table stsz is required in track " + trackId);
+        }
+
+        // Sample sizes
+        int defaultSize = stsz.getInt(12);
+        int sampleCount = stsz.getInt(16);
+        int[] sizes = new int[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            sizes[i] = defaultSize != 0 ? defaultSize : stsz.getInt(20 + i * 4);
+        }
+
+        // Decode times
+        long[] decodeTimes = new long[sampleCount];
+        int lastDuration = 0;
+        int sample = 0;
+        long time = 0;
+        int entryCount = stts.getInt(12);
+        for (int e = 0; e < entryCount && sample < sampleCount; e++) {
+            int count = stts.getInt(16 + e * 8);
+            lastDuration = stts.getInt(20 + e * 8);
+            for (int i = 0; i < count && sample < sampleCount; i++) {
+                decodeTimes[sample++] = time;
+                time += lastDuration;
+            }
+        }
+        if (sample != sampleCount) throw new UnsupportedContainerException("stts does not cover all samples of track " + trackId);
+
+        // Composition offsets
+        int[] compositionOffsets = new int[sampleCount];
+        if (ctts != null) {
+            sample = 0;
+            entryCount = ctts.getInt(12);
+            for (int e = 0; e < entryCount && sample < sampleCount; e++) {
+                int count = ctts.getInt(16 + e * 8);
+                int offset = ctts.getInt(20 + e * 8);
+                for (int i = 0; i < count && sample < sampleCount; i++) compositionOffsets[sample++] = offset;
+            }
+        }
+
+        // Sync samples; every sample is sync without stss.
+        boolean[] sync = new boolean[sampleCount];
+        if (stss == null) {
+            for (int i = 0; i < sampleCount; i++) sync[i] = true;
+        } else {
+            entryCount = stss.getInt(12);
+            for (int e = 0; e < entryCount; e++) {
+                int index = stss.getInt(16 + e * 4) - 1;
+                if (index >= 0 && index < sampleCount) sync[index] = true;
+            }
+        }
+
+        // Chunks and sample offsets
+        boolean largeOffsets = stco == null;
+        ByteBuffer chunkOffsetBox = largeOffsets ? co64 : stco;
+        int chunkCount = chunkOffsetBox.getInt(12);
+        long[] offsets = new long[sampleCount];
+        int[] chunkFirstSamples = new int[chunkCount + 1];
+        int stscCount = stsc.getInt(12);
+        sample = 0;
+        for (int e = 0; e < stscCount; e++) {
+            int firstChunk = stsc.getInt(16 + e * 12) - 1;
+            int samplesPerChunk = stsc.getInt(20 + e * 12);
+            int endChunk = e + 1 < stscCount ? stsc.getInt(16 + (e + 1) * 12) - 1 : chunkCount;
+            for (int chunk = firstChunk; chunk < endChunk && chunk < chunkCount; chunk++) {
+                chunkFirstSamples[chunk] = sample;
+                long offset = largeOffsets ? chunkOffsetBox.getLong(16 + chunk * 8)
+                        : chunkOffsetBox.getInt(16 + chunk * 4) & 0xffffffffL;
+                for (int i = 0; i < samplesPerChunk && sample < sampleCount; i++) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample];
+                    sample++;
+                }
+            }
+        }
+        if (sample != sampleCount) throw new UnsupportedContainerException("stsc does not cover all samples of track " + trackId);
+        chunkFirstSamples[chunkCount] = sampleCount;
+
+        return new Mp4Track(trackId, handlerType, timescale, tkhd, mdhd, hdlr, mediaInformationHeader, dinf, stsd,
+                offsets, sizes, decodeTimes, compositionOffsets, sync, lastDuration, chunkFirstSamples);
+    }
+
+    /**
+     * @return Slices of the child boxes, each starting at its header. Positions within a slice are relative to the box.
+     */
+    static List<ByteBuffer> children(ByteBuffer parent, int firstChildOffset) {
+        List<ByteBuffer> children = new ArrayList<>();
+        int position = firstChildOffset;
+        int end = parent.limit();
+        while (position + HEADER_SIZE <= end) {
+            long size = parent.getInt(position) & 0xffffffffL;
+            if (size == 1) {
+                size = parent.getLong(position + HEADER_SIZE);
+            } else if (size == 0) {
+                size = end - position;
+            }
+            if (size < HEADER_SIZE || position + size > end) {
+                throw new UnsupportedContainerException("Invalid size of box " + fourCc(parent, position + 4) + ": " + size);
+            }
+            ByteBuffer child = parent.duplicate();
+            child.limit(position + (int) size);
+            child.position(position);
+            children.add(child.slice());
+            position += (int) size;
+        }
+        return children;
+    }
+
+    static ByteBuffer find(ByteBuffer parent, int firstChildOffset, String type) {
+        for (ByteBuffer child : children(parent, firstChildOffset)) {
+            if (fourCc(child, 4).equals(type)) return child;
+        }
+        return null;
+    }
+
+    static String fourCc(ByteBuffer buffer, int offset) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) chars[i] = (char) (buffer.get(offset + i) & 0xff);
+        return new String(chars);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) throw new EOFException("Unexpected end of file at " + position);
+            position += read;
+        }
+    }
+}
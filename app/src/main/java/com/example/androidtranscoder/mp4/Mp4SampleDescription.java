@@ -0,0 +1,231 @@
+package com.example.androidtranscoder.mp4;
+
+import com.example.androidtranscoder.format.FormatExtraConstants;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Codec and codec configuration of a track, from the first entry of its stsd box; the part of
+ * {@link android.media.MediaExtractor#getTrackFormat(int)} which decoders need.
+ * Parameter sets are in Annex B form with start codes, as decoders take them in csd-0 and csd-1; samples of AVC and
+ * HEVC keep the length prefixes of {@link #getNalUnitLengthSize()} bytes they have in the file.
+ */
+public class Mp4SampleDescription {
+    public static final String MIMETYPE_VIDEO_HEVC = "video/hevc";
+    public static final String MIMETYPE_AUDIO_MPEG = "audio/mpeg";
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    // Offsets in a sample entry, counted from its box header.
+    private static final int VISUAL_WIDTH_OFFSET = 32;
+    private static final int VISUAL_CHILDREN_OFFSET = 86;
+    private static final int AUDIO_VERSION_OFFSET = 16;
+    private static final int AUDIO_CHANNEL_COUNT_OFFSET = 24;
+    private static final int AUDIO_SAMPLE_RATE_OFFSET = 32;
+    private static final int AUDIO_CHILDREN_OFFSET = 36;
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+
+    final String mMime;
+    final int mWidth;
+    final int mHeight;
+    final int mChannelCount;
+    final int mSampleRate;
+    final int mNalUnitLengthSize;
+    final byte[][] mCodecSpecificData;
+
+    private Mp4SampleDescription(String mime, int width, int height, int channelCount, int sampleRate,
+                                 int nalUnitLengthSize, byte[]... codecSpecificData) {
+        mMime = mime;
+        mWidth = width;
+        mHeight = height;
+        mChannelCount = channelCount;
+        mSampleRate = sampleRate;
+        mNalUnitLengthSize = nalUnitLengthSize;
+        mCodecSpecificData = codecSpecificData;
+    }
+
+    /**
+     * @return Description of AVC, HEVC or MPEG-4 audio tracks, or null for other codecs.
+     */
+    public static Mp4SampleDescription parse(Mp4Track track) {
+        ByteBuffer stsd = track.getSampleDescriptionBox();
+        // Full box header and entry count precede the first entry.
+        List<ByteBuffer> entries = Mp4Parser.children(stsd, Mp4Parser.HEADER_SIZE + 8);
+        if (entries.isEmpty()) return null;
+        ByteBuffer entry = entries.get(0);
+        switch (Mp4Parser.fourCc(entry, 4)) {
+            case "avc1":
+            case "avc3": {
+                ByteBuffer avcC = Mp4Parser.find(entry, VISUAL_CHILDREN_OFFSET, "avcC");
+                return avcC == null ? null : parseAvc(entry, avcC);
+            }
+            case "hvc1":
+            case "hev1": {
+                ByteBuffer hvcC = Mp4Parser.find(entry, VISUAL_CHILDREN_OFFSET, "hvcC");
+                return hvcC == null ? null : parseHevc(entry, hvcC);
+            }
+            case "mp4a":
+                return parseMp4Audio(entry);
+            default:
+                return null;
+        }
+    }
+
+    private static Mp4SampleDescription parseAvc(ByteBuffer entry, ByteBuffer avcC) {
+        int nalUnitLengthSize = (avcC.get(Mp4Parser.HEADER_SIZE + 4) & 3) + 1;
+        int position = Mp4Parser.HEADER_SIZE + 5;
+        int spsCount = avcC.get(position++) & 0x1f;
+        ByteArrayOutputStream sps = new ByteArrayOutputStream();
+        position = readNalUnits(avcC, position, spsCount, sps);
+        int ppsCount = avcC.get(position++) & 0xff;
+        ByteArrayOutputStream pps = new ByteArrayOutputStream();
+        readNalUnits(avcC, position, ppsCount, pps);
+        return new Mp4SampleDescription(FormatExtraConstants.MIMETYPE_VIDEO_AVC,
+                entry.getShort(VISUAL_WIDTH_OFFSET) & 0xffff, entry.getShort(VISUAL_WIDTH_OFFSET + 2) & 0xffff,
+                0, 0, nalUnitLengthSize, sps.toByteArray(), pps.toByteArray());
+    }
+
+    private static Mp4SampleDescription parseHevc(ByteBuffer entry, ByteBuffer hvcC) {
+        int nalUnitLengthSize = (hvcC.get(Mp4Parser.HEADER_SIZE + 21) & 3) + 1;
+        // VPS, SPS and PPS all go into csd-0.
+        int position = Mp4Parser.HEADER_SIZE + 22;
+        int arrayCount = hvcC.get(position++) & 0xff;
+        ByteArrayOutputStream parameterSets = new ByteArrayOutputStream();
+        for (int i = 0; i < arrayCount; i++) {
+            position++;
+            int nalUnitCount = hvcC.getShort(position) & 0xffff;
+            position = readNalUnits(hvcC, position + 2, nalUnitCount, parameterSets);
+        }
+        return new Mp4SampleDescription(MIMETYPE_VIDEO_HEVC,
+                entry.getShort(VISUAL_WIDTH_OFFSET) & 0xffff, entry.getShort(VISUAL_WIDTH_OFFSET + 2) & 0xffff,
+                0, 0, nalUnitLengthSize, parameterSets.toByteArray());
+    }
+
+    /**
+     * @return Position after the NAL units, each of which is written to out after a start code.
+     */
+    private static int readNalUnits(ByteBuffer box, int position, int count, ByteArrayOutputStream out) {
+        for (int i = 0; i < count; i++) {
+            int length = box.getShort(position) & 0xffff;
+            position += 2;
+            out.write(START_CODE, 0, START_CODE.length);
+            for (int j = 0; j < length; j++) out.write(box.get(position + j));
+            position += length;
+        }
+        return position;
+    }
+
+    private static Mp4SampleDescription parseMp4Audio(ByteBuffer entry) {
+        // QuickTime sound entries of version 1 and 2 have more fields before the children.
+        int version = entry.getShort(AUDIO_VERSION_OFFSET);
+        int childrenOffset = AUDIO_CHILDREN_OFFSET + (version == 1 ? 16 : version == 2 ? 36 : 0);
+        ByteBuffer esds = Mp4Parser.find(entry, childrenOffset, "esds");
+        if (esds == null) return null;
+        int channelCount = entry.getShort(AUDIO_CHANNEL_COUNT_OFFSET) & 0xffff;
+        int sampleRate = entry.getInt(AUDIO_SAMPLE_RATE_OFFSET) >>> 16;
+
+        // ES_Descriptor, then DecoderConfigDescriptor, then DecoderSpecificInfo.
+        int position = Mp4Parser.HEADER_SIZE + 4;
+        if ((esds.get(position++) & 0xff) != 3) return null;
+        position = skipDescriptorSize(esds, position) + 2;
+        int esFlags = esds.get(position++) & 0xff;
+        if ((esFlags & 0x80) != 0) position += 2;
+        if ((esFlags & 0x40) != 0) position += 1 + (esds.get(position) & 0xff);
+        if ((esFlags & 0x20) != 0) position += 2;
+        if ((esds.get(position++) & 0xff) != 4) return null;
+        position = skipDescriptorSize(esds, position);
+        int objectType = esds.get(position) & 0xff;
+        position += 13;
+        if (objectType == 0x69 || objectType == 0x6b) {
+            return new Mp4SampleDescription(MIMETYPE_AUDIO_MPEG, 0, 0, channelCount, sampleRate, 0);
+        }
+        if (objectType != 0x40) return null;
+        if (position >= esds.limit() || (esds.get(position++) & 0xff) != 5) return null;
+        int sizePosition = position;
+        position = skipDescriptorSize(esds, position);
+        int size = readDescriptorSize(esds, sizePosition);
+        byte[] audioSpecificConfig = new byte[size];
+        for (int i = 0; i < size; i++) audioSpecificConfig[i] = esds.get(position + i);
+        if (size >= 2) {
+            // The config is more accurate than the sample entry, which caps the rate at 65535 Hz.
+            int frequencyIndex = ((audioSpecificConfig[0] & 0x07) << 1) | ((audioSpecificConfig[1] & 0x80) >>> 7);
+            if (frequencyIndex < AAC_SAMPLE_RATES.length) sampleRate = AAC_SAMPLE_RATES[frequencyIndex];
+            int channelConfiguration = (audioSpecificConfig[1] & 0x78) >>> 3;
+            if (channelConfiguration > 0 && channelConfiguration < 7) channelCount = channelConfiguration;
+        }
+        return new Mp4SampleDescription(FormatExtraConstants.MIMETYPE_AUDIO_AAC, 0, 0, channelCount, sampleRate, 0,
+                audioSpecificConfig);
+    }
+
+    private static int readDescriptorSize(ByteBuffer box, int position) {
+        int size = 0;
+        int b;
+        do {
+            b = box.get(position++) & 0xff;
+            size = (size << 7) | (b & 0x7f);
+        } while ((b & 0x80) != 0);
+        return size;
+    }
+
+    /**
+     * @return Position after the variable-length size of a descriptor.
+     */
+    private static int skipDescriptorSize(ByteBuffer box, int position) {
+        while ((box.get(position) & 0x80) != 0) position++;
+        return position + 1;
+    }
+
+    public String getMime() {
+        return mMime;
+    }
+
+    /**
+     * @return Width of video, or 0 for audio.
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return Height of video, or 0 for audio.
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return Channel count of audio, or 0 for video.
+     */
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * @return Sample rate of audio, or 0 for video.
+     */
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return Size of the length prefix of each NAL unit in samples of AVC and HEVC, 1 to 4 bytes, or 0 for audio.
+     */
+    public int getNalUnitLengthSize() {
+        return mNalUnitLengthSize;
+    }
+
+    /**
+     * @return Number of csd-N buffers, e.g. 2 for AVC: SPS and PPS.
+     */
+    public int getCodecSpecificDataCount() {
+        return mCodecSpecificData.length;
+    }
+
+    /**
+     * @return csd-index, to put into the track format.
+     */
+    public ByteBuffer getCodecSpecificData(int index) {
+        return ByteBuffer.wrap(mCodecSpecificData[index].clone());
+    }
+}
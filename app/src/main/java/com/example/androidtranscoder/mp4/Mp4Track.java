@@ -0,0 +1,193 @@
+package com.example.androidtranscoder.mp4;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Track of an MP4 file with its sample table flattened into per-sample arrays, in decode order.
+ * Times are in ticks of {@link #getTimescale()}.
+ */
+public class Mp4Track {
+    public static final String HANDLER_VIDEO = "vide";
+    public static final String HANDLER_AUDIO = "soun";
+
+    final int mTrackId;
+    final String mHandlerType;
+    final int mTimescale;
+    final ByteBuffer mTrackHeaderBox;
+    final ByteBuffer mMediaHeaderBox;
+    final ByteBuffer mHandlerBox;
+    final ByteBuffer mMediaInformationHeaderBox;
+    final ByteBuffer mDataInformationBox;
+    final ByteBuffer mSampleDescriptionBox;
+
+    final int mSampleCount;
+    final long[] mOffsets;
+    final int[] mSizes;
+    final long[] mDecodeTimes;
+    final int[] mCompositionOffsets;
+    final boolean[] mSync;
+    final int mLastSampleDuration;
+    final int mMaxSampleSize;
+    /** Index of the first sample of each chunk, plus the sample count at the end. */
+    final int[] mChunkFirstSamples;
+
+    Mp4Track(int trackId, String handlerType, int timescale,
+             ByteBuffer trackHeaderBox, ByteBuffer mediaHeaderBox, ByteBuffer handlerBox,
+             ByteBuffer mediaInformationHeaderBox, ByteBuffer dataInformationBox, ByteBuffer sampleDescriptionBox,
+             long[] offsets, int[] sizes, long[] decodeTimes, int[] compositionOffsets, boolean[] sync,
+             int lastSampleDuration, int[] chunkFirstSamples) {
+        mTrackId = trackId;
+        mHandlerType = handlerType;
+        mTimescale = timescale;
+        mTrackHeaderBox = trackHeaderBox;
+        mMediaHeaderBox = mediaHeaderBox;
+        mHandlerBox = handlerBox;
+        mMediaInformationHeaderBox = mediaInformationHeaderBox;
+        mDataInformationBox = dataInformationBox;
+        mSampleDescriptionBox = sampleDescriptionBox;
+        mSampleCount = sizes.length;
+        mOffsets = offsets;
+        mSizes = sizes;
+        mDecodeTimes = decodeTimes;
+        mCompositionOffsets = compositionOffsets;
+        mSync = sync;
+        mLastSampleDuration = lastSampleDuration;
+        mChunkFirstSamples = chunkFirstSamples;
+        int maxSampleSize = 0;
+        for (int size : sizes) maxSampleSize = Math.max(maxSampleSize, size);
+        mMaxSampleSize = maxSampleSize;
+    }
+
+    public int getTrackId() {
+        return mTrackId;
+    }
+
+    /**
+     * @return Handler type such as {@link #HANDLER_VIDEO} or {@link #HANDLER_AUDIO}.
+     */
+    public String getHandlerType() {
+        return mHandlerType;
+    }
+
+    public int getTimescale() {
+        return mTimescale;
+    }
+
+    public int getSampleCount() {
+        return mSampleCount;
+    }
+
+    /**
+     * @return Absolute file offset of the sample data.
+     */
+    public long getSampleOffset(int index) {
+        return mOffsets[index];
+    }
+
+    public int getSampleSize(int index) {
+        return mSizes[index];
+    }
+
+    public int getMaxSampleSize() {
+        return mMaxSampleSize;
+    }
+
+    public long getDecodeTime(int index) {
+        return mDecodeTimes[index];
+    }
+
+    public long getPresentationTime(int index) {
+        return mDecodeTimes[index] + mCompositionOffsets[index];
+    }
+
+    public int getSampleDuration(int index) {
+        return index + 1 < mSampleCount ? (int) (mDecodeTimes[index + 1] - mDecodeTimes[index]) : mLastSampleDuration;
+    }
+
+    public boolean isSyncSample(int index) {
+        return mSync[index];
+    }
+
+    /**
+     * Same as seeking {@link android.media.MediaExtractor} to a sync sample, by presentation time.
+     *
+     * @param presentationTime Time in ticks of {@link #getTimescale()}.
+     * @param previous         true for the last sync sample presented at or before the time, false for the first
+     *                         presented at or after it.
+     * @return Index of the sync sample, or -1 if there is none.
+     */
+    public int findSyncSample(long presentationTime, boolean previous) {
+        int found = -1;
+        for (int i = 0; i < mSampleCount; i++) {
+            if (!mSync[i]) continue;
+            long time = getPresentationTime(i);
+            if (previous && time <= presentationTime && (found < 0 || time >= getPresentationTime(found))) {
+                found = i;
+            } else if (!previous && time >= presentationTime && (found < 0 || time < getPresentationTime(found))) {
+                found = i;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return Clockwise rotation in degrees from the matrix of tkhd: 0, 90, 180 or 270.
+     */
+    public int getRotation() {
+        int matrixOffset = mTrackHeaderBox.get(8) == 1 ? 60 : 48;
+        int a = mTrackHeaderBox.getInt(matrixOffset);
+        int b = mTrackHeaderBox.getInt(matrixOffset + 4);
+        if (a == 0 && b > 0) return 90;
+        if (a < 0 && b == 0) return 180;
+        if (a == 0 && b < 0) return 270;
+        return 0;
+    }
+
+    public long ticksToUs(long ticks) {
+        return ticks * 1_000_000 / mTimescale;
+    }
+
+    public long usToTicks(long timeUs) {
+        return timeUs * mTimescale / 1_000_000;
+    }
+
+    /**
+     * @return Index of the first sample of the chunk. For chunkIndex == {@link #getChunkCount()}, the sample count.
+     */
+    public int getChunkFirstSample(int chunkIndex) {
+        return mChunkFirstSamples[chunkIndex];
+    }
+
+    public int getChunkCount() {
+        return mChunkFirstSamples.length - 1;
+    }
+
+    // Raw boxes, including their header, to copy the track into another file.
+
+    public ByteBuffer getTrackHeaderBox() {
+        return mTrackHeaderBox.duplicate();
+    }
+
+    public ByteBuffer getMediaHeaderBox() {
+        return mMediaHeaderBox.duplicate();
+    }
+
+    public ByteBuffer getHandlerBox() {
+        return mHandlerBox.duplicate();
+    }
+
+    /**
+     * @return vmhd, smhd or another media information header, or null if missing.
+     */
+    public ByteBuffer getMediaInformationHeaderBox() {
+        return mMediaInformationHeaderBox == null ? null : mMediaInformationHeaderBox.duplicate();
+    }
+
+    public ByteBuffer getDataInformationBox() {
+        return mDataInformationBox.duplicate();
+    }
+
+    public ByteBuffer getSampleDescriptionBox() {
+        return mSampleDescriptionBox.duplicate();
+    }
+}
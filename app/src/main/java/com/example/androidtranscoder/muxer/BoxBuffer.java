@@ -0,0 +1,124 @@
+package com.example.androidtranscoder.muxer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Growable big-endian buffer for serializing ISO-BMFF boxes.
+ * {@link #startBox(String)} leaves a size placeholder which {@link #endBox(int)} fills in.
+ */
+class BoxBuffer {
+    private ByteBuffer mBuffer;
+
+    BoxBuffer(int initialCapacity) {
+        mBuffer = ByteBuffer.allocate(initialCapacity);
+    }
+
+    /**
+     * @return Position of the box, to pass to {@link #endBox(int)}.
+     */
+    public int startBox(String type) {
+        int position = mBuffer.position();
+        putInt(0);
+        putFourCc(type);
+        return position;
+    }
+
+    /**
+     * Starts a box with version and flags header.
+     */
+    public int startFullBox(String type, int version, int flags) {
+        int position = startBox(type);
+        putInt((version << 24) | (flags & 0xffffff));
+        return position;
+    }
+
+    public void endBox(int position) {
+        mBuffer.putInt(position, mBuffer.position() - position);
+    }
+
+    public void putFourCc(String fourCc) {
+        if (fourCc.length() != 4) throw new IllegalArgumentException("Not a four-character code: " + fourCc);
+        ensureCapacity(4);
+        for (int i = 0; i < 4; i++) mBuffer.put((byte) fourCc.charAt(i));
+    }
+
+    public void putByte(int value) {
+        ensureCapacity(1);
+        mBuffer.put((byte) value);
+    }
+
+    public void putShort(int value) {
+        ensureCapacity(2);
+        mBuffer.putShort((short) value);
+    }
+
+    public void putInt(int value) {
+        ensureCapacity(4);
+        mBuffer.putInt(value);
+    }
+
+    public void putLong(long value) {
+        ensureCapacity(8);
+        mBuffer.putLong(value);
+    }
+
+    public void putZeros(int count) {
+        ensureCapacity(count);
+        for (int i = 0; i < count; i++) mBuffer.put((byte) 0);
+    }
+
+    public void putBytes(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        mBuffer.put(bytes);
+    }
+
+    /**
+     * Writes the remaining bytes of buffer without changing its position.
+     */
+    public void putBytes(ByteBuffer buffer) {
+        ensureCapacity(buffer.remaining());
+        mBuffer.put(buffer.duplicate());
+    }
+
+    /**
+     * Writes a null-terminated UTF-8 string.
+     */
+    public void putCString(String string) {
+        putBytes(string.getBytes(StandardCharsets.UTF_8));
+        putByte(0);
+    }
+
+    public int position() {
+        return mBuffer.position();
+    }
+
+    public void setInt(int position, int value) {
+        mBuffer.putInt(position, value);
+    }
+
+    public void setLong(int position, long value) {
+        mBuffer.putLong(position, value);
+    }
+
+    /**
+     * @return Buffer ready to be read from 0 to the current position. Further writes invalidate it.
+     */
+    public ByteBuffer flip() {
+        ByteBuffer result = mBuffer.duplicate();
+        result.flip();
+        return result;
+    }
+
+    public void clear() {
+        mBuffer.clear();
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (mBuffer.remaining() >= bytes) return;
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(mBuffer.capacity() * 2, mBuffer.position() + bytes));
+        mBuffer.flip();
+        buffer.put(mBuffer);
+        mBuffer = buffer;
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.androidtranscoder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import com.example.androidtranscoder.format.FormatExtraConstants;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * {@link Muxer} writing fragmented MP4 through {@link FragmentedMp4Writer}.
+ * Supports H.264 video and AAC audio.
+ */
+public class FragmentedMp4Muxer implements Muxer {
+    private final WritableByteChannel mChannel;
+    private final boolean mOwnsChannel;
+    private final FragmentedMp4Writer mWriter;
+
+    public FragmentedMp4Muxer(String outputPath) throws IOException {
+        this(new FileOutputStream(outputPath).getChannel(), true, FragmentedMp4Writer.DEFAULT_FRAGMENT_DURATION_US);
+    }
+
+    /**
+     * @param channel            Destination, e.g. a pipe to upload fragments while transcoding. Not closed by this muxer.
+     * @param fragmentDurationUs Minimum duration of a fragment.
+     */
+    public FragmentedMp4Muxer(WritableByteChannel channel, long fragmentDurationUs) {
+        this(channel, false, fragmentDurationUs);
+    }
+
+    private FragmentedMp4Muxer(WritableByteChannel channel, boolean ownsChannel, long fragmentDurationUs) {
+        mChannel = channel;
+        mOwnsChannel = ownsChannel;
+        mWriter = new FragmentedMp4Writer(channel, fragmentDurationUs);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mWriter.setOrientationHint(degrees);
+    }
+
+    @Override
+    public void setLocation(float latitude, float longitude) {
+        mWriter.setLocation(latitude, longitude);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (FormatExtraConstants.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            return mWriter.addTrack(FragmentedMp4Writer.TrackFormat.avc(
+                    format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT),
+                    getBytes(format, "csd-0"), getBytes(format, "csd-1")));
+        }
+        if (FormatExtraConstants.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            int bitRate = format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+            byte[] config = format.containsKey("csd-0") ? getBytes(format, "csd-0") : null;
+            return mWriter.addTrack(FragmentedMp4Writer.TrackFormat.aac(
+                    format.getInteger(MediaFormat.KEY_SAMPLE_RATE), format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    config, bitRate));
+        }
+        throw new IllegalArgumentException("Fragmented MP4 output does not support " + mime);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write header.", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        byteBuf.position(bufferInfo.offset);
+        try {
+            mWriter.writeSample(trackIndex, byteBuf, bufferInfo.presentationTimeUs, bufferInfo.flags);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write fragment.", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.finish();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write last fragment.", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        if (!mOwnsChannel) return;
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not close output.", e);
+        }
+    }
+
+    private static byte[] getBytes(MediaFormat format, String key) {
+        ByteBuffer buffer = format.getByteBuffer(key);
+        if (buffer == null) return new byte[0];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(0);
+        byte[] bytes = new byte[duplicate.remaining()];
+        duplicate.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,650 @@
+package com.example.androidtranscoder.muxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Writes fragmented MP4 (ISO/IEC 14496-12) with H.264 video and AAC audio, in plain Java.
+ * <p>
+ * {@link #start()} writes ftyp and a moov without samples. Samples are then collected per track and written as
+ * moof/mdat pairs. A fragment is cut at the first video key frame (or, without video, the first sample) at least
+ * {@code fragmentDurationUs} after the start of the fragment, so memory use is bounded by one fragment
+ * regardless of the length of the output. Output is written sequentially and never seeked, so the channel can be
+ * a socket or pipe.
+ * <p>
+ * Decode times are the sorted presentation times within a fragment, which is exact for closed GOPs
+ * and yields composition offsets for B-frames. H.264 samples are expected in Annex-B format, as produced by
+ * MediaCodec and MediaExtractor, and are converted to length-prefixed NAL units.
+ */
+public class FragmentedMp4Writer {
+    /** Same value as {@code MediaCodec.BUFFER_FLAG_KEY_FRAME}. */
+    public static final int FLAG_SYNC = 1;
+    /** Same value as {@code MediaCodec.BUFFER_FLAG_CODEC_CONFIG}. Such samples are ignored. */
+    public static final int FLAG_CODEC_CONFIG = 2;
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 2_000_000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int TRUN_DATA_OFFSET = 0x000001;
+    private static final int TRUN_SAMPLE_DURATION = 0x000100;
+    private static final int TRUN_SAMPLE_SIZE = 0x000200;
+    private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+    private static final int TRUN_COMPOSITION_OFFSET = 0x000800;
+    private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x020000;
+    private static final int[] AAC_SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+
+    private final WritableByteChannel mOutput;
+    private final long mFragmentDurationUs;
+    private final List<Track> mTracks = new ArrayList<>();
+    private final BoxBuffer mBoxes = new BoxBuffer(4096);
+    private int[] mDataOffsetPositions = new int[0];
+    private int mOrientationDegrees;
+    private boolean mHasLocation;
+    private float mLatitude;
+    private float mLongitude;
+    private boolean mHasVideo;
+    private boolean mStarted;
+    private boolean mFinished;
+    private int mSequenceNumber;
+    private long mFragmentStartUs = -1;
+
+    public FragmentedMp4Writer(WritableByteChannel output) {
+        this(output, DEFAULT_FRAGMENT_DURATION_US);
+    }
+
+    public FragmentedMp4Writer(WritableByteChannel output, long fragmentDurationUs) {
+        if (fragmentDurationUs <= 0) {
+            throw new IllegalArgumentException("fragmentDurationUs must be positive: " + fragmentDurationUs);
+        }
+        mOutput = output;
+        mFragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * @param degrees One of 0, 90, 180 or 270.
+     */
+    public void setOrientationHint(int degrees) {
+        checkNotStarted();
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Unsupported angle: " + degrees);
+        }
+        mOrientationDegrees = degrees;
+    }
+
+    public void setLocation(float latitude, float longitude) {
+        checkNotStarted();
+        mHasLocation = true;
+        mLatitude = latitude;
+        mLongitude = longitude;
+    }
+
+    /**
+     * @return Track index for {@link #writeSample(int, ByteBuffer, long, int)}.
+     */
+    public int addTrack(TrackFormat format) {
+        checkNotStarted();
+        Track track = new Track(mTracks.size() + 1, format);
+        mTracks.add(track);
+        mHasVideo |= format.mVideo;
+        mDataOffsetPositions = new int[mTracks.size()];
+        return mTracks.size() - 1;
+    }
+
+    /**
+     * Writes the file header. Tracks cannot be added afterwards.
+     */
+    public void start() throws IOException {
+        checkNotStarted();
+        if (mTracks.isEmpty()) throw new IllegalStateException("No track added.");
+        mStarted = true;
+        mBoxes.clear();
+        writeFileType(mBoxes);
+        writeMovie(mBoxes);
+        write(mBoxes.flip());
+    }
+
+    /**
+     * Queues the remaining bytes of data as a sample, writing the pending fragment first if it is complete.
+     *
+     * @param flags Combination of {@link #FLAG_SYNC} and {@link #FLAG_CODEC_CONFIG}.
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) throws IOException {
+        if (!mStarted || mFinished) throw new IllegalStateException("Writer is not started or already finished.");
+        if ((flags & FLAG_CODEC_CONFIG) != 0) return;
+        Track track = mTracks.get(trackIndex);
+        boolean sync = !track.mFormat.mVideo || (flags & FLAG_SYNC) != 0;
+        if (mFragmentStartUs >= 0 && presentationTimeUs - mFragmentStartUs >= mFragmentDurationUs
+                && (track.mFormat.mVideo ? sync : !mHasVideo)) {
+            writeFragment();
+        }
+        track.add(data, presentationTimeUs, sync);
+        if (mFragmentStartUs < 0) mFragmentStartUs = presentationTimeUs;
+    }
+
+    /**
+     * Writes the pending fragment. The channel is left open.
+     */
+    public void finish() throws IOException {
+        if (!mStarted) throw new IllegalStateException("Writer is not started.");
+        if (mFinished) return;
+        writeFragment();
+        mFinished = true;
+    }
+
+    /**
+     * @return Number of fragments written so far.
+     */
+    public int getFragmentCount() {
+        return mSequenceNumber;
+    }
+
+    private void writeFragment() throws IOException {
+        int sampleCount = 0;
+        for (Track track : mTracks) sampleCount += track.mSampleCount;
+        if (sampleCount == 0) return;
+        mSequenceNumber++;
+        BoxBuffer b = mBoxes;
+        b.clear();
+        int moof = b.startBox("moof");
+        int mfhd = b.startFullBox("mfhd", 0, 0);
+        b.putInt(mSequenceNumber);
+        b.endBox(mfhd);
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.mSampleCount == 0) continue;
+            track.computeTiming();
+            int traf = b.startBox("traf");
+            int tfhd = b.startFullBox("tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+            b.putInt(track.mId);
+            b.endBox(tfhd);
+            int tfdt = b.startFullBox("tfdt", 1, 0);
+            b.putLong(track.mBaseDecodeTime);
+            b.endBox(tfdt);
+            int trunFlags = TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE | TRUN_SAMPLE_FLAGS;
+            if (track.mHasCompositionOffsets) trunFlags |= TRUN_COMPOSITION_OFFSET;
+            int trun = b.startFullBox("trun", 1, trunFlags);
+            b.putInt(track.mSampleCount);
+            mDataOffsetPositions[i] = b.position();
+            b.putInt(0);
+            for (int s = 0; s < track.mSampleCount; s++) {
+                b.putInt(track.mDurations[s]);
+                b.putInt(track.mSizes[s]);
+                b.putInt(track.mSync[s] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+                if (track.mHasCompositionOffsets) b.putInt(track.mCompositionOffsets[s]);
+            }
+            b.endBox(trun);
+            b.endBox(traf);
+        }
+        b.endBox(moof);
+
+        long dataOffset = b.position() + 8;
+        for (int i = 0; i < mTracks.size(); i++) {
+            Track track = mTracks.get(i);
+            if (track.mSampleCount == 0) continue;
+            b.setInt(mDataOffsetPositions[i], (int) dataOffset);
+            dataOffset += track.mData.position();
+        }
+        if (dataOffset > Integer.MAX_VALUE) throw new IllegalStateException("Fragment too large: " + dataOffset);
+        b.putInt((int) (dataOffset - b.position()));
+        b.putFourCc("mdat");
+        write(b.flip());
+        for (Track track : mTracks) {
+            if (track.mSampleCount == 0) continue;
+            track.mData.flip();
+            write(track.mData);
+            track.reset();
+        }
+        mFragmentStartUs = -1;
+    }
+
+    private void writeFileType(BoxBuffer b) {
+        int ftyp = b.startBox("ftyp");
+        b.putFourCc("iso6");
+        b.putInt(0);
+        b.putFourCc("iso6");
+        b.putFourCc("isom");
+        b.putFourCc("mp41");
+        b.endBox(ftyp);
+    }
+
+    private void writeMovie(BoxBuffer b) {
+        int moov = b.startBox("moov");
+        int mvhd = b.startFullBox("mvhd", 0, 0);
+        b.putInt(0); // creation_time
+        b.putInt(0); // modification_time
+        b.putInt(MOVIE_TIMESCALE);
+        b.putInt(0); // duration, unknown until all fragments are written
+        b.putInt(0x00010000); // rate 1.0
+        b.putShort(0x0100); // volume 1.0
+        b.putZeros(10);
+        writeMatrix(b, 0);
+        b.putZeros(24);
+        b.putInt(mTracks.size() + 1);
+        b.endBox(mvhd);
+        for (Track track : mTracks) writeTrack(b, track);
+        int mvex = b.startBox("mvex");
+        for (Track track : mTracks) {
+            int trex = b.startFullBox("trex", 0, 0);
+            b.putInt(track.mId);
+            b.putInt(1); // default_sample_description_index
+            b.putInt(0);
+            b.putInt(0);
+            b.putInt(0);
+            b.endBox(trex);
+        }
+        b.endBox(mvex);
+        if (mHasLocation) {
+            int udta = b.startBox("udta");
+            int xyz = b.startBox("\u00a9xyz");
+            byte[] location = String.format(Locale.US, "%+08.4f%+09.4f/", mLatitude, mLongitude)
+                    .getBytes(StandardCharsets.US_ASCII);
+            b.putShort(location.length);
+            b.putShort(0x15c7); // language code, as written by MediaMuxer
+            b.putBytes(location);
+            b.endBox(xyz);
+            b.endBox(udta);
+        }
+        b.endBox(moov);
+    }
+
+    private void writeTrack(BoxBuffer b, Track track) {
+        TrackFormat format = track.mFormat;
+        int trak = b.startBox("trak");
+        int tkhd = b.startFullBox("tkhd", 0, 0x000003); // enabled, in movie
+        b.putInt(0); // creation_time
+        b.putInt(0); // modification_time
+        b.putInt(track.mId);
+        b.putInt(0);
+        b.putInt(0); // duration
+        b.putZeros(8);
+        b.putShort(0); // layer
+        b.putShort(0); // alternate_group
+        b.putShort(format.mVideo ? 0 : 0x0100);
+        b.putShort(0);
+        writeMatrix(b, format.mVideo ? mOrientationDegrees : 0);
+        b.putInt(format.mVideo ? format.mWidth << 16 : 0);
+        b.putInt(format.mVideo ? format.mHeight << 16 : 0);
+        b.endBox(tkhd);
+
+        int mdia = b.startBox("mdia");
+        int mdhd = b.startFullBox("mdhd", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(track.mTimescale);
+        b.putInt(0);
+        b.putShort(0x55c4); // "und"
+        b.putShort(0);
+        b.endBox(mdhd);
+        int hdlr = b.startFullBox("hdlr", 0, 0);
+        b.putInt(0);
+        b.putFourCc(format.mVideo ? "vide" : "soun");
+        b.putZeros(12);
+        b.putCString(format.mVideo ? "VideoHandler" : "SoundHandler");
+        b.endBox(hdlr);
+
+        int minf = b.startBox("minf");
+        if (format.mVideo) {
+            int vmhd = b.startFullBox("vmhd", 0, 1);
+            b.putZeros(8);
+            b.endBox(vmhd);
+        } else {
+            int smhd = b.startFullBox("smhd", 0, 0);
+            b.putZeros(4);
+            b.endBox(smhd);
+        }
+        int dinf = b.startBox("dinf");
+        int dref = b.startFullBox("dref", 0, 0);
+        b.putInt(1);
+        int url = b.startFullBox("url ", 0, 1); // media data is in the same file
+        b.endBox(url);
+        b.endBox(dref);
+        b.endBox(dinf);
+
+        int stbl = b.startBox("stbl");
+        int stsd = b.startFullBox("stsd", 0, 0);
+        b.putInt(1);
+        if (format.mVideo) {
+            writeAvcSampleEntry(b, format);
+        } else {
+            writeAacSampleEntry(b, format);
+        }
+        b.endBox(stsd);
+        for (String type : new String[]{"stts", "stsc", "stco"}) {
+            int box = b.startFullBox(type, 0, 0);
+            b.putInt(0);
+            b.endBox(box);
+        }
+        int stsz = b.startFullBox("stsz", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.endBox(stsz);
+        b.endBox(stbl);
+        b.endBox(minf);
+        b.endBox(mdia);
+        b.endBox(trak);
+    }
+
+    private static void writeAvcSampleEntry(BoxBuffer b, TrackFormat format) {
+        int avc1 = b.startBox("avc1");
+        b.putZeros(6);
+        b.putShort(1); // data_reference_index
+        b.putZeros(16);
+        b.putShort(format.mWidth);
+        b.putShort(format.mHeight);
+        b.putInt(0x00480000); // 72 dpi
+        b.putInt(0x00480000);
+        b.putInt(0);
+        b.putShort(1); // frame_count
+        b.putZeros(32); // compressorname
+        b.putShort(0x0018); // depth
+        b.putShort(0xffff); // pre_defined = -1
+
+        byte[] sps = format.mSequenceParameterSets.get(0);
+        int avcC = b.startBox("avcC");
+        b.putByte(1); // configurationVersion
+        b.putByte(sps[1]); // AVCProfileIndication
+        b.putByte(sps[2]); // profile_compatibility
+        b.putByte(sps[3]); // AVCLevelIndication
+        b.putByte(0xff); // lengthSizeMinusOne = 3
+        b.putByte(0xe0 | format.mSequenceParameterSets.size());
+        for (byte[] parameterSet : format.mSequenceParameterSets) {
+            b.putShort(parameterSet.length);
+            b.putBytes(parameterSet);
+        }
+        b.putByte(format.mPictureParameterSets.size());
+        for (byte[] parameterSet : format.mPictureParameterSets) {
+            b.putShort(parameterSet.length);
+            b.putBytes(parameterSet);
+        }
+        b.endBox(avcC);
+        b.endBox(avc1);
+    }
+
+    private static void writeAacSampleEntry(BoxBuffer b, TrackFormat format) {
+        int mp4a = b.startBox("mp4a");
+        b.putZeros(6);
+        b.putShort(1); // data_reference_index
+        b.putZeros(8);
+        b.putShort(format.mChannelCount);
+        b.putShort(16); // samplesize
+        b.putZeros(4);
+        b.putInt(format.mSampleRate << 16);
+
+        byte[] config = format.mAudioSpecificConfig;
+        int decoderConfigLength = 13 + 2 + config.length;
+        int esLength = 3 + 2 + decoderConfigLength + 3;
+        if (esLength > 127) throw new IllegalArgumentException("AudioSpecificConfig too long: " + config.length);
+        int esds = b.startFullBox("esds", 0, 0);
+        b.putByte(0x03); // ES_DescrTag
+        b.putByte(esLength);
+        b.putShort(0); // ES_ID
+        b.putByte(0);
+        b.putByte(0x04); // DecoderConfigDescrTag
+        b.putByte(decoderConfigLength);
+        b.putByte(0x40); // Audio ISO/IEC 14496-3
+        b.putByte(0x15); // AudioStream
+        b.putZeros(3); // bufferSizeDB
+        b.putInt(format.mBitRate); // maxBitrate
+        b.putInt(format.mBitRate); // avgBitrate
+        b.putByte(0x05); // DecSpecificInfoTag
+        b.putByte(config.length);
+        b.putBytes(config);
+        b.putByte(0x06); // SLConfigDescrTag
+        b.putByte(1);
+        b.putByte(0x02);
+        b.endBox(esds);
+        b.endBox(mp4a);
+    }
+
+    private static void writeMatrix(BoxBuffer b, int degrees) {
+        int cos = degrees == 0 ? 0x00010000 : degrees == 180 ? -0x00010000 : 0;
+        int sin = degrees == 90 ? 0x00010000 : degrees == 270 ? -0x00010000 : 0;
+        b.putInt(cos);
+        b.putInt(sin);
+        b.putInt(0);
+        b.putInt(-sin);
+        b.putInt(cos);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0x40000000);
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) mOutput.write(buffer);
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) throw new IllegalStateException("Writer is already started.");
+    }
+
+    /**
+     * Splits Annex-B data into NAL units without start codes. Data without a start code is one NAL unit.
+     */
+    static List<byte[]> splitNalUnits(byte[] data) {
+        List<byte[]> nalUnits = new ArrayList<>();
+        int start = findStartCode(data, 0);
+        if (start < 0) {
+            nalUnits.add(data);
+            return nalUnits;
+        }
+        while (start >= 0) {
+            int nalStart = start + 3;
+            int next = findStartCode(data, nalStart);
+            int nalEnd = next < 0 ? data.length : next;
+            while (nalEnd > nalStart && data[nalEnd - 1] == 0) nalEnd--;
+            if (nalEnd > nalStart) nalUnits.add(Arrays.copyOfRange(data, nalStart, nalEnd));
+            start = next;
+        }
+        return nalUnits;
+    }
+
+    private static int findStartCode(byte[] data, int from) {
+        for (int i = from; i + 2 < data.length; i++) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Codec parameters of a track.
+     */
+    public static final class TrackFormat {
+        private final boolean mVideo;
+        private final int mWidth;
+        private final int mHeight;
+        private final List<byte[]> mSequenceParameterSets = new ArrayList<>();
+        private final List<byte[]> mPictureParameterSets = new ArrayList<>();
+        private final int mSampleRate;
+        private final int mChannelCount;
+        private final byte[] mAudioSpecificConfig;
+        private final int mBitRate;
+
+        private TrackFormat(boolean video, int width, int height, int sampleRate, int channelCount,
+                            byte[] audioSpecificConfig, int bitRate) {
+            mVideo = video;
+            mWidth = width;
+            mHeight = height;
+            mSampleRate = sampleRate;
+            mChannelCount = channelCount;
+            mAudioSpecificConfig = audioSpecificConfig;
+            mBitRate = bitRate;
+        }
+
+        /**
+         * @param codecSpecificData SPS and PPS, in Annex-B format or as bare NAL units; e.g. csd-0 and csd-1.
+         */
+        public static TrackFormat avc(int width, int height, byte[]... codecSpecificData) {
+            TrackFormat format = new TrackFormat(true, width, height, 0, 0, null, 0);
+            for (byte[] data : codecSpecificData) {
+                for (byte[] nalUnit : splitNalUnits(data)) {
+                    int nalUnitType = nalUnit[0] & 0x1f;
+                    if (nalUnitType == 7 && nalUnit.length >= 4) {
+                        format.mSequenceParameterSets.add(nalUnit);
+                    } else if (nalUnitType == 8) {
+                        format.mPictureParameterSets.add(nalUnit);
+                    }
+                }
+            }
+            if (format.mSequenceParameterSets.isEmpty() || format.mPictureParameterSets.isEmpty()) {
+                throw new IllegalArgumentException("SPS and PPS are required for H.264.");
+            }
+            return format;
+        }
+
+        /**
+         * @param audioSpecificConfig csd-0, or null to derive an AAC-LC config from sample rate and channel count.
+         * @param bitRate             Average bit rate, or 0 if unknown.
+         */
+        public static TrackFormat aac(int sampleRate, int channelCount, byte[] audioSpecificConfig, int bitRate) {
+            if (audioSpecificConfig == null) {
+                int frequencyIndex = 0;
+                while (frequencyIndex < AAC_SAMPLE_RATES.length && AAC_SAMPLE_RATES[frequencyIndex] != sampleRate) {
+                    frequencyIndex++;
+                }
+                if (frequencyIndex == AAC_SAMPLE_RATES.length || channelCount < 1 || channelCount > 7) {
+                    throw new IllegalArgumentException("Cannot derive AudioSpecificConfig for " + sampleRate
+                            + " Hz, " + channelCount + " channels.");
+                }
+                audioSpecificConfig = new byte[]{
+                        (byte) ((2 << 3) | (frequencyIndex >> 1)), // AAC LC
+                        (byte) (((frequencyIndex & 1) << 7) | (channelCount << 3))};
+            }
+            return new TrackFormat(false, 0, 0, sampleRate, channelCount, audioSpecificConfig, bitRate);
+        }
+    }
+
+    private static final class Track {
+        private static final int INITIAL_SAMPLE_CAPACITY = 64;
+        private final int mId;
+        private final TrackFormat mFormat;
+        private final int mTimescale;
+        private final int mDefaultDuration;
+        private ByteBuffer mData = ByteBuffer.allocate(64 * 1024);
+        private int mSampleCount;
+        private int[] mSizes = new int[INITIAL_SAMPLE_CAPACITY];
+        private long[] mPresentationTimesUs = new long[INITIAL_SAMPLE_CAPACITY];
+        private boolean[] mSync = new boolean[INITIAL_SAMPLE_CAPACITY];
+        // Filled by computeTiming()
+        private long[] mDecodeTimesUs = new long[INITIAL_SAMPLE_CAPACITY];
+        private int[] mDurations = new int[INITIAL_SAMPLE_CAPACITY];
+        private int[] mCompositionOffsets = new int[INITIAL_SAMPLE_CAPACITY];
+        private boolean mHasCompositionOffsets;
+        private long mBaseDecodeTime;
+        private int mLastDuration;
+
+        private Track(int id, TrackFormat format) {
+            mId = id;
+            mFormat = format;
+            mTimescale = format.mVideo ? VIDEO_TIMESCALE : format.mSampleRate;
+            // 30 fps for video, one AAC frame for audio
+            mDefaultDuration = format.mVideo ? VIDEO_TIMESCALE / 30 : 1024;
+        }
+
+        private void add(ByteBuffer data, long presentationTimeUs, boolean sync) {
+            if (mSampleCount == mSizes.length) growSamples();
+            int start = mData.position();
+            if (mFormat.mVideo) {
+                appendLengthPrefixed(data);
+            } else {
+                ensureData(data.remaining());
+                mData.put(data);
+            }
+            mSizes[mSampleCount] = mData.position() - start;
+            mPresentationTimesUs[mSampleCount] = presentationTimeUs;
+            mSync[mSampleCount] = sync;
+            mSampleCount++;
+        }
+
+        /**
+         * Converts Annex-B to 4-byte length prefixes. Data not starting with a start code is copied as is.
+         */
+        private void appendLengthPrefixed(ByteBuffer data) {
+            int end = data.limit();
+            int startCode = findStartCode(data, data.position(), end);
+            if (startCode != data.position() && !(startCode == data.position() + 1 && data.get(data.position()) == 0)) {
+                ensureData(data.remaining());
+                mData.put(data);
+                return;
+            }
+            ByteBuffer nal = data.duplicate();
+            while (startCode < end) {
+                int nalStart = startCode + 3;
+                int next = findStartCode(data, nalStart, end);
+                int nalEnd = next;
+                while (nalEnd > nalStart && data.get(nalEnd - 1) == 0) nalEnd--;
+                if (nalEnd > nalStart) {
+                    ensureData(4 + nalEnd - nalStart);
+                    mData.putInt(nalEnd - nalStart);
+                    nal.limit(nalEnd);
+                    nal.position(nalStart);
+                    mData.put(nal);
+                }
+                startCode = next;
+            }
+            data.position(end);
+        }
+
+        private static int findStartCode(ByteBuffer data, int from, int end) {
+            for (int i = from; i + 2 < end; i++) {
+                if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) return i;
+            }
+            return end;
+        }
+
+        private void computeTiming() {
+            int count = mSampleCount;
+            System.arraycopy(mPresentationTimesUs, 0, mDecodeTimesUs, 0, count);
+            Arrays.sort(mDecodeTimesUs, 0, count);
+            mHasCompositionOffsets = false;
+            long previousDecodeTime = toTicks(mDecodeTimesUs[0]);
+            mBaseDecodeTime = Math.max(0, previousDecodeTime);
+            for (int i = 0; i < count; i++) {
+                long decodeTime = toTicks(mDecodeTimesUs[i]);
+                if (i > 0) {
+                    mDurations[i - 1] = (int) (decodeTime - previousDecodeTime);
+                    mLastDuration = mDurations[i - 1];
+                }
+                previousDecodeTime = decodeTime;
+                mCompositionOffsets[i] = (int) (toTicks(mPresentationTimesUs[i]) - decodeTime);
+                mHasCompositionOffsets |= mCompositionOffsets[i] != 0;
+            }
+            mDurations[count - 1] = mLastDuration > 0 ? mLastDuration : mDefaultDuration;
+        }
+
+        private long toTicks(long timeUs) {
+            return (timeUs * mTimescale + 500_000) / 1_000_000;
+        }
+
+        private void reset() {
+            mData.clear();
+            mSampleCount = 0;
+        }
+
+        private void ensureData(int bytes) {
+            if (mData.remaining() >= bytes) return;
+            ByteBuffer data = ByteBuffer.allocate(Math.max(mData.capacity() * 2, mData.position() + bytes));
+            mData.flip();
+            data.put(mData);
+            mData = data;
+        }
+
+        private void growSamples() {
+            int capacity = mSizes.length * 2;
+            mSizes = Arrays.copyOf(mSizes, capacity);
+            mPresentationTimesUs = Arrays.copyOf(mPresentationTimesUs, capacity);
+            mSync = Arrays.copyOf(mSync, capacity);
+            mDecodeTimesUs = new long[capacity];
+            mDurations = new int[capacity];
+            mCompositionOffsets = new int[capacity];
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.example.androidtranscoder.muxer;
+
+import android.util.Log;
+
+import com.example.androidtranscoder.mp4.Mp4Movie;
+import com.example.androidtranscoder.mp4.Mp4Track;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Copies tracks of an MP4 file into a new MP4 file without decoding, optionally cut to a time range.
+ * <p>
+ * The moov is rebuilt from the parsed sample tables with new chunk offsets, then the media data is copied
+ * chunk by chunk with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * so no sample passes through the Java heap or MediaCodec/MediaMuxer. Chunks keep the interleaving of the input.
+ * <p>
+ * A cut starts at the last sync sample of the video track at or before the requested start, since frames before
+ * that cannot be decoded without re-encoding. Other tracks start at the same time. Edit lists of the input are
+ * replaced by one per track which keeps the tracks aligned and hides the composition delay of B-frames.
+ */
+public class Mp4Remuxer {
+    private static final String TAG = "Mp4Remuxer";
+    private static final long TRANSFER_SIZE = 8 * 1024 * 1024;
+    private static final long MAX_UINT32 = 0xffffffffL;
+
+    private final FileChannel mInput;
+    private final Mp4Movie mMovie;
+    private final List<Mp4Track> mTracks;
+    private final long mMaxUint32Offset;
+    private ProgressCallback mProgressCallback;
+
+    // Per output track, set by selectSamples()
+    private int[] mFirstSamples;
+    private int[] mEndSamples;
+    private long[] mStartPresentationTimesUs;
+    // Per output chunk, in the order of the input
+    private int mChunkCount;
+    private int[] mChunkTracks;
+    private int[] mChunkFirstSamples;
+    private int[] mChunkEndSamples;
+    private long[] mChunkInputOffsets;
+    private long[] mChunkSizes;
+    private long[] mChunkOutputOffsets;
+
+    /**
+     * @param tracks Tracks of movie to copy, e.g. its first video and audio tracks.
+     */
+    public Mp4Remuxer(FileChannel input, Mp4Movie movie, List<Mp4Track> tracks) {
+        this(input, movie, tracks, MAX_UINT32);
+    }
+
+    /**
+     * @param maxUint32Offset Largest file offset and mdat size written in 32 bits, beyond which co64 and a 64-bit
+     *                        mdat size are used; lowered by tests to switch without writing 4 GB.
+     */
+    Mp4Remuxer(FileChannel input, Mp4Movie movie, List<Mp4Track> tracks, long maxUint32Offset) {
+        mInput = input;
+        mMovie = movie;
+        mTracks = new ArrayList<>(tracks);
+        mMaxUint32Offset = maxUint32Offset;
+    }
+
+    public void setProgressCallback(ProgressCallback progressCallback) {
+        mProgressCallback = progressCallback;
+    }
+
+    /**
+     * Writes the output from its current position. Blocks current thread.
+     *
+     * @param startTimeUs Start of the range to copy; 0 for the beginning.
+     * @param endTimeUs   End of the range to copy, exclusive; negative for the end of the input.
+     * @throws InterruptedException when the thread is interrupted.
+     */
+    public void remux(FileChannel output, long startTimeUs, long endTimeUs) throws IOException, InterruptedException {
+        selectSamples(startTimeUs, endTimeUs < 0 ? Long.MAX_VALUE : endTimeUs);
+        collectChunks();
+
+        BoxBuffer header = new BoxBuffer(64 * 1024);
+        writeFileType(header);
+        long dataSize = 0;
+        for (int i = 0; i < mChunkCount; i++) dataSize += mChunkSizes[i];
+        int mdatHeaderSize = dataSize + 8 > mMaxUint32Offset ? 16 : 8;
+        // The size of moov does not depend on the offsets, only on their width; measure it with offsets at 0.
+        int moovStart = header.position();
+        assignOutputOffsets(0);
+        boolean largeOffsets = moovStart + dataSize + mdatHeaderSize + estimateMovieSize() > mMaxUint32Offset;
+        writeMovie(header, largeOffsets);
+        int moovSize = header.position() - moovStart;
+        header.clear();
+        writeFileType(header);
+        assignOutputOffsets(moovStart + moovSize + mdatHeaderSize);
+        writeMovie(header, largeOffsets);
+        if (mdatHeaderSize == 16) {
+            header.putInt(1);
+            header.putFourCc("mdat");
+            header.putLong(dataSize + 16);
+        } else {
+            header.putInt((int) (dataSize + 8));
+            header.putFourCc("mdat");
+        }
+        ByteBuffer headerBytes = header.flip();
+        while (headerBytes.hasRemaining()) output.write(headerBytes);
+        Log.d(TAG, "Copying " + dataSize + " bytes in " + mChunkCount + " chunks.");
+        copyChunks(output, dataSize);
+    }
+
+    private void selectSamples(long startTimeUs, long endTimeUs) {
+        int trackCount = mTracks.size();
+        mFirstSamples = new int[trackCount];
+        mEndSamples = new int[trackCount];
+        mStartPresentationTimesUs = new long[trackCount];
+        // Tracks with non-sync samples start at a sync sample, which moves the start of all tracks back.
+        long alignedStartUs = startTimeUs;
+        for (int t = 0; t < trackCount; t++) {
+            Mp4Track track = mTracks.get(t);
+            if (!hasNonSyncSamples(track)) continue;
+            int first = 0;
+            for (int i = 0; i < track.getSampleCount(); i++) {
+                if (track.isSyncSample(i) && track.ticksToUs(track.getPresentationTime(i)) <= startTimeUs) first = i;
+            }
+            mFirstSamples[t] = first;
+            alignedStartUs = Math.min(alignedStartUs, track.ticksToUs(track.getPresentationTime(first)));
+        }
+        for (int t = 0; t < trackCount; t++) {
+            Mp4Track track = mTracks.get(t);
+            int count = track.getSampleCount();
+            if (!hasNonSyncSamples(track)) {
+                int first = 0;
+                while (first < count - 1 && track.ticksToUs(track.getPresentationTime(first)
+                        + track.getSampleDuration(first)) <= alignedStartUs) {
+                    first++;
+                }
+                mFirstSamples[t] = first;
+            }
+            int end = mFirstSamples[t];
+            for (int i = mFirstSamples[t]; i < count; i++) {
+                if (track.ticksToUs(track.getPresentationTime(i)) < endTimeUs) end = i + 1;
+            }
+            mEndSamples[t] = Math.max(end, mFirstSamples[t] + 1);
+            long startPresentationTime = Long.MAX_VALUE;
+            for (int i = mFirstSamples[t]; i < mEndSamples[t]; i++) {
+                startPresentationTime = Math.min(startPresentationTime, track.getPresentationTime(i));
+            }
+            mStartPresentationTimesUs[t] = track.ticksToUs(startPresentationTime);
+        }
+    }
+
+    private static boolean hasNonSyncSamples(Mp4Track track) {
+        for (int i = 0; i < track.getSampleCount(); i++) {
+            if (!track.isSyncSample(i)) return true;
+        }
+        return false;
+    }
+
+    private void collectChunks() {
+        int capacity = 0;
+        for (Mp4Track track : mTracks) capacity += track.getChunkCount();
+        mChunkTracks = new int[capacity];
+        mChunkFirstSamples = new int[capacity];
+        mChunkEndSamples = new int[capacity];
+        mChunkInputOffsets = new long[capacity];
+        mChunkSizes = new long[capacity];
+        mChunkOutputOffsets = new long[capacity];
+        mChunkCount = 0;
+        for (int t = 0; t < mTracks.size(); t++) {
+            Mp4Track track = mTracks.get(t);
+            for (int c = 0; c < track.getChunkCount(); c++) {
+                int first = Math.max(track.getChunkFirstSample(c), mFirstSamples[t]);
+                int end = Math.min(track.getChunkFirstSample(c + 1), mEndSamples[t]);
+                if (first >= end) continue;
+                int i = mChunkCount++;
+                mChunkTracks[i] = t;
+                mChunkFirstSamples[i] = first;
+                mChunkEndSamples[i] = end;
+                mChunkInputOffsets[i] = track.getSampleOffset(first);
+                mChunkSizes[i] = track.getSampleOffset(end - 1) + track.getSampleSize(end - 1) - mChunkInputOffsets[i];
+            }
+        }
+    }
+
+    /**
+     * Lays out chunks in the order of their input offsets, which keeps the interleaving of the input.
+     */
+    private void assignOutputOffsets(long dataOffset) {
+        Integer[] order = new Integer[mChunkCount];
+        for (int i = 0; i < mChunkCount; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(mChunkInputOffsets[a], mChunkInputOffsets[b]));
+        for (int i : order) {
+            mChunkOutputOffsets[i] = dataOffset;
+            dataOffset += mChunkSizes[i];
+        }
+    }
+
+    private int estimateMovieSize() {
+        BoxBuffer buffer = new BoxBuffer(64 * 1024);
+        writeMovie(buffer, true);
+        return buffer.position();
+    }
+
+    private void copyChunks(FileChannel output, long dataSize) throws IOException, InterruptedException {
+        Integer[] order = new Integer[mChunkCount];
+        for (int i = 0; i < mChunkCount; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(mChunkOutputOffsets[a], mChunkOutputOffsets[b]));
+        long copied = 0;
+        int i = 0;
+        while (i < mChunkCount) {
+            // Merge chunks which are adjacent in the input into one transfer.
+            long position = mChunkInputOffsets[order[i]];
+            long size = mChunkSizes[order[i]];
+            i++;
+            while (i < mChunkCount && mChunkInputOffsets[order[i]] == position + size) {
+                size += mChunkSizes[order[i]];
+                i++;
+            }
+            while (size > 0) {
+                if (Thread.interrupted()) throw new InterruptedException();
+                long transferred = mInput.transferTo(position, Math.min(size, TRANSFER_SIZE), output);
+                if (transferred <= 0) throw new EOFException("Media data ends before offset " + position);
+                position += transferred;
+                size -= transferred;
+                copied += transferred;
+                if (mProgressCallback != null) mProgressCallback.onProgress((double) copied / dataSize);
+            }
+        }
+    }
+
+    private static void writeFileType(BoxBuffer b) {
+        int ftyp = b.startBox("ftyp");
+        b.putFourCc("isom");
+        b.putInt(0x200);
+        b.putFourCc("isom");
+        b.putFourCc("iso2");
+        b.putFourCc("avc1");
+        b.putFourCc("mp41");
+        b.endBox(ftyp);
+    }
+
+    private void writeMovie(BoxBuffer b, boolean largeOffsets) {
+        int movieTimescale = mMovie.getTimescale();
+        long originUs = Long.MAX_VALUE;
+        for (long startUs : mStartPresentationTimesUs) originUs = Math.min(originUs, startUs);
+
+        int moov = b.startBox("moov");
+        int mvhd = b.position();
+        b.putBytes(mMovie.getMovieHeaderBox());
+        long movieDuration = 0;
+        for (int t = 0; t < mTracks.size(); t++) {
+            Mp4Track track = mTracks.get(t);
+            long delay = (mStartPresentationTimesUs[t] - originUs) * movieTimescale / 1_000_000;
+            long mediaDuration = track.getDecodeTime(mEndSamples[t] - 1) + track.getSampleDuration(mEndSamples[t] - 1)
+                    - track.getDecodeTime(mFirstSamples[t]);
+            long duration = mediaDuration * movieTimescale / track.getTimescale();
+            movieDuration = Math.max(movieDuration, delay + duration);
+            writeTrack(b, t, delay, duration, mediaDuration, largeOffsets);
+        }
+        setDuration(b, mvhd, 24, movieDuration);
+        for (ByteBuffer box : mMovie.getUserDataBoxes()) b.putBytes(box);
+        b.endBox(moov);
+    }
+
+    private void writeTrack(BoxBuffer b, int t, long delay, long duration, long mediaDuration, boolean largeOffsets) {
+        Mp4Track track = mTracks.get(t);
+        int first = mFirstSamples[t];
+        int end = mEndSamples[t];
+        int trak = b.startBox("trak");
+        int tkhd = b.position();
+        b.putBytes(track.getTrackHeaderBox());
+        setDuration(b, tkhd, 28, delay + duration);
+
+        int edts = b.startBox("edts");
+        boolean largeTimes = delay + duration > MAX_UINT32;
+        int elst = b.startFullBox("elst", largeTimes ? 1 : 0, 0);
+        b.putInt(delay > 0 ? 2 : 1);
+        if (delay > 0) putEditEntry(b, largeTimes, delay, -1);
+        long mediaTime = Long.MAX_VALUE;
+        for (int i = first; i < end; i++) {
+            mediaTime = Math.min(mediaTime, track.getPresentationTime(i) - track.getDecodeTime(first));
+        }
+        putEditEntry(b, largeTimes, duration, Math.max(0, mediaTime));
+        b.endBox(elst);
+        b.endBox(edts);
+
+        int mdia = b.startBox("mdia");
+        int mdhd = b.position();
+        b.putBytes(track.getMediaHeaderBox());
+        setDuration(b, mdhd, 24, mediaDuration);
+        b.putBytes(track.getHandlerBox());
+        int minf = b.startBox("minf");
+        ByteBuffer mediaInformationHeader = track.getMediaInformationHeaderBox();
+        if (mediaInformationHeader != null) b.putBytes(mediaInformationHeader);
+        b.putBytes(track.getDataInformationBox());
+        int stbl = b.startBox("stbl");
+        b.putBytes(track.getSampleDescriptionBox());
+        writeTimeToSample(b, track, first, end);
+        writeCompositionOffsets(b, track, first, end);
+        writeSyncSamples(b, track, first, end);
+        writeSampleSizes(b, track, first, end);
+        writeChunks(b, t, largeOffsets);
+        b.endBox(stbl);
+        b.endBox(minf);
+        b.endBox(mdia);
+        b.endBox(trak);
+    }
+
+    private static void putEditEntry(BoxBuffer b, boolean largeTimes, long segmentDuration, long mediaTime) {
+        if (largeTimes) {
+            b.putLong(segmentDuration);
+            b.putLong(mediaTime);
+        } else {
+            b.putInt((int) segmentDuration);
+            b.putInt((int) mediaTime);
+        }
+        b.putInt(0x00010000); // media_rate 1.0
+    }
+
+    private static void writeTimeToSample(BoxBuffer b, Mp4Track track, int first, int end) {
+        int stts = b.startFullBox("stts", 0, 0);
+        int countPosition = b.position();
+        b.putInt(0);
+        int entries = 0;
+        int i = first;
+        while (i < end) {
+            int duration = track.getSampleDuration(i);
+            int run = 1;
+            while (i + run < end && track.getSampleDuration(i + run) == duration) run++;
+            b.putInt(run);
+            b.putInt(duration);
+            entries++;
+            i += run;
+        }
+        b.setInt(countPosition, entries);
+        b.endBox(stts);
+    }
+
+    private static void writeCompositionOffsets(BoxBuffer b, Mp4Track track, int first, int end) {
+        boolean present = false;
+        boolean negative = false;
+        for (int i = first; i < end; i++) {
+            long offset = track.getPresentationTime(i) - track.getDecodeTime(i);
+            present |= offset != 0;
+            negative |= offset < 0;
+        }
+        if (!present) return;
+        int ctts = b.startFullBox("ctts", negative ? 1 : 0, 0);
+        int countPosition = b.position();
+        b.putInt(0);
+        int entries = 0;
+        int i = first;
+        while (i < end) {
+            long offset = track.getPresentationTime(i) - track.getDecodeTime(i);
+            int run = 1;
+            while (i + run < end && track.getPresentationTime(i + run) - track.getDecodeTime(i + run) == offset) run++;
+            b.putInt(run);
+            b.putInt((int) offset);
+            entries++;
+            i += run;
+        }
+        b.setInt(countPosition, entries);
+        b.endBox(ctts);
+    }
+
+    private static void writeSyncSamples(BoxBuffer b, Mp4Track track, int first, int end) {
+        if (!hasNonSyncSamples(track)) return;
+        int stss = b.startFullBox("stss", 0, 0);
+        int countPosition = b.position();
+        b.putInt(0);
+        int entries = 0;
+        for (int i = first; i < end; i++) {
+            if (!track.isSyncSample(i)) continue;
+            b.putInt(i - first + 1);
+            entries++;
+        }
+        b.setInt(countPosition, entries);
+        b.endBox(stss);
+    }
+
+    private static void writeSampleSizes(BoxBuffer b, Mp4Track track, int first, int end) {
+        int stsz = b.startFullBox("stsz", 0, 0);
+        b.putInt(0);
+        b.putInt(end - first);
+        for (int i = first; i < end; i++) b.putInt(track.getSampleSize(i));
+        b.endBox(stsz);
+    }
+
+    private void writeChunks(BoxBuffer b, int t, boolean largeOffsets) {
+        int stsc = b.startFullBox("stsc", 0, 0);
+        int countPosition = b.position();
+        b.putInt(0);
+        int entries = 0;
+        int chunkNumber = 0;
+        int previousSamplesPerChunk = -1;
+        for (int i = 0; i < mChunkCount; i++) {
+            if (mChunkTracks[i] != t) continue;
+            chunkNumber++;
+            int samplesPerChunk = mChunkEndSamples[i] - mChunkFirstSamples[i];
+            if (samplesPerChunk == previousSamplesPerChunk) continue;
+            b.putInt(chunkNumber);
+            b.putInt(samplesPerChunk);
+            b.putInt(1); // sample_description_index
+            entries++;
+            previousSamplesPerChunk = samplesPerChunk;
+        }
+        b.setInt(countPosition, entries);
+        b.endBox(stsc);
+
+        int stco = b.startFullBox(largeOffsets ? "co64" : "stco", 0, 0);
+        b.putInt(chunkNumber);
+        for (int i = 0; i < mChunkCount; i++) {
+            if (mChunkTracks[i] != t) continue;
+            if (largeOffsets) {
+                b.putLong(mChunkOutputOffsets[i]);
+            } else {
+                b.putInt((int) mChunkOutputOffsets[i]);
+            }
+        }
+        b.endBox(stco);
+    }
+
+    /**
+     * Patches the duration of a copied mvhd, tkhd or mdhd box.
+     *
+     * @param version0Offset Offset of the duration in a version 0 box; version 1 boxes have 64-bit times.
+     */
+    private static void setDuration(BoxBuffer b, int boxPosition, int version0Offset, long duration) {
+        ByteBuffer box = b.flip();
+        if (box.get(boxPosition + 8) == 1) {
+            // creation_time and modification_time are 64-bit too
+            b.setLong(boxPosition + version0Offset + 8, duration);
+        } else {
+            b.setInt(boxPosition + version0Offset, (int) Math.min(duration, MAX_UINT32));
+        }
+    }
+
+    public interface ProgressCallback {
+        /**
+         * @param progress Fraction of media data copied, in [0.0, 1.0].
+         */
+        void onProgress(double progress);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.androidtranscoder.muxer;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Container writer used by the engine, following the call sequence of {@link android.media.MediaMuxer}:
+ * add tracks, {@link #start()}, write samples, {@link #stop()}, then {@link #release()}.
+ */
+public interface Muxer {
+    /**
+     * Must be called before {@link #start()}.
+     */
+    void setOrientationHint(int degrees);
+
+    /**
+     * Must be called before {@link #start()}.
+     */
+    void setLocation(float latitude, float longitude);
+
+    /**
+     * @return Track index to pass to {@link #writeSampleData(int, ByteBuffer, MediaCodec.BufferInfo)}.
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+
+    /**
+     * Creates a muxer for each transcode attempt, so a requeued job starts over with a fresh output.
+     */
+    interface Factory {
+        Muxer create() throws IOException;
+    }
+}
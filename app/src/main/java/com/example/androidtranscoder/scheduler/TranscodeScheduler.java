@@ -0,0 +1,278 @@
+package com.example.androidtranscoder.scheduler;
+
+import android.util.Log;
+
+import com.example.androidtranscoder.format.FormatExtraConstants;
+import com.example.androidtranscoder.utils.DeviceCodecCapabilities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs transcode jobs concurrently, up to a limit of running jobs.
+ * <p>
+ * Waiting jobs are ordered by priority, then by submission order, so jobs of the same priority
+ * are started first-in first-out. A job submitted with a {@link Preemption} policy other than
+ * {@link Preemption#NONE} may take the slot of a running job of lower priority when all slots are busy.
+ * <p>
+ * Waiting jobs hold no thread: a job is handed to one of {@code maxConcurrentJobs} worker threads once a slot is
+ * free, and a preempted job goes back to the queue.
+ */
+public class TranscodeScheduler {
+    private static final String TAG = "TranscodeScheduler";
+    public static final int PRIORITY_LOW = -10;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 10;
+
+    private final int mMaxConcurrentJobs;
+    private final ThreadPoolExecutor mExecutor;
+    private final Object mLock = new Object();
+    // guarded by mLock
+    private final PriorityQueue<Job<?>> mWaitingJobs = new PriorityQueue<>();
+    private final List<Job<?>> mRunningJobs = new ArrayList<>();
+    private long mNextSequence;
+
+    public TranscodeScheduler(int maxConcurrentJobs) {
+        if (maxConcurrentJobs <= 0) {
+            throw new IllegalArgumentException("maxConcurrentJobs must be positive: " + maxConcurrentJobs);
+        }
+        mMaxConcurrentJobs = maxConcurrentJobs;
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(
+                maxConcurrentJobs, maxConcurrentJobs, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "MediaTranscoder-Worker-" + threadCount.incrementAndGet()));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Derives the concurrency limit from how many AVC sessions the codecs of the device keep up with at once,
+     * since each job holds one video decoder and one video encoder during its whole run. Sessions are counted
+     * for 1080p30 input and 720p30 output, from performance points where codecs publish them, and from instance
+     * limits otherwise.
+     * Capped by the number of CPU cores, as audio and muxing still cost CPU time per job.
+     */
+    public static int getDefaultMaxConcurrentJobs() {
+        final DeviceCodecCapabilities capabilities = DeviceCodecCapabilities.getInstance();
+        int encoders = capabilities.getMaxConcurrentSessions(FormatExtraConstants.MIMETYPE_VIDEO_AVC, true,
+                1280, 720, 30);
+        int decoders = capabilities.getMaxConcurrentSessions(FormatExtraConstants.MIMETYPE_VIDEO_AVC, false,
+                1920, 1080, 30);
+        int cores = Runtime.getRuntime().availableProcessors();
+        int maxJobs = Math.max(1, Math.min(cores, Math.min(encoders, decoders)));
+        Log.d(TAG, "Max concurrent jobs: " + maxJobs + " (encoders: " + encoders + ", decoders: " + decoders + ", cores: " + cores + ")");
+        return maxJobs;
+    }
+
+    public int getMaxConcurrentJobs() {
+        return mMaxConcurrentJobs;
+    }
+
+    /**
+     * Submits a job.
+     *
+     * @param task       Work to run once a slot is granted. Runs again from the start if it is preempted.
+     * @param priority   Larger value runs first, e.g. {@link #PRIORITY_HIGH}.
+     * @param preemption What to do with a running job of lower priority if no slot is free.
+     * @param callback   Called after the job finished, failed or was canceled. Can be null.
+     * @return Future of the job. Canceling it with interruption stops the running task.
+     */
+    public <T> Future<T> submit(Callable<T> task, int priority, Preemption preemption, Callback callback) {
+        final Job<T> job;
+        Job<?> canceledVictim = null;
+        synchronized (mLock) {
+            job = new Job<>(task, priority, mNextSequence++, callback);
+            mWaitingJobs.add(job);
+            if (preemption != Preemption.NONE && mRunningJobs.size() >= mMaxConcurrentJobs) {
+                Job<?> victim = findPreemptionVictim(priority);
+                if (victim != null) {
+                    Log.i(TAG, "Job #" + job.mSequence + " preempts job #" + victim.mSequence + " (" + preemption + ")");
+                    if (preemption == Preemption.REQUEUE) {
+                        victim.preemptLocked();
+                    } else {
+                        canceledVictim = victim;
+                    }
+                }
+            }
+            dispatchLocked();
+        }
+        // Outside of the lock, as canceling may call back.
+        if (canceledVictim != null) canceledVictim.cancel(true);
+        return job;
+    }
+
+    /**
+     * Cancels every job which is waiting for a slot.
+     *
+     * @return Number of canceled jobs.
+     */
+    public int cancelWaitingJobs() {
+        List<Job<?>> waitingJobs;
+        synchronized (mLock) {
+            waitingJobs = new ArrayList<>(mWaitingJobs);
+        }
+        int canceled = 0;
+        for (Job<?> job : waitingJobs) {
+            if (job.cancel(true)) canceled++;
+        }
+        return canceled;
+    }
+
+    /**
+     * Hands waiting jobs to the workers while slots are free.
+     */
+    private void dispatchLocked() {
+        while (mRunningJobs.size() < mMaxConcurrentJobs && !mWaitingJobs.isEmpty()) {
+            Job<?> job = mWaitingJobs.poll();
+            mRunningJobs.add(job);
+            final long dispatch = ++job.mDispatch;
+            mExecutor.execute(() -> job.run(dispatch));
+        }
+    }
+
+    private Job<?> findPreemptionVictim(int priority) {
+        Job<?> victim = null;
+        for (Job<?> running : mRunningJobs) {
+            if (running.mPriority >= priority || running.mPreempted) continue;
+            // Prefer lowest priority, then the most recently submitted one.
+            if (victim == null || running.mPriority < victim.mPriority
+                    || (running.mPriority == victim.mPriority && running.mSequence > victim.mSequence)) {
+                victim = running;
+            }
+        }
+        return victim;
+    }
+
+    public enum Preemption {
+        /** Wait for a free slot. */
+        NONE,
+        /** Interrupt a running job of lower priority and put it back in the queue; it restarts from the beginning. */
+        REQUEUE,
+        /** Cancel a running job of lower priority. */
+        CANCEL
+    }
+
+    public interface Callback {
+        /**
+         * Called when the job is over: on the worker thread, or on the canceling thread if the job was canceled
+         * before it started.
+         *
+         * @param exception Exception thrown from the task, or null if completed.
+         * @param canceled  true if the job was canceled.
+         */
+        void onJobFinished(Exception exception, boolean canceled);
+    }
+
+    /**
+     * Future of a job. It is completed by {@link #run(long)} rather than by {@link FutureTask#run()}, since a
+     * preempted job runs its task again from another worker.
+     */
+    private class Job<T> extends FutureTask<T> implements Comparable<Job<?>> {
+        private final Callable<T> mTask;
+        private final int mPriority;
+        private final long mSequence;
+        private final Callback mCallback;
+        // guarded by mLock
+        private boolean mStarted;
+        private boolean mPreempted;
+        private Thread mRunner;
+        // Counts dispatches, so that a run still queued in the executor after the job went back to the queue is stale.
+        private long mDispatch;
+
+        private Job(Callable<T> task, int priority, long sequence, Callback callback) {
+            super(task);
+            mTask = task;
+            mPriority = priority;
+            mSequence = sequence;
+            mCallback = callback;
+        }
+
+        private void run(long dispatch) {
+            synchronized (mLock) {
+                // Canceled after it was dispatched; done() already freed the slot.
+                if (isDone()) return;
+                // Preempted before it started; the job runs from a later dispatch.
+                if (dispatch != mDispatch) return;
+                mStarted = true;
+                mRunner = Thread.currentThread();
+            }
+            T result = null;
+            Exception exception = null;
+            try {
+                result = mTask.call();
+            } catch (Exception e) {
+                exception = e;
+            }
+            synchronized (mLock) {
+                mRunner = null;
+                mRunningJobs.remove(this);
+                boolean requeue = mPreempted && exception instanceof InterruptedException && !isCancelled();
+                mPreempted = false;
+                if (requeue) {
+                    Log.i(TAG, "Job #" + mSequence + " preempted, waiting for another slot.");
+                    mStarted = false;
+                    mWaitingJobs.add(this);
+                }
+                dispatchLocked();
+                if (requeue) return;
+            }
+            if (exception == null) {
+                set(result);
+            } else {
+                setException(exception);
+            }
+            if (mCallback != null) mCallback.onJobFinished(exception, isCancelled());
+        }
+
+        /**
+         * Stops the running task to run it again later, or sends a job which did not start yet back to the queue.
+         */
+        private void preemptLocked() {
+            if (mRunner != null) {
+                mPreempted = true;
+                mRunner.interrupt();
+            } else if (!mStarted && mRunningJobs.remove(this)) {
+                mDispatch++;
+                mWaitingJobs.add(this);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            // The worker thread is not known to FutureTask, so interrupt it here.
+            if (!super.cancel(false)) return false;
+            if (mayInterruptIfRunning) {
+                synchronized (mLock) {
+                    if (mRunner != null) mRunner.interrupt();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        protected void done() {
+            if (!isCancelled()) return;
+            boolean started;
+            synchronized (mLock) {
+                started = !mWaitingJobs.remove(this) && (mStarted || !mRunningJobs.remove(this));
+                if (!started) dispatchLocked();
+            }
+            // A started job reports from its worker once the task returns.
+            if (!started && mCallback != null) mCallback.onJobFinished(null, true);
+        }
+
+        @Override
+        public int compareTo(Job<?> another) {
+            if (mPriority != another.mPriority) return mPriority > another.mPriority ? -1 : 1;
+            return Long.compare(mSequence, another.mSequence);
+        }
+    }
+}
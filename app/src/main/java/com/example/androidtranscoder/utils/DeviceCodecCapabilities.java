@@ -0,0 +1,374 @@
+package com.example.androidtranscoder.utils;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Codecs of the device with what they can do, ranked for selection: hardware codecs before software ones, then the
+ * fastest according to the performance points the codec publishes.
+ * <p>
+ * Probing goes through every codec of {@link MediaCodecList}, which takes a while, so results are cached in a file
+ * and reused until the build fingerprint of the device changes, e.g. after a system update.
+ * <p>
+ * NOTE: This class is immutable and thread safe.
+ */
+public class DeviceCodecCapabilities {
+    private static final String TAG = "DeviceCodecCapabilities";
+    private static final String CACHE_FILE_NAME = "codec_capabilities.bin";
+    private static final int CACHE_VERSION = 1;
+    /** Frame rate probing stops here; higher rates make no difference for transcoding. */
+    private static final int MAX_PROBED_FRAME_RATE = 480;
+
+    /** Width and height, landscape, for which frame rates are probed. */
+    static final int[][] PROBE_SIZES = {{640, 360}, {1280, 720}, {1920, 1080}, {3840, 2160}};
+    /** Size is not supported by the codec, or no frame rate is guaranteed for it. */
+    public static final int FRAME_RATE_UNSUPPORTED = 0;
+    /** Size is supported, but the codec published neither performance points nor measured frame rates. */
+    public static final int FRAME_RATE_UNKNOWN = -1;
+
+    private static volatile DeviceCodecCapabilities sInstance;
+
+    /**
+     * One codec supporting one MIME type.
+     */
+    public static class Codec {
+        public final String name;
+        public final String mime;
+        public final boolean encoder;
+        public final boolean hardwareAccelerated;
+        public final boolean vendor;
+        public final int maxSupportedInstances;
+        /** Supported profiles, e.g. MediaCodecInfo.CodecProfileLevel.AVCProfile*. */
+        public final int[] profiles;
+        /** Max frame rate for each of {@link #PROBE_SIZES}, or {@link #FRAME_RATE_UNSUPPORTED}/{@link #FRAME_RATE_UNKNOWN}. */
+        final int[] mMaxFrameRates;
+
+        Codec(String name, String mime, boolean encoder, boolean hardwareAccelerated, boolean vendor,
+              int maxSupportedInstances, int[] profiles, int[] maxFrameRates) {
+            this.name = name;
+            this.mime = mime;
+            this.encoder = encoder;
+            this.hardwareAccelerated = hardwareAccelerated;
+            this.vendor = vendor;
+            this.maxSupportedInstances = maxSupportedInstances;
+            this.profiles = profiles;
+            mMaxFrameRates = maxFrameRates;
+        }
+
+        public boolean supportsProfile(int profile) {
+            for (int supported : profiles) {
+                if (supported == profile) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Frame rate of the smallest probed size covering width x height, in either orientation.
+         *
+         * @return Frame rate, {@link #FRAME_RATE_UNSUPPORTED}, or {@link #FRAME_RATE_UNKNOWN}.
+         */
+        public int getMaxFrameRate(int width, int height) {
+            final int longer = Math.max(width, height);
+            final int shorter = Math.min(width, height);
+            for (int i = 0; i < PROBE_SIZES.length; i++) {
+                if (PROBE_SIZES[i][0] >= longer && PROBE_SIZES[i][1] >= shorter) return mMaxFrameRates[i];
+            }
+            return mMaxFrameRates.length == 0 ? FRAME_RATE_UNKNOWN : FRAME_RATE_UNSUPPORTED;
+        }
+
+        @Override
+        public String toString() {
+            return name + (hardwareAccelerated ? " (hw)" : " (sw)");
+        }
+    }
+
+    private final String mFingerprint;
+    /** Ranked, best first within each MIME type and direction. */
+    private final List<Codec> mCodecs;
+
+    DeviceCodecCapabilities(String fingerprint, List<Codec> codecs) {
+        mFingerprint = fingerprint;
+        final List<Codec> ranked = new ArrayList<>(codecs);
+        // Stable, so codecs which rank the same keep the order of MediaCodecList, which is by preference.
+        Collections.sort(ranked, RANKING);
+        mCodecs = Collections.unmodifiableList(ranked);
+    }
+
+    private static final Comparator<Codec> RANKING = (a, b) -> {
+        if (a.hardwareAccelerated != b.hardwareAccelerated) return a.hardwareAccelerated ? -1 : 1;
+        if (a.vendor != b.vendor) return a.vendor ? -1 : 1;
+        // Faster at 1080p first; unknown ranks below any known rate.
+        return Integer.compare(b.getMaxFrameRate(1920, 1080), a.getMaxFrameRate(1920, 1080));
+    };
+
+    /**
+     * @return Capabilities loaded by {@link #load(File)}, or probed now without a cache if none were loaded.
+     */
+    public static DeviceCodecCapabilities getInstance() {
+        if (sInstance == null) {
+            synchronized (DeviceCodecCapabilities.class) {
+                if (sInstance == null) {
+                    sInstance = probe();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    /**
+     * Reads capabilities cached in the directory for this device build, or probes and caches them.
+     * Call early, e.g. from Application#onCreate with the cache directory, so later lookups skip probing.
+     */
+    public static DeviceCodecCapabilities load(File cacheDir) {
+        synchronized (DeviceCodecCapabilities.class) {
+            if (sInstance != null) return sInstance;
+            final File cacheFile = new File(cacheDir, CACHE_FILE_NAME);
+            final String fingerprint = getDeviceFingerprint();
+            DeviceCodecCapabilities capabilities = null;
+            if (cacheFile.exists()) {
+                try {
+                    capabilities = readFrom(cacheFile, fingerprint);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not read " + cacheFile + ", probing again.", e);
+                }
+            }
+            if (capabilities == null) {
+                capabilities = probe();
+                try {
+                    capabilities.writeTo(cacheFile);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not write " + cacheFile + ".", e);
+                }
+            }
+            sInstance = capabilities;
+            return capabilities;
+        }
+    }
+
+    /**
+     * Queries every codec of the device. Takes tens to hundreds of milliseconds.
+     */
+    public static DeviceCodecCapabilities probe() {
+        final long startMs = System.currentTimeMillis();
+        final List<Codec> codecs = new ArrayList<>();
+        for (MediaCodecInfo codecInfo : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (codecInfo.isAlias()) continue;
+            for (String mime : codecInfo.getSupportedTypes()) {
+                final Codec codec;
+                try {
+                    codec = probeCodec(codecInfo, mime);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Could not query capabilities of " + codecInfo.getName(), e);
+                    continue;
+                }
+                if (codec != null) codecs.add(codec);
+            }
+        }
+        Log.d(TAG, "Probed " + codecs.size() + " codecs in " + (System.currentTimeMillis() - startMs) + "ms");
+        return new DeviceCodecCapabilities(getDeviceFingerprint(), codecs);
+    }
+
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    /**
+     * @return Codecs of the MIME type and direction, best first.
+     */
+    public List<Codec> getCodecs(String mime, boolean encoder) {
+        final List<Codec> result = new ArrayList<>();
+        for (Codec codec : mCodecs) {
+            if (codec.encoder == encoder && codec.mime.equalsIgnoreCase(mime)) result.add(codec);
+        }
+        return result;
+    }
+
+    /**
+     * @return Best codec of the MIME type and direction, or null if there is none.
+     */
+    public Codec getBestCodec(String mime, boolean encoder) {
+        for (Codec codec : mCodecs) {
+            if (codec.encoder == encoder && codec.mime.equalsIgnoreCase(mime)) return codec;
+        }
+        return null;
+    }
+
+    /**
+     * Returns how many codec instances of the type the device can run at once, summed over its hardware codecs, or
+     * over its software codecs if it has no hardware codec of the type.
+     *
+     * @return Max supported instances, or 0 if no codec supports the type.
+     */
+    public int getMaxSupportedInstances(String mime, boolean encoder) {
+        int hardwareInstances = 0;
+        int softwareInstances = 0;
+        for (Codec codec : getCodecs(mime, encoder)) {
+            if (codec.hardwareAccelerated) {
+                hardwareInstances += codec.maxSupportedInstances;
+            } else {
+                softwareInstances += codec.maxSupportedInstances;
+            }
+        }
+        return hardwareInstances > 0 ? hardwareInstances : softwareInstances;
+    }
+
+    /**
+     * @return Max frame rate of the best codec at the size, {@link #FRAME_RATE_UNSUPPORTED}, or
+     * {@link #FRAME_RATE_UNKNOWN}.
+     */
+    public int getMaxFrameRate(String mime, boolean encoder, int width, int height) {
+        final Codec codec = getBestCodec(mime, encoder);
+        return codec == null ? FRAME_RATE_UNSUPPORTED : codec.getMaxFrameRate(width, height);
+    }
+
+    /**
+     * How many sessions of the size and frame rate the best codec keeps up with at once. Performance points hold for
+     * the sum of frame rates of all sessions, so this is the max frame rate divided by the frame rate, capped by
+     * the number of instances. Falls back to the number of instances when frame rates are unknown.
+     */
+    public int getMaxConcurrentSessions(String mime, boolean encoder, int width, int height, int frameRate) {
+        final Codec codec = getBestCodec(mime, encoder);
+        if (codec == null) return 0;
+        final int instances = getMaxSupportedInstances(mime, encoder);
+        final int maxFrameRate = codec.getMaxFrameRate(width, height);
+        if (maxFrameRate == FRAME_RATE_UNKNOWN) return instances;
+        return Math.min(instances, maxFrameRate / frameRate);
+    }
+
+    void writeTo(File file) throws IOException {
+        final File tempFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            writeTo(out);
+        }
+        if (!tempFile.renameTo(file)) throw new IOException("Could not rename " + tempFile + " to " + file);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(CACHE_VERSION);
+        out.writeUTF(mFingerprint);
+        out.writeInt(mCodecs.size());
+        for (Codec codec : mCodecs) {
+            out.writeUTF(codec.name);
+            out.writeUTF(codec.mime);
+            out.writeBoolean(codec.encoder);
+            out.writeBoolean(codec.hardwareAccelerated);
+            out.writeBoolean(codec.vendor);
+            out.writeInt(codec.maxSupportedInstances);
+            writeInts(out, codec.profiles);
+            writeInts(out, codec.mMaxFrameRates);
+        }
+    }
+
+    private static DeviceCodecCapabilities readFrom(File file, String fingerprint) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            return readFrom(in, fingerprint);
+        }
+    }
+
+    /**
+     * @return Cached capabilities, or null if they are of another cache version or device build.
+     */
+    static DeviceCodecCapabilities readFrom(DataInputStream in, String fingerprint) throws IOException {
+        if (in.readInt() != CACHE_VERSION) return null;
+        if (!in.readUTF().equals(fingerprint)) return null;
+        final int count = in.readInt();
+        final List<Codec> codecs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            codecs.add(new Codec(in.readUTF(), in.readUTF(), in.readBoolean(), in.readBoolean(), in.readBoolean(),
+                    in.readInt(), readInts(in), readInts(in)));
+        }
+        return new DeviceCodecCapabilities(fingerprint, codecs);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) out.writeInt(value);
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        final int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++) values[i] = in.readInt();
+        return values;
+    }
+
+    private static String getDeviceFingerprint() {
+        return Build.FINGERPRINT + "/" + Build.VERSION.SDK_INT;
+    }
+
+    private static Codec probeCodec(MediaCodecInfo codecInfo, String mime) {
+        final MediaCodecInfo.CodecCapabilities capabilities = codecInfo.getCapabilitiesForType(mime);
+        if (capabilities.isFeatureRequired(MediaCodecInfo.CodecCapabilities.FEATURE_SecurePlayback)
+                || capabilities.isFeatureRequired(MediaCodecInfo.CodecCapabilities.FEATURE_TunneledPlayback)) {
+            // Cannot decode into a surface of ours.
+            return null;
+        }
+        final MediaCodecInfo.CodecProfileLevel[] profileLevels = capabilities.profileLevels;
+        final int[] profiles = new int[profileLevels == null ? 0 : profileLevels.length];
+        for (int i = 0; i < profiles.length; i++) profiles[i] = profileLevels[i].profile;
+
+        final MediaCodecInfo.VideoCapabilities videoCapabilities = capabilities.getVideoCapabilities();
+        final int[] maxFrameRates = new int[videoCapabilities == null ? 0 : PROBE_SIZES.length];
+        for (int i = 0; i < maxFrameRates.length; i++) {
+            maxFrameRates[i] = probeMaxFrameRate(videoCapabilities, PROBE_SIZES[i][0], PROBE_SIZES[i][1]);
+        }
+        return new Codec(codecInfo.getName(), mime, codecInfo.isEncoder(),
+                codecInfo.isHardwareAccelerated() && !codecInfo.isSoftwareOnly(), codecInfo.isVendor(),
+                capabilities.getMaxSupportedInstances(), profiles, maxFrameRates);
+    }
+
+    private static int probeMaxFrameRate(MediaCodecInfo.VideoCapabilities capabilities, int width, int height) {
+        if (!capabilities.isSizeSupported(width, height) && !capabilities.isSizeSupported(height, width)) {
+            return FRAME_RATE_UNSUPPORTED;
+        }
+        final List<MediaCodecInfo.VideoCapabilities.PerformancePoint> points =
+                capabilities.getSupportedPerformancePoints();
+        if (points != null && !points.isEmpty()) {
+            // Coverage falls with the frame rate, so search for the highest covered one.
+            int low = 0;
+            int high = MAX_PROBED_FRAME_RATE;
+            while (low < high) {
+                final int middle = (low + high + 1) >>> 1;
+                if (covers(points, new MediaCodecInfo.VideoCapabilities.PerformancePoint(width, height, middle))) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return low;
+        }
+        // No performance points published; use frame rates measured for the device, if any.
+        try {
+            final Range<Double> achievable = capabilities.isSizeSupported(width, height)
+                    ? capabilities.getAchievableFrameRatesFor(width, height)
+                    : capabilities.getAchievableFrameRatesFor(height, width);
+            if (achievable != null) return achievable.getUpper().intValue();
+        } catch (IllegalArgumentException e) {
+            // Not measured for this size.
+        }
+        return FRAME_RATE_UNKNOWN;
+    }
+
+    private static boolean covers(List<MediaCodecInfo.VideoCapabilities.PerformancePoint> points,
+                                  MediaCodecInfo.VideoCapabilities.PerformancePoint required) {
+        for (MediaCodecInfo.VideoCapabilities.PerformancePoint point : points) {
+            if (point.covers(required)) return true;
+        }
+        return false;
+    }
+}
@@ -5,6 +5,9 @@ import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.text.TextUtils;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class MediaExtractorUtils {
 
     private MediaExtractorUtils() {
@@ -24,12 +27,21 @@ public class MediaExtractorUtils {
     }
 
     public static TrackResult getFirstVideoAndAudioTrack(MediaExtractor extractor) {
+        List<MediaFormat> trackFormats = new ArrayList<>();
+        for (int i = 0; i < extractor.getTrackCount(); i++) trackFormats.add(extractor.getTrackFormat(i));
+        return getFirstVideoAndAudioTrack(trackFormats);
+    }
+
+    /**
+     * @param trackFormats Format of each track, in track index order, from a source other than MediaExtractor.
+     */
+    public static TrackResult getFirstVideoAndAudioTrack(List<MediaFormat> trackFormats) {
         TrackResult trackResult = new TrackResult();
         trackResult.mVideoTrackIndex = -1;
         trackResult.mAudioTrackIndex = -1;
-        int trackCount = extractor.getTrackCount();
+        int trackCount = trackFormats.size();
         for (int i = 0; i < trackCount; i++) {
-            MediaFormat format = extractor.getTrackFormat(i);
+            MediaFormat format = trackFormats.get(i);
             String mime = format.getString(MediaFormat.KEY_MIME);
             if (TextUtils.isEmpty(mime)) {
                 break;
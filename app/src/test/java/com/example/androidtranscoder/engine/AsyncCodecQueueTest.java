@@ -0,0 +1,133 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncCodecQueueTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    /**
+     * Records the buffers handed back to the codec.
+     */
+    private static class FakeCodec implements CodecControl {
+        final List<String> mCalls = new ArrayList<>();
+
+        @Override
+        public synchronized void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+            mCalls.add("queue " + index + " " + offset + " " + size + " " + presentationTimeUs + " " + flags);
+        }
+
+        @Override
+        public synchronized void releaseOutputBuffer(int index, boolean render) {
+            mCalls.add("release " + index + " " + render);
+        }
+
+        @Override
+        public synchronized void releaseOutputBuffer(int index, long renderTimestampNs) {
+            mCalls.add("release " + index + " at " + renderTimestampNs);
+        }
+
+        @Override
+        public synchronized void signalEndOfInputStream() {
+            mCalls.add("eos");
+        }
+    }
+
+    private final FakeCodec mCodec = new FakeCodec();
+    private final PipelineSignal mSignal = new PipelineSignal();
+    private final AsyncCodecQueue mQueue = new AsyncCodecQueue(mCodec, mSignal);
+
+    @Test
+    public void callbackWakesWaitingPipeline() throws Exception {
+        CountDownLatch waiting = new CountDownLatch(1);
+        AtomicBoolean signaled = new AtomicBoolean();
+        Thread pipeline = new Thread(() -> {
+            try {
+                waiting.countDown();
+                signaled.set(mSignal.await(TIMEOUT_MS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        pipeline.start();
+        assertTrue(waiting.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        // As the codec callback thread would.
+        mQueue.onInputBufferAvailable(null, 3);
+        pipeline.join(TIMEOUT_MS);
+        assertTrue(signaled.get());
+
+        assertEquals(3, mQueue.dequeueInputBuffer(0));
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, mQueue.dequeueInputBuffer(0));
+        mQueue.queueInputBuffer(3, 0, 100, 42, MediaCodec.BUFFER_FLAG_SYNC_FRAME);
+        assertEquals(Arrays.asList("queue 3 0 100 42 " + MediaCodec.BUFFER_FLAG_SYNC_FRAME), mCodec.mCalls);
+    }
+
+    @Test
+    public void keepsSignalRaisedBeforeWait() throws Exception {
+        mQueue.onInputBufferAvailable(null, 0);
+        assertTrue(mSignal.await(0));
+        // Cleared by the wait which saw it.
+        assertFalse(mSignal.await(10));
+    }
+
+    @Test
+    public void deliversOutputInCallbackOrder() {
+        mQueue.onOutputBufferAvailable(null, 1, bufferInfo(0, 10, 1000, MediaCodec.BUFFER_FLAG_KEY_FRAME));
+        mQueue.onOutputFormatChanged(null, null);
+        mQueue.onOutputBufferAvailable(null, 2, bufferInfo(4, 20, 2000, MediaCodec.BUFFER_FLAG_END_OF_STREAM));
+
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        assertEquals(1, mQueue.dequeueOutputBuffer(info, 0));
+        assertBufferInfo(info, 0, 10, 1000, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+        assertEquals(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED, mQueue.dequeueOutputBuffer(info, 0));
+        assertEquals(2, mQueue.dequeueOutputBuffer(info, 0));
+        assertBufferInfo(info, 4, 20, 2000, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, mQueue.dequeueOutputBuffer(info, 0));
+
+        mQueue.releaseOutputBuffer(1, true);
+        mQueue.releaseOutputBuffer(2, 5000L);
+        mQueue.signalEndOfInputStream();
+        assertEquals(Arrays.asList("release 1 true", "release 2 at 5000", "eos"), mCodec.mCalls);
+    }
+
+    @Test
+    public void recyclesEventsWithoutMixingThemUp() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        for (int i = 0; i < 100; i++) {
+            mQueue.onOutputBufferAvailable(null, i, bufferInfo(i, i + 1, i * 10L, 0));
+            mQueue.onOutputBufferAvailable(null, i + 1000, bufferInfo(0, 1, 0, 0));
+            assertEquals(i, mQueue.dequeueOutputBuffer(info, 0));
+            assertBufferInfo(info, i, i + 1, i * 10L, 0);
+            assertEquals(i + 1000, mQueue.dequeueOutputBuffer(info, 0));
+        }
+    }
+
+    private static MediaCodec.BufferInfo bufferInfo(int offset, int size, long presentationTimeUs, int flags) {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        info.offset = offset;
+        info.size = size;
+        info.presentationTimeUs = presentationTimeUs;
+        info.flags = flags;
+        return info;
+    }
+
+    private static void assertBufferInfo(MediaCodec.BufferInfo info, int offset, int size, long presentationTimeUs,
+                                         int flags) {
+        assertEquals(offset, info.offset);
+        assertEquals(size, info.size);
+        assertEquals(presentationTimeUs, info.presentationTimeUs);
+        assertEquals(flags, info.flags);
+    }
+}
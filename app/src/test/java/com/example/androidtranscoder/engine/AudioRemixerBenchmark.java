@@ -0,0 +1,113 @@
+package com.example.androidtranscoder.engine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of every {@link AudioRemixer} on direct buffers, as decoders hand them out, across buffer sizes.
+ * Runs on a plain JVM: start {@link #main(String[])} from the unit test classpath, e.g. in the IDE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AudioRemixerBenchmark {
+
+    @Param({"DOWNMIX", "ARRAY_DOWNMIX", "BRANCH_FREE_DOWNMIX", "AVERAGE_DOWNMIX", "UPMIX", "ARRAY_UPMIX", "PASSTHROUGH",
+            "MATRIX_5_1_TO_STEREO", "MATRIX_7_1_TO_MONO"})
+    public String remixer;
+
+    /** Frames per buffer; AAC decoders output 1024 frames per buffer. */
+    @Param({"256", "1024", "4096", "16384"})
+    public int frameCount;
+
+    private AudioRemixer mRemixer;
+    private ShortBuffer mInput;
+    private ShortBuffer mOutput;
+
+    @Setup
+    public void setup() {
+        int inputChannelCount = 2;
+        int outputChannelCount = 1;
+        switch (remixer) {
+            case "DOWNMIX":
+                mRemixer = AudioRemixer.DOWNMIX;
+                break;
+            case "ARRAY_DOWNMIX":
+                mRemixer = new ArrayAudioRemixer.Downmix();
+                break;
+            case "BRANCH_FREE_DOWNMIX":
+                mRemixer = new ArrayAudioRemixer.BranchFreeDownmix();
+                break;
+            case "AVERAGE_DOWNMIX":
+                mRemixer = new ArrayAudioRemixer.AverageDownmix();
+                break;
+            case "UPMIX":
+                mRemixer = AudioRemixer.UPMIX;
+                inputChannelCount = 1;
+                outputChannelCount = 2;
+                break;
+            case "ARRAY_UPMIX":
+                mRemixer = new ArrayAudioRemixer.Upmix();
+                inputChannelCount = 1;
+                outputChannelCount = 2;
+                break;
+            case "MATRIX_5_1_TO_STEREO":
+                mRemixer = MatrixAudioRemixer.create(6, 2);
+                inputChannelCount = 6;
+                outputChannelCount = 2;
+                break;
+            case "MATRIX_7_1_TO_MONO":
+                mRemixer = MatrixAudioRemixer.create(8, 1);
+                inputChannelCount = 8;
+                break;
+            case "PASSTHROUGH":
+                mRemixer = AudioRemixer.PASSTHROUGH;
+                outputChannelCount = 2;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown remixer: " + remixer);
+        }
+        mInput = allocate(frameCount * inputChannelCount);
+        mOutput = allocate(frameCount * outputChannelCount);
+        // Random samples, so the branch of Viktor Toth's formula is unpredictable as with real audio.
+        Random random = new Random(0);
+        while (mInput.hasRemaining()) mInput.put((short) random.nextInt());
+    }
+
+    @Benchmark
+    public ShortBuffer remix() {
+        mInput.clear();
+        mOutput.clear();
+        mRemixer.remix(mInput, mOutput);
+        return mOutput;
+    }
+
+    private static ShortBuffer allocate(int sampleCount) {
+        return ByteBuffer.allocateDirect(sampleCount * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AudioRemixerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.androidtranscoder.engine;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AudioRemixerTest {
+
+    @Test
+    public void downmixVariantsMatchPerSampleRemixer() {
+        short[] input = randomSamples(2 * 4096, 1);
+        short[] expected = remix(AudioRemixer.DOWNMIX, input, 4096);
+        assertArrayEquals(expected, remix(new ArrayAudioRemixer.Downmix(), input, 4096));
+        assertArrayEquals(expected, remix(new ArrayAudioRemixer.BranchFreeDownmix(), input, 4096));
+    }
+
+    @Test
+    public void downmixHandlesLoudSamples() {
+        short[] input = {Short.MAX_VALUE, Short.MAX_VALUE, Short.MIN_VALUE, Short.MIN_VALUE, 16384, 16384, 0, 0};
+        short[] expected = {Short.MAX_VALUE, Short.MIN_VALUE, 24577, 1};
+        assertArrayEquals(expected, remix(AudioRemixer.DOWNMIX, input, 4));
+        assertArrayEquals(expected, remix(new ArrayAudioRemixer.BranchFreeDownmix(), input, 4));
+    }
+
+    @Test
+    public void upmixMatchesPerSampleRemixer() {
+        short[] input = randomSamples(1000, 2);
+        assertArrayEquals(remix(AudioRemixer.UPMIX, input, 2000), remix(new ArrayAudioRemixer.Upmix(), input, 2000));
+    }
+
+    @Test
+    public void remixStopsAtWholeFramesThatFit() {
+        ShortBuffer in = directShorts(new short[]{1, 2, 3, 4, 5});
+        ShortBuffer out = ShortBuffer.allocate(1);
+        new ArrayAudioRemixer.Downmix().remix(in, out);
+        assertEquals(2, in.position());
+        assertEquals(1, out.position());
+    }
+
+    @Test
+    public void matrixDownmixes51ToStereo() {
+        short[] input = randomSamples(6 * 1024, 3);
+        short[] output = remix(MatrixAudioRemixer.create(6, 2), input, 2 * 1024);
+        double c = Math.sqrt(0.5);
+        double norm = 1 + 2 * c;
+        for (int i = 0; i < 1024; i++) {
+            int f = i * 6;
+            double left = (input[f] + c * input[f + 2] + c * input[f + 4]) / norm;
+            double right = (input[f + 1] + c * input[f + 2] + c * input[f + 5]) / norm;
+            assertEquals(left, output[2 * i], 1.0);
+            assertEquals(right, output[2 * i + 1], 1.0);
+        }
+    }
+
+    @Test
+    public void matrixDownmixes71ToMono() {
+        short[] input = randomSamples(8 * 1024, 4);
+        short[] output = remix(MatrixAudioRemixer.create(8, 1), input, 1024);
+        double c = Math.sqrt(0.5);
+        double norm = 2 + 6 * c;
+        for (int i = 0; i < 1024; i++) {
+            int f = i * 8;
+            double expected = input[f] + input[f + 1] + 2 * c * input[f + 2]
+                    + c * (input[f + 4] + input[f + 5] + input[f + 6] + input[f + 7]);
+            assertEquals(expected / norm, output[i], 1.0);
+        }
+    }
+
+    @Test
+    public void matrixDropsLfeAndDoesNotClip() {
+        short max = Short.MAX_VALUE;
+        short min = Short.MIN_VALUE;
+        short[] input = {
+                0, 0, 0, max, 0, 0,
+                max, max, max, max, max, max,
+                min, min, min, min, min, min,
+        };
+        short[] expected = {0, 0, max, max, min, min};
+        assertArrayEquals(expected, remix(MatrixAudioRemixer.create(6, 2), input, 6));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void matrixRejectsUnknownLayout() {
+        MatrixAudioRemixer.create(7, 2);
+    }
+
+    static short[] remix(AudioRemixer remixer, short[] input, int outputLength) {
+        ShortBuffer in = directShorts(input);
+        ShortBuffer out = ShortBuffer.allocate(outputLength);
+        remixer.remix(in, out);
+        assertEquals(outputLength, out.position());
+        return out.array();
+    }
+
+    static ShortBuffer directShorts(short[] samples) {
+        // Decoder output buffers are direct, so are the inputs here.
+        ShortBuffer buffer = ByteBuffer.allocateDirect(samples.length * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+        buffer.put(samples).flip();
+        return buffer;
+    }
+
+    static short[] randomSamples(int count, long seed) {
+        Random random = new Random(seed);
+        short[] samples = new short[count];
+        for (int i = 0; i < count; i++) samples[i] = (short) random.nextInt();
+        return samples;
+    }
+}
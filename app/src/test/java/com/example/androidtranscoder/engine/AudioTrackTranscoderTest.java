@@ -0,0 +1,27 @@
+package com.example.androidtranscoder.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AudioTrackTranscoderTest {
+    // 1024 stereo frames of 16-bit PCM at 48 kHz: 21333 us.
+    private static final int SIZE = 1024 * 4;
+
+    @Test
+    public void trimsWithinBufferStraddlingTime() {
+        // 10 ms into the buffer are 480 frames.
+        assertEquals(480 * 4, AudioTrackTranscoder.getBytesBefore(1_010_000, 1_000_000, SIZE, 48000, 2));
+        // A frame partly before the time counts as before it: 1 us is part of the first frame.
+        assertEquals(4, AudioTrackTranscoder.getBytesBefore(1_000_001, 1_000_000, SIZE, 48000, 2));
+        assertEquals(2, AudioTrackTranscoder.getBytesBefore(1_000_001, 1_000_000, SIZE, 44100, 1));
+    }
+
+    @Test
+    public void keepsOrDropsWholeBuffersAwayFromTime() {
+        assertEquals(0, AudioTrackTranscoder.getBytesBefore(1_000_000, 1_000_000, SIZE, 48000, 2));
+        assertEquals(0, AudioTrackTranscoder.getBytesBefore(0, 1_000_000, SIZE, 48000, 2));
+        assertEquals(SIZE, AudioTrackTranscoder.getBytesBefore(1_021_334, 1_000_000, SIZE, 48000, 2));
+        assertEquals(SIZE, AudioTrackTranscoder.getBytesBefore(Long.MAX_VALUE, 1_000_000, SIZE, 48000, 2));
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.androidtranscoder.engine;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CodecPoolTest {
+    private static final String AVC = "video/avc";
+    private static final String AAC = "audio/mp4a-latm";
+
+    private static class FakeCodec {
+        final String mMime;
+        final boolean mEncoder;
+        int mResetCount;
+        boolean mReleased;
+        boolean mFailReset;
+
+        FakeCodec(String mime, boolean encoder) {
+            mMime = mime;
+            mEncoder = encoder;
+        }
+    }
+
+    private static class FakeFactory implements CodecPool.CodecFactory<FakeCodec> {
+        final List<FakeCodec> mCreated = new ArrayList<>();
+
+        @Override
+        public synchronized FakeCodec create(String mime, boolean encoder) {
+            FakeCodec codec = new FakeCodec(mime, encoder);
+            mCreated.add(codec);
+            return codec;
+        }
+
+        @Override
+        public void reset(FakeCodec codec) {
+            if (codec.mFailReset) throw new IllegalStateException("reset failed");
+            codec.mResetCount++;
+        }
+
+        @Override
+        public void release(FakeCodec codec) {
+            codec.mReleased = true;
+        }
+    }
+
+    private final FakeFactory mFactory = new FakeFactory();
+    private long mNanos;
+
+    private CodecPool<FakeCodec> newPool(int maxLiveCodecs) {
+        return new CodecPool<>(mFactory, maxLiveCodecs, 1000, () -> mNanos);
+    }
+
+    @Test
+    public void reusesResetCodecOfSameMimeAndDirection() throws Exception {
+        CodecPool<FakeCodec> pool = newPool(4);
+        FakeCodec encoder = pool.acquire(AVC, true, "1280x720");
+        pool.recycle(encoder);
+        assertEquals(1, encoder.mResetCount);
+
+        assertNotSame(encoder, pool.acquire(AVC, false, "1280x720"));
+        assertSame(encoder, pool.acquire(AVC, true, "1920x1080"));
+        assertEquals(2, pool.getCreatedCount());
+        assertEquals(1, pool.getReusedCount());
+    }
+
+    @Test
+    public void prefersCodecOfSameConfiguration() throws Exception {
+        CodecPool<FakeCodec> pool = newPool(4);
+        FakeCodec hd = pool.acquire(AVC, true, "1280x720");
+        FakeCodec fullHd = pool.acquire(AVC, true, "1920x1080");
+        pool.recycle(hd);
+        pool.recycle(fullHd);
+        assertSame(hd, pool.acquire(AVC, true, "1280x720"));
+        assertSame(fullHd, pool.acquire(AVC, true, "640x360"));
+    }
+
+    @Test
+    public void evictsOldestIdleCodecAtCap() throws Exception {
+        CodecPool<FakeCodec> pool = newPool(2);
+        FakeCodec first = pool.acquire(AVC, true, "");
+        FakeCodec second = pool.acquire(AAC, true, "");
+        pool.recycle(first);
+        pool.recycle(second);
+
+        FakeCodec decoder = pool.acquire(AVC, false, "");
+        assertTrue(first.mReleased);
+        assertEquals(2, pool.getLiveCount());
+        assertEquals(1, pool.getEvictedCount());
+        assertSame(second, pool.acquire(AAC, true, ""));
+        assertNotSame(first, decoder);
+    }
+
+    @Test
+    public void waitsForCodecWhenAllAreInUse() throws Exception {
+        final CodecPool<FakeCodec> pool = newPool(1);
+        final FakeCodec encoder = pool.acquire(AVC, true, "");
+        final AtomicReference<FakeCodec> acquired = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                acquired.set(pool.acquire(AVC, true, ""));
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        thread.join(100);
+        assertTrue(thread.isAlive());
+
+        pool.recycle(encoder);
+        thread.join(5000);
+        assertSame(encoder, acquired.get());
+        assertEquals(1, mFactory.mCreated.size());
+    }
+
+    @Test
+    public void reservationKeepsJobsFromHoldingPartOfTheirCodecsAtCap() throws Exception {
+        final CodecPool<FakeCodec> pool = newPool(4);
+        final CountDownLatch firstHalfAcquired = new CountDownLatch(1);
+        final CountDownLatch secondJobWaiting = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final List<Thread> jobs = new ArrayList<>();
+        // Each job takes its decoders first and its encoders later, as the track transcoders do.
+        for (int job = 0; job < 2; job++) {
+            final boolean first = job == 0;
+            jobs.add(new Thread(() -> {
+                try {
+                    if (!first) {
+                        assertTrue(firstHalfAcquired.await(5, TimeUnit.SECONDS));
+                        secondJobWaiting.countDown();
+                    }
+                    try (CodecPool.Reservation reservation = pool.reserve(4)) {
+                        assertEquals(4, reservation.getCount());
+                        List<FakeCodec> codecs = new ArrayList<>();
+                        codecs.add(pool.acquire(AVC, false, ""));
+                        codecs.add(pool.acquire(AAC, false, ""));
+                        if (first) {
+                            firstHalfAcquired.countDown();
+                            assertTrue(secondJobWaiting.await(5, TimeUnit.SECONDS));
+                            // Time for the second job to take codecs, if its reservation did not hold it back.
+                            Thread.sleep(50);
+                        }
+                        codecs.add(pool.acquire(AVC, true, ""));
+                        codecs.add(pool.acquire(AAC, true, ""));
+                        for (FakeCodec codec : codecs) pool.recycle(codec);
+                    }
+                } catch (Throwable t) {
+                    error.set(t);
+                }
+            }));
+        }
+        for (Thread thread : jobs) thread.start();
+        for (Thread thread : jobs) {
+            thread.join(5000);
+            assertFalse("Jobs deadlocked at the cap.", thread.isAlive());
+        }
+        assertNull(error.get());
+        assertEquals(4, mFactory.mCreated.size());
+        assertEquals(4, pool.getReusedCount());
+        assertEquals(0, pool.getReservedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsReservationAboveCap() throws Exception {
+        newPool(4).reserve(5);
+    }
+
+    @Test
+    public void releasesExpiredIdleCodecs() throws Exception {
+        CodecPool<FakeCodec> pool = newPool(4);
+        FakeCodec encoder = pool.acquire(AVC, true, "");
+        pool.recycle(encoder);
+        mNanos += 999 * 1000000L;
+        pool.evictIdle();
+        assertEquals(1, pool.getIdleCount());
+
+        mNanos += 2 * 1000000L;
+        pool.evictIdle();
+        assertTrue(encoder.mReleased);
+        assertEquals(0, pool.getLiveCount());
+    }
+
+    @Test
+    public void releasesCodecWhichCannotBeReset() throws Exception {
+        CodecPool<FakeCodec> pool = newPool(4);
+        FakeCodec encoder = pool.acquire(AVC, true, "");
+        encoder.mFailReset = true;
+        pool.recycle(encoder);
+        assertTrue(encoder.mReleased);
+        assertEquals(0, pool.getLiveCount());
+        assertNotSame(encoder, pool.acquire(AVC, true, ""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsForeignCodec() {
+        newPool(1).recycle(new FakeCodec(AVC, true));
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.androidtranscoder.engine;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LongHistogramTest {
+
+    @Test
+    public void bucketsAreContiguousAndBounded() {
+        long previousHighest = -1;
+        for (int index = 0; index <= LongHistogram.getBucketIndex(1L << 40); index++) {
+            long highest = LongHistogram.getHighestValueOfBucket(index);
+            long lowest = previousHighest + 1;
+            assertEquals(index, LongHistogram.getBucketIndex(lowest));
+            assertEquals(index, LongHistogram.getBucketIndex(highest));
+            // Width within 1/32 of the values in the bucket.
+            assertTrue(highest - lowest <= Math.max(0, lowest / 32));
+            previousHighest = highest;
+        }
+    }
+
+    @Test
+    public void percentilesMatchSortedValues() {
+        LongHistogram histogram = new LongHistogram(60_000_000_000L);
+        Random random = new Random(42);
+        long[] values = new long[100000];
+        for (int i = 0; i < values.length; i++) {
+            // Log-normal-ish latencies from microseconds to seconds.
+            values[i] = (long) Math.exp(7 + random.nextGaussian() * 3);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + reported + " vs " + exact,
+                    reported >= exact && reported <= exact + exact / 32);
+        }
+        assertEquals(values.length, histogram.getTotalCount());
+        assertEquals(values[values.length - 1], histogram.getMaxValue());
+        assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void clampsValuesAboveHighestTrackableValue() {
+        LongHistogram histogram = new LongHistogram(1000);
+        histogram.record(10);
+        histogram.record(1_000_000);
+        assertEquals(2, histogram.getTotalCount());
+        assertEquals(1_000_000, histogram.getMaxValue());
+        assertEquals(10, histogram.getValueAtPercentile(50));
+        assertTrue(histogram.getValueAtPercentile(100) >= 1000);
+        assertEquals((10 + 1_000_000) / 2.0, histogram.getMean(), 0);
+
+        histogram.reset();
+        assertEquals(0, histogram.getTotalCount());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.androidtranscoder.engine;
+
+import android.media.MediaExtractor;
+
+import com.example.androidtranscoder.mp4.MappedSampleData;
+import com.example.androidtranscoder.mp4.Mp4Fixture;
+import com.example.androidtranscoder.mp4.Mp4Movie;
+import com.example.androidtranscoder.mp4.Mp4Parser;
+import com.example.androidtranscoder.mp4.Mp4Track;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4SampleSourceTest {
+    private static final int NAL_UNIT_LENGTH_SIZE = 4;
+    private RandomAccessFile mInput;
+    private MappedSampleData mData;
+    private Mp4Track mVideo;
+
+    @Before
+    public void setUp() throws IOException {
+        mInput = new RandomAccessFile(Mp4Fixture.write(false), "r");
+        Mp4Movie movie = Mp4Parser.parse(mInput.getChannel());
+        mVideo = movie.getFirstTrack(Mp4Track.HANDLER_VIDEO);
+        mData = new MappedSampleData(mInput.getChannel(), mVideo.getMaxSampleSize());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mInput.close();
+    }
+
+    @Test
+    public void readsWholeTrackInDecodeOrder() {
+        Mp4SampleSource source = new Mp4SampleSource(mData, mVideo, NAL_UNIT_LENGTH_SIZE, 0, Long.MAX_VALUE);
+        // 30000 ticks per second; presented at 1000, 3000, 2000, 4000, 6000 and 5000 ticks.
+        assertEquals(Arrays.asList(33333L, 100000L, 66666L, 133333L, 200000L, 166666L), readTimes(source));
+        assertTrue(source.isEndOfStream());
+    }
+
+    @Test
+    public void trimsToSyncSamples() {
+        // Starts at the sync sample before 120 ms, and ends at the sync sample presented at 133 ms.
+        Mp4SampleSource source = new Mp4SampleSource(mData, mVideo, NAL_UNIT_LENGTH_SIZE, 120000, 120000);
+        assertEquals(Arrays.asList(33333L, 100000L, 66666L), readTimes(source));
+
+        source = new Mp4SampleSource(mData, mVideo, NAL_UNIT_LENGTH_SIZE, 150000, Long.MAX_VALUE);
+        assertEquals(MediaExtractor.SAMPLE_FLAG_SYNC, source.getSampleFlags());
+        assertEquals(Arrays.asList(133333L, 200000L, 166666L), readTimes(source));
+    }
+
+    @Test
+    public void readsSampleDataAtOffset() {
+        Mp4SampleSource source = new Mp4SampleSource(mData, mVideo, NAL_UNIT_LENGTH_SIZE, 0, Long.MAX_VALUE);
+        source.advance();
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        int size = source.readSampleData(buffer, 16);
+        assertEquals(Mp4Fixture.VIDEO_SIZES[1], size);
+        assertEquals(16, buffer.position());
+        assertEquals(16 + size, buffer.limit());
+        // Start codes replace the length prefixes of both NAL units.
+        for (int i = 0; i < size; i++) {
+            byte expected = Mp4Fixture.isLengthPrefix(i) ? (byte) (i % 4 == 3 ? 1 : 0)
+                    : Mp4Fixture.sampleByte(Mp4Fixture.VIDEO, 1, i);
+            assertEquals("Byte " + i, expected, buffer.get(16 + i));
+        }
+        assertEquals(0, source.getSampleFlags());
+        // The mapped file keeps them.
+        assertEquals(Mp4Fixture.VIDEO_FIRST_NAL_UNIT_SIZE, source.getSampleData().getInt(0));
+    }
+
+    @Test
+    public void growsSamplesWithShortLengthPrefixes() {
+        ByteBuffer data = ByteBuffer.wrap(new byte[]{0, 2, 0x65, 0x11, 0, 1, 0x06, 0, 0});
+        ByteBuffer out = ByteBuffer.allocate(Mp4SampleSource.getMaxAnnexBSize(data.remaining(), 2));
+        Mp4SampleSource.putAnnexB(data, 2, out);
+        // An empty NAL unit last.
+        assertArrayEquals(new byte[]{0, 0, 0, 1, 0x65, 0x11, 0, 0, 0, 1, 0x06, 0, 0, 0, 1},
+                Arrays.copyOf(out.array(), out.position()));
+        assertEquals(9 + 9 / 3 * 2, out.capacity());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void throwsAfterEndOfStream() {
+        Mp4SampleSource source = new Mp4SampleSource(mData, mVideo, NAL_UNIT_LENGTH_SIZE, 0, 0);
+        assertFalse(source.isSampleAvailable());
+        source.getSampleTime();
+    }
+
+    private static List<Long> readTimes(Mp4SampleSource source) {
+        List<Long> times = new ArrayList<>();
+        while (source.isSampleAvailable()) {
+            times.add(source.getSampleTime());
+            source.advance();
+        }
+        return times;
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.androidtranscoder.engine;
+
+import org.junit.Test;
+
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PolyphaseResamplerTest {
+
+    @Test
+    public void outputLengthFollowsRatio() {
+        PolyphaseResampler resampler = new PolyphaseResampler(44100, 48000, 2, PolyphaseResampler.Quality.MEDIUM);
+        short[] output = resampleInChunks(resampler, sine(44100, 1000, 44100, 2), 1024, 2);
+        assertEquals(48000 * 2, output.length);
+    }
+
+    @Test
+    public void chunkSizeDoesNotChangeOutput() {
+        short[] input = sine(10000, 440, 48000, 1);
+        short[] whole = resampleInChunks(new PolyphaseResampler(48000, 44100, 1, PolyphaseResampler.Quality.HIGH), input, input.length, 1);
+        short[] chunked = resampleInChunks(new PolyphaseResampler(48000, 44100, 1, PolyphaseResampler.Quality.HIGH), input, 37, 1);
+        assertEquals(whole.length, chunked.length);
+        for (int i = 0; i < whole.length; i++) assertEquals(whole[i], chunked[i]);
+    }
+
+    @Test
+    public void preservesSineAndTiming() {
+        // A 1 kHz sine stays a 1 kHz sine in phase with the input, since output is aligned with the first input frame.
+        for (PolyphaseResampler.Quality quality : PolyphaseResampler.Quality.values()) {
+            short[] output = resampleInChunks(new PolyphaseResampler(32000, 48000, 1, quality), sine(32000, 1000, 32000, 1), 1024, 1);
+            short[] expected = sine(48000, 1000, 48000, 1);
+            double error = 0;
+            // Skip the ends, where the filter reads the silence around the input.
+            for (int i = 100; i < 47900; i++) error = Math.max(error, Math.abs(output[i] - expected[i]));
+            assertTrue(quality + " error " + error, error < 100);
+        }
+    }
+
+    @Test
+    public void downsamplingAttenuatesAliases() {
+        // 20 kHz is above the 11025 Hz Nyquist frequency of the output and would alias to 2050 Hz.
+        short[] output = resampleInChunks(new PolyphaseResampler(44100, 22050, 1, PolyphaseResampler.Quality.HIGH), sine(44100, 20000, 44100, 1), 1024, 1);
+        int peak = 0;
+        for (int i = 100; i < output.length - 100; i++) peak = Math.max(peak, Math.abs(output[i]));
+        assertTrue("peak " + peak, peak < 160);
+    }
+
+    private static short[] resampleInChunks(PolyphaseResampler resampler, short[] input, int chunkFrames, int channelCount) {
+        ShortBuffer out = ShortBuffer.allocate(resampler.getMaxOutputFrames(input.length / channelCount) * channelCount);
+        ShortBuffer in = ShortBuffer.wrap(input);
+        while (in.hasRemaining()) {
+            ShortBuffer chunk = in.slice();
+            chunk.limit(Math.min(chunk.remaining(), chunkFrames * channelCount));
+            in.position(in.position() + chunk.limit());
+            resampler.resample(chunk, out);
+        }
+        resampler.drain(out);
+        short[] output = new short[out.position()];
+        out.flip();
+        out.get(output);
+        return output;
+    }
+
+    private static short[] sine(int frameCount, double frequency, int sampleRate, int channelCount) {
+        short[] samples = new short[frameCount * channelCount];
+        for (int i = 0; i < frameCount; i++) {
+            short sample = (short) Math.round(16000 * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+            for (int channel = 0; channel < channelCount; channel++) samples[i * channelCount + channel] = sample;
+        }
+        return samples;
+    }
+}
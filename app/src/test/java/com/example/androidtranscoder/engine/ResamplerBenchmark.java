@@ -0,0 +1,74 @@
+package com.example.androidtranscoder.engine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of {@link PolyphaseResampler} per quality on a stereo AAC frame of 1024 samples, as decoders hand
+ * them out. Runs on a plain JVM: start {@link #main(String[])} from the unit test classpath, e.g. in the IDE.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResamplerBenchmark {
+    private static final int FRAME_COUNT = 1024;
+    private static final int CHANNEL_COUNT = 2;
+
+    @Param({"LOW", "MEDIUM", "HIGH"})
+    public PolyphaseResampler.Quality quality;
+
+    /** Input and output rate. */
+    @Param({"44100:48000", "48000:44100", "22050:44100", "96000:48000"})
+    public String rates;
+
+    private PolyphaseResampler mResampler;
+    private ShortBuffer mInput;
+    private ShortBuffer mOutput;
+
+    @Setup
+    public void setup() {
+        String[] split = rates.split(":");
+        mResampler = new PolyphaseResampler(Integer.parseInt(split[0]), Integer.parseInt(split[1]), CHANNEL_COUNT, quality);
+        mInput = allocate(FRAME_COUNT * CHANNEL_COUNT);
+        mOutput = allocate(mResampler.getMaxOutputFrames(FRAME_COUNT) * CHANNEL_COUNT);
+        Random random = new Random(0);
+        while (mInput.hasRemaining()) mInput.put((short) random.nextInt());
+    }
+
+    @Benchmark
+    public ShortBuffer resample() {
+        mInput.clear();
+        mOutput.clear();
+        mResampler.resample(mInput, mOutput);
+        return mOutput;
+    }
+
+    private static ShortBuffer allocate(int sampleCount) {
+        return ByteBuffer.allocateDirect(sampleCount * 2).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ResamplerBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.androidtranscoder.engine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+public class SampleArenaTest {
+    private File mSpillDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mSpillDirectory = File.createTempFile("SampleArenaTest", "");
+        assertTrue(mSpillDirectory.delete());
+        assertTrue(mSpillDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mSpillDirectory.listFiles();
+        // The spill file is unlinked as soon as it is created.
+        assertEquals(0, files == null ? 0 : files.length);
+        assertTrue(mSpillDirectory.delete());
+    }
+
+    @Test
+    public void readsBackSamplesSpilledPastMemoryLimit() {
+        SampleArena arena = new SampleArena(4L * SampleArena.CHUNK_SIZE, mSpillDirectory);
+        List<Integer> sizes = new ArrayList<>();
+        // Small samples packed into chunks, larger than the initial metadata capacity.
+        for (int i = 0; i < 100; i++) sizes.add(7000 + i);
+        // Larger than a chunk while memory is left, then small ones which go past the limit.
+        sizes.add(SampleArena.CHUNK_SIZE + 12345);
+        for (int i = 0; i < 100; i++) sizes.add(9000 + i);
+        // Larger than a chunk once spilling.
+        sizes.add(2 * SampleArena.CHUNK_SIZE + 1);
+        sizes.add(10);
+
+        long totalBytes = 0;
+        for (int i = 0; i < sizes.size(); i++) {
+            arena.add(i % 2, sample(i, sizes.get(i)), i * 100L, i % 3);
+            totalBytes += sizes.get(i);
+        }
+
+        assertEquals(sizes.size(), arena.getSampleCount());
+        assertEquals(totalBytes, arena.getSampleBytes());
+        assertTrue(arena.getSpilledBytes() >= 2L * SampleArena.CHUNK_SIZE + 1);
+        for (int i = 0; i < sizes.size(); i++) {
+            assertEquals(i % 2, arena.getTrack(i));
+            assertEquals(i * 100L, arena.getPresentationTimeUs(i));
+            assertEquals(i % 3, arena.getFlags(i));
+            assertEquals((int) sizes.get(i), arena.getSize(i));
+            ByteBuffer buffer = arena.getBuffer(i);
+            int offset = arena.getOffset(i);
+            assertTrue(offset + arena.getSize(i) <= buffer.capacity());
+            for (int j = 0; j < arena.getSize(i); j++) {
+                if (buffer.get(offset + j) != sampleByte(i, j)) {
+                    throw new AssertionError("Sample " + i + " differs at " + j);
+                }
+            }
+        }
+        arena.release();
+        assertEquals(0, arena.getSampleCount());
+        assertEquals(0, arena.getSpilledBytes());
+    }
+
+    @Test
+    public void recyclesChunksThroughPool() {
+        // Takes every pooled chunk, so the pool holds only chunks of this arena after it is released.
+        SampleArena first = new SampleArena(64L * SampleArena.CHUNK_SIZE, mSpillDirectory);
+        Set<ByteBuffer> firstChunks = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 32; i++) {
+            first.add(0, sample(i, SampleArena.CHUNK_SIZE), i, 0);
+            firstChunks.add(first.getBuffer(i));
+        }
+        first.add(0, sample(32, SampleArena.CHUNK_SIZE + 1), 32, 0);
+        ByteBuffer oversizeChunk = first.getBuffer(32);
+        assertEquals(32, firstChunks.size());
+        assertFalse(firstChunks.contains(oversizeChunk));
+        first.release();
+
+        SampleArena second = new SampleArena(64L * SampleArena.CHUNK_SIZE, mSpillDirectory);
+        for (int i = 0; i < 4; i++) {
+            second.add(1, sample(i + 100, 1000), i, 0);
+        }
+        ByteBuffer reused = second.getBuffer(0);
+        assertTrue(firstChunks.contains(reused));
+        assertNotSame(oversizeChunk, reused);
+        // Recycled chunks start empty.
+        assertEquals(0, second.getOffset(0));
+        assertEquals(3000, second.getOffset(3));
+        for (int j = 0; j < 1000; j++) assertEquals(sampleByte(103, j), reused.get(3000 + j));
+        assertEquals(0, second.getSpilledBytes());
+        second.release();
+    }
+
+    private static ByteBuffer sample(int index, int size) {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        for (int j = 0; j < size; j++) data.put(j, sampleByte(index, j));
+        return data;
+    }
+
+    private static byte sampleByte(int index, int j) {
+        return (byte) (index * 13 + j * 7);
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.androidtranscoder.engine;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SampleClockTest {
+
+    @Test
+    public void matchesExactTimeOverHours() {
+        for (int sampleRate : new int[]{44100, 48000, 22050, 11025}) {
+            SampleClock clock = new SampleClock(sampleRate);
+            clock.start(1234);
+            long frames = 0;
+            // Ten hours of AAC frames.
+            while (frames < 10L * 3600 * sampleRate) {
+                assertEquals(1234 + frames * 1000000 / sampleRate, clock.getTimeUs());
+                clock.advance(1024);
+                frames += 1024;
+            }
+        }
+    }
+
+    @Test
+    public void handlesChangingBufferSizes() {
+        SampleClock clock = new SampleClock(44100);
+        clock.start(0);
+        long frames = 0;
+        for (int i = 0; i < 100000; i++) {
+            int frameCount = 1 + (i * 7919) % 4096;
+            clock.advance(frameCount);
+            frames += frameCount;
+            assertEquals(frames * 1000000 / 44100, clock.getTimeUs());
+        }
+    }
+}
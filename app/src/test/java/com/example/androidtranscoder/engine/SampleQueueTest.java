@@ -0,0 +1,107 @@
+package com.example.androidtranscoder.engine;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SampleQueueTest {
+    private static final int SAMPLE_SIZE = 100 * 1024;
+
+    @Test
+    public void wrapsAroundBehindReadPosition() {
+        SampleQueue queue = new SampleQueue();
+        add(queue, 0, SAMPLE_SIZE);
+        add(queue, 1, SAMPLE_SIZE);
+        ByteBuffer buffer = queue.getBuffer();
+        assertHead(queue, 0, SAMPLE_SIZE);
+        queue.removeHead();
+
+        // Does not fit behind the second sample, but before it.
+        add(queue, 2, SAMPLE_SIZE - 1);
+        assertSame(buffer, queue.getBuffer());
+        assertEquals(SAMPLE_SIZE, queue.getHeadOffset());
+        assertHead(queue, 1, SAMPLE_SIZE);
+        queue.removeHead();
+        assertEquals(0, queue.getHeadOffset());
+        assertHead(queue, 2, SAMPLE_SIZE - 1);
+        queue.removeHead();
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getBufferedBytes());
+        assertEquals(2L * SAMPLE_SIZE, queue.getMaxBufferedBytes());
+    }
+
+    @Test
+    public void growsWhileWrappedKeepingOrder() {
+        SampleQueue queue = new SampleQueue();
+        add(queue, 0, SAMPLE_SIZE);
+        add(queue, 1, SAMPLE_SIZE);
+        queue.removeHead();
+        add(queue, 2, SAMPLE_SIZE - 1);
+        ByteBuffer buffer = queue.getBuffer();
+        // Fits neither between the wrapped tail and the head nor at the end.
+        add(queue, 3, 3 * SAMPLE_SIZE);
+
+        assertTrue(queue.getBuffer() != buffer);
+        assertTrue(queue.getBuffer().capacity() >= 5 * SAMPLE_SIZE);
+        assertEquals(0, queue.getHeadOffset());
+        assertEquals(5L * SAMPLE_SIZE - 1, queue.getBufferedBytes());
+        assertEquals(3000 - 1000, queue.getBufferedDurationUs());
+        assertHead(queue, 1, SAMPLE_SIZE);
+        queue.removeHead();
+        assertHead(queue, 2, SAMPLE_SIZE - 1);
+        queue.removeHead();
+        assertHead(queue, 3, 3 * SAMPLE_SIZE);
+        queue.removeHead();
+        assertTrue(queue.isEmpty());
+        assertEquals(5L * SAMPLE_SIZE - 1, queue.getMaxBufferedBytes());
+    }
+
+    @Test
+    public void growsMetadataWhileWrapped() {
+        SampleQueue queue = new SampleQueue();
+        int next = 0;
+        int head = 0;
+        // Moves the head of the metadata arrays away from 0 before they fill up.
+        for (; next < 20; next++) add(queue, next, 10);
+        for (; head < 15; head++) queue.removeHead();
+        for (; next < 100; next++) add(queue, next, 10 + next);
+
+        assertEquals((next - 1 - head) * 1000L, queue.getBufferedDurationUs());
+        for (; head < next; head++) {
+            assertHead(queue, head, head < 20 ? 10 : 10 + head);
+            queue.removeHead();
+        }
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getBufferedDurationUs());
+    }
+
+    private static void add(SampleQueue queue, int index, int size) {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        for (int i = 0; i < size; i++) data.put(i, sampleByte(index, i));
+        queue.add(data, index * 1000L, index % 2);
+        assertEquals(size, data.position());
+    }
+
+    private static void assertHead(SampleQueue queue, int index, int size) {
+        assertEquals(size, queue.getHeadSize());
+        assertEquals(index * 1000L, queue.getHeadPresentationTimeUs());
+        assertEquals(index % 2, queue.getHeadFlags());
+        // Position and limit are left where the last write put them.
+        ByteBuffer buffer = queue.getBuffer().duplicate();
+        buffer.clear();
+        int offset = queue.getHeadOffset();
+        for (int i = 0; i < size; i++) {
+            if (buffer.get(offset + i) != sampleByte(index, i)) {
+                throw new AssertionError("Sample " + index + " differs at " + i);
+            }
+        }
+    }
+
+    private static byte sampleByte(int index, int i) {
+        return (byte) (index * 17 + i * 3);
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.androidtranscoder.engine;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SampleRingBufferTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    @Test
+    public void producerBlocksWhileRingIsFull() throws Exception {
+        final SampleRingBuffer ring = new SampleRingBuffer(2, null);
+        final int sampleCount = 6;
+        AtomicReference<Throwable> producerError = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < sampleCount; i++) publish(ring, i, 100 + i);
+                ring.endOfStream(null);
+            } catch (Throwable t) {
+                producerError.set(t);
+            }
+        });
+        producer.start();
+        awaitBlocked(producer);
+        assertEquals(2, ring.getQueuedSampleCount());
+        // Blocked long enough to be measured.
+        Thread.sleep(10);
+
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        for (int i = 0; i < sampleCount; i++) {
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (!ring.isSampleAvailable()) {
+                if (System.currentTimeMillis() > deadline) fail("Sample " + i + " not queued.");
+                Thread.yield();
+            }
+            assertEquals(i * 1000L, ring.getSampleTime());
+            assertEquals(i % 2, ring.getSampleFlags());
+            assertEquals(100 + i, ring.readSampleData(buffer, 8));
+            assertSample(buffer, 8, i, 100 + i);
+            ring.advance();
+        }
+        producer.join(TIMEOUT_MS);
+        assertNull(producerError.get());
+        assertTrue(ring.isEndOfStream());
+        assertTrue(ring.getProducerBlockedNs() >= TimeUnit.MILLISECONDS.toNanos(10));
+    }
+
+    @Test
+    public void growsSlotForLargerSample() throws Exception {
+        SampleRingBuffer ring = new SampleRingBuffer(1, null);
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        int[] sizes = {10, 20000, 30, 40000};
+        for (int i = 0; i < sizes.length; i++) {
+            publish(ring, i, sizes[i]);
+            assertEquals(sizes[i], ring.readSampleData(buffer, 0));
+            assertSample(buffer, 0, i, sizes[i]);
+            ring.advance();
+        }
+        // A smaller sample reuses the grown slot.
+        ByteBuffer slot = ring.acquireSlot(100);
+        assertTrue(slot.capacity() >= 40000);
+        assertEquals(0, slot.position());
+    }
+
+    @Test
+    public void endsAfterQueuedSamples() throws Exception {
+        AtomicInteger notifications = new AtomicInteger();
+        SampleRingBuffer ring = new SampleRingBuffer(4, notifications::incrementAndGet);
+        publish(ring, 0, 10);
+        ring.endOfStream(null);
+        assertEquals(2, notifications.get());
+        assertFalse(ring.isEndOfStream());
+        assertTrue(ring.isSampleAvailable());
+        ring.advance();
+        assertFalse(ring.isSampleAvailable());
+        assertTrue(ring.isEndOfStream());
+        try {
+            ring.getSampleTime();
+            fail();
+        } catch (IllegalStateException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void propagatesDemuxerError() throws Exception {
+        SampleRingBuffer ring = new SampleRingBuffer(4, null);
+        publish(ring, 0, 10);
+        RuntimeException error = new RuntimeException("read failed");
+        ring.endOfStream(error);
+        try {
+            ring.isSampleAvailable();
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(error, e.getCause());
+        }
+        try {
+            ring.readSampleData(ByteBuffer.allocate(16), 0);
+            fail();
+        } catch (IllegalStateException e) {
+            assertSame(error, e.getCause());
+        }
+    }
+
+    @Test
+    public void countsConsumerWaits() throws Exception {
+        SampleRingBuffer ring = new SampleRingBuffer(4, null);
+        assertFalse(ring.isSampleAvailable());
+        Thread.sleep(5);
+        // Polling again while starved is one wait, not two.
+        assertFalse(ring.isSampleAvailable());
+        publish(ring, 0, 10);
+        assertTrue(ring.isSampleAvailable());
+        assertEquals(1, ring.getConsumerWaitCount());
+        assertTrue(ring.getConsumerWaitNs() >= TimeUnit.MILLISECONDS.toNanos(5));
+        ring.advance();
+
+        // Finding the ring empty at the end of the stream is no wait.
+        ring.endOfStream(null);
+        assertFalse(ring.isSampleAvailable());
+        assertEquals(1, ring.getConsumerWaitCount());
+        assertEquals(0, ring.getProducerBlockedNs());
+    }
+
+    private static void publish(SampleRingBuffer ring, int index, int size) throws InterruptedException {
+        ByteBuffer slot = ring.acquireSlot(size);
+        assertTrue(slot.capacity() >= size);
+        for (int i = 0; i < size; i++) slot.put(i, sampleByte(index, i));
+        ring.publish(size, index * 1000L, index % 2);
+    }
+
+    private static void assertSample(ByteBuffer buffer, int offset, int index, int size) {
+        assertEquals(offset, buffer.position());
+        assertEquals(offset + size, buffer.limit());
+        for (int i = 0; i < size; i++) assertEquals(sampleByte(index, i), buffer.get(offset + i));
+    }
+
+    private static byte sampleByte(int index, int i) {
+        return (byte) (index * 31 + i);
+    }
+
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (thread.getState() != Thread.State.WAITING) {
+            if (System.currentTimeMillis() > deadline) fail("Producer did not block.");
+            Thread.sleep(1);
+        }
+    }
+}
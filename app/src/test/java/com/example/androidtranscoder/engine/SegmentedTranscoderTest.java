@@ -0,0 +1,79 @@
+package com.example.androidtranscoder.engine;
+
+import org.junit.Test;
+
+import java.util.function.LongUnaryOperator;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedTranscoderTest {
+    private static final long SECOND = 1_000_000;
+    private static final long MIN_SEGMENT = 10 * SECOND;
+
+    private static LongUnaryOperator syncEvery(long intervalUs) {
+        return timeUs -> timeUs / intervalUs * intervalUs;
+    }
+
+    @Test
+    public void splitsAtPreviousSyncSamples() {
+        // 2 minutes with a sync sample every 3 seconds: targets at 30, 60 and 90 s are sync samples already.
+        assertArrayEquals(new long[]{0, 30 * SECOND, 60 * SECOND, 90 * SECOND, 120 * SECOND},
+                SegmentedTranscoder.planSegmentBoundaries(0, 120 * SECOND, 4, MIN_SEGMENT, syncEvery(3 * SECOND)));
+        // Targets of 25 and 50 s move back to 24 and 48 s.
+        assertArrayEquals(new long[]{0, 24 * SECOND, 48 * SECOND, 75 * SECOND},
+                SegmentedTranscoder.planSegmentBoundaries(0, 75 * SECOND, 3, MIN_SEGMENT, syncEvery(4 * SECOND)));
+    }
+
+    @Test
+    public void keepsSegmentsAboveMinimumDuration() {
+        // 25 seconds fit 2 segments of at least 10 s, not 8.
+        assertArrayEquals(new long[]{5 * SECOND, 17 * SECOND, 30 * SECOND},
+                SegmentedTranscoder.planSegmentBoundaries(5 * SECOND, 30 * SECOND, 8, MIN_SEGMENT, syncEvery(SECOND)));
+        // Too short to split.
+        assertArrayEquals(new long[]{0, 15 * SECOND},
+                SegmentedTranscoder.planSegmentBoundaries(0, 15 * SECOND, 4, MIN_SEGMENT, syncEvery(SECOND)));
+    }
+
+    @Test
+    public void dropsBoundariesMergedByLongGops() {
+        // With a sync sample every 40 seconds, targets at 20, 40 and 60 s collapse onto 0, 40 and 40 s.
+        assertArrayEquals(new long[]{0, 40 * SECOND, 80 * SECOND},
+                SegmentedTranscoder.planSegmentBoundaries(0, 80 * SECOND, 4, MIN_SEGMENT, syncEvery(40 * SECOND)));
+    }
+
+    @Test
+    public void shiftsSegmentsByTheirStartInTheRange() {
+        SegmentedTranscoder.Timeline timeline =
+                new SegmentedTranscoder.Timeline(new long[]{5 * SECOND, 17 * SECOND, 30 * SECOND});
+        timeline.startSegment(0);
+        assertEquals(0, timeline.toOutputTimeUs(0));
+        assertEquals(SECOND, timeline.toOutputTimeUs(SECOND));
+        timeline.startSegment(1);
+        assertEquals(12 * SECOND, timeline.toOutputTimeUs(0));
+        assertEquals(12 * SECOND + 33_333, timeline.toOutputTimeUs(33_333));
+    }
+
+    @Test
+    public void dropsAudioOverlappingThePreviousSegment() {
+        final long frameUs = 21_333;
+        SegmentedTranscoder.Timeline timeline =
+                new SegmentedTranscoder.Timeline(new long[]{0, 12 * SECOND, 24 * SECOND});
+        timeline.startSegment(0);
+        assertTrue(timeline.acceptAudio(timeline.toOutputTimeUs(0)));
+        // The last frame of the drained segment starts before the boundary and ends past it.
+        long lastFrameUs = 12 * SECOND - frameUs / 2;
+        assertTrue(timeline.acceptAudio(timeline.toOutputTimeUs(lastFrameUs)));
+
+        timeline.startSegment(1);
+        // Frames of the next segment at or before the previous segment's last frame are dropped.
+        assertFalse(timeline.acceptAudio(timeline.toOutputTimeUs(-frameUs)));
+        assertFalse(timeline.acceptAudio(timeline.toOutputTimeUs(lastFrameUs - 12 * SECOND)));
+        assertTrue(timeline.acceptAudio(timeline.toOutputTimeUs(0)));
+        assertTrue(timeline.acceptAudio(timeline.toOutputTimeUs(frameUs)));
+        // Out of order within a segment is dropped too.
+        assertFalse(timeline.acceptAudio(timeline.toOutputTimeUs(frameUs)));
+    }
+}
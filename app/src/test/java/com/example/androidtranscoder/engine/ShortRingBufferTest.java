@@ -0,0 +1,48 @@
+package com.example.androidtranscoder.engine;
+
+import org.junit.Test;
+
+import java.nio.BufferOverflowException;
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ShortRingBufferTest {
+
+    @Test
+    public void keepsOrderAcrossWrapAround() {
+        ShortRingBuffer ring = new ShortRingBuffer(10);
+        short next = 0;
+        short expected = 0;
+        for (int round = 0; round < 20; round++) {
+            short[] samples = new short[7];
+            for (int i = 0; i < samples.length; i++) samples[i] = next++;
+            ring.write(ShortBuffer.wrap(samples));
+            assertEquals(3, ring.free());
+
+            ShortBuffer out = ShortBuffer.allocate(7);
+            assertEquals(7, ring.read(out, 7));
+            for (short sample : out.array()) assertEquals(expected++, sample);
+            assertEquals(0, ring.size());
+        }
+    }
+
+    @Test
+    public void readIsLimitedByMaxCountAndDestination() {
+        ShortRingBuffer ring = new ShortRingBuffer(8);
+        ring.write(ShortBuffer.wrap(new short[]{1, 2, 3, 4, 5, 6}));
+        ShortBuffer out = ShortBuffer.allocate(5);
+        assertEquals(4, ring.read(out, 4));
+        assertEquals(1, ring.read(out, 4));
+        assertArrayEquals(new short[]{1, 2, 3, 4, 5}, out.array());
+        assertEquals(1, ring.size());
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void rejectsWriteLargerThanFreeSpace() {
+        ShortRingBuffer ring = new ShortRingBuffer(4);
+        ring.write(ShortBuffer.wrap(new short[3]));
+        ring.write(ShortBuffer.wrap(new short[2]));
+    }
+}
@@ -0,0 +1,22 @@
+package com.example.androidtranscoder.format;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class MediaLadderStrategyTest {
+
+    @Test
+    public void scalesShorterSideKeepingAspectRatio() {
+        assertArrayEquals(new int[]{1280, 720}, MediaLadderStrategy.getScaledSize(1920, 1080, 720));
+        assertArrayEquals(new int[]{480, 854}, MediaLadderStrategy.getScaledSize(1080, 1920, 480));
+        assertArrayEquals(new int[]{1080, 1080}, MediaLadderStrategy.getScaledSize(2160, 2160, 1080));
+    }
+
+    @Test
+    public void roundsLongerSideToEvenLength() {
+        // 4:3 at 360 is exactly 480; 1440x1080 at 481 would be 641.33.
+        assertArrayEquals(new int[]{480, 360}, MediaLadderStrategy.getScaledSize(640, 480, 360));
+        assertArrayEquals(new int[]{642, 481}, MediaLadderStrategy.getScaledSize(1440, 1080, 481));
+    }
+}
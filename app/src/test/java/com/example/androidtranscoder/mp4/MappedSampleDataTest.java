@@ -0,0 +1,74 @@
+package com.example.androidtranscoder.mp4;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MappedSampleDataTest {
+    @Test
+    public void slicesSamplesFromOneWindow() throws IOException {
+        assertAllSamples(MappedSampleData.DEFAULT_WINDOW_SIZE);
+    }
+
+    @Test
+    public void slicesSamplesAcrossWindowBoundaries() throws IOException {
+        // Much smaller than the file, so most samples start near the end of a window.
+        assertAllSamples(64);
+    }
+
+    @Test
+    public void rejectsSamplesOutsideOfFile() throws IOException {
+        File file = Mp4Fixture.write(false);
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            MappedSampleData data = new MappedSampleData(input.getChannel(), 500);
+            try {
+                data.getSample(file.length() - 10, 11);
+                fail();
+            } catch (IllegalArgumentException expected) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test(expected = ReadOnlyBufferException.class)
+    public void slicesAreReadOnly() throws IOException {
+        File file = Mp4Fixture.write(false);
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            MappedSampleData data = new MappedSampleData(input.getChannel(), 500);
+            data.getSample(0, 8).put(0, (byte) 0);
+        }
+    }
+
+    private static void assertAllSamples(long windowSize) throws IOException {
+        File file = Mp4Fixture.write(true);
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            Mp4Movie movie = Mp4Parser.parse(input.getChannel());
+            Mp4Track video = movie.getFirstTrack(Mp4Track.HANDLER_VIDEO);
+            Mp4Track audio = movie.getFirstTrack(Mp4Track.HANDLER_AUDIO);
+            int maxSampleSize = Math.max(video.getMaxSampleSize(), audio.getMaxSampleSize());
+            MappedSampleData data = new MappedSampleData(input.getChannel(), maxSampleSize, windowSize);
+            assertSamples(data, video, Mp4Fixture.VIDEO);
+            assertSamples(data, audio, Mp4Fixture.AUDIO);
+        }
+    }
+
+    private static void assertSamples(MappedSampleData data, Mp4Track track, int fixtureTrack) {
+        for (int sample = 0; sample < track.getSampleCount(); sample++) {
+            ByteBuffer slice = data.getSample(track.getSampleOffset(sample), track.getSampleSize(sample));
+            assertTrue(slice.isReadOnly());
+            assertEquals(0, slice.position());
+            assertEquals(track.getSampleSize(sample), slice.remaining());
+            for (int i = 0; i < slice.remaining(); i++) {
+                assertEquals(Mp4Fixture.sampleByte(fixtureTrack, sample, i), slice.get(i));
+            }
+        }
+    }
+}
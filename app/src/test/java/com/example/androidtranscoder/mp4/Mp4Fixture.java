@@ -0,0 +1,422 @@
+package com.example.androidtranscoder.mp4;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * Generates a small MP4 file in the layout MediaMuxer writes: ftyp, mdat, then moov with an AVC track with B-frames
+ * and an AAC track. Sample data is a pattern of {@link #sampleByte(int, int, int)}, so reads can be checked; video
+ * samples are two NAL units with length prefixes.
+ */
+public class Mp4Fixture {
+    public static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, 0x11, 0x22};
+    public static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    /** AAC LC, 44100 Hz, 2 channels. */
+    public static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x10};
+    public static final int WIDTH = 640;
+    public static final int HEIGHT = 360;
+    public static final int ROTATION = 90;
+    public static final String LOCATION = "+37.5090+127.0243/";
+    public static final int MOVIE_TIMESCALE = 1000;
+    public static final int MOVIE_DURATION = 200;
+
+    public static final int VIDEO = 0;
+    public static final int VIDEO_TIMESCALE = 30000;
+    public static final int VIDEO_SAMPLE_DURATION = 1000;
+    public static final int[] VIDEO_SIZES = {500, 120, 130, 480, 110, 90};
+    public static final boolean[] VIDEO_SYNC = {true, false, false, true, false, false};
+    /** I, P, B order: presented at 1000, 3000, 2000, 4000, 6000 and 5000 ticks. */
+    public static final int[] VIDEO_COMPOSITION_OFFSETS = {1000, 2000, 0, 1000, 2000, 0};
+    public static final int VIDEO_SAMPLES_PER_CHUNK = 3;
+    /** Video samples hold a NAL unit of this many bytes, then one of the rest. */
+    public static final int VIDEO_FIRST_NAL_UNIT_SIZE = 20;
+
+    public static final int AUDIO = 1;
+    public static final int AUDIO_SAMPLE_RATE = 44100;
+    public static final int AUDIO_CHANNELS = 2;
+    public static final int AUDIO_SAMPLE_DURATION = 1024;
+    public static final int[] AUDIO_SIZES = {200, 210, 190, 205};
+
+    private Mp4Fixture() {
+    }
+
+    public static byte sampleByte(int track, int sample, int index) {
+        if (track == VIDEO && isLengthPrefix(index)) {
+            int second = 4 + VIDEO_FIRST_NAL_UNIT_SIZE;
+            return index < 4 ? lengthByte(VIDEO_FIRST_NAL_UNIT_SIZE, index)
+                    : lengthByte(VIDEO_SIZES[sample] - second - 4, index - second);
+        }
+        return (byte) (track * 101 + sample * 7 + index);
+    }
+
+    /**
+     * @return true for the bytes of video samples which are 4-byte NAL unit length prefixes, as the avcC box declares.
+     */
+    public static boolean isLengthPrefix(int index) {
+        int second = 4 + VIDEO_FIRST_NAL_UNIT_SIZE;
+        return index < 4 || (index >= second && index < second + 4);
+    }
+
+    private static byte lengthByte(int length, int index) {
+        return (byte) (length >>> (8 * (3 - index)));
+    }
+
+    /**
+     * Writes the file into a temporary file, deleted on exit.
+     *
+     * @param largeOffsets true to write chunk offsets in co64 rather than stco.
+     */
+    public static File write(boolean largeOffsets) throws IOException {
+        File file = File.createTempFile("fixture", ".mp4");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(build(largeOffsets));
+        }
+        return file;
+    }
+
+    public static byte[] build(boolean largeOffsets) {
+        Boxes b = new Boxes();
+        int ftyp = b.start("ftyp");
+        b.fourCc("isom");
+        b.putInt(0);
+        b.fourCc("isom");
+        b.fourCc("mp42");
+        b.end(ftyp);
+
+        // Video chunk, audio chunk, video chunk, like an interleaving muxer.
+        int mdat = b.start("mdat");
+        long[] videoChunkOffsets = new long[VIDEO_SIZES.length / VIDEO_SAMPLES_PER_CHUNK];
+        long audioChunkOffset = 0;
+        for (int chunk = 0; chunk < videoChunkOffsets.length; chunk++) {
+            videoChunkOffsets[chunk] = b.position();
+            for (int i = 0; i < VIDEO_SAMPLES_PER_CHUNK; i++) {
+                b.putSample(VIDEO, chunk * VIDEO_SAMPLES_PER_CHUNK + i, VIDEO_SIZES);
+            }
+            if (chunk == 0) {
+                audioChunkOffset = b.position();
+                for (int i = 0; i < AUDIO_SIZES.length; i++) b.putSample(AUDIO, i, AUDIO_SIZES);
+            }
+        }
+        b.end(mdat);
+
+        int moov = b.start("moov");
+        int mvhd = b.startFull("mvhd", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(MOVIE_TIMESCALE);
+        b.putInt(MOVIE_DURATION);
+        b.putInt(0x00010000);
+        b.putShort(0x0100);
+        b.zeros(10);
+        b.matrix(0);
+        b.zeros(24);
+        b.putInt(3);
+        b.end(mvhd);
+        writeVideoTrack(b, largeOffsets, videoChunkOffsets);
+        writeAudioTrack(b, largeOffsets, audioChunkOffset);
+        int udta = b.start("udta");
+        int xyz = b.start("©xyz");
+        byte[] location = LOCATION.getBytes(StandardCharsets.UTF_8);
+        b.putShort(location.length);
+        b.putShort(0x15c7);
+        b.put(location);
+        b.end(xyz);
+        b.end(udta);
+        b.end(moov);
+        return b.toByteArray();
+    }
+
+    private static void writeVideoTrack(Boxes b, boolean largeOffsets, long[] chunkOffsets) {
+        int trak = b.start("trak");
+        writeTrackHeader(b, 1, ROTATION, WIDTH, HEIGHT);
+        int mdia = b.start("mdia");
+        writeMediaHeader(b, VIDEO_TIMESCALE, VIDEO_SIZES.length * VIDEO_SAMPLE_DURATION);
+        writeHandler(b, "vide");
+        int minf = b.start("minf");
+        int vmhd = b.startFull("vmhd", 0, 1);
+        b.zeros(8);
+        b.end(vmhd);
+        writeDataInformation(b);
+        int stbl = b.start("stbl");
+
+        int stsd = b.startFull("stsd", 0, 0);
+        b.putInt(1);
+        int avc1 = b.start("avc1");
+        b.zeros(6);
+        b.putShort(1);
+        b.zeros(16);
+        b.putShort(WIDTH);
+        b.putShort(HEIGHT);
+        b.putInt(0x00480000);
+        b.putInt(0x00480000);
+        b.putInt(0);
+        b.putShort(1);
+        b.zeros(32);
+        b.putShort(0x18);
+        b.putShort(-1);
+        int avcC = b.start("avcC");
+        b.put(new byte[]{1, SPS[1], SPS[2], SPS[3], (byte) 0xff, (byte) 0xe1});
+        b.putShort(SPS.length);
+        b.put(SPS);
+        b.put(new byte[]{1});
+        b.putShort(PPS.length);
+        b.put(PPS);
+        b.end(avcC);
+        b.end(avc1);
+        b.end(stsd);
+
+        int stts = b.startFull("stts", 0, 0);
+        b.putInt(1);
+        b.putInt(VIDEO_SIZES.length);
+        b.putInt(VIDEO_SAMPLE_DURATION);
+        b.end(stts);
+        int ctts = b.startFull("ctts", 0, 0);
+        b.putInt(VIDEO_COMPOSITION_OFFSETS.length);
+        for (int offset : VIDEO_COMPOSITION_OFFSETS) {
+            b.putInt(1);
+            b.putInt(offset);
+        }
+        b.end(ctts);
+        int stss = b.startFull("stss", 0, 0);
+        int syncCount = 0;
+        for (boolean sync : VIDEO_SYNC) if (sync) syncCount++;
+        b.putInt(syncCount);
+        for (int i = 0; i < VIDEO_SYNC.length; i++) if (VIDEO_SYNC[i]) b.putInt(i + 1);
+        b.end(stss);
+        writeChunks(b, VIDEO_SAMPLES_PER_CHUNK, VIDEO_SIZES, largeOffsets, chunkOffsets);
+        b.end(stbl);
+        b.end(minf);
+        b.end(mdia);
+        b.end(trak);
+    }
+
+    private static void writeAudioTrack(Boxes b, boolean largeOffsets, long chunkOffset) {
+        int trak = b.start("trak");
+        writeTrackHeader(b, 2, 0, 0, 0);
+        int mdia = b.start("mdia");
+        writeMediaHeader(b, AUDIO_SAMPLE_RATE, AUDIO_SIZES.length * AUDIO_SAMPLE_DURATION);
+        writeHandler(b, "soun");
+        int minf = b.start("minf");
+        int smhd = b.startFull("smhd", 0, 0);
+        b.putInt(0);
+        b.end(smhd);
+        writeDataInformation(b);
+        int stbl = b.start("stbl");
+
+        int stsd = b.startFull("stsd", 0, 0);
+        b.putInt(1);
+        int mp4a = b.start("mp4a");
+        b.zeros(6);
+        b.putShort(1);
+        b.zeros(8);
+        b.putShort(AUDIO_CHANNELS);
+        b.putShort(16);
+        b.zeros(4);
+        b.putInt(AUDIO_SAMPLE_RATE << 16);
+        int esds = b.startFull("esds", 0, 0);
+        // Descriptor sizes in the 4-byte form many muxers write.
+        int decoderSpecificInfoSize = 5 + AUDIO_SPECIFIC_CONFIG.length;
+        int decoderConfigSize = 5 + 13 + decoderSpecificInfoSize;
+        b.descriptor(3, 3 + decoderConfigSize + 5 + 1);
+        b.putShort(0);
+        b.put(new byte[]{0});
+        b.descriptor(4, 13 + decoderSpecificInfoSize);
+        b.put(new byte[]{0x40, 0x15, 0, 0, 0});
+        b.putInt(128000);
+        b.putInt(128000);
+        b.descriptor(5, AUDIO_SPECIFIC_CONFIG.length);
+        b.put(AUDIO_SPECIFIC_CONFIG);
+        b.descriptor(6, 1);
+        b.put(new byte[]{2});
+        b.end(esds);
+        b.end(mp4a);
+        b.end(stsd);
+
+        int stts = b.startFull("stts", 0, 0);
+        b.putInt(1);
+        b.putInt(AUDIO_SIZES.length);
+        b.putInt(AUDIO_SAMPLE_DURATION);
+        b.end(stts);
+        writeChunks(b, AUDIO_SIZES.length, AUDIO_SIZES, largeOffsets, new long[]{chunkOffset});
+        b.end(stbl);
+        b.end(minf);
+        b.end(mdia);
+        b.end(trak);
+    }
+
+    private static void writeTrackHeader(Boxes b, int trackId, int rotation, int width, int height) {
+        int tkhd = b.startFull("tkhd", 0, 3);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(trackId);
+        b.putInt(0);
+        b.putInt(MOVIE_DURATION);
+        b.zeros(8);
+        b.putShort(0);
+        b.putShort(0);
+        b.putShort(width == 0 ? 0x0100 : 0);
+        b.putShort(0);
+        b.matrix(rotation);
+        b.putInt(width << 16);
+        b.putInt(height << 16);
+        b.end(tkhd);
+    }
+
+    private static void writeMediaHeader(Boxes b, int timescale, int duration) {
+        int mdhd = b.startFull("mdhd", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(timescale);
+        b.putInt(duration);
+        b.putShort(0x55c4);
+        b.putShort(0);
+        b.end(mdhd);
+    }
+
+    private static void writeHandler(Boxes b, String handlerType) {
+        int hdlr = b.startFull("hdlr", 0, 0);
+        b.putInt(0);
+        b.fourCc(handlerType);
+        b.zeros(12);
+        b.put(new byte[]{0});
+        b.end(hdlr);
+    }
+
+    private static void writeDataInformation(Boxes b) {
+        int dinf = b.start("dinf");
+        int dref = b.startFull("dref", 0, 0);
+        b.putInt(1);
+        b.end(b.startFull("url ", 0, 1));
+        b.end(dref);
+        b.end(dinf);
+    }
+
+    private static void writeChunks(Boxes b, int samplesPerChunk, int[] sizes, boolean largeOffsets, long[] chunkOffsets) {
+        int stsc = b.startFull("stsc", 0, 0);
+        b.putInt(1);
+        b.putInt(1);
+        b.putInt(samplesPerChunk);
+        b.putInt(1);
+        b.end(stsc);
+        int stsz = b.startFull("stsz", 0, 0);
+        b.putInt(0);
+        b.putInt(sizes.length);
+        for (int size : sizes) b.putInt(size);
+        b.end(stsz);
+        int chunkOffsetBox = b.startFull(largeOffsets ? "co64" : "stco", 0, 0);
+        b.putInt(chunkOffsets.length);
+        for (long offset : chunkOffsets) {
+            if (largeOffsets) {
+                b.putLong(offset);
+            } else {
+                b.putInt((int) offset);
+            }
+        }
+        b.end(chunkOffsetBox);
+    }
+
+    /**
+     * Big-endian box writer; sizes are filled in by {@link #end(int)}.
+     */
+    private static class Boxes {
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(64 * 1024);
+        private final Deque<Integer> mOpen = new ArrayDeque<>();
+
+        int start(String type) {
+            int position = mBuffer.position();
+            mBuffer.putInt(0);
+            fourCc(type);
+            mOpen.push(position);
+            return position;
+        }
+
+        int startFull(String type, int version, int flags) {
+            int position = start(type);
+            mBuffer.putInt((version << 24) | flags);
+            return position;
+        }
+
+        void end(int position) {
+            if (mOpen.pop() != position) throw new IllegalStateException("Boxes ended out of order.");
+            mBuffer.putInt(position, mBuffer.position() - position);
+        }
+
+        long position() {
+            return mBuffer.position();
+        }
+
+        void fourCc(String type) {
+            for (int i = 0; i < 4; i++) mBuffer.put((byte) type.charAt(i));
+        }
+
+        void putInt(int value) {
+            mBuffer.putInt(value);
+        }
+
+        void putShort(int value) {
+            mBuffer.putShort((short) value);
+        }
+
+        void putLong(long value) {
+            mBuffer.putLong(value);
+        }
+
+        void put(byte[] bytes) {
+            mBuffer.put(bytes);
+        }
+
+        void zeros(int count) {
+            for (int i = 0; i < count; i++) mBuffer.put((byte) 0);
+        }
+
+        void putSample(int track, int sample, int[] sizes) {
+            for (int i = 0; i < sizes[sample]; i++) mBuffer.put(sampleByte(track, sample, i));
+        }
+
+        void descriptor(int tag, int size) {
+            mBuffer.put(new byte[]{(byte) tag, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) size});
+        }
+
+        /**
+         * Matrix of tkhd and mvhd for a clockwise rotation, as MediaMuxer writes it.
+         */
+        void matrix(int rotation) {
+            int one = 0x10000;
+            int[] ab;
+            switch (rotation) {
+                case 90:
+                    ab = new int[]{0, one, -one, 0};
+                    break;
+                case 180:
+                    ab = new int[]{-one, 0, 0, -one};
+                    break;
+                case 270:
+                    ab = new int[]{0, -one, one, 0};
+                    break;
+                default:
+                    ab = new int[]{one, 0, 0, one};
+                    break;
+            }
+            mBuffer.putInt(ab[0]);
+            mBuffer.putInt(ab[1]);
+            mBuffer.putInt(0);
+            mBuffer.putInt(ab[2]);
+            mBuffer.putInt(ab[3]);
+            mBuffer.putInt(0);
+            mBuffer.putInt(0);
+            mBuffer.putInt(0);
+            mBuffer.putInt(0x40000000);
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuffer.array(), mBuffer.position());
+        }
+    }
+}
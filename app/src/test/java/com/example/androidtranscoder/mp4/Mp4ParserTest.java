@@ -0,0 +1,162 @@
+package com.example.androidtranscoder.mp4;
+
+import com.example.androidtranscoder.exception.UnsupportedContainerException;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class Mp4ParserTest {
+    @Test
+    public void flattensSampleTables() throws IOException {
+        for (boolean largeOffsets : new boolean[]{false, true}) {
+            File file = Mp4Fixture.write(largeOffsets);
+            try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+                FileChannel channel = input.getChannel();
+                Mp4Movie movie = Mp4Parser.parse(channel);
+                Mp4Track video = movie.getFirstTrack(Mp4Track.HANDLER_VIDEO);
+                assertEquals(1, video.getTrackId());
+                assertEquals(Mp4Fixture.VIDEO_TIMESCALE, video.getTimescale());
+                assertEquals(Mp4Fixture.VIDEO_SIZES.length, video.getSampleCount());
+                assertEquals(2, video.getChunkCount());
+                assertEquals(500, video.getMaxSampleSize());
+                for (int i = 0; i < video.getSampleCount(); i++) {
+                    assertEquals(Mp4Fixture.VIDEO_SIZES[i], video.getSampleSize(i));
+                    assertEquals(i * Mp4Fixture.VIDEO_SAMPLE_DURATION, video.getDecodeTime(i));
+                    assertEquals(i * Mp4Fixture.VIDEO_SAMPLE_DURATION + Mp4Fixture.VIDEO_COMPOSITION_OFFSETS[i],
+                            video.getPresentationTime(i));
+                    assertEquals(Mp4Fixture.VIDEO_SYNC[i], video.isSyncSample(i));
+                    assertSampleAt(channel, video, i, Mp4Fixture.VIDEO);
+                }
+
+                Mp4Track audio = movie.getFirstTrack(Mp4Track.HANDLER_AUDIO);
+                assertEquals(Mp4Fixture.AUDIO_SAMPLE_RATE, audio.getTimescale());
+                assertEquals(Mp4Fixture.AUDIO_SIZES.length, audio.getSampleCount());
+                assertEquals(1, audio.getChunkCount());
+                for (int i = 0; i < audio.getSampleCount(); i++) {
+                    assertEquals(i * Mp4Fixture.AUDIO_SAMPLE_DURATION, audio.getPresentationTime(i));
+                    // Without stss, every sample is a sync sample.
+                    assertTrue(audio.isSyncSample(i));
+                    assertSampleAt(channel, audio, i, Mp4Fixture.AUDIO);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readsMovieMetadata() throws IOException {
+        Mp4Movie movie = parse(Mp4Fixture.write(false));
+        assertEquals(Mp4Fixture.MOVIE_TIMESCALE, movie.getTimescale());
+        assertEquals(Mp4Fixture.MOVIE_DURATION * 1000L, movie.getDurationUs());
+        assertEquals(Mp4Fixture.LOCATION, movie.getLocation());
+        assertEquals(Mp4Fixture.ROTATION, movie.getFirstTrack(Mp4Track.HANDLER_VIDEO).getRotation());
+        assertEquals(0, movie.getFirstTrack(Mp4Track.HANDLER_AUDIO).getRotation());
+    }
+
+    @Test
+    public void describesAvcAndAac() throws IOException {
+        Mp4Movie movie = parse(Mp4Fixture.write(false));
+        Mp4SampleDescription video = Mp4SampleDescription.parse(movie.getFirstTrack(Mp4Track.HANDLER_VIDEO));
+        assertEquals("video/avc", video.getMime());
+        assertEquals(Mp4Fixture.WIDTH, video.getWidth());
+        assertEquals(Mp4Fixture.HEIGHT, video.getHeight());
+        assertEquals(2, video.getCodecSpecificDataCount());
+        assertEquals(4, video.getNalUnitLengthSize());
+        assertArrayEquals(annexB(Mp4Fixture.SPS), toArray(video.getCodecSpecificData(0)));
+        assertArrayEquals(annexB(Mp4Fixture.PPS), toArray(video.getCodecSpecificData(1)));
+
+        Mp4SampleDescription audio = Mp4SampleDescription.parse(movie.getFirstTrack(Mp4Track.HANDLER_AUDIO));
+        assertEquals("audio/mp4a-latm", audio.getMime());
+        assertEquals(Mp4Fixture.AUDIO_SAMPLE_RATE, audio.getSampleRate());
+        assertEquals(Mp4Fixture.AUDIO_CHANNELS, audio.getChannelCount());
+        assertEquals(1, audio.getCodecSpecificDataCount());
+        assertEquals(0, audio.getNalUnitLengthSize());
+        assertArrayEquals(Mp4Fixture.AUDIO_SPECIFIC_CONFIG, toArray(audio.getCodecSpecificData(0)));
+    }
+
+    @Test
+    public void findsSyncSamplesByPresentationTime() throws IOException {
+        Mp4Track video = parse(Mp4Fixture.write(false)).getFirstTrack(Mp4Track.HANDLER_VIDEO);
+        // Sync samples 0 and 3 are presented at 1000 and 4000.
+        assertEquals(-1, video.findSyncSample(999, true));
+        assertEquals(0, video.findSyncSample(1000, true));
+        assertEquals(0, video.findSyncSample(3999, true));
+        assertEquals(3, video.findSyncSample(4000, true));
+        assertEquals(3, video.findSyncSample(100000, true));
+        assertEquals(0, video.findSyncSample(0, false));
+        assertEquals(3, video.findSyncSample(1001, false));
+        assertEquals(-1, video.findSyncSample(4001, false));
+    }
+
+    @Test(expected = UnsupportedContainerException.class)
+    public void rejectsFileWithoutMovie() throws IOException {
+        File file = File.createTempFile("nomoov", ".mp4");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[]{0, 0, 0, 8, 'f', 'r', 'e', 'e', 0, 0, 0, 8, 'm', 'd', 'a', 't'});
+        }
+        parse(file);
+    }
+
+    @Test
+    public void ignoresUnknownCodec() throws IOException {
+        byte[] bytes = Mp4Fixture.build(false);
+        replaceFourCc(bytes, "avc1", "vp09");
+        File file = File.createTempFile("vp9", ".mp4");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        Mp4Track video = parse(file).getFirstTrack(Mp4Track.HANDLER_VIDEO);
+        assertEquals(Mp4Fixture.VIDEO_SIZES.length, video.getSampleCount());
+        assertNull(Mp4SampleDescription.parse(video));
+    }
+
+    private static Mp4Movie parse(File file) throws IOException {
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            return Mp4Parser.parse(input.getChannel());
+        }
+    }
+
+    private static void assertSampleAt(FileChannel channel, Mp4Track track, int sample, int fixtureTrack)
+            throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(track.getSampleSize(sample));
+        channel.read(data, track.getSampleOffset(sample));
+        for (int i = 0; i < data.capacity(); i++) {
+            assertEquals(Mp4Fixture.sampleByte(fixtureTrack, sample, i), data.get(i));
+        }
+    }
+
+    private static void replaceFourCc(byte[] bytes, String from, String to) {
+        for (int i = 0; i + 4 <= bytes.length; i++) {
+            if (new String(bytes, i, 4, StandardCharsets.ISO_8859_1).equals(from)) {
+                for (int j = 0; j < 4; j++) bytes[i + j] = (byte) to.charAt(j);
+                return;
+            }
+        }
+    }
+
+    private static byte[] annexB(byte[] nalUnit) {
+        byte[] result = new byte[nalUnit.length + 4];
+        result[3] = 1;
+        System.arraycopy(nalUnit, 0, result, 4, nalUnit.length);
+        return result;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] result = new byte[buffer.remaining()];
+        buffer.duplicate().get(result);
+        return result;
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.androidtranscoder.muxer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FragmentedMp4WriterTest {
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1f, 0x11, 0x22};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+
+    private ByteArrayOutputStream mOutput;
+
+    @Before
+    public void setUp() {
+        mOutput = new ByteArrayOutputStream();
+    }
+
+    @Test
+    public void writesAvcConfigurationFromAnnexBCodecSpecificData() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(mOutput));
+        writer.addTrack(FragmentedMp4Writer.TrackFormat.avc(320, 240, annexB(SPS), annexB(PPS)));
+        writer.start();
+
+        ByteBuffer file = ByteBuffer.wrap(mOutput.toByteArray());
+        assertEquals("ftyp", type(file, 0));
+        Box avcC = find(file, "moov", "trak", "mdia", "minf", "stbl", "stsd", "avc1", "avcC");
+        assertNotNull(avcC);
+        byte[] expected = concat(new byte[]{1, 0x42, (byte) 0xc0, 0x1f, (byte) 0xff, (byte) 0xe1, 0, 6}, SPS,
+                new byte[]{1, 0, 4}, PPS);
+        assertArrayEquals(expected, Arrays.copyOfRange(file.array(), avcC.mOffset + 8, avcC.mOffset + avcC.mSize));
+        assertNotNull(find(file, "moov", "mvex", "trex"));
+        assertNull(find(file, "moof"));
+    }
+
+    @Test
+    public void writesFragmentByteForByte() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(mOutput));
+        writer.addTrack(FragmentedMp4Writer.TrackFormat.aac(44100, 2, null, 128000));
+        writer.start();
+        int headerSize = mOutput.size();
+        writer.writeSample(0, ByteBuffer.wrap(new byte[]{0x11, 0x22}), 0, 0);
+        writer.writeSample(0, ByteBuffer.wrap(new byte[]{0x33, 0x44}), 23220, 0);
+        writer.finish();
+
+        byte[] expected = concat(
+                ints(112), ascii("moof"),
+                ints(16), ascii("mfhd"), ints(0, 1),
+                ints(88), ascii("traf"),
+                ints(16), ascii("tfhd"), ints(0x00020000, 1),
+                ints(20), ascii("tfdt"), ints(0x01000000, 0, 0),
+                ints(44), ascii("trun"), ints(0x01000701, 2, 120),
+                ints(1024, 2, 0x02000000),
+                ints(1024, 2, 0x02000000),
+                ints(12), ascii("mdat"), new byte[]{0x11, 0x22, 0x33, 0x44});
+        byte[] file = mOutput.toByteArray();
+        assertArrayEquals(expected, Arrays.copyOfRange(file, headerSize, file.length));
+    }
+
+    @Test
+    public void cutsFragmentsAtKeyFramesAndConvertsToLengthPrefixedNalUnits() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(mOutput), 1_000_000);
+        int video = writer.addTrack(FragmentedMp4Writer.TrackFormat.avc(320, 240, SPS, PPS));
+        int audio = writer.addTrack(FragmentedMp4Writer.TrackFormat.aac(48000, 1, null, 0));
+        writer.start();
+        for (int frame = 0; frame < 90; frame++) {
+            long timeUs = frame * 1_000_000L / 30;
+            boolean keyFrame = frame % 15 == 0;
+            byte[] sample = annexB(new byte[]{(byte) (keyFrame ? 0x65 : 0x41), (byte) (frame + 1)});
+            writer.writeSample(video, ByteBuffer.wrap(sample), timeUs, keyFrame ? FragmentedMp4Writer.FLAG_SYNC : 0);
+            writer.writeSample(audio, ByteBuffer.wrap(new byte[]{(byte) frame}), timeUs, 0);
+        }
+        writer.finish();
+        assertEquals(3, writer.getFragmentCount());
+
+        ByteBuffer file = ByteBuffer.wrap(mOutput.toByteArray());
+        Box moof = find(file, "moof");
+        Box trun = find(file, moof, "traf", "trun");
+        assertEquals(30, file.getInt(trun.mOffset + 12));
+        int dataOffset = file.getInt(trun.mOffset + 16);
+        assertEquals(3000, file.getInt(trun.mOffset + 20));
+        assertEquals(6, file.getInt(trun.mOffset + 24));
+        assertEquals(0x02000000, file.getInt(trun.mOffset + 28));
+        assertEquals(0x01010000, file.getInt(trun.mOffset + 40));
+        byte[] firstSample = Arrays.copyOfRange(file.array(), moof.mOffset + dataOffset, moof.mOffset + dataOffset + 6);
+        assertArrayEquals(new byte[]{0, 0, 0, 2, 0x65, 1}, firstSample);
+    }
+
+    @Test
+    public void writesCompositionOffsetsForReorderedFrames() throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(mOutput));
+        int video = writer.addTrack(FragmentedMp4Writer.TrackFormat.avc(320, 240, SPS, PPS));
+        writer.start();
+        long[] presentationOrder = {0, 3, 1, 2};
+        for (long index : presentationOrder) {
+            writer.writeSample(video, ByteBuffer.wrap(annexB(new byte[]{0x41})), index * 100_000,
+                    index == 0 ? FragmentedMp4Writer.FLAG_SYNC : 0);
+        }
+        writer.finish();
+
+        ByteBuffer file = ByteBuffer.wrap(mOutput.toByteArray());
+        Box trun = find(file, find(file, "moof"), "traf", "trun");
+        assertEquals(0x01000f01, file.getInt(trun.mOffset + 8));
+        int[] expectedOffsets = {0, 18000, -9000, -9000};
+        for (int i = 0; i < 4; i++) {
+            assertEquals(9000, file.getInt(trun.mOffset + 20 + i * 16));
+            assertEquals(expectedOffsets[i], file.getInt(trun.mOffset + 32 + i * 16));
+        }
+    }
+
+    private static Box find(ByteBuffer file, String... path) {
+        return find(file, new Box(-8, file.limit() + 8), path);
+    }
+
+    private static Box find(ByteBuffer file, Box parent, String... path) {
+        Box box = parent;
+        for (String type : path) {
+            box = findChild(file, box, type);
+            if (box == null) return null;
+        }
+        return box;
+    }
+
+    private static Box findChild(ByteBuffer file, Box parent, String type) {
+        int offset = parent.mOffset + 8 + headerExtra(type(file, Math.max(parent.mOffset, 0)), parent.mOffset);
+        int end = parent.mOffset + parent.mSize;
+        while (offset + 8 <= end) {
+            int size = file.getInt(offset);
+            if (type(file, offset).equals(type)) return new Box(offset, size);
+            offset += size;
+        }
+        return null;
+    }
+
+    /**
+     * Bytes between the box header and its first child, for container boxes with fields.
+     */
+    private static int headerExtra(String type, int offset) {
+        if (offset < 0) return 0;
+        switch (type) {
+            case "stsd":
+                return 8;
+            case "avc1":
+                return 78;
+            default:
+                return 0;
+        }
+    }
+
+    private static String type(ByteBuffer file, int offset) {
+        return new String(file.array(), offset + 4, 4);
+    }
+
+    private static byte[] annexB(byte[] nalUnit) {
+        return concat(new byte[]{0, 0, 0, 1}, nalUnit);
+    }
+
+    private static byte[] ints(int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 4);
+        for (int value : values) buffer.putInt(value);
+        return buffer.array();
+    }
+
+    private static byte[] ascii(String string) {
+        return string.getBytes();
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        List<Byte> bytes = new ArrayList<>();
+        for (byte[] array : arrays) for (byte b : array) bytes.add(b);
+        byte[] result = new byte[bytes.size()];
+        for (int i = 0; i < result.length; i++) result[i] = bytes.get(i);
+        return result;
+    }
+
+    private static class Box {
+        private final int mOffset;
+        private final int mSize;
+
+        private Box(int offset, int size) {
+            mOffset = offset;
+            mSize = size;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.androidtranscoder.muxer;
+
+import com.example.androidtranscoder.mp4.Mp4Fixture;
+import com.example.androidtranscoder.mp4.Mp4Movie;
+import com.example.androidtranscoder.mp4.Mp4Parser;
+import com.example.androidtranscoder.mp4.Mp4Track;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class Mp4RemuxerTest {
+    @Test
+    public void trimStartsAtPreviousSyncSample() throws IOException, InterruptedException {
+        // Between the presentation of samples 5 and 4, which are not sync samples; sample 3 is.
+        long startTimeUs = 180_000;
+        ByteBuffer file = remux(Mp4Fixture.write(false), startTimeUs, -1, 0xffffffffL);
+        Mp4Movie movie = parse(file);
+
+        Mp4Track video = movie.getFirstTrack(Mp4Track.HANDLER_VIDEO);
+        assertEquals(3, video.getSampleCount());
+        for (int i = 0; i < video.getSampleCount(); i++) {
+            int input = 3 + i;
+            assertEquals(Mp4Fixture.VIDEO_SYNC[input], video.isSyncSample(i));
+            assertEquals(i * Mp4Fixture.VIDEO_SAMPLE_DURATION, video.getDecodeTime(i));
+            assertEquals(i * Mp4Fixture.VIDEO_SAMPLE_DURATION + Mp4Fixture.VIDEO_COMPOSITION_OFFSETS[input],
+                    video.getPresentationTime(i));
+            assertSample(file, video, i, Mp4Fixture.VIDEO, input);
+        }
+        // Audio has only sync samples and starts with the last sample overlapping sample 3 of the video.
+        Mp4Track audio = movie.getFirstTrack(Mp4Track.HANDLER_AUDIO);
+        assertEquals(1, audio.getSampleCount());
+        assertSample(file, audio, 0, Mp4Fixture.AUDIO, 3);
+
+        List<Integer> edits = findBoxes(file, "moov", "trak", "edts", "elst");
+        assertEquals(2, edits.size());
+        // Video starts 133333 us in, audio at 69659 us: an empty edit delays the video by the difference, and the
+        // media time skips the composition offset of the first sample.
+        long[][] videoEdits = readEdits(file, edits.get(0));
+        assertEquals(2, videoEdits.length);
+        assertEquals(63, videoEdits[0][0]);
+        assertEquals(-1, videoEdits[0][1]);
+        assertEquals(3 * Mp4Fixture.VIDEO_SAMPLE_DURATION * Mp4Fixture.MOVIE_TIMESCALE / Mp4Fixture.VIDEO_TIMESCALE,
+                videoEdits[1][0]);
+        assertEquals(Mp4Fixture.VIDEO_COMPOSITION_OFFSETS[3], videoEdits[1][1]);
+        long[][] audioEdits = readEdits(file, edits.get(1));
+        assertEquals(1, audioEdits.length);
+        assertEquals(0, audioEdits[0][1]);
+
+        assertFalse(findBoxes(file, "moov", "trak", "mdia", "minf", "stbl", "stco").isEmpty());
+        assertEquals(8, findMediaData(file)[1]);
+    }
+
+    @Test
+    public void switchesToLargeOffsetsPastLimit() throws IOException, InterruptedException {
+        ByteBuffer file = remux(Mp4Fixture.write(false), 0, -1, 1000);
+        assertEquals(2, findBoxes(file, "moov", "trak", "mdia", "minf", "stbl", "co64").size());
+        assertEquals(0, findBoxes(file, "moov", "trak", "mdia", "minf", "stbl", "stco").size());
+        long[] mdat = findMediaData(file);
+        assertEquals(16, mdat[1]);
+        assertEquals(file.limit() - mdat[0], mdat[2]);
+
+        Mp4Movie movie = parse(file);
+        Mp4Track video = movie.getFirstTrack(Mp4Track.HANDLER_VIDEO);
+        assertEquals(Mp4Fixture.VIDEO_SIZES.length, video.getSampleCount());
+        for (int i = 0; i < video.getSampleCount(); i++) assertSample(file, video, i, Mp4Fixture.VIDEO, i);
+        Mp4Track audio = movie.getFirstTrack(Mp4Track.HANDLER_AUDIO);
+        assertEquals(Mp4Fixture.AUDIO_SIZES.length, audio.getSampleCount());
+        for (int i = 0; i < audio.getSampleCount(); i++) assertSample(file, audio, i, Mp4Fixture.AUDIO, i);
+    }
+
+    private static ByteBuffer remux(File input, long startTimeUs, long endTimeUs, long maxUint32Offset)
+            throws IOException, InterruptedException {
+        File output = File.createTempFile("remuxed", ".mp4");
+        output.deleteOnExit();
+        try (RandomAccessFile in = new RandomAccessFile(input, "r");
+             RandomAccessFile out = new RandomAccessFile(output, "rw")) {
+            Mp4Movie movie = Mp4Parser.parse(in.getChannel());
+            List<Mp4Track> tracks = Arrays.asList(movie.getFirstTrack(Mp4Track.HANDLER_VIDEO),
+                    movie.getFirstTrack(Mp4Track.HANDLER_AUDIO));
+            new Mp4Remuxer(in.getChannel(), movie, tracks, maxUint32Offset).remux(out.getChannel(), startTimeUs,
+                    endTimeUs);
+        }
+        return ByteBuffer.wrap(Files.readAllBytes(output.toPath()));
+    }
+
+    private static Mp4Movie parse(ByteBuffer file) throws IOException {
+        File copy = File.createTempFile("remuxed", ".mp4");
+        copy.deleteOnExit();
+        Files.write(copy.toPath(), file.array());
+        try (RandomAccessFile input = new RandomAccessFile(copy, "r")) {
+            return Mp4Parser.parse(input.getChannel());
+        }
+    }
+
+    private static void assertSample(ByteBuffer file, Mp4Track track, int sample, int fixtureTrack,
+                                     int fixtureSample) {
+        long offset = track.getSampleOffset(sample);
+        int size = track.getSampleSize(sample);
+        for (int i = 0; i < size; i++) {
+            if (file.get((int) offset + i) != Mp4Fixture.sampleByte(fixtureTrack, fixtureSample, i)) {
+                throw new AssertionError("Sample " + sample + " differs at " + i);
+            }
+        }
+    }
+
+    /**
+     * @return Entries of the elst box at position as {segment_duration, media_time}.
+     */
+    private static long[][] readEdits(ByteBuffer file, int position) {
+        boolean largeTimes = file.get(position + 8) == 1;
+        int count = file.getInt(position + 12);
+        long[][] edits = new long[count][];
+        int entry = position + 16;
+        for (int i = 0; i < count; i++) {
+            if (largeTimes) {
+                edits[i] = new long[]{file.getLong(entry), file.getLong(entry + 8)};
+                entry += 20;
+            } else {
+                edits[i] = new long[]{file.getInt(entry) & 0xffffffffL, file.getInt(entry + 4)};
+                entry += 12;
+            }
+        }
+        return edits;
+    }
+
+    /**
+     * @return Offset, header size and size of the top-level mdat box.
+     */
+    private static long[] findMediaData(ByteBuffer file) {
+        int position = 0;
+        while (position < file.limit()) {
+            long size = file.getInt(position) & 0xffffffffL;
+            int headerSize = 8;
+            if (size == 1) {
+                size = file.getLong(position + 8);
+                headerSize = 16;
+            }
+            if (type(file, position).equals("mdat")) return new long[]{position, headerSize, size};
+            position += (int) size;
+        }
+        throw new AssertionError("No mdat.");
+    }
+
+    /**
+     * @return Positions of boxes at the path, in file order; container boxes only have 32-bit sizes here.
+     */
+    private static List<Integer> findBoxes(ByteBuffer file, String... path) {
+        List<Integer> found = new ArrayList<>();
+        findBoxes(file, 0, file.limit(), path, 0, found);
+        return found;
+    }
+
+    private static void findBoxes(ByteBuffer file, int start, int end, String[] path, int depth, List<Integer> found) {
+        int position = start;
+        while (position + 8 <= end) {
+            int size = file.getInt(position);
+            if (size == 1) {
+                // Only mdat is that large here, which holds no boxes.
+                position += (int) file.getLong(position + 8);
+                continue;
+            }
+            if (type(file, position).equals(path[depth])) {
+                if (depth == path.length - 1) {
+                    found.add(position);
+                } else {
+                    findBoxes(file, position + 8, position + size, path, depth + 1, found);
+                }
+            }
+            position += size;
+        }
+    }
+
+    private static String type(ByteBuffer file, int position) {
+        char[] type = new char[4];
+        for (int i = 0; i < 4; i++) type[i] = (char) (file.get(position + 4 + i) & 0xff);
+        return new String(type);
+    }
+}
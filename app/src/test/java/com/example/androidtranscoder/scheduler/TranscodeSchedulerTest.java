@@ -0,0 +1,223 @@
+package com.example.androidtranscoder.scheduler;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TranscodeSchedulerTest {
+    private static final long TIMEOUT_S = 5;
+
+    @Test
+    public void startsWaitingJobsByPriorityThenSubmissionOrder() throws Exception {
+        TranscodeScheduler scheduler = new TranscodeScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Boolean> blocker = scheduler.submit(() -> release.await(TIMEOUT_S, TimeUnit.SECONDS),
+                TranscodeScheduler.PRIORITY_NORMAL,
+                TranscodeScheduler.Preemption.NONE, null);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> futures = new ArrayList<>();
+        futures.add(submitRecording(scheduler, order, "low", TranscodeScheduler.PRIORITY_LOW));
+        futures.add(submitRecording(scheduler, order, "normal1", TranscodeScheduler.PRIORITY_NORMAL));
+        futures.add(submitRecording(scheduler, order, "high", TranscodeScheduler.PRIORITY_HIGH));
+        futures.add(submitRecording(scheduler, order, "normal2", TranscodeScheduler.PRIORITY_NORMAL));
+
+        release.countDown();
+        blocker.get(TIMEOUT_S, TimeUnit.SECONDS);
+        for (Future<?> future : futures) future.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("high", "normal1", "normal2", "low"), order);
+    }
+
+    @Test
+    public void runsWaitingJobsOnBoundedWorkers() throws Exception {
+        TranscodeScheduler scheduler = new TranscodeScheduler(2);
+        Set<Thread> workers = Collections.synchronizedSet(new HashSet<>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(scheduler.submit(() -> {
+                workers.add(Thread.currentThread());
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                Thread.sleep(1);
+                running.decrementAndGet();
+                return null;
+            }, TranscodeScheduler.PRIORITY_NORMAL, TranscodeScheduler.Preemption.NONE, null));
+        }
+        for (Future<?> future : futures) future.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertTrue(maxRunning.get() <= 2);
+        assertTrue("Workers: " + workers.size(), workers.size() <= 2);
+    }
+
+    @Test
+    public void requeuedJobRunsAgainAfterPreemptingJob() throws Exception {
+        TranscodeScheduler scheduler = new TranscodeScheduler(1);
+        CountDownLatch lowStarted = new CountDownLatch(1);
+        AtomicInteger lowAttempts = new AtomicInteger();
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        RecordingCallback lowCallback = new RecordingCallback();
+        Future<String> low = scheduler.submit(() -> {
+            if (lowAttempts.incrementAndGet() == 1) {
+                lowStarted.countDown();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(TIMEOUT_S * 2));
+            }
+            order.add("low");
+            return "done";
+        }, TranscodeScheduler.PRIORITY_LOW, TranscodeScheduler.Preemption.NONE, lowCallback);
+        assertTrue(lowStarted.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        Future<?> high = scheduler.submit(() -> order.add("high"), TranscodeScheduler.PRIORITY_HIGH,
+                TranscodeScheduler.Preemption.REQUEUE, null);
+        high.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertEquals("done", low.get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(2, lowAttempts.get());
+        assertEquals(Arrays.asList("high", "low"), order);
+        assertTrue(lowCallback.await());
+        assertEquals(1, lowCallback.mCalls.get());
+        assertFalse(lowCallback.mCanceled);
+    }
+
+    @Test
+    public void preemptedJobDispatchedButNotStartedRunsOnce() throws Exception {
+        TranscodeScheduler scheduler = new TranscodeScheduler(1);
+        CountDownLatch firstFinishing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        // The callback runs on the only worker after the slot went to the next job, whose run is still queued.
+        Future<?> first = scheduler.submit(() -> null, TranscodeScheduler.PRIORITY_NORMAL,
+                TranscodeScheduler.Preemption.NONE, (exception, canceled) -> {
+                    firstFinishing.countDown();
+                    try {
+                        release.await(TIMEOUT_S, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Future<?> low = submitRecording(scheduler, order, "low", TranscodeScheduler.PRIORITY_LOW);
+        assertTrue(firstFinishing.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        Future<?> high = scheduler.submit(() -> order.add("high"), TranscodeScheduler.PRIORITY_HIGH,
+                TranscodeScheduler.Preemption.REQUEUE, null);
+        release.countDown();
+        first.get(TIMEOUT_S, TimeUnit.SECONDS);
+        high.get(TIMEOUT_S, TimeUnit.SECONDS);
+        low.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("high", "low"), order);
+    }
+
+    @Test
+    public void canceledJobMakesRoomForPreemptingJob() throws Exception {
+        TranscodeScheduler scheduler = new TranscodeScheduler(1);
+        CountDownLatch lowStarted = new CountDownLatch(1);
+        RecordingCallback lowCallback = new RecordingCallback();
+        Future<?> low = scheduler.submit(() -> {
+            lowStarted.countDown();
+            Thread.sleep(TimeUnit.SECONDS.toMillis(TIMEOUT_S * 2));
+            return null;
+        }, TranscodeScheduler.PRIORITY_LOW, TranscodeScheduler.Preemption.NONE, lowCallback);
+        assertTrue(lowStarted.await(TIMEOUT_S, TimeUnit.SECONDS));
+
+        Future<String> high = scheduler.submit(() -> "high", TranscodeScheduler.PRIORITY_HIGH,
+                TranscodeScheduler.Preemption.CANCEL, null);
+        assertEquals("high", high.get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertTrue(low.isCancelled());
+        assertTrue(lowCallback.await());
+        assertTrue(lowCallback.mCanceled);
+    }
+
+    @Test
+    public void doesNotPreemptJobsOfSamePriority() throws Exception {
+        TranscodeScheduler scheduler = new TranscodeScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        Future<?> first = scheduler.submit(() -> {
+            started.countDown();
+            release.await();
+            return null;
+        }, TranscodeScheduler.PRIORITY_NORMAL, TranscodeScheduler.Preemption.NONE, null);
+        assertTrue(started.await(TIMEOUT_S, TimeUnit.SECONDS));
+        Future<?> second = scheduler.submit(() -> null, TranscodeScheduler.PRIORITY_NORMAL,
+                TranscodeScheduler.Preemption.CANCEL, null);
+        assertFalse(first.isCancelled());
+        assertFalse(second.isDone());
+        release.countDown();
+        second.get(TIMEOUT_S, TimeUnit.SECONDS);
+        assertFalse(first.isCancelled());
+    }
+
+    @Test
+    public void cancelWaitingJobsLeavesRunningJob() throws Exception {
+        TranscodeScheduler scheduler = new TranscodeScheduler(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        Future<String> running = scheduler.submit(() -> {
+            started.countDown();
+            release.await();
+            return "running";
+        }, TranscodeScheduler.PRIORITY_NORMAL, TranscodeScheduler.Preemption.NONE, null);
+        assertTrue(started.await(TIMEOUT_S, TimeUnit.SECONDS));
+        AtomicInteger ran = new AtomicInteger();
+        List<RecordingCallback> callbacks = new ArrayList<>();
+        List<Future<?>> waiting = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            RecordingCallback callback = new RecordingCallback();
+            callbacks.add(callback);
+            waiting.add(scheduler.submit(ran::incrementAndGet, TranscodeScheduler.PRIORITY_HIGH,
+                    TranscodeScheduler.Preemption.NONE, callback));
+        }
+
+        assertEquals(3, scheduler.cancelWaitingJobs());
+        for (RecordingCallback callback : callbacks) {
+            assertTrue(callback.await());
+            assertTrue(callback.mCanceled);
+        }
+        for (Future<?> future : waiting) {
+            try {
+                future.get(TIMEOUT_S, TimeUnit.SECONDS);
+                fail();
+            } catch (CancellationException expected) {
+                // Expected.
+            }
+        }
+        release.countDown();
+        assertEquals("running", running.get(TIMEOUT_S, TimeUnit.SECONDS));
+        assertEquals(0, ran.get());
+        assertEquals(0, scheduler.cancelWaitingJobs());
+    }
+
+    private static Future<?> submitRecording(TranscodeScheduler scheduler, List<String> order, String name,
+                                             int priority) {
+        return scheduler.submit(() -> order.add(name), priority, TranscodeScheduler.Preemption.NONE, null);
+    }
+
+    private static class RecordingCallback implements TranscodeScheduler.Callback {
+        final CountDownLatch mFinished = new CountDownLatch(1);
+        final AtomicInteger mCalls = new AtomicInteger();
+        volatile boolean mCanceled;
+
+        @Override
+        public void onJobFinished(Exception exception, boolean canceled) {
+            mCanceled = canceled;
+            mCalls.incrementAndGet();
+            mFinished.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            return mFinished.await(TIMEOUT_S, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.example.androidtranscoder.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceCodecCapabilitiesTest {
+    private static final String AVC = "video/avc";
+    private static final String FINGERPRINT = "vendor/device:14/build/1234:user/release-keys/34";
+    private static final int U = DeviceCodecCapabilities.FRAME_RATE_UNSUPPORTED;
+
+    private static DeviceCodecCapabilities.Codec codec(String name, boolean encoder, boolean hardware, int instances,
+                                                       int... maxFrameRates) {
+        return new DeviceCodecCapabilities.Codec(name, AVC, encoder, hardware, hardware, instances,
+                new int[]{1, 8}, maxFrameRates);
+    }
+
+    private static DeviceCodecCapabilities createCapabilities() {
+        return new DeviceCodecCapabilities(FINGERPRINT, Arrays.asList(
+                codec("c2.android.avc.encoder", true, false, 16, 120, 30, 10, U),
+                codec("c2.vendor.avc.encoder.slow", true, true, 8, 480, 240, 60, 15),
+                codec("c2.vendor.avc.encoder", true, true, 8, 480, 480, 240, 60),
+                codec("c2.vendor.avc.decoder", false, true, 16, 480, 480, 240, 60)));
+    }
+
+    @Test
+    public void ranksHardwareAndFasterCodecsFirst() {
+        List<DeviceCodecCapabilities.Codec> encoders = createCapabilities().getCodecs(AVC, true);
+        assertEquals(3, encoders.size());
+        assertEquals("c2.vendor.avc.encoder", encoders.get(0).name);
+        assertEquals("c2.vendor.avc.encoder.slow", encoders.get(1).name);
+        assertEquals("c2.android.avc.encoder", encoders.get(2).name);
+        assertEquals("c2.vendor.avc.decoder", createCapabilities().getBestCodec(AVC, false).name);
+        assertNull(createCapabilities().getBestCodec("video/hevc", true));
+    }
+
+    @Test
+    public void looksUpFrameRateOfSmallestCoveringSize() {
+        DeviceCodecCapabilities.Codec codec = createCapabilities().getBestCodec(AVC, true);
+        assertEquals(480, codec.getMaxFrameRate(1280, 720));
+        assertEquals(480, codec.getMaxFrameRate(720, 1280));
+        assertEquals(240, codec.getMaxFrameRate(1280, 1080));
+        assertEquals(60, codec.getMaxFrameRate(3840, 2160));
+        assertEquals(U, codec.getMaxFrameRate(7680, 4320));
+        assertTrue(codec.supportsProfile(8));
+    }
+
+    @Test
+    public void limitsConcurrentSessionsByFrameRateAndInstances() {
+        DeviceCodecCapabilities capabilities = createCapabilities();
+        // Instances of hardware codecs only.
+        assertEquals(16, capabilities.getMaxSupportedInstances(AVC, true));
+        assertEquals(8, capabilities.getMaxConcurrentSessions(AVC, true, 1920, 1080, 30));
+        assertEquals(2, capabilities.getMaxConcurrentSessions(AVC, true, 3840, 2160, 30));
+        assertEquals(16, capabilities.getMaxConcurrentSessions(AVC, false, 1280, 720, 30));
+        assertEquals(0, capabilities.getMaxConcurrentSessions("video/hevc", true, 1280, 720, 30));
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        DeviceCodecCapabilities capabilities = createCapabilities();
+        DeviceCodecCapabilities read = DeviceCodecCapabilities.readFrom(
+                new DataInputStream(new ByteArrayInputStream(write(capabilities))), FINGERPRINT);
+
+        assertEquals(FINGERPRINT, read.getFingerprint());
+        List<DeviceCodecCapabilities.Codec> expected = capabilities.getCodecs(AVC, true);
+        List<DeviceCodecCapabilities.Codec> actual = read.getCodecs(AVC, true);
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).name, actual.get(i).name);
+            assertEquals(expected.get(i).hardwareAccelerated, actual.get(i).hardwareAccelerated);
+            assertEquals(expected.get(i).maxSupportedInstances, actual.get(i).maxSupportedInstances);
+            assertEquals(expected.get(i).getMaxFrameRate(1920, 1080), actual.get(i).getMaxFrameRate(1920, 1080));
+        }
+    }
+
+    @Test
+    public void ignoresCacheOfOtherBuild() throws IOException {
+        byte[] bytes = write(createCapabilities());
+        assertNull(DeviceCodecCapabilities.readFrom(
+                new DataInputStream(new ByteArrayInputStream(bytes)), FINGERPRINT + "-updated"));
+    }
+
+    private static byte[] write(DeviceCodecCapabilities capabilities) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            capabilities.writeTo(out);
+        }
+        return bytes.toByteArray();
+    }
+}